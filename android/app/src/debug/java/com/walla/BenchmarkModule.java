@@ -0,0 +1,110 @@
+package com.walla;
+
+import android.content.SharedPreferences;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * On-device benchmarks (SigningBenchmark, StorageBenchmark), registered by DebugModules in
+ * debug builds only. Runs go one at a time on the module's own background thread, so two
+ * calls never measure each other.
+ */
+public class BenchmarkModule extends ReactContextBaseJavaModule {
+
+    private static final String MODULE_NAME = "WalletBenchmark";
+
+    private final ReactApplicationContext reactContext;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "wallet-benchmark");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public BenchmarkModule(ReactApplicationContext context) {
+        super(context);
+        reactContext = context;
+    }
+
+    @Override
+    public String getName() {
+        return MODULE_NAME;
+    }
+
+    @Override
+    public void invalidate() {
+        executor.shutdownNow();
+        super.invalidate();
+    }
+
+    // Compare device-key vs session-key signing cost on this device
+    @ReactMethod
+    public void runSigningBenchmark(int iterations, Promise promise) {
+        executor.execute(() -> {
+            try {
+                SharedPreferences prefs = SecureStorage.getEncryptedPrefs(reactContext);
+                String alias = prefs.getString("key_alias", null);
+                if (alias == null) {
+                    promise.reject("NO_KEY", "No key alias found");
+                    return;
+                }
+                SigningBenchmark.Result result = new SigningBenchmark("AndroidKeyStore").run(alias, iterations);
+
+                WritableMap map = Arguments.createMap();
+                map.putMap("deviceKey", toMap(result.deviceKey));
+                map.putMap("sessionKey", toMap(result.sessionKey));
+                map.putDouble("certifyMicros", result.certifyMicros);
+                WalletLog.i(MODULE_NAME, "[BENCH] deviceKey mean={}us, sessionKey mean={}us",
+                    result.deviceKey.meanMicros, result.sessionKey.meanMicros);
+                promise.resolve(map);
+            } catch (Exception e) {
+                promise.reject("BENCHMARK_FAILED", e);
+            }
+        });
+    }
+
+    // Compare EncryptedSharedPreferences vs the KvStore-backed prefs on this device
+    @ReactMethod
+    public void runStorageBenchmark(int iterations, Promise promise) {
+        executor.execute(() -> {
+            try {
+                StorageBenchmark.Result result = new StorageBenchmark(reactContext).run(iterations);
+
+                WritableMap map = Arguments.createMap();
+                map.putMap("encryptedPrefs", toMap(result.encryptedPrefs));
+                map.putMap("kvStore", toMap(result.kvStore));
+                WalletLog.i(MODULE_NAME, "[BENCH] read p50 {}us -> {}us, commit p50 {}us -> {}us",
+                    result.encryptedPrefs.read.p50Micros, result.kvStore.read.p50Micros,
+                    result.encryptedPrefs.commit.p50Micros, result.kvStore.commit.p50Micros);
+                promise.resolve(map);
+            } catch (Exception e) {
+                promise.reject("BENCHMARK_FAILED", e);
+            }
+        });
+    }
+
+    private static WritableMap toMap(StorageBenchmark.Backend backend) {
+        WritableMap map = Arguments.createMap();
+        map.putMap("read", toMap(backend.read));
+        map.putMap("apply", toMap(backend.apply));
+        map.putMap("commit", toMap(backend.commit));
+        return map;
+    }
+
+    private static WritableMap toMap(SigningBenchmark.Stats stats) {
+        WritableMap map = Arguments.createMap();
+        map.putInt("iterations", stats.iterations);
+        map.putDouble("meanMicros", stats.meanMicros);
+        map.putDouble("p50Micros", stats.p50Micros);
+        map.putDouble("p99Micros", stats.p99Micros);
+        map.putDouble("maxMicros", stats.maxMicros);
+        return map;
+    }
+}
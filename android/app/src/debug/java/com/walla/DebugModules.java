@@ -0,0 +1,20 @@
+package com.walla;
+
+import com.facebook.react.bridge.NativeModule;
+import com.facebook.react.bridge.ReactApplicationContext;
+
+import java.util.List;
+
+/**
+ * Native modules that ship in debug builds only. The release source set has an empty
+ * DebugModules, so the benchmarks are not compiled into the release app.
+ */
+final class DebugModules {
+
+    private DebugModules() {
+    }
+
+    static void addTo(List<NativeModule> modules, ReactApplicationContext reactContext) {
+        modules.add(new BenchmarkModule(reactContext));
+    }
+}
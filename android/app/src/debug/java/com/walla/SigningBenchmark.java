@@ -0,0 +1,107 @@
+package com.walla;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+
+/**
+ * Compares per-transaction signing cost of the two schemes on the device:
+ *   - device key: reload the key store, resolve the key and sign with it on every fare
+ *     (the old createSignedTransaction path)
+ *   - session key: sign in memory with a SessionSigner certified once by the device key
+ * The hardware key is only reachable on a real device, so this runs through BenchmarkModule
+ * (debug builds only).
+ */
+public class SigningBenchmark {
+
+    public static final class Stats {
+        public final String scheme;
+        public final int iterations;
+        public final double meanMicros;
+        public final double p50Micros;
+        public final double p99Micros;
+        public final double maxMicros;
+
+        Stats(String scheme, long[] nanos) {
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long n : sorted) total += n;
+            this.scheme = scheme;
+            this.iterations = sorted.length;
+            this.meanMicros = total / 1000.0 / sorted.length;
+            this.p50Micros = sorted[percentileIndex(sorted.length, 0.50)] / 1000.0;
+            this.p99Micros = sorted[percentileIndex(sorted.length, 0.99)] / 1000.0;
+            this.maxMicros = sorted[sorted.length - 1] / 1000.0;
+        }
+
+        private static int percentileIndex(int count, double p) {
+            return Math.min(count - 1, (int) Math.ceil(p * count) - 1);
+        }
+    }
+
+    public static final class Result {
+        public final Stats deviceKey;
+        public final Stats sessionKey;
+        // One-off cost of generating and certifying a session key
+        public final double certifyMicros;
+
+        Result(Stats deviceKey, Stats sessionKey, double certifyMicros) {
+            this.deviceKey = deviceKey;
+            this.sessionKey = sessionKey;
+            this.certifyMicros = certifyMicros;
+        }
+    }
+
+    private final String keyStoreType;
+
+    public SigningBenchmark(String keyStoreType) {
+        this.keyStoreType = keyStoreType;
+    }
+
+    public Result run(String alias, int iterations) throws Exception {
+        if (iterations <= 0) throw new IllegalArgumentException("iterations must be positive");
+
+        long[] device = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            byte[] payload = samplePayload(i);
+            long start = System.nanoTime();
+            KeyStore ks = KeyStore.getInstance(keyStoreType);
+            ks.load(null);
+            PrivateKey key = (PrivateKey) ks.getKey(alias, null);
+            Signature signature = Signature.getInstance(SessionSigner.SIGNATURE_ALGORITHM);
+            signature.initSign(key);
+            signature.update(payload);
+            signature.sign();
+            device[i] = System.nanoTime() - start;
+        }
+
+        SessionSigner signer = new SessionSigner(a -> {
+            KeyStore ks = KeyStore.getInstance(keyStoreType);
+            ks.load(null);
+            return (PrivateKey) ks.getKey(a, null);
+        }, SessionSigner.DEFAULT_MAX_AGE_MS, Integer.MAX_VALUE);
+
+        long certifyStart = System.nanoTime();
+        signer.ensureSession(alias);
+        double certifyMicros = (System.nanoTime() - certifyStart) / 1000.0;
+
+        long[] session = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            byte[] payload = samplePayload(i);
+            long start = System.nanoTime();
+            signer.sign(alias, payload);
+            session[i] = System.nanoTime() - start;
+        }
+
+        return new Result(new Stats("deviceKey", device), new Stats("sessionKey", session), certifyMicros);
+    }
+
+    private static byte[] samplePayload(int i) {
+        String json = "{\"txId\":\"00000000-0000-0000-0000-" + String.format("%012d", i)
+            + "\",\"fare\":3,\"timestamp\":" + (1700000000000L + i) + "}";
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
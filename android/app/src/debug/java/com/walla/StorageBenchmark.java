@@ -0,0 +1,133 @@
+package com.walla;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.security.crypto.EncryptedSharedPreferences;
+import androidx.security.crypto.MasterKey;
+
+import java.io.File;
+
+/**
+ * Compares read and write latency of the two encrypted prefs backends on the device:
+ *   - EncryptedSharedPreferences: AES-GCM decrypt on every get, whole XML file rewritten
+ *     on every apply/commit (the old getEncryptedPrefs)
+ *   - SecurePrefs over KvStore: reads from a decrypted map, one small record per key
+ * Each backend runs on scratch files next to the real ones, with a set of keys shaped like
+ * the app's, and the scratch files are deleted afterwards. Runs through BenchmarkModule
+ * (debug builds only).
+ */
+public class StorageBenchmark {
+    private static final String SCRATCH_PREFS = "AppPrefsBenchmark";
+    private static final String SCRATCH_DIR = "secure_kv_benchmark";
+    private static final String HOT_KEY = "jwt_token";
+
+    public static final class Backend {
+        public final String name;
+        public final SigningBenchmark.Stats read;
+        public final SigningBenchmark.Stats apply;
+        public final SigningBenchmark.Stats commit;
+
+        Backend(String name, SigningBenchmark.Stats read, SigningBenchmark.Stats apply, SigningBenchmark.Stats commit) {
+            this.name = name;
+            this.read = read;
+            this.apply = apply;
+            this.commit = commit;
+        }
+    }
+
+    public static final class Result {
+        public final Backend encryptedPrefs;
+        public final Backend kvStore;
+
+        Result(Backend encryptedPrefs, Backend kvStore) {
+            this.encryptedPrefs = encryptedPrefs;
+            this.kvStore = kvStore;
+        }
+    }
+
+    private final Context context;
+
+    public StorageBenchmark(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public Result run(int iterations) throws Exception {
+        if (iterations <= 0) throw new IllegalArgumentException("iterations must be positive");
+
+        MasterKey masterKey = new MasterKey.Builder(context)
+            .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
+            .build();
+        SharedPreferences encrypted = EncryptedSharedPreferences.create(
+            context,
+            SCRATCH_PREFS,
+            masterKey,
+            EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
+            EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
+        );
+        Backend old;
+        try {
+            old = measure("encryptedPrefs", encrypted, iterations);
+        } finally {
+            context.deleteSharedPreferences(SCRATCH_PREFS);
+        }
+
+        File dir = new File(context.getCacheDir(), SCRATCH_DIR);
+        KvStore store = new KvStore(dir, RecordCipher.newKey());
+        Backend kv;
+        try {
+            kv = measure("kvStore", new SecurePrefs(store), iterations);
+        } finally {
+            store.close();
+            File[] files = dir.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            dir.delete();
+        }
+        return new Result(old, kv);
+    }
+
+    private static Backend measure(String name, SharedPreferences prefs, int iterations) {
+        seed(prefs);
+
+        long[] read = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            prefs.getString(HOT_KEY, null);
+            read[i] = System.nanoTime() - start;
+        }
+
+        long[] apply = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            String value = sampleToken(i);
+            long start = System.nanoTime();
+            prefs.edit().putString(HOT_KEY, value).apply();
+            apply[i] = System.nanoTime() - start;
+        }
+
+        long[] commit = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            String value = sampleToken(iterations + i);
+            long start = System.nanoTime();
+            prefs.edit().putString(HOT_KEY, value).commit();
+            commit[i] = System.nanoTime() - start;
+        }
+
+        return new Backend(name, new SigningBenchmark.Stats("read", read),
+            new SigningBenchmark.Stats("apply", apply), new SigningBenchmark.Stats("commit", commit));
+    }
+
+    // The keys the app keeps, so the old backend rewrites a realistically sized file
+    private static void seed(SharedPreferences prefs) {
+        prefs.edit()
+            .putString(HOT_KEY, sampleToken(0))
+            .putString("device_id", "00000000-0000-0000-0000-000000000000")
+            .putString("key_alias", "wallet_device_key_00000000")
+            .putString("journal_key", "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=")
+            .commit();
+    }
+
+    private static String sampleToken(int i) {
+        StringBuilder token = new StringBuilder("eyJhbGciOiJIUzI1NiJ9.");
+        for (int j = 0; j < 12; j++) token.append("eyJzdWIiOiJ1c2VyIn0");
+        return token.append('.').append(String.format("%043d", i)).toString();
+    }
+}
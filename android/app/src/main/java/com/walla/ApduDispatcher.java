@@ -0,0 +1,131 @@
+package com.walla;
+
+/**
+ * Table-driven command APDU dispatcher.
+ *
+ * Handlers are looked up by CLA then INS in a two-level array, the header and Lc/Le are
+ * parsed in place (ISO 7816-3 short and extended cases), and malformed or unknown commands
+ * get a preallocated ISO 7816-4 status word. Dispatch itself allocates nothing; what a
+ * handler allocates is its own. WalletApplet's DEDUCT is not allocation-free: sealing its
+ * balance record and handing the tap to the pipeline cost about 1.5 KB per approved tap
+ * (DeductAllocationTest holds it under 3 KB).
+ */
+public class ApduDispatcher {
+
+    // ---- ISO 7816-4 status words ----
+    public static final byte[] SW_OK = sw(0x9000);
+    public static final byte[] SW_WRONG_LENGTH = sw(0x6700);
+    public static final byte[] SW_SECURITY_STATUS_NOT_SATISFIED = sw(0x6982);
+    public static final byte[] SW_CONDITIONS_NOT_SATISFIED = sw(0x6985);
+    public static final byte[] SW_FILE_NOT_FOUND = sw(0x6A82);
+    public static final byte[] SW_NOT_ENOUGH_MEMORY = sw(0x6A84);
+    public static final byte[] SW_WRONG_P1P2 = sw(0x6A86);
+    public static final byte[] SW_INS_NOT_SUPPORTED = sw(0x6D00);
+    public static final byte[] SW_CLA_NOT_SUPPORTED = sw(0x6E00);
+    public static final byte[] SW_UNKNOWN = sw(0x6F00);
+
+    // Le field not present in the command
+    public static final int LE_ABSENT = -1;
+
+    /**
+     * Optional observer for debug tracing. Only called when set, so a disabled
+     * trace costs one null check.
+     */
+    public interface Tracer {
+        void onCommand(byte[] apdu, byte[] response);
+    }
+
+    private final ApduHandler[][] table = new ApduHandler[256][];
+    private volatile Tracer tracer;
+
+    public ApduDispatcher register(int cla, int ins, ApduHandler handler) {
+        ApduHandler[] row = table[cla & 0xFF];
+        if (row == null) {
+            row = new ApduHandler[256];
+            table[cla & 0xFF] = row;
+        }
+        row[ins & 0xFF] = handler;
+        return this;
+    }
+
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public byte[] dispatch(byte[] apdu) {
+        byte[] response = route(apdu);
+        Tracer t = tracer;
+        if (t != null) t.onCommand(apdu, response);
+        return response;
+    }
+
+    private byte[] route(byte[] apdu) {
+        if (apdu == null || apdu.length < 4) return SW_WRONG_LENGTH;
+
+        ApduHandler[] row = table[apdu[0] & 0xFF];
+        if (row == null) return SW_CLA_NOT_SUPPORTED;
+        ApduHandler handler = row[apdu[1] & 0xFF];
+        if (handler == null) return SW_INS_NOT_SUPPORTED;
+
+        int length = apdu.length;
+
+        // Case 1: header only
+        if (length == 4) return handler.handle(apdu, 4, 0, LE_ABSENT);
+
+        int b4 = apdu[4] & 0xFF;
+
+        // Case 2S: Le only (00 means 256)
+        if (length == 5) return handler.handle(apdu, 5, 0, b4 == 0 ? 256 : b4);
+
+        if (b4 != 0) {
+            // Case 3S: Lc + data
+            if (length == 5 + b4) return handler.handle(apdu, 5, b4, LE_ABSENT);
+            // Case 4S: Lc + data + Le
+            if (length == 6 + b4) {
+                int le = apdu[5 + b4] & 0xFF;
+                return handler.handle(apdu, 5, b4, le == 0 ? 256 : le);
+            }
+            return SW_WRONG_LENGTH;
+        }
+
+        // Extended length: 00 followed by two length bytes
+        if (length < 7) return SW_WRONG_LENGTH;
+        int ext = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+
+        // Case 2E: Le only (0000 means 65536)
+        if (length == 7) return handler.handle(apdu, 7, 0, ext == 0 ? 65536 : ext);
+        if (ext == 0) return SW_WRONG_LENGTH;
+        // Case 3E
+        if (length == 7 + ext) return handler.handle(apdu, 7, ext, LE_ABSENT);
+        // Case 4E
+        if (length == 9 + ext) {
+            int le = ((apdu[7 + ext] & 0xFF) << 8) | (apdu[8 + ext] & 0xFF);
+            return handler.handle(apdu, 7, ext, le == 0 ? 65536 : le);
+        }
+        return SW_WRONG_LENGTH;
+    }
+
+    /**
+     * Big-endian 32-bit int read in place
+     */
+    public static int readInt(byte[] apdu, int offset) {
+        return ((apdu[offset] & 0xFF) << 24)
+            | ((apdu[offset + 1] & 0xFF) << 16)
+            | ((apdu[offset + 2] & 0xFF) << 8)
+            | (apdu[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Build a constant response: payload followed by a status word
+     */
+    public static byte[] response(byte[] payload, byte[] statusWord) {
+        byte[] result = new byte[payload.length + statusWord.length];
+        System.arraycopy(payload, 0, result, 0, payload.length);
+        System.arraycopy(statusWord, 0, result, payload.length, statusWord.length);
+        return result;
+    }
+
+    static byte[] sw(int value) {
+        return new byte[]{(byte) (value >> 8), (byte) value};
+    }
+}
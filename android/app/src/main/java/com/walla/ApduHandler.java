@@ -0,0 +1,17 @@
+package com.walla;
+
+/**
+ * Handles one CLA/INS pair registered with {@link ApduDispatcher}.
+ * Fields are read straight from the command array; the handler must not copy it.
+ */
+public interface ApduHandler {
+
+    /**
+     * @param apdu       full command APDU
+     * @param dataOffset offset of the data field in apdu
+     * @param lc         length of the data field (0 if absent)
+     * @param le         expected response length, or {@link ApduDispatcher#LE_ABSENT}
+     * @return response APDU including the status word; preallocated where possible
+     */
+    byte[] handle(byte[] apdu, int dataOffset, int lc, int le);
+}
@@ -2,7 +2,6 @@ package com.walla;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.Log;
 
 /**
  * Centralized configuration for native Android code.
@@ -12,6 +11,24 @@ public class AppConfig {
     private static final String TAG = "AppConfig";
     private static final String PREFS_NAME = "AppPrefs";
     private static final String KEY_BASE_URL = "base_url";
+    private static final String KEY_SYNC_BATCH_SIZE = "sync_batch_size";
+    private static final String KEY_BATCH_REDEEM_UNSUPPORTED = "batch_redeem_unsupported";
+    private static final String KEY_CHAIN_REDEEM_UNSUPPORTED = "chain_redeem_unsupported";
+    private static final String KEY_SESSION_KEY_MAX_AGE_MS = "session_key_max_age_ms";
+    private static final String KEY_SESSION_KEY_MAX_USES = "session_key_max_uses";
+    private static final String KEY_APDU_TRACE = "apdu_trace";
+    private static final String KEY_TLV_SUPPORTED = "tlv_supported";
+    private static final String KEY_LOG_LEVEL = "log_level";
+    private static final String KEY_DAILY_FARE_CAP = "daily_fare_cap";
+    private static final String KEY_WEEKLY_FARE_CAP = "weekly_fare_cap";
+    private static final String KEY_MAX_UNSYNCED_VALUE = "max_unsynced_value";
+    private static final String KEY_MAX_UNSYNCED_COUNT = "max_unsynced_count";
+    private static final String KEY_MAX_SYNC_AGE_MS = "max_sync_age_ms";
+    private static final String KEY_LAST_SYNC_MS = "last_sync_ms";
+
+    // Transactions per batch redeem request; 1 disables batching
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 20;
+    public static final int MAX_SYNC_BATCH_SIZE = 100;
 
     // fallback URL if not set in SharedPreferences
     // local url
@@ -23,9 +40,7 @@ public class AppConfig {
      */
     public static String getBaseUrl(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        String url = prefs.getString(KEY_BASE_URL, DEFAULT_BASE_URL);
-        Log.d(TAG, "Using base URL: " + url);
-        return url;
+        return prefs.getString(KEY_BASE_URL, DEFAULT_BASE_URL);
     }
 
     /**
@@ -33,8 +48,191 @@ public class AppConfig {
      */
     public static void setBaseUrl(Context context, String url) {
         SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        prefs.edit().putString(KEY_BASE_URL, url).apply();
-        Log.i(TAG, "Base URL updated to: " + url);
+        // A different backend may support batch redeem again
+        prefs.edit()
+            .putString(KEY_BASE_URL, url)
+            .remove(KEY_BATCH_REDEEM_UNSUPPORTED)
+            .remove(KEY_CHAIN_REDEEM_UNSUPPORTED)
+            .remove(KEY_TLV_SUPPORTED)
+            .apply();
+        WalletLog.i(TAG, "Base URL updated to: {}", url);
+    }
+
+    /**
+     * Number of transactions OfflineSyncWorker sends per batch redeem request
+     */
+    public static int getSyncBatchSize(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_SYNC_BATCH_SIZE, DEFAULT_SYNC_BATCH_SIZE);
+    }
+
+    public static void setSyncBatchSize(Context context, int size) {
+        int clamped = Math.max(1, Math.min(MAX_SYNC_BATCH_SIZE, size));
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putInt(KEY_SYNC_BATCH_SIZE, clamped).apply();
+        WalletLog.i(TAG, "Sync batch size updated to: {}", clamped);
+    }
+
+    /**
+     * False once the backend answered the batch endpoint with 404/405/501
+     */
+    public static boolean isBatchRedeemSupported(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return !prefs.getBoolean(KEY_BATCH_REDEEM_UNSUPPORTED, false);
+    }
+
+    public static void setBatchRedeemSupported(Context context, boolean supported) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putBoolean(KEY_BATCH_REDEEM_UNSUPPORTED, !supported).apply();
+    }
+
+    /**
+     * False once the backend answered the TxChain batch endpoint with 404/405/501;
+     * batches then carry a signature per transaction
+     */
+    public static boolean isChainRedeemSupported(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return !prefs.getBoolean(KEY_CHAIN_REDEEM_UNSUPPORTED, false);
+    }
+
+    public static void setChainRedeemSupported(Context context, boolean supported) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putBoolean(KEY_CHAIN_REDEEM_UNSUPPORTED, !supported).apply();
+    }
+
+    /**
+     * True once the backend advertised TxCodec.MEDIA_TYPE; new transactions are then signed
+     * and uploaded in the binary format. JSON until then.
+     */
+    public static boolean isTlvSupported(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getBoolean(KEY_TLV_SUPPORTED, false);
+    }
+
+    /**
+     * Record what a backend response said about the binary format (no write if unchanged)
+     */
+    public static void updateTlvSupport(Context context, BackendClient.Result result) {
+        if (result.tlvSupport == BackendClient.TLV_UNKNOWN) return;
+        boolean supported = result.tlvSupport == BackendClient.TLV_SUPPORTED;
+        if (supported == isTlvSupported(context)) return;
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putBoolean(KEY_TLV_SUPPORTED, supported).apply();
+        WalletLog.i(TAG, "Binary transaction format {} by backend", supported ? "enabled" : "disabled");
+    }
+
+    /**
+     * Session signing key lifetime (see SessionSigner)
+     */
+    public static long getSessionKeyMaxAgeMs(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getLong(KEY_SESSION_KEY_MAX_AGE_MS, SessionSigner.DEFAULT_MAX_AGE_MS);
+    }
+
+    public static int getSessionKeyMaxUses(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_SESSION_KEY_MAX_USES, SessionSigner.DEFAULT_MAX_USES);
+    }
+
+    public static void setSessionKeyRotation(Context context, long maxAgeMs, int maxUses) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+            .putLong(KEY_SESSION_KEY_MAX_AGE_MS, maxAgeMs)
+            .putInt(KEY_SESSION_KEY_MAX_USES, maxUses)
+            .apply();
+        WalletLog.i(TAG, "Session key rotation: maxAgeMs={}, maxUses={}", maxAgeMs, maxUses);
+    }
+
+    /**
+     * Hex-trace every APDU in LeapHostApduService (debugging only - builds log strings per command)
+     */
+    public static boolean isApduTraceEnabled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getBoolean(KEY_APDU_TRACE, false);
+    }
+
+    public static void setApduTraceEnabled(Context context, boolean enabled) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putBoolean(KEY_APDU_TRACE, enabled).apply();
+    }
+
+    /**
+     * Fare caps in whole currency units (FarePolicy); 0 means no cap
+     */
+    public static int getDailyFareCap(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_DAILY_FARE_CAP, 0);
+    }
+
+    public static int getWeeklyFareCap(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_WEEKLY_FARE_CAP, 0);
+    }
+
+    public static void setFareCaps(Context context, int dailyCap, int weeklyCap) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+            .putInt(KEY_DAILY_FARE_CAP, Math.max(0, dailyCap))
+            .putInt(KEY_WEEKLY_FARE_CAP, Math.max(0, weeklyCap))
+            .apply();
+        WalletLog.i(TAG, "Fare caps: daily={}, weekly={}", dailyCap, weeklyCap);
+    }
+
+    /**
+     * Offline risk limits (RiskLimits): unsynced value in whole currency units, unsynced
+     * taps, and time since the backend last settled a transaction; 0 means no limit
+     */
+    public static int getMaxUnsyncedValue(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_MAX_UNSYNCED_VALUE, 0);
+    }
+
+    public static int getMaxUnsyncedCount(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_MAX_UNSYNCED_COUNT, 0);
+    }
+
+    public static long getMaxSyncAgeMs(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getLong(KEY_MAX_SYNC_AGE_MS, 0);
+    }
+
+    public static void setRiskLimits(Context context, int maxValue, int maxCount, long maxSyncAgeMs) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+            .putInt(KEY_MAX_UNSYNCED_VALUE, Math.max(0, maxValue))
+            .putInt(KEY_MAX_UNSYNCED_COUNT, Math.max(0, maxCount))
+            .putLong(KEY_MAX_SYNC_AGE_MS, Math.max(0, maxSyncAgeMs))
+            .apply();
+        WalletLog.i(TAG, "Risk limits: value={}, count={}, syncAgeMs={}", maxValue, maxCount, maxSyncAgeMs);
+    }
+
+    /**
+     * When the backend last settled a transaction, so the sync age survives a restart; 0 if never
+     */
+    public static long getLastSyncMs(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getLong(KEY_LAST_SYNC_MS, 0);
+    }
+
+    public static void setLastSyncMs(Context context, long timestamp) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putLong(KEY_LAST_SYNC_MS, timestamp).apply();
+    }
+
+    /**
+     * Lowest WalletLog level recorded and sent to Logcat (WalletLog.VERBOSE..OFF)
+     */
+    public static int getLogLevel(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return prefs.getInt(KEY_LOG_LEVEL, WalletLog.INFO);
+    }
+
+    public static void setLogLevel(Context context, int level) {
+        int clamped = Math.max(WalletLog.VERBOSE, Math.min(WalletLog.OFF, level));
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putInt(KEY_LOG_LEVEL, clamped).apply();
+        WalletLog.setLevel(clamped);
     }
 
     /**
@@ -42,9 +240,17 @@ public class AppConfig {
      */
     public static class Endpoints {
 
-        // Native code uses only /api/wallet/redeem API endpoint
+        // Native code uses only the /api/wallet/redeem API endpoints
         public static String walletRedeem(Context context) {
             return getBaseUrl(context) + "/api/wallet/redeem";
         }
+
+        public static String walletRedeemBatch(Context context) {
+            return getBaseUrl(context) + "/api/wallet/redeem/batch";
+        }
+
+        public static String walletRedeemChain(Context context) {
+            return getBaseUrl(context) + "/api/wallet/redeem/chain";
+        }
     }
 }
@@ -0,0 +1,281 @@
+package com.walla;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * The one HTTP client for native backend calls.
+ *
+ * Wraps a single OkHttpClient, so every caller (the HCE service, OfflineSyncWorker) shares
+ * one connection pool: keep-alive connections and TLS sessions are reused across taps, and
+ * HTTP/2 is used when the server offers it over ALPN. Bodies are written with a JsonWriter
+ * straight into a byte buffer and responses are parsed from the body stream, so neither
+ * side builds an intermediate String. Bodies of {@link #COMPRESS_MIN_BYTES} or more are
+ * gzipped unless the server has answered a gzipped request with 415.
+ *
+ * Timeouts and the mapping from HTTP status to retry class live here and nowhere else.
+ */
+public class BackendClient {
+
+    public static final long CONNECT_TIMEOUT_MS = 5000;
+    public static final long READ_TIMEOUT_MS = 10000;
+    public static final long WRITE_TIMEOUT_MS = 10000;
+    // Whole call, including redirects and OkHttp's own connection retries
+    public static final long CALL_TIMEOUT_MS = 15000;
+
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    // Below this a single redeem body is smaller than the gzip header cost is worth
+    public static final int COMPRESS_MIN_BYTES = 1024;
+
+    // ---- Retry classes ----
+    public static final int OK = 0;
+    // Transient (network, timeout, 408, 429, 5xx) - keep the transaction and try again later
+    public static final int RETRY = 1;
+    // The server looked at it and said no - retrying will never succeed
+    public static final int REJECTED = 2;
+    // The endpoint does not exist on this backend (404, 405, 501)
+    public static final int UNSUPPORTED = 3;
+
+    // What a response says about TxCodec uploads (see Result.tlvSupport)
+    public static final int TLV_UNKNOWN = 0;
+    public static final int TLV_SUPPORTED = 1;
+    public static final int TLV_UNSUPPORTED = 2;
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final MediaType TLV = MediaType.get(TxCodec.MEDIA_TYPE);
+
+    private static volatile BackendClient shared;
+
+    /**
+     * Writes a request body as JSON
+     */
+    public interface BodyWriter {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    public static final class Result {
+        public final int status;
+        public final int retryClass;
+        // Parsed JSON object body, or null if the body was empty or not an object
+        public final JsonObject body;
+        // TLV_SUPPORTED when the server lists TxCodec.MEDIA_TYPE in Accept-Post,
+        // TLV_UNSUPPORTED when it answered a TLV upload with 415
+        public final int tlvSupport;
+
+        Result(int status, JsonObject body, int tlvSupport) {
+            this.status = status;
+            this.retryClass = classify(status);
+            this.body = body;
+            this.tlvSupport = tlvSupport;
+        }
+
+        public boolean isOk() {
+            return retryClass == OK;
+        }
+
+        /**
+         * Server-supplied "message" field, or the fallback
+         */
+        public String message(String fallback) {
+            if (body == null) return fallback;
+            JsonElement message = body.get("message");
+            return message != null && message.isJsonPrimitive() ? message.getAsString() : fallback;
+        }
+    }
+
+    private final OkHttpClient http;
+    private volatile boolean compressRequests = true;
+
+    /**
+     * The process-wide client
+     */
+    public static BackendClient shared() {
+        BackendClient client = shared;
+        if (client == null) {
+            synchronized (BackendClient.class) {
+                client = shared;
+                if (client == null) shared = client = new BackendClient();
+            }
+        }
+        return client;
+    }
+
+    public BackendClient() {
+        this(new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .writeTimeout(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .callTimeout(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .build());
+    }
+
+    public BackendClient(OkHttpClient http) {
+        this.http = http;
+    }
+
+    public static int classify(int status) {
+        if (status >= 200 && status < 300) return OK;
+        if (status == 404 || status == 405 || status == 501) return UNSUPPORTED;
+        if (status == 408 || status == 429 || status >= 500) return RETRY;
+        if (status >= 400) return REJECTED;
+        return RETRY;
+    }
+
+    public void setCompressRequests(boolean compress) {
+        compressRequests = compress;
+    }
+
+    public boolean compressesRequests() {
+        return compressRequests;
+    }
+
+    /**
+     * POST signed transactions to /redeem or /redeem/batch. With {@code tlv} the body is a
+     * TxCodec KIND_REDEEM; if the server answers that with 415 the same request is resent
+     * as JSON and the result reports TLV_UNSUPPORTED.
+     */
+    public Result redeem(String url, String deviceId, List<OfflineTransaction> transactions,
+                         boolean batch, boolean tlv) throws IOException {
+        if (tlv) {
+            Result result = execute(url, RequestBody.create(TxCodec.encodeRedeem(deviceId, transactions), TLV), false);
+            if (result.status != 415) return result;
+        }
+        Result result = postJson(url, json -> {
+            json.beginObject();
+            json.name("deviceId").value(deviceId);
+            if (batch) {
+                json.name("transactions").beginArray();
+                for (OfflineTransaction tx : transactions) {
+                    json.beginObject();
+                    json.name("txId").value(tx.txId);
+                    writeRedeemFields(json, tx);
+                    json.endObject();
+                }
+                json.endArray();
+            } else {
+                writeRedeemFields(json, transactions.get(0));
+            }
+            json.endObject();
+        });
+        return tlv && result.tlvSupport == TLV_UNKNOWN
+            ? new Result(result.status, result.body, TLV_UNSUPPORTED) : result;
+    }
+
+    /**
+     * POST a TxChain batch to /redeem/chain: payloads only, covered by one device key
+     * signature over the batch statement. Same TLV/JSON handling as {@link #redeem}.
+     */
+    public Result redeemChain(String url, String deviceId, List<OfflineTransaction> transactions,
+                              TxChain.Batch chain, boolean tlv) throws IOException {
+        if (tlv) {
+            Result result = execute(url, RequestBody.create(TxCodec.encodeRedeem(deviceId, transactions, chain), TLV), false);
+            if (result.status != 415) return result;
+        }
+        Result result = postJson(url, json -> {
+            json.beginObject();
+            json.name("deviceId").value(deviceId);
+            json.name("chain").beginObject();
+            json.name("statement").value(TxCodec.toBase64(chain.statement));
+            json.name("signature").value(TxCodec.toBase64(chain.signature));
+            json.endObject();
+            json.name("transactions").beginArray();
+            for (OfflineTransaction tx : transactions) {
+                json.beginObject();
+                json.name("txId").value(tx.txId);
+                if (tx.payloadFormat == OfflineTransaction.PAYLOAD_TLV) json.name("payloadFormat").value("tlv");
+                json.name("payload").value(TxCodec.toBase64(tx.payload));
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        });
+        return tlv && result.tlvSupport == TLV_UNKNOWN
+            ? new Result(result.status, result.body, TLV_UNSUPPORTED) : result;
+    }
+
+    /**
+     * POST a JSON body. Network failures and timeouts throw IOException (retry class RETRY).
+     */
+    public Result postJson(String url, BodyWriter writer) throws IOException {
+        Buffer body = new Buffer();
+        try (JsonWriter json = new JsonWriter(new OutputStreamWriter(body.outputStream(), StandardCharsets.UTF_8))) {
+            writer.write(json);
+        }
+
+        boolean gzip = compressRequests && body.size() >= COMPRESS_MIN_BYTES;
+        if (gzip) {
+            Buffer compressed = new Buffer();
+            try (BufferedSink sink = Okio.buffer(new GzipSink(compressed))) {
+                sink.writeAll(body.clone());
+            }
+            Result result = execute(url, RequestBody.create(compressed.readByteString(), JSON), true);
+            if (result.status != 415 && result.status != 400) return result;
+            // The server may not decode gzip request bodies; try once as plain JSON
+            Result plain = execute(url, RequestBody.create(body.snapshot(), JSON), false);
+            if (plain.status != 415 && plain.status != 400) compressRequests = false;
+            return plain;
+        }
+        return execute(url, RequestBody.create(body.snapshot(), JSON), false);
+    }
+
+    private Result execute(String url, RequestBody body, boolean gzip) throws IOException {
+        Request.Builder request = new Request.Builder().url(url).post(body);
+        if (gzip) request.header("Content-Encoding", "gzip");
+
+        try (Response response = http.newCall(request.build()).execute()) {
+            int tlvSupport = TLV_UNKNOWN;
+            String acceptPost = response.header("Accept-Post");
+            if (acceptPost != null && acceptPost.contains(TxCodec.MEDIA_TYPE)) tlvSupport = TLV_SUPPORTED;
+            else if (response.code() == 415 && TLV.equals(body.contentType())) tlvSupport = TLV_UNSUPPORTED;
+            return new Result(response.code(), parseObject(response.body()), tlvSupport);
+        }
+    }
+
+    private static JsonObject parseObject(ResponseBody body) {
+        if (body == null) return null;
+        try (Reader reader = body.charStream()) {
+            JsonElement element = JsonParser.parseReader(reader);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        } catch (Exception e) {
+            // Error pages and empty bodies are not JSON
+            return null;
+        }
+    }
+
+    /**
+     * The signed-transaction fields shared by /redeem and each /redeem/batch item
+     */
+    public static void writeRedeemFields(JsonWriter json, OfflineTransaction tx) throws IOException {
+        if (tx.payloadFormat == OfflineTransaction.PAYLOAD_TLV) json.name("payloadFormat").value("tlv");
+        json.name("payload").value(TxCodec.toBase64(tx.payload));
+        json.name("signature").value(TxCodec.toBase64(tx.signature));
+        if (tx.sessionCert != null) {
+            json.name("sessionCert").value(TxCodec.toBase64(tx.sessionCert));
+            json.name("sessionCertSignature").value(TxCodec.toBase64(tx.sessionCertSignature));
+        }
+    }
+}
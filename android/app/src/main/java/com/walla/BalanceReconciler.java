@@ -0,0 +1,147 @@
+package com.walla;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the local balance at the server-confirmed balance minus the fares not yet
+ * acknowledged.
+ *
+ * Overwriting the balance with each response's newBalance gave back every fare still
+ * pending, and the next sync took it away again. Instead, every request that can report
+ * a balance takes a {@link #ticket} before it is sent. Its outcome goes into a
+ * {@link Settlement}: the fares it acknowledged, the fares it rejected, and the balance
+ * it reported. {@link #commit} applies a settlement as one BalanceStore event. The new
+ * confirmed balance is:
+ *   - fresh (newer ticket than anything applied): the reported balance
+ *   - stale (an older request answered late): unchanged, it already covers the request
+ *   - none reported: the old one minus the acknowledged fares, which the server charged
+ * and the balance moves by (new confirmed - old confirmed) + acknowledged + rejected.
+ * With no confirmed balance yet (fresh install, after logout) the first fresh settlement
+ * sets the balance to reported - pending, pending being the store's count of fares
+ * deducted and not yet settled. That count moves with the balance under the store's lock,
+ * so a tap still in the post-tap pipeline, not yet in the journal, stays charged, and a
+ * deduct racing the anchor is kept.
+ *
+ * Callers settle the transactions in the journal first and commit once per sync batch,
+ * so a batch costs one balance event and one JS update, not one per transaction.
+ */
+public class BalanceReconciler {
+
+    /**
+     * What one or more responses settled. Not thread-safe; one per sync batch.
+     */
+    public static final class Settlement {
+        long ackedMinor;
+        long rejectedMinor;
+        int settled;
+        // Ticket of the newest request that reported a balance, 0 if none did
+        long serverTicket;
+        long serverBalanceMinor;
+
+        public void acked(long amountMinor) {
+            ackedMinor += amountMinor;
+            settled++;
+        }
+
+        public void rejected(long amountMinor) {
+            rejectedMinor += amountMinor;
+            settled++;
+        }
+
+        /**
+         * Balance reported by the request that took {@code ticket}. The newest one counts.
+         */
+        public void serverBalance(long ticket, long balanceMinor) {
+            if (ticket > serverTicket) {
+                serverTicket = ticket;
+                serverBalanceMinor = balanceMinor;
+            }
+        }
+
+        public boolean isEmpty() {
+            return settled == 0 && serverTicket == 0;
+        }
+
+        void clear() {
+            ackedMinor = 0;
+            rejectedMinor = 0;
+            settled = 0;
+            serverTicket = 0;
+            serverBalanceMinor = 0;
+        }
+    }
+
+    private final BalanceStore store;
+    private final AtomicLong tickets = new AtomicLong();
+
+    // Guarded by this
+    private long appliedTicket;
+    private long commits;
+    private long staleResponses;
+
+    public BalanceReconciler(BalanceStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Take before sending a request whose answer may carry a balance
+     */
+    public long ticket() {
+        return tickets.incrementAndGet();
+    }
+
+    /**
+     * Apply a settlement whose transactions are already settled in the journal, then
+     * clear it. Returns the local balance in minor units.
+     */
+    public synchronized long commit(Settlement s) throws IOException {
+        if (s.isEmpty()) return store.balance();
+
+        boolean fresh = s.serverTicket > appliedTicket;
+        if (s.serverTicket != 0 && !fresh) staleResponses++;
+        long confirmed = store.confirmedBalance();
+        long settled = s.ackedMinor + s.rejectedMinor;
+        long balance;
+
+        if (confirmed == BalanceStore.UNCONFIRMED) {
+            if (fresh) {
+                balance = store.anchor(s.serverBalanceMinor, settled);
+            } else if (s.rejectedMinor != 0) {
+                // Nothing to anchor on: refund what the server refused, keep the rest as it is
+                balance = store.settle(s.rejectedMinor, BalanceStore.UNCONFIRMED, settled);
+            } else {
+                store.settled(settled);
+                balance = store.balance();
+            }
+        } else {
+            long next;
+            if (fresh) next = s.serverBalanceMinor;
+            else if (s.serverTicket != 0) next = confirmed;
+            else next = confirmed - s.ackedMinor;
+            long delta = next - confirmed + s.ackedMinor + s.rejectedMinor;
+            if (delta != 0 || next != confirmed) {
+                balance = store.settle(delta, next, settled);
+            } else {
+                store.settled(settled);
+                balance = store.balance();
+            }
+        }
+
+        if (fresh) appliedTicket = s.serverTicket;
+        commits++;
+        s.clear();
+        return balance;
+    }
+
+    public synchronized long commitCount() {
+        return commits;
+    }
+
+    /**
+     * Responses whose balance was ignored because a newer one had been applied
+     */
+    public synchronized long staleResponses() {
+        return staleResponses;
+    }
+}
@@ -0,0 +1,585 @@
+package com.walla;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.TreeMap;
+
+/**
+ * Event-sourced, crash-safe wallet balance.
+ *
+ * Every deduct, top-up and server reconciliation is appended to a write-ahead log
+ * (wal-N.log) before the caller is answered. The append is a plain write() into the page
+ * cache, so a process kill right after SW_OK cannot lose the fare. A background thread
+ * fsyncs everything appended in the last groupCommitMs in one go (group commit), so
+ * power loss costs at most that window.
+ *
+ * Events are stored as deltas, reconciliations included, so concurrent CAS updates on the
+ * in-memory {@link WalletLedger} replay to the same total whatever order they were logged in.
+ * Every snapshotEvery events the flusher writes a snapshot (balance + last sequence),
+ * starts a new log generation and deletes the old ones. Opening the store loads the
+ * snapshot and replays the log after it.
+ *
+ * The store also keeps the last server-confirmed balance. SETTLE events carry it next
+ * to their delta, so BalanceReconciler can keep the balance at "confirmed minus
+ * pending" across restarts. Pending is counted here too, as the fares deducted and not
+ * yet settled: it changes with the balance under one lock, so it covers a tap still in
+ * the post-tap pipeline, before its transaction reaches the journal. It is not logged;
+ * the opener seeds it with what an earlier process left pending ({@link #seedUnsettled}).
+ */
+public class BalanceStore implements Closeable {
+
+    public static final long DEFAULT_GROUP_COMMIT_MS = 10;
+    public static final int DEFAULT_SNAPSHOT_EVERY = 256;
+
+    public static final byte EVENT_DEDUCT = 1;
+    public static final byte EVENT_TOP_UP = 2;
+    public static final byte EVENT_RECONCILE = 3;
+    // Delta plus the confirmed balance after it
+    public static final byte EVENT_SETTLE = 4;
+
+    // confirmedBalance() before any server balance was applied
+    public static final long UNCONFIRMED = Long.MIN_VALUE;
+
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final int EVENT_BYTES = 1 + 8 + 8;
+    private static final int SETTLE_EVENT_BYTES = EVENT_BYTES + 8;
+    private static final int MAX_RECORD_BYTES = 1024;
+    private static final byte[] SNAPSHOT_AAD = {'s', 'n', 'a', 'p'};
+
+    private final File dir;
+    private final RecordCipher cipher;
+    private final long groupCommitMs;
+    private final int snapshotEvery;
+
+    private final WalletLedger ledger = new WalletLedger();
+
+    // Guards the log file, the sequence and the logged balance
+    private final Object writeLock = new Object();
+    private FileOutputStream wal;
+    private int generation;
+    private long lastSeq;
+    private long loggedBalance;
+    private long confirmedBalance = UNCONFIRMED;
+    // Fares deducted and not yet acked or rejected by the server, minor units
+    private long unsettled;
+    private int eventsSinceSnapshot;
+
+    private final Object durableLock = new Object();
+    private long durableSeq;
+
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private boolean restored;
+    private long replayedEvents;
+    private long syncs;
+    private long snapshots;
+
+    public BalanceStore(File dir, RecordCipher cipher) throws IOException {
+        this(dir, cipher, DEFAULT_GROUP_COMMIT_MS, DEFAULT_SNAPSHOT_EVERY);
+    }
+
+    public BalanceStore(File dir, RecordCipher cipher, long groupCommitMs, int snapshotEvery) throws IOException {
+        this.dir = dir;
+        this.cipher = cipher;
+        this.groupCommitMs = groupCommitMs;
+        this.snapshotEvery = snapshotEvery;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create balance directory " + dir);
+        }
+        rebuild();
+
+        flusher = new Thread(this::flushLoop, "balance-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // ---- Balance operations ----
+
+    /**
+     * Balance in minor units
+     */
+    public long balance() {
+        return ledger.get();
+    }
+
+    /**
+     * Check-and-deduct, then log, and count the fare as unsettled. Returns the new balance
+     * or WalletLedger.INSUFFICIENT. When this returns, the event is in the page cache
+     * (survives a process kill).
+     */
+    public long deduct(long amountMinor) throws IOException {
+        // The append takes this lock anyway; holding it across the CAS keeps an anchor
+        // from seeing the fare gone from the balance but not yet unsettled
+        synchronized (writeLock) {
+            long updated = ledger.tryDeduct(amountMinor);
+            if (updated == WalletLedger.INSUFFICIENT || updated == WalletLedger.NOT_LOADED) {
+                return WalletLedger.INSUFFICIENT;
+            }
+            try {
+                append(EVENT_DEDUCT, -amountMinor);
+            } catch (IOException e) {
+                ledger.topUp(amountMinor);
+                throw e;
+            }
+            unsettled += amountMinor;
+            return updated;
+        }
+    }
+
+    public long topUp(long amountMinor) throws IOException {
+        long updated = ledger.topUp(amountMinor);
+        try {
+            append(EVENT_TOP_UP, amountMinor);
+        } catch (IOException e) {
+            ledger.tryDeduct(amountMinor);
+            throw e;
+        }
+        return updated;
+    }
+
+    /**
+     * Replace the balance outright. Logged as the delta it applied. The confirmed balance
+     * is forgotten, so the next {@link #settle} anchors the balance afresh.
+     */
+    public long reconcile(long serverBalanceMinor) throws IOException {
+        long delta = ledger.reconcileDelta(serverBalanceMinor);
+        append(EVENT_RECONCILE, delta, UNCONFIRMED);
+        return serverBalanceMinor;
+    }
+
+    /**
+     * Add a reconciliation delta and record the server-confirmed balance it goes with,
+     * as one event, for a settlement that acked or rejected {@code settledMinor} of fares.
+     * Deducts racing with it are kept. Returns the new balance.
+     */
+    public long settle(long deltaMinor, long confirmedMinor, long settledMinor) throws IOException {
+        synchronized (writeLock) {
+            ledger.adjust(deltaMinor);
+            try {
+                append(EVENT_SETTLE, deltaMinor, confirmedMinor);
+            } catch (IOException e) {
+                ledger.adjust(-deltaMinor);
+                throw e;
+            }
+            settled(settledMinor);
+            return ledger.get();
+        }
+    }
+
+    /**
+     * First settle after install or logout, for a settlement that acked or rejected
+     * {@code settledMinor} of fares: set the balance to the confirmed one minus the fares
+     * still unsettled, logged as the delta it applied, and record the confirmed balance.
+     * Deducts and top-ups racing with it are kept. Returns the new balance.
+     */
+    public long anchor(long confirmedMinor, long settledMinor) throws IOException {
+        synchronized (writeLock) {
+            long pending = Math.max(0, unsettled - settledMinor);
+            long delta = confirmedMinor - pending - ledger.get();
+            ledger.adjust(delta);
+            try {
+                append(EVENT_SETTLE, delta, confirmedMinor);
+            } catch (IOException e) {
+                ledger.adjust(-delta);
+                throw e;
+            }
+            unsettled = pending;
+            return ledger.get();
+        }
+    }
+
+    /**
+     * The server acked or rejected {@code settledMinor} of fares with no balance change
+     * to log
+     */
+    public void settled(long settledMinor) {
+        synchronized (writeLock) {
+            unsettled = Math.max(0, unsettled - settledMinor);
+        }
+    }
+
+    /**
+     * Fares an earlier process deducted that are still waiting for the server (the
+     * journal's pending amount). Call once after opening, before the first deduct.
+     */
+    public void seedUnsettled(long pendingMinor) {
+        synchronized (writeLock) {
+            unsettled = pendingMinor;
+        }
+    }
+
+    /**
+     * Fares deducted and not yet acked or rejected, minor units
+     */
+    public long unsettled() {
+        synchronized (writeLock) {
+            return unsettled;
+        }
+    }
+
+    /**
+     * Last server-confirmed balance in minor units, or UNCONFIRMED
+     */
+    public long confirmedBalance() {
+        synchronized (writeLock) {
+            return confirmedBalance;
+        }
+    }
+
+    /**
+     * Highest sequence appended so far
+     */
+    public long lastSequence() {
+        synchronized (writeLock) {
+            return lastSeq;
+        }
+    }
+
+    /**
+     * Wait until every event appended before the call is fsynced
+     */
+    public boolean awaitDurable(long timeoutMs) throws InterruptedException {
+        long target = lastSequence();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (durableLock) {
+            while (durableSeq < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                durableLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Commit now instead of waiting for the next group commit
+     */
+    public void sync() throws IOException {
+        flushOnce();
+    }
+
+    /**
+     * True if state was found on disk when the store was opened
+     */
+    public boolean wasRestored() {
+        return restored;
+    }
+
+    public long replayedEvents() {
+        return replayedEvents;
+    }
+
+    public synchronized long syncCount() {
+        return syncs;
+    }
+
+    public synchronized long snapshotCount() {
+        return snapshots;
+    }
+
+    /**
+     * Delete all balance state (logout). The balance restarts at zero.
+     */
+    public void clear() throws IOException {
+        synchronized (writeLock) {
+            closeWal();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) file.delete();
+            }
+            // Sequence numbers keep counting so pending durability waits stay valid
+            generation = 1;
+            loggedBalance = 0;
+            confirmedBalance = UNCONFIRMED;
+            unsettled = 0;
+            eventsSinceSnapshot = 0;
+            ledger.reconcile(0);
+            wal = new FileOutputStream(walFile(generation), true);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushOnce();
+        synchronized (writeLock) {
+            closeWal();
+        }
+    }
+
+    // ---- Log ----
+
+    private void append(byte type, long delta) throws IOException {
+        synchronized (writeLock) {
+            long seq = lastSeq + 1;
+            byte[] plain = ByteBuffer.allocate(EVENT_BYTES).put(type).putLong(seq).putLong(delta).array();
+            writeFrame(wal, seal(plain, walAad(generation)));
+            lastSeq = seq;
+            loggedBalance += delta;
+            eventsSinceSnapshot++;
+        }
+    }
+
+    // RECONCILE and SETTLE events, which also set the confirmed balance
+    private void append(byte type, long delta, long confirmed) throws IOException {
+        synchronized (writeLock) {
+            if (type == EVENT_RECONCILE) {
+                append(type, delta);
+            } else {
+                long seq = lastSeq + 1;
+                byte[] plain = ByteBuffer.allocate(SETTLE_EVENT_BYTES)
+                    .put(type).putLong(seq).putLong(delta).putLong(confirmed).array();
+                writeFrame(wal, seal(plain, walAad(generation)));
+                lastSeq = seq;
+                loggedBalance += delta;
+                eventsSinceSnapshot++;
+            }
+            confirmedBalance = confirmed;
+        }
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                Thread.sleep(groupCommitMs);
+            } catch (InterruptedException e) {
+                if (!running) return;
+            }
+            try {
+                flushOnce();
+                maybeSnapshot();
+            } catch (IOException e) {
+                // Retried on the next tick; the events are still in the page cache
+            }
+        }
+    }
+
+    /**
+     * One group commit: fsync everything appended so far
+     */
+    private void flushOnce() throws IOException {
+        long target;
+        FileDescriptor fd;
+        synchronized (writeLock) {
+            target = lastSeq;
+            if (wal == null) return;
+            fd = wal.getFD();
+        }
+        synchronized (durableLock) {
+            if (target <= durableSeq) return;
+        }
+        fd.sync();
+        synchronized (this) {
+            syncs++;
+        }
+        markDurable(target);
+    }
+
+    private void markDurable(long seq) {
+        synchronized (durableLock) {
+            if (seq > durableSeq) durableSeq = seq;
+            durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * Snapshot + new log generation, on the flusher thread only
+     */
+    private void maybeSnapshot() throws IOException {
+        synchronized (writeLock) {
+            if (eventsSinceSnapshot < snapshotEvery) return;
+
+            // The current generation is complete and durable before it can be dropped
+            wal.getFD().sync();
+            markDurable(lastSeq);
+
+            int next = generation + 1;
+            FileOutputStream nextWal = new FileOutputStream(walFile(next), true);
+            writeSnapshot(lastSeq, loggedBalance, confirmedBalance, next);
+            closeWal();
+            wal = nextWal;
+            generation = next;
+            eventsSinceSnapshot = 0;
+
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    int gen = walGeneration(file);
+                    if (gen > 0 && gen < next) file.delete();
+                }
+            }
+        }
+        synchronized (this) {
+            snapshots++;
+        }
+    }
+
+    private void writeSnapshot(long seq, long balance, long confirmed, int walGeneration) throws IOException {
+        byte[] plain = ByteBuffer.allocate(8 + 8 + 4 + 8)
+            .putLong(seq).putLong(balance).putInt(walGeneration).putLong(confirmed).array();
+        File tmp = new File(dir, SNAPSHOT + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            writeFrame(out, seal(plain, SNAPSHOT_AAD));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(new File(dir, SNAPSHOT))) {
+            throw new IOException("Cannot install balance snapshot");
+        }
+    }
+
+    // ---- Recovery ----
+
+    private void rebuild() throws IOException {
+        long snapshotSeq = 0;
+        long balance = 0;
+        long confirmed = UNCONFIRMED;
+        int firstGeneration = 1;
+
+        File snapshot = new File(dir, SNAPSHOT);
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(snapshot))) {
+                int length = in.readInt();
+                byte[] sealed = new byte[length];
+                in.readFully(sealed);
+                ByteBuffer plain = ByteBuffer.wrap(cipher.open(sealed, SNAPSHOT_AAD));
+                snapshotSeq = plain.getLong();
+                balance = plain.getLong();
+                firstGeneration = plain.getInt();
+                // Snapshots from before settle events end here
+                if (plain.remaining() >= 8) confirmed = plain.getLong();
+                restored = true;
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                throw new IOException("Balance snapshot unreadable", e);
+            }
+        }
+
+        TreeMap<Integer, File> logs = new TreeMap<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                int gen = walGeneration(file);
+                if (gen >= firstGeneration) logs.put(gen, file);
+            }
+        }
+
+        long seq = snapshotSeq;
+        for (java.util.Map.Entry<Integer, File> entry : logs.entrySet()) {
+            restored = true;
+            File file = entry.getValue();
+            byte[] aad = walAad(entry.getKey());
+            long valid = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException end) {
+                        break;
+                    }
+                    if (length <= 0 || length > MAX_RECORD_BYTES) break;
+                    byte[] sealed = new byte[length];
+                    byte[] plainBytes;
+                    try {
+                        in.readFully(sealed);
+                        plainBytes = cipher.open(sealed, aad);
+                    } catch (EOFException | GeneralSecurityException torn) {
+                        break;
+                    }
+                    valid += 4 + length;
+
+                    ByteBuffer plain = ByteBuffer.wrap(plainBytes);
+                    byte type = plain.get();
+                    long eventSeq = plain.getLong();
+                    long delta = plain.getLong();
+                    if (eventSeq <= seq) continue;
+                    seq = eventSeq;
+                    balance += delta;
+                    if (type == EVENT_RECONCILE) confirmed = UNCONFIRMED;
+                    else if (type == EVENT_SETTLE) confirmed = plain.getLong();
+                    replayedEvents++;
+                }
+            }
+            if (valid < file.length()) {
+                // Torn tail from a kill mid-write
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+        }
+
+        generation = logs.isEmpty() ? firstGeneration : Math.max(firstGeneration, logs.lastKey());
+        lastSeq = seq;
+        loggedBalance = balance;
+        confirmedBalance = confirmed;
+        eventsSinceSnapshot = (int) replayedEvents;
+        durableSeq = seq;
+        ledger.load(balance);
+        wal = new FileOutputStream(walFile(generation), true);
+    }
+
+    // ---- Helpers ----
+
+    private byte[] seal(byte[] plain, byte[] aad) throws IOException {
+        try {
+            return cipher.seal(plain, aad);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal balance record", e);
+        }
+    }
+
+    private static void writeFrame(FileOutputStream out, byte[] sealed) throws IOException {
+        byte[] frame = new byte[4 + sealed.length];
+        frame[0] = (byte) (sealed.length >>> 24);
+        frame[1] = (byte) (sealed.length >>> 16);
+        frame[2] = (byte) (sealed.length >>> 8);
+        frame[3] = (byte) sealed.length;
+        System.arraycopy(sealed, 0, frame, 4, sealed.length);
+        // Single write() so a record reaches the page cache whole or not at all
+        out.write(frame);
+    }
+
+    private void closeWal() throws IOException {
+        if (wal != null) {
+            wal.close();
+            wal = null;
+        }
+    }
+
+    private File walFile(int gen) {
+        return new File(dir, WAL_PREFIX + gen + WAL_SUFFIX);
+    }
+
+    private static int walGeneration(File file) {
+        String name = file.getName();
+        if (!name.startsWith(WAL_PREFIX) || !name.endsWith(WAL_SUFFIX)) return -1;
+        try {
+            return Integer.parseInt(name.substring(WAL_PREFIX.length(), name.length() - WAL_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] walAad(int gen) {
+        return new byte[]{'w', 'a', 'l', (byte) (gen >>> 24), (byte) (gen >>> 16), (byte) (gen >>> 8), (byte) gen};
+    }
+}
@@ -0,0 +1,206 @@
+package com.walla;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalescing, bounded queue between native code and the JS "NfcEvent" listener.
+ *
+ * Posting never blocks: it is a sequence number, one small object and either a slot swap
+ * (balanceUpdate) or a non-blocking offer. A single daemon thread flushes the window:
+ * only the latest balanceUpdate is delivered, consecutive transaction results go out as
+ * one batch, everything else in the order it was posted. When the queue is full or the
+ * emitter cannot deliver (no React context), events are dropped and counted.
+ */
+public class EventBridge {
+
+    public static final String BALANCE_UPDATE = "balanceUpdate";
+    public static final String TRANSACTION_COMPLETE = "transactionComplete";
+    public static final String FAILURE = "failure";
+    public static final String OFFLINE = "offline";
+    public static final String SYNC_FAILED = "syncFailed";
+
+    private static final int DEFAULT_CAPACITY = 128;
+    private static final long DEFAULT_WINDOW_MS = 50;
+
+    /**
+     * One event. Message-only events use {@code message}; balanceUpdate carries
+     * {@code balance}; a transactionComplete carries its {@code results} in post order.
+     */
+    public static final class Event {
+        public final long seq;
+        public final String type;
+        public final String message;
+        public final double balance;
+        public final List<TransactionResult> results;
+
+        Event(long seq, String type, String message, double balance, List<TransactionResult> results) {
+            this.seq = seq;
+            this.type = type;
+            this.message = message;
+            this.balance = balance;
+            this.results = results;
+        }
+    }
+
+    public static final class TransactionResult {
+        public final String txId;
+        public final String status;
+        public final double fareDeducted;
+        public final double newBalance;
+
+        public TransactionResult(String txId, String status, double fareDeducted, double newBalance) {
+            this.txId = txId;
+            this.status = status;
+            this.fareDeducted = fareDeducted;
+            this.newBalance = newBalance;
+        }
+    }
+
+    /**
+     * Delivers one event to JS. Returns false if it could not be delivered (no context).
+     * Only ever called from the flush thread.
+     */
+    public interface Emitter {
+        boolean emit(Event event);
+    }
+
+    private final Emitter emitter;
+    private final long windowMs;
+    private final ArrayBlockingQueue<Event> queue;
+    private final AtomicReference<Event> latestBalance = new AtomicReference<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder emitted;
+    private final LongAdder dropped;
+    private final LongAdder coalesced;
+
+    public EventBridge(Emitter emitter) {
+        this(emitter, DEFAULT_CAPACITY, DEFAULT_WINDOW_MS, MetricsRegistry.global());
+    }
+
+    public EventBridge(Emitter emitter, int capacity, long windowMs, MetricsRegistry metrics) {
+        this.emitter = emitter;
+        this.windowMs = windowMs;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "EventBridge");
+            t.setDaemon(true);
+            return t;
+        });
+        emitted = metrics.counter(MetricsRegistry.EVENTS_EMITTED);
+        dropped = metrics.counter(MetricsRegistry.EVENTS_DROPPED);
+        coalesced = metrics.counter(MetricsRegistry.EVENTS_COALESCED);
+    }
+
+    public void postBalance(double balance) {
+        Event event = new Event(sequence.incrementAndGet(), BALANCE_UPDATE, null, balance, null);
+        if (latestBalance.getAndSet(event) != null) coalesced.increment();
+        scheduleFlush();
+    }
+
+    public void postTransaction(TransactionResult result) {
+        List<TransactionResult> results = new ArrayList<>(1);
+        results.add(result);
+        offer(new Event(sequence.incrementAndGet(), TRANSACTION_COMPLETE, null, Double.NaN, results));
+    }
+
+    public void post(String type, String message) {
+        offer(new Event(sequence.incrementAndGet(), type, message, Double.NaN, null));
+    }
+
+    public long emittedCount() {
+        return emitted.sum();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Deliver whatever is pending now, on the calling thread. Used by shutdown paths and tests.
+     */
+    public void flushNow() {
+        flush();
+    }
+
+    private void offer(Event event) {
+        if (!queue.offer(event)) {
+            dropped.increment();
+            return;
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) return;
+        try {
+            flusher.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            flushScheduled.set(false);
+        }
+    }
+
+    private synchronized void flush() {
+        // Clear first so anything posted while emitting schedules the next window
+        flushScheduled.set(false);
+
+        List<Event> pending = new ArrayList<>(queue.size() + 1);
+        queue.drainTo(pending);
+        Event balance = latestBalance.getAndSet(null);
+
+        Event batch = null;
+        boolean balanceSent = balance == null;
+        for (Event event : pending) {
+            if (!balanceSent && balance.seq < event.seq) {
+                batch = deliverBatch(batch);
+                deliver(balance);
+                balanceSent = true;
+            }
+            if (TRANSACTION_COMPLETE.equals(event.type)) {
+                if (batch == null) {
+                    batch = event;
+                } else {
+                    batch.results.addAll(event.results);
+                    coalesced.increment();
+                }
+                continue;
+            }
+            batch = deliverBatch(batch);
+            deliver(event);
+        }
+        deliverBatch(batch);
+        if (!balanceSent) deliver(balance);
+    }
+
+    private Event deliverBatch(Event batch) {
+        if (batch != null) deliver(batch);
+        return null;
+    }
+
+    private void deliver(Event event) {
+        boolean ok;
+        try {
+            ok = emitter.emit(event);
+        } catch (RuntimeException e) {
+            ok = false;
+        }
+        if (ok) emitted.increment();
+        else dropped.increment();
+    }
+}
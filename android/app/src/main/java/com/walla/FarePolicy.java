@@ -0,0 +1,295 @@
+package com.walla;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.TimeZone;
+
+/**
+ * Daily and weekly fare caps, priced at tap time.
+ *
+ * Spend is kept in a ring of per-day buckets (local calendar days, weeks starting Monday,
+ * as in HistoryStore). A bucket is only counted while its day is the one the slot
+ * stands for, so old days drop out without a sweep. {@link #quote} reads at most seven
+ * buckets and does no I/O or allocation beyond its Decision; {@link #record} adds the
+ * charged fare to today's bucket. A cap of 0 is no cap.
+ *
+ * The buckets are written behind the tap by {@link #persist} (the post-tap pipeline's
+ * persist stage), sealed into one of two slots of fare_caps.bin in turn so a torn write
+ * leaves the other. A crash between SW_OK and the next persist forgets those taps'
+ * spend: the device under-caps, never over-caps, and the backend re-applies the caps
+ * from the signed decisions anyway.
+ */
+public class FarePolicy implements Closeable {
+
+    // Decision.cap
+    public static final int CAP_NONE = 0;
+    public static final int CAP_DAILY = 1;
+    public static final int CAP_WEEKLY = 2;
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    // Power of two, at least a week
+    private static final int BUCKETS = 8;
+    private static final int MASK = BUCKETS - 1;
+    private static final String STATE_FILE = "fare_caps.bin";
+    // [8 generation][BUCKETS x (4 day, 4 spent)]
+    private static final int STATE_BYTES = 8 + BUCKETS * 8;
+    private static final int SLOT_BYTES = STATE_BYTES + RecordCipher.OVERHEAD;
+
+    /**
+     * What to charge for one tap, and why
+     */
+    public static final class Decision {
+        public final int requestedFare;
+        public final int fare;
+        public final int cap;
+        final int day;
+
+        Decision(int requestedFare, int fare, int cap, int day) {
+            this.requestedFare = requestedFare;
+            this.fare = fare;
+            this.cap = cap;
+            this.day = day;
+        }
+
+        public boolean isCapped() {
+            return cap != CAP_NONE;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final RecordCipher cipher;
+    private final TimeZone zone;
+
+    // Guarded by this
+    private final int[] bucketDay = new int[BUCKETS];
+    private final int[] bucketSpent = new int[BUCKETS];
+    private int dailyCap;
+    private int weeklyCap;
+    private long generation;
+    private long persistedGeneration;
+    private long capped;
+    // Slot writes so far, guarded by file; the next write goes to the other slot
+    private long writes;
+
+    public FarePolicy(File dir, RecordCipher cipher, int dailyCap, int weeklyCap) throws IOException {
+        this(dir, cipher, TimeZone.getDefault(), dailyCap, weeklyCap);
+    }
+
+    public FarePolicy(File dir, RecordCipher cipher, TimeZone zone, int dailyCap, int weeklyCap) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.cipher = cipher;
+        this.zone = zone;
+        setCaps(dailyCap, weeklyCap);
+        for (int i = 0; i < BUCKETS; i++) bucketDay[i] = Integer.MIN_VALUE;
+        file = new RandomAccessFile(new File(dir, STATE_FILE), "rw");
+        load();
+    }
+
+    public synchronized void setCaps(int dailyCap, int weeklyCap) {
+        this.dailyCap = Math.max(0, dailyCap);
+        this.weeklyCap = Math.max(0, weeklyCap);
+    }
+
+    // ---- Tap path ----
+
+    /**
+     * The fare to charge for {@code fare} requested at {@code now}. Changes nothing.
+     */
+    public synchronized Decision quote(int fare, long now) {
+        int day = day(now);
+        int charge = fare;
+        int cap = CAP_NONE;
+        if (dailyCap > 0) {
+            int left = Math.max(0, dailyCap - spentOn(day));
+            if (charge > left) {
+                charge = left;
+                cap = CAP_DAILY;
+            }
+        }
+        if (weeklyCap > 0) {
+            int left = Math.max(0, weeklyCap - spentInWeek(day));
+            if (charge > left) {
+                charge = left;
+                cap = CAP_WEEKLY;
+            }
+        }
+        return new Decision(fare, charge, cap, day);
+    }
+
+    /**
+     * The tap was charged as quoted. Memory only; {@link #persist} writes it.
+     */
+    public synchronized void record(Decision decision) {
+        int slot = decision.day & MASK;
+        if (bucketDay[slot] != decision.day) {
+            // The clock went back more than a week: that day is already gone
+            if (bucketDay[slot] != Integer.MIN_VALUE && bucketDay[slot] > decision.day) return;
+            bucketDay[slot] = decision.day;
+            bucketSpent[slot] = 0;
+        }
+        bucketSpent[slot] += decision.fare;
+        if (decision.isCapped()) capped++;
+        generation++;
+    }
+
+    // ---- Reads ----
+
+    public synchronized int spentToday(long now) {
+        return spentOn(day(now));
+    }
+
+    public synchronized int spentThisWeek(long now) {
+        return spentInWeek(day(now));
+    }
+
+    public synchronized int dailyCap() {
+        return dailyCap;
+    }
+
+    public synchronized int weeklyCap() {
+        return weeklyCap;
+    }
+
+    /**
+     * Taps charged less than the reader asked for, since the store was opened
+     */
+    public synchronized long cappedCount() {
+        return capped;
+    }
+
+    public int day(long timestamp) {
+        return (int) Math.floorDiv(timestamp + zone.getOffset(timestamp), DAY_MS);
+    }
+
+    // ---- Persistence ----
+
+    /**
+     * Write the buckets if anything changed since the last call. Off the tap path.
+     */
+    public void persist() throws IOException {
+        // Lock order: file, then this
+        synchronized (file) {
+            byte[] plain;
+            long gen;
+            synchronized (this) {
+                if (generation == persistedGeneration) return;
+                gen = generation;
+                ByteBuffer state = ByteBuffer.allocate(STATE_BYTES).putLong(gen);
+                for (int i = 0; i < BUCKETS; i++) state.putInt(bucketDay[i]).putInt(bucketSpent[i]);
+                plain = state.array();
+            }
+            int slot = (int) (writes & 1);
+            byte[] sealed;
+            try {
+                sealed = cipher.seal(plain, aad(slot));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot seal fare cap state", e);
+            }
+            file.seek((long) slot * SLOT_BYTES);
+            file.write(sealed);
+            file.getFD().sync();
+            writes++;
+            synchronized (this) {
+                persistedGeneration = gen;
+            }
+        }
+    }
+
+    public void clear() throws IOException {
+        synchronized (file) {
+            synchronized (this) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    bucketDay[i] = Integer.MIN_VALUE;
+                    bucketSpent[i] = 0;
+                }
+                generation = 0;
+                persistedGeneration = 0;
+                capped = 0;
+            }
+            file.setLength(0);
+            file.getFD().sync();
+            writes = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            persist();
+        } finally {
+            synchronized (file) {
+                file.close();
+            }
+        }
+    }
+
+    // Caller holds this
+    private int spentOn(int day) {
+        int slot = day & MASK;
+        return bucketDay[slot] == day ? bucketSpent[slot] : 0;
+    }
+
+    // Monday of the day's week up to the day itself
+    private int spentInWeek(int day) {
+        int monday = (int) (HistoryStore.week(day) * 7L - 3);
+        int total = 0;
+        for (int d = monday; d <= day; d++) total += spentOn(d);
+        return total;
+    }
+
+    private void load() throws IOException {
+        long best = -1;
+        int bestSlot = -1;
+        byte[] bestPlain = null;
+        byte[] sealed = new byte[SLOT_BYTES];
+        for (int slot = 0; slot < 2; slot++) {
+            if (file.length() < (long) (slot + 1) * SLOT_BYTES) break;
+            file.seek((long) slot * SLOT_BYTES);
+            file.readFully(sealed);
+            try {
+                byte[] plain = cipher.open(sealed, aad(slot));
+                long gen = ByteBuffer.wrap(plain).getLong();
+                if (gen > best) {
+                    best = gen;
+                    bestSlot = slot;
+                    bestPlain = plain;
+                }
+            } catch (GeneralSecurityException e) {
+                // Torn or never written; the other slot has the state
+            }
+        }
+        if (bestPlain == null) return;
+        writes = bestSlot + 1;
+        ByteBuffer state = ByteBuffer.wrap(bestPlain);
+        generation = state.getLong();
+        persistedGeneration = generation;
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketDay[i] = state.getInt();
+            bucketSpent[i] = state.getInt();
+        }
+    }
+
+    private static byte[] aad(int slot) {
+        return new byte[]{'c', 'a', 'p', (byte) slot};
+    }
+
+    // ---- Signed payload ----
+
+    /**
+     * Put a capped tap's decision into a JSON payload; uncapped payloads are unchanged
+     */
+    public static void putDecision(JSONObject payload, int requestedFare, int cap) throws JSONException {
+        if (cap == CAP_NONE) return;
+        payload.put("requestedFare", requestedFare);
+        payload.put("fareCap", cap == CAP_DAILY ? "daily" : "weekly");
+    }
+}
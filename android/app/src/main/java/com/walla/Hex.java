@@ -0,0 +1,36 @@
+package com.walla;
+
+/**
+ * Upper-case hex encoding for APDU traces and key material, table-driven so it neither
+ * formats nor boxes per byte.
+ */
+public final class Hex {
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Hex() {
+    }
+
+    public static String bytesToHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            int v = bytes[i] & 0xFF;
+            out[j++] = DIGITS[v >>> 4];
+            out[j++] = DIGITS[v & 0x0F];
+        }
+        return new String(out);
+    }
+
+    public static byte[] hexToBytes(String s) {
+        int len = s.length();
+        if ((len & 1) != 0) throw new IllegalArgumentException("Odd hex length");
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            int hi = Character.digit(s.charAt(i), 16);
+            int lo = Character.digit(s.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) throw new IllegalArgumentException("Invalid hex at " + i);
+            data[i / 2] = (byte) ((hi << 4) | lo);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,443 @@
+package com.walla;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * On-device transaction history: taps, synced or still pending, and top-ups.
+ *
+ * history.bin is an array of fixed-size sealed slots in insertion order, so slot i sits at
+ * i * ENTRY_SLOT_BYTES and the file is its own index. A page is one positional read of at
+ * most MAX_PAGE slots, newest first, however long the history gets; the cursor handed to
+ * JS is the slot index to continue below. A sync result rewrites its slot's status in place.
+ *
+ * Spend per local day and per Monday-based week is kept in days.bin and weeks.bin, one slot
+ * per period with activity, in period order. A tap adds to the newest slot (or appends
+ * one) and a rejection takes it off again, so the totals are never recomputed.
+ *
+ * Slot plaintext (big-endian), sealed with RecordCipher, file and index as associated data:
+ *   entry:  [8 timestamp][16 txId UUID][4 amount minor][1 type][1 status]
+ *   period: [4 day or week number][8 spent minor][4 taps]
+ * A txId that is not a UUID is stored as its name-based UUID.
+ *
+ * The journal and the balance log remain the source of truth, so slots are written without
+ * fsync. A torn last slot is cut off on open; an unreadable slot is skipped when read.
+ */
+public class HistoryStore implements Closeable {
+
+    public static final byte TYPE_DEDUCT = 1;
+    public static final byte TYPE_TOP_UP = 2;
+
+    public static final byte STATUS_PENDING = 0;
+    public static final byte STATUS_SYNCED = 1;
+    public static final byte STATUS_REJECTED = 2;
+
+    public static final int MAX_PAGE = 100;
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final int ENTRY_PLAIN_BYTES = 8 + 16 + 4 + 1 + 1;
+    static final int ENTRY_SLOT_BYTES = ENTRY_PLAIN_BYTES + RecordCipher.OVERHEAD;
+    private static final int PERIOD_PLAIN_BYTES = 4 + 8 + 4;
+    private static final int PERIOD_SLOT_BYTES = PERIOD_PLAIN_BYTES + RecordCipher.OVERHEAD;
+    // Slots per read while looking for a pending entry not seen by this process
+    private static final int SCAN_CHUNK = 64;
+
+    public static final class Entry {
+        public final String txId;
+        public final byte type;
+        public final int amountMinor;
+        public final long timestamp;
+        public final byte status;
+
+        Entry(String txId, byte type, int amountMinor, long timestamp, byte status) {
+            this.txId = txId;
+            this.type = type;
+            this.amountMinor = amountMinor;
+            this.timestamp = timestamp;
+            this.status = status;
+        }
+    }
+
+    public static final class Page {
+        // Newest first
+        public final List<Entry> entries;
+        // Cursor for the next older page, -1 at the start of the history
+        public final long nextCursor;
+
+        Page(List<Entry> entries, long nextCursor) {
+            this.entries = entries;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    /**
+     * Spend in one day or week
+     */
+    public static final class Aggregate {
+        // Day or week number, see day() and week()
+        public final int period;
+        public final long spentMinor;
+        public final int taps;
+
+        Aggregate(int period, long spentMinor, int taps) {
+            this.period = period;
+            this.spentMinor = spentMinor;
+            this.taps = taps;
+        }
+    }
+
+    private final RecordCipher cipher;
+    private final TimeZone zone;
+    private final RandomAccessFile entries;
+    private final PeriodFile days;
+    private final PeriodFile weeks;
+
+    private long entryCount;
+    // txId -> slot of the PENDING entries this process added or scanned past
+    private final Map<String, Long> pendingSlots = new HashMap<>();
+    // Slots from here to the end have been added or scanned for pendingSlots
+    private long scannedFrom;
+    private long skippedSlots;
+
+    public HistoryStore(File dir, RecordCipher cipher) throws IOException {
+        this(dir, cipher, TimeZone.getDefault());
+    }
+
+    public HistoryStore(File dir, RecordCipher cipher, TimeZone zone) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create history directory " + dir);
+        }
+        this.cipher = cipher;
+        this.zone = zone;
+        entries = new RandomAccessFile(new File(dir, "history.bin"), "rw");
+        entryCount = trim(entries, ENTRY_SLOT_BYTES);
+        scannedFrom = entryCount;
+        days = new PeriodFile(new File(dir, "days.bin"), (byte) 'd');
+        weeks = new PeriodFile(new File(dir, "weeks.bin"), (byte) 'w');
+    }
+
+    // ---- Writes ----
+
+    /**
+     * Record a tap (PENDING, counted as spend) or a top-up (already confirmed by the server)
+     */
+    public synchronized void add(String txId, byte type, long amountMinor, long timestamp) throws IOException {
+        long slot = entryCount;
+        byte status = type == TYPE_DEDUCT ? STATUS_PENDING : STATUS_SYNCED;
+        writeEntry(slot, new Entry(txId, type, (int) amountMinor, timestamp, status));
+        entryCount++;
+        if (type == TYPE_DEDUCT) {
+            pendingSlots.put(txId, slot);
+            addSpend(timestamp, amountMinor, 1);
+        }
+    }
+
+    /**
+     * Move PENDING taps to SYNCED or REJECTED; a rejected fare leaves the aggregates.
+     * Returns how many changed.
+     */
+    public synchronized int settle(Collection<String> txIds, byte status) throws IOException {
+        int changed = 0;
+        for (String txId : txIds) {
+            long slot = findPending(txId);
+            if (slot < 0) continue;
+            pendingSlots.remove(txId);
+            Entry entry = readEntry(slot);
+            if (entry == null || entry.status != STATUS_PENDING) continue;
+            writeEntry(slot, new Entry(entry.txId, entry.type, entry.amountMinor, entry.timestamp, status));
+            if (status == STATUS_REJECTED) addSpend(entry.timestamp, -entry.amountMinor, -1);
+            changed++;
+        }
+        return changed;
+    }
+
+    public synchronized int settle(String txId, byte status) throws IOException {
+        return settle(Collections.singletonList(txId), status);
+    }
+
+    // ---- Reads ----
+
+    /**
+     * Up to {@code limit} entries below {@code cursor}, newest first. A negative cursor
+     * starts at the newest entry.
+     */
+    public synchronized Page page(long cursor, int limit) throws IOException {
+        long end = cursor < 0 || cursor > entryCount ? entryCount : cursor;
+        int n = (int) Math.min(Math.max(1, Math.min(limit, MAX_PAGE)), end);
+        long start = end - n;
+        List<Entry> out = new ArrayList<>(n);
+        if (n > 0) {
+            byte[] slots = new byte[n * ENTRY_SLOT_BYTES];
+            entries.seek(start * ENTRY_SLOT_BYTES);
+            entries.readFully(slots);
+            for (int i = n - 1; i >= 0; i--) {
+                Entry entry = decodeEntry(slots, i * ENTRY_SLOT_BYTES, start + i);
+                if (entry != null) out.add(entry);
+            }
+        }
+        return new Page(out, start > 0 ? start : -1);
+    }
+
+    /**
+     * The newest {@code count} days with activity, newest first
+     */
+    public synchronized List<Aggregate> days(int count) throws IOException {
+        return days.tail(count);
+    }
+
+    /**
+     * The newest {@code count} weeks with activity, newest first
+     */
+    public synchronized List<Aggregate> weeks(int count) throws IOException {
+        return weeks.tail(count);
+    }
+
+    public synchronized long size() {
+        return entryCount;
+    }
+
+    /**
+     * Slots that could not be decrypted so far
+     */
+    public synchronized long skippedSlots() {
+        return skippedSlots;
+    }
+
+    /**
+     * Local day number of a timestamp (days since 1970-01-01 in this store's time zone)
+     */
+    public int day(long timestamp) {
+        return (int) Math.floorDiv(timestamp + zone.getOffset(timestamp), DAY_MS);
+    }
+
+    /**
+     * Week number of a day; weeks start on Monday (day 0 is a Thursday)
+     */
+    public static int week(int day) {
+        return (int) Math.floorDiv(day + 3L, 7L);
+    }
+
+    /**
+     * Epoch millis of local midnight starting a day
+     */
+    public long dayStart(int day) {
+        long utc = day * DAY_MS;
+        return utc - zone.getOffset(utc);
+    }
+
+    public long weekStart(int week) {
+        return dayStart(week * 7 - 3);
+    }
+
+    public synchronized void clear() throws IOException {
+        entries.setLength(0);
+        entryCount = 0;
+        scannedFrom = 0;
+        pendingSlots.clear();
+        days.clear();
+        weeks.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        entries.close();
+        days.file.close();
+        weeks.file.close();
+    }
+
+    // ---- Internals ----
+
+    private void addSpend(long timestamp, long deltaMinor, int deltaTaps) throws IOException {
+        int day = day(timestamp);
+        days.add(day, deltaMinor, deltaTaps);
+        weeks.add(week(day), deltaMinor, deltaTaps);
+    }
+
+    /**
+     * Slot of a PENDING entry, scanning back from the oldest slot seen so far when this
+     * process has not met it yet. Pending taps are recent, so the scan stops early.
+     */
+    private long findPending(String txId) throws IOException {
+        Long slot = pendingSlots.get(txId);
+        while (slot == null && scannedFrom > 0) {
+            long from = Math.max(0, scannedFrom - SCAN_CHUNK);
+            int n = (int) (scannedFrom - from);
+            byte[] slots = new byte[n * ENTRY_SLOT_BYTES];
+            entries.seek(from * ENTRY_SLOT_BYTES);
+            entries.readFully(slots);
+            for (int i = 0; i < n; i++) {
+                Entry entry = decodeEntry(slots, i * ENTRY_SLOT_BYTES, from + i);
+                if (entry != null && entry.status == STATUS_PENDING) pendingSlots.put(entry.txId, from + i);
+            }
+            scannedFrom = from;
+            slot = pendingSlots.get(txId);
+        }
+        return slot != null ? slot : -1;
+    }
+
+    private Entry readEntry(long slot) throws IOException {
+        byte[] sealed = new byte[ENTRY_SLOT_BYTES];
+        entries.seek(slot * ENTRY_SLOT_BYTES);
+        entries.readFully(sealed);
+        return decodeEntry(sealed, 0, slot);
+    }
+
+    private void writeEntry(long slot, Entry entry) throws IOException {
+        UUID id = uuid(entry.txId);
+        byte[] plain = ByteBuffer.allocate(ENTRY_PLAIN_BYTES)
+            .putLong(entry.timestamp)
+            .putLong(id.getMostSignificantBits())
+            .putLong(id.getLeastSignificantBits())
+            .putInt(entry.amountMinor)
+            .put(entry.type)
+            .put(entry.status)
+            .array();
+        entries.seek(slot * ENTRY_SLOT_BYTES);
+        entries.write(seal(plain, aad((byte) 'h', slot)));
+    }
+
+    private Entry decodeEntry(byte[] slots, int offset, long slot) {
+        byte[] plain = open(slots, offset, ENTRY_SLOT_BYTES, aad((byte) 'h', slot));
+        if (plain == null) return null;
+        ByteBuffer in = ByteBuffer.wrap(plain);
+        long timestamp = in.getLong();
+        String txId = new UUID(in.getLong(), in.getLong()).toString();
+        int amount = in.getInt();
+        byte type = in.get();
+        return new Entry(txId, type, amount, timestamp, in.get());
+    }
+
+    private static UUID uuid(String txId) {
+        try {
+            return UUID.fromString(txId);
+        } catch (IllegalArgumentException e) {
+            return UUID.nameUUIDFromBytes(txId.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private byte[] seal(byte[] plain, byte[] aad) throws IOException {
+        try {
+            return cipher.seal(plain, aad);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal history slot", e);
+        }
+    }
+
+    private byte[] open(byte[] sealed, int offset, int length, byte[] aad) {
+        try {
+            return cipher.open(sealed, offset, length, aad);
+        } catch (GeneralSecurityException e) {
+            skippedSlots++;
+            return null;
+        }
+    }
+
+    private static byte[] aad(byte file, long slot) {
+        return ByteBuffer.allocate(9).put(file).putLong(slot).array();
+    }
+
+    // Cut a torn last slot, returns the slot count
+    private static long trim(RandomAccessFile file, int slotBytes) throws IOException {
+        long length = file.length();
+        if (length % slotBytes != 0) file.setLength(length - length % slotBytes);
+        return length / slotBytes;
+    }
+
+    /**
+     * days.bin or weeks.bin: one aggregate slot per period, ascending
+     */
+    private final class PeriodFile {
+        final RandomAccessFile file;
+        final byte tag;
+        int count;
+
+        PeriodFile(File path, byte tag) throws IOException {
+            this.file = new RandomAccessFile(path, "rw");
+            this.tag = tag;
+            this.count = (int) trim(file, PERIOD_SLOT_BYTES);
+        }
+
+        void add(int period, long deltaMinor, int deltaTaps) throws IOException {
+            Aggregate last = count > 0 ? read(count - 1) : null;
+            if (last != null && last.period == period) {
+                write(count - 1, new Aggregate(period, last.spentMinor + deltaMinor, last.taps + deltaTaps));
+                return;
+            }
+            if (last == null || last.period < period) {
+                write(count, new Aggregate(period, deltaMinor, deltaTaps));
+                count++;
+                return;
+            }
+
+            // An older period: a rejection arriving days later, or the clock moved back
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                Aggregate a = read(mid);
+                if (a == null) return;
+                if (a.period == period) {
+                    write(mid, new Aggregate(period, a.spentMinor + deltaMinor, a.taps + deltaTaps));
+                    return;
+                }
+                if (a.period < period) lo = mid + 1;
+                else hi = mid - 1;
+            }
+            // Not there yet: shift the newer slots up (resealed, the index is bound to each)
+            for (int i = count - 1; i >= lo; i--) {
+                Aggregate a = read(i);
+                if (a != null) write(i + 1, a);
+            }
+            write(lo, new Aggregate(period, deltaMinor, deltaTaps));
+            count++;
+        }
+
+        List<Aggregate> tail(int n) throws IOException {
+            int k = Math.max(0, Math.min(n, count));
+            List<Aggregate> out = new ArrayList<>(k);
+            for (int i = count - 1; i >= count - k; i--) {
+                Aggregate a = read(i);
+                if (a != null) out.add(a);
+            }
+            return out;
+        }
+
+        Aggregate read(int slot) throws IOException {
+            byte[] sealed = new byte[PERIOD_SLOT_BYTES];
+            file.seek((long) slot * PERIOD_SLOT_BYTES);
+            file.readFully(sealed);
+            byte[] plain = open(sealed, 0, PERIOD_SLOT_BYTES, aad(tag, slot));
+            if (plain == null) return null;
+            ByteBuffer in = ByteBuffer.wrap(plain);
+            return new Aggregate(in.getInt(), in.getLong(), in.getInt());
+        }
+
+        void write(int slot, Aggregate a) throws IOException {
+            byte[] plain = ByteBuffer.allocate(PERIOD_PLAIN_BYTES)
+                .putInt(a.period)
+                .putLong(a.spentMinor)
+                .putInt(a.taps)
+                .array();
+            file.seek((long) slot * PERIOD_SLOT_BYTES);
+            file.write(seal(plain, aad(tag, slot)));
+        }
+
+        void clear() throws IOException {
+            file.setLength(0);
+            count = 0;
+        }
+    }
+}
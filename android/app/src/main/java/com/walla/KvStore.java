@@ -0,0 +1,498 @@
+package com.walla;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted key-value store behind SecureStorage's prefs.
+ *
+ * Every key is one file, <name>.kv, holding the key and its typed value sealed with
+ * AES-256-GCM; the file name is a keyed hash of the key, and is also the record's
+ * associated data, so records cannot be swapped. A write goes to <name>.tmp, is fsynced
+ * and renamed over the old record, and the directory is fsynced after the rename, so each
+ * key is either the old or the new value after a crash. A batch of keys is not atomic as
+ * a whole.
+ *
+ * Opening the store decrypts every record once into an in-memory map; reads never touch
+ * the disk or the cipher. {@link #commit} (durable) writes the changed keys before it
+ * returns; if that fails the map keeps the new values and the keys not yet written are
+ * left to the writer thread, as after an apply. {@link #apply} (lazy) updates the map and
+ * leaves the files to the writer thread, which writes the latest value of each dirty key
+ * however often it changed, and retries failed ones.
+ *
+ * Values are String, Long, Integer, Boolean, Float or Set&lt;String&gt;, as in
+ * SharedPreferences; a null value removes the key. {@link #inMemory} keeps nothing on
+ * disk, for when the key store is unavailable.
+ */
+public class KvStore implements Closeable {
+
+    public static final byte TYPE_STRING = 1;
+    public static final byte TYPE_LONG = 2;
+    public static final byte TYPE_INT = 3;
+    public static final byte TYPE_BOOLEAN = 4;
+    public static final byte TYPE_FLOAT = 5;
+    public static final byte TYPE_STRING_SET = 6;
+
+    private static final String SUFFIX = ".kv";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int NAME_BYTES = 16;
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final String HMAC = "HmacSHA256";
+
+    private final File dir;
+    private final RecordCipher cipher;
+    private final SecretKeySpec nameKey;
+
+    // Decrypted values; the source of truth for reads
+    private final ConcurrentHashMap<String, Object> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+    // Serializes edits so a batch becomes visible together
+    private final Object editLock = new Object();
+    // Guards the files
+    private final Object fileLock = new Object();
+
+    // Keys whose file is behind the cache, guarded by dirtyLock
+    private final Object dirtyLock = new Object();
+    private final LinkedHashSet<String> dirty = new LinkedHashSet<>();
+    private long dirtyGeneration;
+    private long writtenGeneration;
+    private IOException lastWriteError;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private int corruptRecords;
+    private long fileWrites;
+    // Cleared, guarded by fileLock, if this platform cannot open a directory to fsync it
+    private boolean syncDirectory = true;
+
+    public KvStore(File dir, byte[] rawKey) throws IOException {
+        this.dir = dir;
+        try {
+            this.cipher = new RecordCipher(derive(rawKey, "kv-records"));
+            this.nameKey = new SecretKeySpec(derive(rawKey, "kv-names"), HMAC);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot derive store keys", e);
+        }
+        if (dir == null) {
+            writer = null;
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        load();
+
+        writer = new Thread(this::writeLoop, "kv-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * A store that lives and dies with the process
+     */
+    public static KvStore inMemory() {
+        try {
+            return new KvStore(null, RecordCipher.newKey());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isPersistent() {
+        return dir != null;
+    }
+
+    // ---- Reads ----
+
+    public Object get(String key) {
+        return cache.get(key);
+    }
+
+    public boolean contains(String key) {
+        return cache.containsKey(key);
+    }
+
+    public Map<String, Object> getAll() {
+        return new HashMap<>(cache);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    // ---- Writes ----
+
+    /**
+     * Lazy: visible to readers now, on disk shortly after. Returns the keys changed.
+     */
+    public Set<String> apply(Map<String, ?> changes, boolean clear) {
+        Set<String> changed = update(changes, clear);
+        if (writer != null) markDirty(changed);
+        return changed;
+    }
+
+    /**
+     * Durable: on disk when this returns. Returns the keys changed.
+     */
+    public Set<String> commit(Map<String, ?> changes, boolean clear) throws IOException {
+        Set<String> changed = update(changes, clear);
+        if (dir == null) return changed;
+        Set<String> unwritten = new LinkedHashSet<>(changed);
+        try {
+            synchronized (fileLock) {
+                for (String key : changed) {
+                    writeKey(key);
+                    unwritten.remove(key);
+                }
+            }
+        } catch (IOException e) {
+            // The map already holds the new values; the writer thread catches the files up
+            markDirty(unwritten);
+            throw e;
+        }
+        return changed;
+    }
+
+    private void markDirty(Collection<String> keys) {
+        if (keys.isEmpty()) return;
+        synchronized (dirtyLock) {
+            dirty.addAll(keys);
+            dirtyGeneration++;
+            dirtyLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until every lazy write so far is on disk
+     */
+    public void flush() throws IOException {
+        synchronized (dirtyLock) {
+            long target = dirtyGeneration;
+            while (writtenGeneration < target && running) {
+                try {
+                    dirtyLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for key-value writes", e);
+                }
+            }
+            if (lastWriteError != null) {
+                IOException error = lastWriteError;
+                lastWriteError = null;
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Records that failed to decrypt or parse when the store was opened
+     */
+    public int corruptRecords() {
+        return corruptRecords;
+    }
+
+    public long fileWrites() {
+        synchronized (fileLock) {
+            return fileWrites;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            running = false;
+            if (writer != null) writer.interrupt();
+        }
+    }
+
+    private Set<String> update(Map<String, ?> changes, boolean clear) {
+        Set<String> changed = new LinkedHashSet<>();
+        synchronized (editLock) {
+            if (clear) {
+                for (String key : cache.keySet()) {
+                    if (!changes.containsKey(key)) changed.add(key);
+                }
+                cache.keySet().removeAll(changed);
+            }
+            for (Map.Entry<String, ?> change : changes.entrySet()) {
+                String key = change.getKey();
+                Object value = copy(change.getValue());
+                Object old = value == null ? cache.remove(key) : cache.put(key, value);
+                if (value == null ? old != null : !value.equals(old)) changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    private void writeLoop() {
+        while (running) {
+            List<String> keys;
+            long generation;
+            synchronized (dirtyLock) {
+                while (dirty.isEmpty() && running) {
+                    try {
+                        dirtyLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                keys = new ArrayList<>(dirty);
+                dirty.clear();
+                generation = dirtyGeneration;
+            }
+            IOException error = null;
+            synchronized (fileLock) {
+                for (String key : keys) {
+                    try {
+                        writeKey(key);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+            }
+            synchronized (dirtyLock) {
+                if (error != null) {
+                    // Retried as a new generation: flush() reports this failure, and the
+                    // next flush waits for the retry
+                    dirty.addAll(keys);
+                    dirtyGeneration++;
+                    lastWriteError = error;
+                    WalletLog.e("KvStore", "Key-value write failed", error);
+                }
+                writtenGeneration = Math.max(writtenGeneration, generation);
+                dirtyLock.notifyAll();
+            }
+            if (error != null) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // ---- Files ----
+
+    // Caller holds fileLock. Writes whatever the cache holds now, so the last write wins.
+    private void writeKey(String key) throws IOException {
+        String name = fileName(key);
+        File file = new File(dir, name + SUFFIX);
+        Object value = cache.get(key);
+        if (value == null) {
+            if (file.exists()) {
+                if (!file.delete()) throw new IOException("Cannot delete " + file);
+                syncDirectory();
+            }
+            fileWrites++;
+            return;
+        }
+        byte[] sealed;
+        try {
+            sealed = cipher.seal(encode(key, value), name.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal " + name, e);
+        }
+        File tmp = new File(dir, name + TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(sealed);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Cannot install " + file);
+        syncDirectory();
+        fileWrites++;
+    }
+
+    // Caller holds fileLock. Makes the last rename or delete survive a power loss. Needs a
+    // channel on the directory (API 26+); where that cannot be opened, renames are left to
+    // the file system's own ordering.
+    @SuppressWarnings("NewApi")
+    private void syncDirectory() throws IOException {
+        if (!syncDirectory) return;
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException | LinkageError | UnsupportedOperationException e) {
+            syncDirectory = false;
+            WalletLog.w("KvStore", "Cannot fsync {}, renames are not flushed", dir, e);
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) throw new IOException("Cannot list " + dir);
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith(TMP_SUFFIX)) {
+                // Crashed before the rename; the old record is still in place
+                file.delete();
+                continue;
+            }
+            if (!fileName.endsWith(SUFFIX)) continue;
+            String name = fileName.substring(0, fileName.length() - SUFFIX.length());
+            try {
+                byte[] sealed = readFile(file);
+                byte[] plain = cipher.open(sealed, name.getBytes(StandardCharsets.US_ASCII));
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+                String key = in.readUTF();
+                if (!name.equals(fileName(key))) throw new IOException("Record under the wrong name");
+                cache.put(key, decodeValue(in));
+            } catch (IOException | GeneralSecurityException e) {
+                // Left on disk and the key reads as absent; the next write of that key replaces it
+                corruptRecords++;
+                WalletLog.w("KvStore", "Skipping unreadable record {}", fileName, e);
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        long length = file.length();
+        if (length > MAX_RECORD_BYTES) throw new IOException("Record too large: " + length);
+        byte[] data = new byte[(int) length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        return data;
+    }
+
+    private String fileName(String key) {
+        String name = names.get(key);
+        if (name == null) {
+            name = hashName(key);
+            names.put(key, name);
+        }
+        return name;
+    }
+
+    private String hashName(String key) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(nameKey);
+            byte[] digest = mac.doFinal(key.getBytes(StandardCharsets.UTF_8));
+            byte[] name = new byte[NAME_BYTES];
+            System.arraycopy(digest, 0, name, 0, NAME_BYTES);
+            return Hex.bytesToHex(name).toLowerCase();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC + " unavailable", e);
+        }
+    }
+
+    private static byte[] derive(byte[] rawKey, String label) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(rawKey, HMAC));
+        return mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // ---- Encoding ----
+
+    static byte[] encode(String key, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(key);
+        if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Set) {
+            Set<?> set = (Set<?>) value;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeInt(set.size());
+            for (Object item : set) writeString(out, (String) item);
+        } else {
+            throw new IllegalArgumentException("Unsupported value type for " + key + ": " + value.getClass());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Object decodeValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_STRING_SET:
+                int count = in.readInt();
+                if (count < 0 || count > MAX_RECORD_BYTES) throw new IOException("Bad set size " + count);
+                Set<String> set = new HashSet<>();
+                for (int i = 0; i < count; i++) set.add(readString(in));
+                return Collections.unmodifiableSet(set);
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD_BYTES) throw new IOException("Bad string length " + length);
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    // Sets are copied so a caller changing theirs later cannot change the store
+    @SuppressWarnings("unchecked")
+    private static Object copy(Object value) {
+        if (value instanceof Set) {
+            return Collections.unmodifiableSet(new HashSet<>((Collection<String>) value));
+        }
+        return value;
+    }
+}
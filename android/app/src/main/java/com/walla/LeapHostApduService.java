@@ -4,7 +4,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.nfc.cardemulation.HostApduService;
 import android.os.Bundle;
-import android.util.Log;
 
 import com.walla.NFCModule;
 import com.walla.OfflineSyncWorker;
@@ -12,38 +11,27 @@ import com.walla.AppConfig;
 import com.walla.OfflineTransaction;
 import com.walla.SecureStorage;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
 import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-
-import androidx.work.*;
 
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.Signature;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
 
-import java.io.OutputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 
 import java.nio.charset.StandardCharsets;
 
-import android.util.Base64;
 
-import com.google.gson.Gson;
 import androidx.security.crypto.EncryptedSharedPreferences;
 import androidx.security.crypto.MasterKey;
 
@@ -51,370 +39,570 @@ public class LeapHostApduService extends HostApduService {
     
     private static final String TAG = "LeapHCE";
 
-    private static final byte[] SW_OK = new byte[]{(byte) 0x90, (byte) 0x00};
-    private static final byte[] SW_FAIL = new byte[]{(byte) 0x69, (byte) 0x85};
+    private static volatile String cachedAlias = null;
+    // Guarded by the class lock (getSessionSigner, clearCache)
+    private static SessionSigner sessionSigner = null;
+
+    // AndroidKeyStore and the device private key, resolved once rather than on every
+    // session rotation. Guarded by keyLock so a keystore lookup never holds up loadCache.
+    private static final Object keyLock = new Object();
+    private static KeyStore cachedKeyStore = null;
+    private static PrivateKey cachedDeviceKey = null;
+    private static String cachedDeviceKeyAlias = null;
+
+    // Background warm-up of the tap path; null until prewarm() or after clearCache()
+    private static volatile Prewarm prewarm = null;
+
+    // Balance in cents, backed by the write-ahead log; check-and-deduct is a single CAS
+    private static volatile BalanceStore balanceStore = null;
+
+    // Daily/weekly fare caps, loaded with the balance log
+    private static volatile FarePolicy farePolicy = null;
+
+    // Offline risk limits, loaded with the balance log
+    private static volatile RiskLimits riskLimits = null;
+
+    // How long the persist stage waits for the group commit covering its taps
+    private static final long BALANCE_COMMIT_TIMEOUT_MS = 2000;
 
-    private static String cachedAlias = null;
-    private static Double cachedBalance = null;
+    // Debug-only tracing; no log strings are built on the APDU path when off
+    private boolean traceApdu;
+
+    // persist -> sign -> dispatch after SW_OK has been returned
+    private TapPipeline pipeline;
+    private WalletApplet applet;
+    private static volatile LeapHostApduService instance;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        pipeline = new TapPipeline(new PostTapStages());
+        pipeline.registerMetrics(MetricsRegistry.global());
+        applet = new WalletApplet(new ServiceHost(), pipeline);
+        instance = this;
+        prewarm(this);
+        traceApdu = AppConfig.isApduTraceEnabled(this);
+        if (traceApdu) {
+            applet.setTracer((apdu, response) ->
+                WalletLog.i(TAG, "[LOG] APDU {} -> {}", apdu.clone(), response.clone()));
+        }
+    }
 
     @Override
     public byte[] processCommandApdu(byte[] commandApdu, Bundle extras) {
-        if (commandApdu == null) return SW_FAIL;
+        return applet.process(commandApdu);
+    }
 
-        Log.i(TAG, "[LOG] Incoming APDU: " + bytesToHex(commandApdu));
+    /**
+     * Android side of the applet: cold-start loading, JS events and logging
+     */
+    private final class ServiceHost implements WalletApplet.Host {
 
-        // ---- SELECT AID ----
-        if (isSelectAid(commandApdu)) {
-            Log.i(TAG, "[LOG] SELECT AID received");
-            return concat("LEAP_OK".getBytes(), SW_OK);
+        @Override
+        public String alias() {
+            String alias = cachedAlias;
+            return alias != null ? alias : loadCache(LeapHostApduService.this);
         }
 
-        // ---- DEDUCT FARE ----
-        if (commandApdu.length >= 9 && commandApdu[0] == (byte) 0x80 && commandApdu[1] == (byte) 0x10) {
-            try {
-                int lc = commandApdu[4] & 0xFF;
-                byte[] data = new byte[lc];
-                System.arraycopy(commandApdu, 5, data, 0, lc);
-                int fare = ByteBuffer.wrap(data).getInt();
-       
-                String alias;
-                double newLocalBalance;
-                                
-                // EXPANDED SYNCHRONIZED BLOCK - protects entire critical section
-                synchronized (this) {
-
-                    if (cachedAlias == null || cachedBalance == null) {
-                        SharedPreferences prefs = SecureStorage.getEncryptedPrefs(this);
-                        cachedAlias = prefs.getString("key_alias", null);
-                        long bits = prefs.getLong("local_balance", Double.doubleToRawLongBits(0.0));
-                        cachedBalance = Double.longBitsToDouble(bits);
-                        Log.i(TAG, "Cache miss - loaded from disk");
-                    }
-                    
-                    alias = cachedAlias;
-                    double localBalance = cachedBalance;
+        @Override
+        public BalanceStore balanceStore() {
+            BalanceStore store = balanceStore;
+            if (store != null) return store;
+            // Cold start: rebuild the balance from the log
+            loadCache(LeapHostApduService.this);
+            return balanceStore;
+        }
 
-                    if (alias == null) {
-                        Log.w(TAG, "[LOG] No key alias found — device not registered");
-                        return SW_FAIL;
-                    }
+        @Override
+        public FarePolicy farePolicy() {
+            // Loaded by the balanceStore() call before this one
+            return farePolicy;
+        }
 
-                    // Read balance
-                    // Check sufficient balance
-                    if (localBalance < fare) {
-                        NFCModule.sendEventToJS("failure", "Insufficient");
-                        Log.i(TAG, "[LOG] Insufficient funds; LocalBalance=" + localBalance);
-                        return SW_FAIL;
-                    }
+        @Override
+        public RiskLimits riskLimits() {
+            return riskLimits;
+        }
 
-                    // Deduct in memory INSTANTLY
-                    newLocalBalance = localBalance - fare;
-                    cachedBalance = newLocalBalance;
-
-                    Log.i(TAG, "[LOG] Fare=" + fare + " euros, LocalBalance = " + localBalance );
-                    Log.i(TAG, "[LOG] Deducted locally. New local balance=" + newLocalBalance );
-                    
-                    
-                } 
-
-                NFCModule.sendEventToJS("balanceUpdate", String.valueOf(newLocalBalance));
-                
-                final String finalAlias = alias;
-                final int finalFare = fare;
-                final double finalBalance = newLocalBalance;
-                
-                new Thread(() -> {
-                    try {
-                        // Persist balance to disk
-                        SharedPreferences prefs = SecureStorage.getEncryptedPrefs(this);
-                        prefs.edit().putLong("local_balance", 
-                            Double.doubleToRawLongBits(finalBalance)).commit();
-                        updateBalanceCache(finalBalance);
-                        Log.i(TAG, "Balance persisted to disk");
-                        
-                        // Create signed transaction (slow - ECDSA signing)
-                        OfflineTransaction tx = createSignedTransaction(finalAlias, finalFare);
-                        
-                        // Network/queue operations
-                        if (isNetworkAvailable()) {
-                            syncTransactionWithBackend(tx);
-                        } else {
-                            queueTransactionLocally(tx);
-                            scheduleOfflineSync();
-                            NFCModule.sendEventToJS("offline", "Offline transaction");
-                            Log.i(TAG, "[LOG] Offline: queued transaction");
-                        }
-                        
-                    } catch (Exception e) {
-                        Log.e(TAG, "[ERROR] Background processing failed", e);
-                    }
-                }).start();
+        @Override
+        public void onDeducted(int fare, double newBalance) {
+            if (traceApdu) {
+                WalletLog.i(TAG, "[LOG] Fare={} euros, deducted locally. New local balance={}", fare, newBalance);
+            }
+            NFCModule.sendBalanceToJS(newBalance);
+        }
 
-                // RETURN IMMEDIATELY
-                return SW_OK;
+        @Override
+        public void onDeclined(int reason, long balanceMinor) {
+            switch (reason) {
+                case WalletApplet.DECLINE_BUSY:
+                    WalletLog.w(TAG, "[LOG] Post-tap pipeline full, declining tap");
+                    break;
+                case WalletApplet.DECLINE_NOT_REGISTERED:
+                    WalletLog.w(TAG, "[LOG] No key alias found — device not registered");
+                    break;
+                case WalletApplet.DECLINE_NO_BALANCE:
+                    WalletLog.w(TAG, "[LOG] Balance log unavailable");
+                    break;
+                case WalletApplet.DECLINE_INSUFFICIENT:
+                    NFCModule.sendEventToJS("failure", "Insufficient");
+                    if (traceApdu) WalletLog.i(TAG, "[LOG] Insufficient funds; LocalBalance={}", balanceMinor);
+                    break;
+                case WalletApplet.DECLINE_UNSYNCED_VALUE:
+                    NFCModule.sendEventToJS("failure", "Offline limit reached - sync needed");
+                    WalletLog.w(TAG, "[LOG] Unsynced value limit reached, declining tap");
+                    break;
+                case WalletApplet.DECLINE_UNSYNCED_COUNT:
+                    NFCModule.sendEventToJS("failure", "Offline tap limit reached - sync needed");
+                    WalletLog.w(TAG, "[LOG] Unsynced tap limit reached, declining tap");
+                    break;
+                case WalletApplet.DECLINE_SYNC_OVERDUE:
+                    NFCModule.sendEventToJS("failure", "Sync overdue - connect to continue");
+                    WalletLog.w(TAG, "[LOG] Too long since the last sync, declining tap");
+                    break;
+            }
+        }
 
-            } catch (Exception e) {
-                Log.e(TAG, "[ERROR] DEDUCT APDU failed", e);
-                NFCModule.sendEventToJS("failure", "Transaction failed: " + e.getMessage());
-                return SW_FAIL;
+        @Override
+        public void onError(Exception e) {
+            WalletLog.e(TAG, "[ERROR] DEDUCT APDU failed", e);
+            NFCModule.sendEventToJS("failure", "Transaction failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cold start: load the alias and replay the balance log once. Returns the alias.
+     */
+    private static synchronized String loadCache(android.content.Context context) {
+        if (cachedAlias == null) {
+            SharedPreferences prefs = SecureStorage.getEncryptedPrefs(context);
+            cachedAlias = prefs.getString("key_alias", null);
+        }
+        if (balanceStore == null) {
+            try {
+                balanceStore = SecureStorage.getBalanceStore(context);
+            } catch (IOException e) {
+                WalletLog.e(TAG, "[ERROR] Failed to open balance log", e);
+            }
+        }
+        if (farePolicy == null) {
+            try {
+                farePolicy = SecureStorage.getFarePolicy(context);
+            } catch (IOException e) {
+                // Taps are charged in full until it opens
+                WalletLog.e(TAG, "[ERROR] Failed to open fare caps", e);
+            }
+        }
+        if (riskLimits == null) {
+            try {
+                riskLimits = SecureStorage.getRiskLimits(context);
+            } catch (IOException e) {
+                // Taps are limited by the balance alone until it opens
+                WalletLog.e(TAG, "[ERROR] Failed to open risk limits", e);
             }
         }
+        return cachedAlias;
+    }
 
-        return SW_FAIL;
+    /**
+     * Start warming the tap path in the background: encrypted prefs, alias and balance log,
+     * journal, AndroidKeyStore, the device key, a certified session key with its Signature,
+     * and the HTTP client. Called from onCreate/onStartCommand and on app start; only the
+     * first call per process (or after clearCache) does the work.
+     */
+    public static Prewarm prewarm(android.content.Context context) {
+        Prewarm current = prewarm;
+        if (current != null) return current;
+        synchronized (keyLock) {
+            if (prewarm != null) return prewarm;
+            android.content.Context app = context.getApplicationContext();
+            current = new Prewarm()
+                .step("prefs", () -> SecureStorage.getEncryptedPrefs(app))
+                .step("balance", () -> loadCache(app))
+                .step("journal", () -> SecureStorage.getTxJournal(app))
+                .step("keystore", LeapHostApduService::deviceKeyStore)
+                .step("deviceKey", () -> {
+                    String alias = cachedAlias;
+                    if (alias != null) deviceKey(alias);
+                })
+                .step("signer", () -> {
+                    // Certifies the session key, so no hardware signature on the first tap
+                    String alias = cachedAlias;
+                    if (alias != null) getSessionSigner(app).ensureSession(alias);
+                })
+                .step("http", BackendClient::shared)
+                // Registers the network callback the tap path reads online state from
+                .step("sync", () -> OfflineSyncWorker.scheduler(app));
+            prewarm = current;
+        }
+        current.start();
+        MetricsRegistry.global().gauge(MetricsRegistry.PREWARM_STATE, () -> {
+            Prewarm p = prewarm;
+            return p != null ? p.state() : Prewarm.COLD;
+        });
+        WalletLog.i(TAG, "[PREWARM] Started");
+        return current;
     }
 
-    public static void updateBalanceCache(double newBalance) {
-        cachedBalance = newBalance;
-        Log.i(TAG, "Balance cache updated: " + newBalance);
+    /**
+     * The current warm-up, or null if none has been started since the last clearCache
+     */
+    public static Prewarm getPrewarm() {
+        return prewarm;
     }
 
-    public static void clearCache() {
-        cachedAlias = null;
-        cachedBalance = null;
-        Log.i(TAG, "Cache cleared");
+    private static KeyStore deviceKeyStore() throws Exception {
+        synchronized (keyLock) {
+            if (cachedKeyStore == null) {
+                KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
+                ks.load(null);
+                cachedKeyStore = ks;
+            }
+            return cachedKeyStore;
+        }
     }
 
+    private static PrivateKey deviceKey(String alias) throws Exception {
+        synchronized (keyLock) {
+            if (cachedDeviceKey == null || !alias.equals(cachedDeviceKeyAlias)) {
+                PrivateKey key = (PrivateKey) deviceKeyStore().getKey(alias, null);
+                if (key == null) throw new IllegalStateException("No device key for alias " + alias);
+                cachedDeviceKey = key;
+                cachedDeviceKeyAlias = alias;
+            }
+            return cachedDeviceKey;
+        }
+    }
 
-    private boolean isNetworkAvailable() {
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-        if (cm == null) return false;
-        
-        // Modern API (Android 6.0+)
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-            android.net.Network network = cm.getActiveNetwork();
-            if (network == null) return false;
-            
-            android.net.NetworkCapabilities capabilities = cm.getNetworkCapabilities(network);
-            if (capabilities == null) return false;
-            
-            // Check if network has internet capability
-            return capabilities.hasCapability(android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET)
-                && capabilities.hasCapability(android.net.NetworkCapabilities.NET_CAPABILITY_VALIDATED);
-        } else {
-            // Fallback for older Android versions
-            android.net.NetworkInfo ni = cm.getActiveNetworkInfo();
-            return ni != null && ni.isConnectedOrConnecting();
+    /**
+     * Work done after the reader has its answer. Runs on the pipeline's stage threads.
+     */
+    private final class PostTapStages implements TapPipeline.Stages {
+
+        @Override
+        public void persistBalance() throws Exception {
+            // The deducts are already logged; wait for the group commit that fsyncs them
+            BalanceStore store = balanceStore;
+            if (store != null && !store.awaitDurable(BALANCE_COMMIT_TIMEOUT_MS)) {
+                throw new IOException("Balance log commit timed out");
+            }
+            // Fare cap spend is written behind the taps, here rather than on the APDU thread
+            FarePolicy policy = farePolicy;
+            if (policy != null) policy.persist();
+        }
+
+        @Override
+        public OfflineTransaction sign(TapPipeline.Tap tap) throws Exception {
+            OfflineTransaction tx = createSignedTransaction(tap.alias, tap.fare, tap.requestedFare, tap.cap);
+            // Journal it before the next tap is signed: the append advances the chain, so
+            // the next link follows a transaction that is on disk. A failed append fails
+            // the stage and the transaction goes no further.
+            boolean online = OfflineSyncWorker.scheduler(LeapHostApduService.this).isOnline();
+            queueTransactionLocally(tx, online);
+            return tx;
+        }
+
+        @Override
+        public void dispatch(OfflineTransaction tx) throws Exception {
+            if (SecureStorage.getTxJournal(LeapHostApduService.this).state(tx.txId) == TxJournal.STATE_IN_FLIGHT) {
+                syncTransactionWithBackend(tx);
+            } else {
+                scheduleOfflineSync();
+                NFCModule.sendEventToJS("offline", "Offline transaction");
+                WalletLog.i(TAG, "[LOG] Offline: queued transaction");
+            }
+        }
+
+        @Override
+        public void onStageError(int stage, TapPipeline.Tap tap, Exception e) {
+            WalletLog.e(TAG, "[ERROR] Post-tap {} failed for tap #{}",
+                TapPipeline.Stats.stageName(stage), tap.sequence, e);
+            if (stage == TapPipeline.STAGE_SIGN) {
+                // The fare is deducted but no transaction was journaled for it
+                NFCModule.sendEventToJS("failure", "Tap could not be recorded: " + e.getMessage());
+            }
         }
-    
     }
 
+    /**
+     * Post-tap pipeline counters (queue depth, per-stage latency)
+     */
+    public static TapPipeline.Stats getPipelineStats() {
+        LeapHostApduService service = instance;
+        return service != null && service.pipeline != null ? service.pipeline.stats() : null;
+    }
 
-    @Override
-    public void onDeactivated(int reason) {
-        Log.i(TAG, "[LOG] HCE deactivated, reason=" + reason);
+    /**
+     * Server-confirmed balance (user info, top-up result). Fares the server has not
+     * acknowledged yet stay deducted; returns the local balance.
+     */
+    public static double reconcileBalance(android.content.Context context, double serverBalance) throws IOException {
+        BalanceReconciler reconciler = SecureStorage.getBalanceReconciler(context);
+        BalanceReconciler.Settlement settlement = new BalanceReconciler.Settlement();
+        settlement.serverBalance(reconciler.ticket(), WalletLedger.toMinor(serverBalance));
+        double local = WalletLedger.toMajor(reconciler.commit(settlement));
+        WalletLog.i(TAG, "Balance reconciled with server: {}, local {}", serverBalance, local);
+        return local;
     }
 
-    private boolean isSelectAid(byte[] apdu) {
-        if (apdu.length < 4) return false;
-        return apdu[0] == (byte) 0x00 && apdu[1] == (byte) 0xA4 &&
-               apdu[2] == (byte) 0x04 && apdu[3] == (byte) 0x00;
+    /**
+     * Current balance in currency units, replaying the log if the service has not yet
+     */
+    public static double getBalance(android.content.Context context) throws IOException {
+        BalanceStore store = balanceStore;
+        if (store == null) store = SecureStorage.getBalanceStore(context);
+        return WalletLedger.toMajor(store.balance());
     }
 
-    private byte[] concat(byte[] a, byte[] b) {
-        byte[] result = new byte[a.length + b.length];
-        System.arraycopy(a, 0, result, 0, a.length);
-        System.arraycopy(b, 0, result, a.length, b.length);
-        return result;
+    public static void clearCache() {
+        // Under the lock loadCache and getSessionSigner hold, so a cold start or a first
+        // signature in flight cannot put back what is being cleared
+        synchronized (LeapHostApduService.class) {
+            cachedAlias = null;
+            balanceStore = null;
+            farePolicy = null;
+            riskLimits = null;
+            if (sessionSigner != null) sessionSigner.reset();
+        }
+        synchronized (keyLock) {
+            cachedDeviceKey = null;
+            cachedDeviceKeyAlias = null;
+            prewarm = null;
+        }
+        WalletLog.i(TAG, "Cache cleared");
+    }
+
+    // Session key certified by the device key; signs each transaction in memory
+    static synchronized SessionSigner getSessionSigner(android.content.Context context) {
+        long maxAgeMs = AppConfig.getSessionKeyMaxAgeMs(context);
+        int maxUses = AppConfig.getSessionKeyMaxUses(context);
+        if (sessionSigner == null) {
+            sessionSigner = new SessionSigner(LeapHostApduService::deviceKey, maxAgeMs, maxUses);
+        } else {
+            sessionSigner.setRotation(maxAgeMs, maxUses);
+        }
+        return sessionSigner;
     }
 
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) sb.append(String.format("%02X", b));
-        return sb.toString();
+    /**
+     * One hardware device key signature over a sync batch of chained transactions (TxChain)
+     */
+    static TxChain.Batch signChainBatch(android.content.Context context, String deviceId,
+                                        List<OfflineTransaction> chained) throws Exception {
+        String alias = loadCache(context);
+        if (alias == null) throw new IllegalStateException("Device not registered");
+        return TxChain.signBatch(deviceKey(alias), deviceId, chained);
     }
 
-    // Convert hex string to byte[]
-    private byte[] hexToBytes(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                                + Character.digit(s.charAt(i+1), 16));
+
+    @Override
+    public void onDestroy() {
+        if (instance == this) instance = null;
+        try {
+            // Let taps already accepted finish persisting, signing and dispatching
+            pipeline.shutdown(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return data;
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDeactivated(int reason) {
+        WalletLog.i(TAG, "[LOG] HCE deactivated, reason={}", reason);
+        applet.onDeactivated();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.i(TAG, "[LOG] HCE Service started or restarted");
-        
+        WalletLog.i(TAG, "[LOG] HCE Service started or restarted");
+        prewarm(this);
+
         return START_STICKY;
     }
 
     private void scheduleOfflineSync() {
-        Constraints constraints = new Constraints.Builder()
-                .setRequiredNetworkType(NetworkType.CONNECTED)
-                .build();
-
-        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(OfflineSyncWorker.class)
-                .setConstraints(constraints)
-                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 15, TimeUnit.SECONDS)
-                .addTag("offline-sync")
-                .build();
+        // Debounced and coalesced with other triggers; never cancels a run in progress
+        OfflineSyncWorker.scheduler(this).trigger();
+    }
 
-        // Ensure new work is always scheduled
-        WorkManager.getInstance(getApplicationContext())
-                .enqueueUniqueWork("offline-sync", ExistingWorkPolicy.REPLACE, workRequest);
 
-        Log.i(TAG, "[WORK] Scheduled offline sync work (will run when network available)");
+    /**
+     * Journal a signed transaction, then add its history entry. A journal failure is
+     * thrown to the pipeline (onStageError) and no history is written for it. The
+     * transaction is appended IN_FLIGHT, so the sync worker cannot settle it before its
+     * history entry exists; unless {@code inFlight} (dispatch uploads it straight away)
+     * it is then released to PENDING for the sync worker.
+     */
+    private void queueTransactionLocally(OfflineTransaction tx, boolean inFlight) throws IOException {
+        TxJournal journal = SecureStorage.getTxJournal(this);
+        journal.append(tx, true);
+        try {
+            SecureStorage.getHistoryStore(this).add(tx.txId, HistoryStore.TYPE_DEDUCT,
+                tx.amount * WalletLedger.UNITS_PER_MAJOR, tx.timestamp);
+        } catch (Exception e) {
+            WalletLog.e(TAG, "[ERROR] Failed to record history for {}", tx.txId, e);
+        } finally {
+            if (!inFlight) journal.release(tx.txId);
+        }
     }
 
+    /**
+     * Mark synced or rejected transactions in the history (HistoryStore.STATUS_*), and
+     * note the backend's answer as the last sync for the risk limits' sync age
+     */
+    static void recordSettled(android.content.Context context, Collection<String> txIds, byte status) {
+        if (txIds.isEmpty()) return;
+        AppConfig.setLastSyncMs(context, System.currentTimeMillis());
+        try {
+            SecureStorage.getHistoryStore(context).settle(txIds, status);
+        } catch (Exception e) {
+            WalletLog.e(TAG, "[ERROR] Failed to update history for {} transaction(s)", txIds.size(), e);
+        }
+    }
 
-    private void queueTransactionLocally(OfflineTransaction tx) {
-
-        SharedPreferences prefs = SecureStorage.getEncryptedPrefs(this);
-        String json = prefs.getString("tx_queue", "[]");
+    /**
+     * Move the transaction out of IN_FLIGHT: settled when {@code state} is ACKED or
+     * REJECTED, otherwise back to PENDING for the sync worker. A settled fare goes into
+     * {@code settlement}, then the settlement is applied to the balance. Returns the
+     * local balance; unchanged if the balance log could not be written.
+     */
+    private double settleTransaction(OfflineTransaction tx, int state, BalanceReconciler.Settlement settlement) {
+        long amountMinor = tx.amount * WalletLedger.UNITS_PER_MAJOR;
+        try {
+            TxJournal journal = SecureStorage.getTxJournal(this);
+            if (state == TxJournal.STATE_ACKED) {
+                if (journal.ack(tx.txId)) settlement.acked(amountMinor);
+                recordSettled(this, Collections.singletonList(tx.txId), HistoryStore.STATUS_SYNCED);
+            } else if (state == TxJournal.STATE_REJECTED) {
+                if (journal.reject(tx.txId)) settlement.rejected(amountMinor);
+                recordSettled(this, Collections.singletonList(tx.txId), HistoryStore.STATUS_REJECTED);
+            } else {
+                journal.release(tx.txId);
+            }
+        } catch (Exception e) {
+            WalletLog.e(TAG, "[ERROR] Failed to update journal state for {}", tx.txId, e);
+        }
 
         try {
-            JSONArray arr = new JSONArray(json);
-            arr.put(new JSONObject(new Gson().toJson(tx)));
-            prefs.edit().putString("tx_queue", arr.toString()).apply();
+            return WalletLedger.toMajor(SecureStorage.getBalanceReconciler(this).commit(settlement));
         } catch (Exception e) {
-            Log.e("NFC", "Queue error", e);
+            WalletLog.e(TAG, "[ERROR] Failed to update balance for {}", tx.txId, e);
+            BalanceStore store = balanceStore;
+            return store != null ? WalletLedger.toMajor(store.balance()) : 0;
         }
     }
 
-    private OfflineTransaction createSignedTransaction(String alias, int fare) throws Exception {
+    private OfflineTransaction createSignedTransaction(String alias, int fare, int requestedFare, int cap)
+            throws Exception {
         
         OfflineTransaction tx = new OfflineTransaction();
         tx.txId = UUID.randomUUID().toString();
         tx.amount = fare; 
         tx.timestamp = System.currentTimeMillis();
 
-        JSONObject payload = new JSONObject();
-        payload.put("txId", tx.txId);
-        payload.put("fare", fare); 
-        payload.put("timestamp", tx.timestamp);
-        
-        String payloadString = payload.toString(); //exact string to sing
-        tx.payload = payloadString;
-        byte[] payloadBytes = payload.toString().getBytes(StandardCharsets.UTF_8);
-        
-        // Sign the payload
-        // Sign using EC / ECDSA 
-        java.security.Signature signature = java.security.Signature.getInstance("SHA256withECDSA");
-        java.security.KeyStore ks = java.security.KeyStore.getInstance("AndroidKeyStore");
-        ks.load(null);
-        
-        java.security.PrivateKey privateKey = (java.security.PrivateKey) ks.getKey(alias, null);
-        signature.initSign(privateKey);
-        signature.update(payloadBytes);
-        // NO_WRAP so there are no newlines
-        tx.signature = android.util.Base64.encodeToString(signature.sign(), android.util.Base64.NO_WRAP);
+        // Next link on the device's hash chain (see TxChain); the journal append advances it
+        TxChain.Link link = SecureStorage.getTxJournal(this).chain().next();
+        tx.chainId = link.chainId;
+        tx.sequence = link.sequence;
 
+        // Binary payload once the backend has advertised it, JSON otherwise
+        if (AppConfig.isTlvSupported(this)) {
+            tx.payloadFormat = OfflineTransaction.PAYLOAD_TLV;
+            tx.payload = TxCodec.encodePayload(tx.txId, fare, tx.timestamp, link, requestedFare, cap);
+        } else {
+            JSONObject payload = new JSONObject();
+            payload.put("txId", tx.txId);
+            payload.put("fare", fare);
+            payload.put("timestamp", tx.timestamp);
+            TxChain.putLink(payload, link);
+            FarePolicy.putDecision(payload, requestedFare, cap);
+            tx.payloadFormat = OfflineTransaction.PAYLOAD_JSON;
+            tx.payload = payload.toString().getBytes(StandardCharsets.UTF_8); // exact bytes to sign
+        }
+
+        // Sign with the in-memory session key (ECDSA P-256). The device key only
+        // signs the session certificate when the session rotates, and the TxChain
+        // statement once per chained sync batch.
+        SessionSigner.SignedPayload signed = getSessionSigner(this).sign(alias, tx.payload);
+        tx.signature = signed.signature;
+        tx.sessionCert = signed.session.certificate;
+        tx.sessionCertSignature = signed.session.certificateSignature;
         return tx;
     }
 
+    /**
+     * Upload a transaction the sign stage appended IN_FLIGHT. Every path leaves it settled
+     * or back in PENDING; nothing is appended a second time.
+     */
     private String syncTransactionWithBackend(OfflineTransaction tx) {
-        HttpURLConnection conn = null;
+        int state = TxJournal.STATE_PENDING;
+        BalanceReconciler.Settlement settlement = new BalanceReconciler.Settlement();
+        // Set once the response parsed; the event goes out after the balance is applied
+        String resultStatus = null;
+        double fareDeducted = 0;
         try {
             SharedPreferences prefs = SecureStorage.getEncryptedPrefs(this);
             String deviceId = prefs.getString("device_id", null);
             if (deviceId == null) {
-                Log.e(TAG, "[ERROR] No deviceId found in prefs");
-                queueTransactionLocally(tx);
+                WalletLog.e(TAG, "[ERROR] No deviceId found in prefs");
                 return null;
             }
 
-            // Build request JSON
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("deviceId", deviceId);
-            requestBody.put("payload", Base64.encodeToString(tx.payload.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP));
-            requestBody.put("signature", tx.signature);
-
-            // Create HTTP connection
-            URL url = new URL(AppConfig.Endpoints.walletRedeem(getApplicationContext()));
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(5000);
-            conn.setReadTimeout(5000);
-
-            // Send request
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-
-            int status = conn.getResponseCode();
-            if (status == 200) {
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                    StringBuilder sb = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) sb.append(line);
-                    
-                    String responseJson = sb.toString();
-                    Log.i(TAG, "[SUCCESS] Transaction synced: " + tx.txId);
-                    Log.i(TAG, "[RESPONSE] " + responseJson);
-                    
-                    // Parse and send complete transaction data
+            // Orders this response against the sync worker's (see BalanceReconciler)
+            long ticket = SecureStorage.getBalanceReconciler(this).ticket();
+            long httpStart = System.nanoTime();
+            BackendClient.Result result = BackendClient.shared().redeem(
+                AppConfig.Endpoints.walletRedeem(getApplicationContext()), deviceId,
+                Collections.singletonList(tx), false, AppConfig.isTlvSupported(this));
+            MetricsRegistry.global().histogram(MetricsRegistry.HTTP_REDEEM).recordSince(httpStart);
+            AppConfig.updateTlvSupport(this, result);
+
+            switch (result.retryClass) {
+                case BackendClient.OK:
+                    state = TxJournal.STATE_ACKED;
+                    WalletLog.i(TAG, "[SUCCESS] Transaction synced: {}", tx.txId);
+                    WalletLog.d(TAG, "[RESPONSE] {}", result.body);
+
+                    // Parse; the balance is applied with the journal update below
                     try {
-                        JSONObject redeemResult = new JSONObject(responseJson);
-                        String resultStatus = redeemResult.getString("status");
-                        double newBalance = redeemResult.getDouble("newBalance");
-                        double fareDeducted = redeemResult.getDouble("fareDeducted");
-                        
-                        // Update local balance
-                        updateBalanceCache(newBalance);
-                        prefs.edit().putLong("local_balance", Double.doubleToRawLongBits(newBalance)).apply();
-                        Log.i(TAG, "[SYNC] Local balance updated to: " + newBalance);
-                        
-                        // Send complete transaction event
-                        JSONObject eventData = new JSONObject();
-                        eventData.put("status", resultStatus);
-                        eventData.put("newBalance", newBalance);
-                        eventData.put("fareDeducted", fareDeducted);
-                        
-                        NFCModule.sendEventToJS("transactionComplete", eventData.toString());
-                        
-                    } catch (JSONException e) {
-                        Log.e(TAG, "[ERROR] Failed to parse backend response", e);
+                        double newBalance = result.body.get("newBalance").getAsDouble();
+                        fareDeducted = result.body.get("fareDeducted").getAsDouble();
+                        resultStatus = result.body.get("status").getAsString();
+                        settlement.serverBalance(ticket, WalletLedger.toMinor(newBalance));
+                    } catch (RuntimeException e) {
+                        WalletLog.e(TAG, "[ERROR] Failed to parse backend response", e);
                         NFCModule.sendEventToJS("failure", "Invalid response format");
                     }
-                    
-                    return responseJson;
-                }
-            } else if (status >= 400 && status < 500) {
-
-                // DON'T REQUEUE
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getErrorStream()))) {
-                    StringBuilder sb = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) sb.append(line);
-                    
-                    String errorResponse = sb.toString();
-                    Log.e(TAG, "[VALIDATION ERROR] Transaction rejected by backend: " + errorResponse);
-                    
-                    // Parse error message and notify user
-                    try {
-                        JSONObject error = new JSONObject(errorResponse);
-                        String message = error.optString("message", "Transaction validation failed");
-                        NFCModule.sendEventToJS("failure", "Backend rejected: " + message);
-                    } catch (Exception e) {
-                        NFCModule.sendEventToJS("failure", "Transaction validation failed");
-                    }
-                    
-                    // not requeue - this will never succeed
+                    return String.valueOf(result.body);
+
+                case BackendClient.REJECTED:
+                    // DON'T RETRY - this will never succeed
+                    state = TxJournal.STATE_REJECTED;
+                    WalletLog.e(TAG, "[VALIDATION ERROR] Transaction rejected by backend: {}", result.body);
+                    NFCModule.sendEventToJS("failure",
+                        "Backend rejected: " + result.message("Transaction validation failed"));
+                    return null;
+
+                default:
+                    // Server error (5xx), throttling or missing endpoint - left to the sync worker
+                    WalletLog.w(TAG, "[ERROR] Backend error {}, leaving for retry", result.status);
+                    scheduleOfflineSync();
+                    NFCModule.sendEventToJS("syncFailed", "Backend error, will retry");
                     return null;
-                }
-                
-            } else {
-                // Server error (5xx) or network issue - REQUEUE for retry
-                Log.w(TAG, "[ERROR] Backend error " + status + ", requeueing");
-                queueTransactionLocally(tx);
-                scheduleOfflineSync();
-                NFCModule.sendEventToJS("syncFailed", "Backend error, will retry");
-                return null;
             }
 
         } catch (Exception e) {
-            Log.e(TAG, "[ERROR] Sync failed, requeueing transaction", e);
-            queueTransactionLocally(tx);
+            WalletLog.e(TAG, "[ERROR] Sync failed, leaving transaction for retry", e);
+            scheduleOfflineSync();
             NFCModule.sendEventToJS("syncFailed", "Network error: " + e.getMessage());
             return null;
         } finally {
-            if (conn != null) conn.disconnect();
+            double balance = settleTransaction(tx, state, settlement);
+            if (resultStatus != null) {
+                WalletLog.i(TAG, "[SYNC] Local balance updated to: {}", balance);
+                NFCModule.sendTransactionToJS(tx.txId, resultStatus, fareDeducted, balance);
+            }
         }
     }
 }
\ No newline at end of file
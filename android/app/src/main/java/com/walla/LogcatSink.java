@@ -0,0 +1,26 @@
+package com.walla;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * WalletLog sink writing to Logcat, from WalletLog's drain thread
+ */
+public class LogcatSink implements WalletLog.Sink {
+
+    /**
+     * Route WalletLog to Logcat at the level in AppConfig. Called from MainApplication.onCreate,
+     * which runs before the HCE service, the worker or the React module in every process.
+     */
+    public static void install(Context context) {
+        WalletLog.setLevel(AppConfig.getLogLevel(context));
+        WalletLog.install(new LogcatSink());
+        MetricsRegistry.global().gauge(MetricsRegistry.LOG_DROPPED, WalletLog::droppedCount);
+    }
+
+    @Override
+    public void write(int level, String tag, String message, Throwable error) {
+        if (error != null) message = message + '\n' + Log.getStackTraceString(error);
+        Log.println(level, tag, message);
+    }
+}
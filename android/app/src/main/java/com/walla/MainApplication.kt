@@ -25,6 +25,12 @@ class MainApplication : Application(), ReactApplication {
     override fun onCreate() {
         super.onCreate()
 
+        // Native logging first, so startup is in the flight recorder
+        LogcatSink.install(this)
+
+        // Warm the HCE tap path (keystore, balance log, signer) while the UI loads
+        LeapHostApduService.prewarm(this)
+
         // Load React Native runtime
         loadReactNative(this)
     }
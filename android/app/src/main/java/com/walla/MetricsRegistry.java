@@ -0,0 +1,147 @@
+package com.walla;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process metrics: latency histograms, counters and gauges by name.
+ *
+ * Hot paths look a metric up once and keep the reference; recording is then one atomic
+ * update with no allocation or locking. Gauges are read only when a snapshot is taken.
+ * NFCModule.getMetrics hands a compact snapshot to JS.
+ */
+public class MetricsRegistry {
+
+    // ---- Histograms (nanoseconds) ----
+    public static final String APDU_SELECT = "apdu.select";
+    public static final String APDU_DEDUCT = "apdu.deduct";
+    public static final String APDU_SELECT_DEDUCT = "apdu.selectDeduct";
+    public static final String APDU_OTHER = "apdu.other";
+    // Check-and-deduct plus the balance log append, the part a concurrent tap would wait on
+    public static final String DEDUCT_CRITICAL = "deduct.critical";
+    public static final String TAP_PERSIST = "tap.persist";
+    public static final String TAP_SIGN = "tap.sign";
+    public static final String TAP_DISPATCH = "tap.dispatch";
+    public static final String TAP_COMPLETE = "tap.complete";
+    public static final String HTTP_REDEEM = "http.redeem";
+    public static final String HTTP_REDEEM_BATCH = "http.redeemBatch";
+    public static final String HTTP_REDEEM_CHAIN = "http.redeemChain";
+    // Device key signature over a TxChain batch statement
+    public static final String CHAIN_SIGN = "chain.sign";
+
+    // ---- Counters ----
+    public static final String DEDUCT_APPROVED = "deduct.approved";
+    public static final String DEDUCT_DECLINED = "deduct.declined";
+    // Approved taps charged less than the reader asked for (FarePolicy)
+    public static final String DEDUCT_CAPPED = "deduct.capped";
+    // Declined by an offline risk limit (RiskLimits), also counted in deduct.declined
+    public static final String DEDUCT_RISK_DECLINED = "deduct.riskDeclined";
+    // Retransmitted DEDUCTs answered from RecentTaps, not charged again
+    public static final String DEDUCT_REPLAYED = "deduct.replayed";
+    public static final String SYNC_RUNS = "sync.runs";
+    public static final String SYNC_BATCHES = "sync.batches";
+    public static final String SYNC_BATCH_FALLBACKS = "sync.batchFallbacks";
+    public static final String SYNC_CHAIN_BATCHES = "sync.chainBatches";
+    // Chained transactions the backend could not anchor, resent with their own signatures
+    public static final String SYNC_UNANCHORED = "sync.unanchored";
+    public static final String SYNC_SUCCESS = "sync.success";
+    public static final String SYNC_DUPLICATE = "sync.duplicate";
+    public static final String SYNC_REJECTED = "sync.rejected";
+    public static final String SYNC_FAILED = "sync.failed";
+    public static final String EVENTS_EMITTED = "events.emitted";
+    public static final String EVENTS_DROPPED = "events.dropped";
+    public static final String EVENTS_COALESCED = "events.coalesced";
+
+    // ---- Gauges ----
+    public static final String TAP_DEPTH = "tap.depth";
+    public static final String TAP_REJECTED = "tap.rejected";
+    public static final String JOURNAL_PENDING = "journal.pending";
+    // RiskLimits counters: taps and whole currency units not yet settled by the backend
+    public static final String RISK_UNSYNCED_COUNT = "risk.unsyncedCount";
+    public static final String RISK_UNSYNCED_VALUE = "risk.unsyncedValue";
+    public static final String BALANCE_FSYNCS = "balance.fsyncs";
+    // BalanceReconciler commits, and server balances skipped as stale
+    public static final String BALANCE_SETTLES = "balance.settles";
+    public static final String BALANCE_STALE_RESPONSES = "balance.staleResponses";
+    public static final String HISTORY_ENTRIES = "history.entries";
+    // SyncScheduler: triggers, runs enqueued, and triggers folded into another's run
+    public static final String SYNC_TRIGGERS = "sync.triggers";
+    public static final String SYNC_ENQUEUES = "sync.enqueues";
+    public static final String SYNC_COALESCED = "sync.coalesced";
+    // WalletLog events overwritten before reaching Logcat
+    public static final String LOG_DROPPED = "log.dropped";
+    // Prewarm.COLD/WARMING/READY/FAILED
+    public static final String PREWARM_STATE = "prewarm.state";
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * The process-wide registry
+     */
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram h = histograms.get(name);
+        return h != null ? h : histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * Publish a histogram owned by another component under a name (replaces any previous one)
+     */
+    public void register(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    public LongAdder counter(String name) {
+        LongAdder c = counters.get(name);
+        return c != null ? c : counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Zero histograms and counters (gauges read live state and are left alone)
+     */
+    public void reset() {
+        for (LatencyHistogram h : histograms.values()) h.reset();
+        for (LongAdder c : counters.values()) c.reset();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public static final class Snapshot {
+        public final long takenAtMillis = System.currentTimeMillis();
+        public final Map<String, LatencyHistogram.Snapshot> histograms = new TreeMap<>();
+        public final Map<String, Long> counters = new TreeMap<>();
+        public final Map<String, Long> gauges = new TreeMap<>();
+
+        Snapshot(MetricsRegistry registry) {
+            for (Map.Entry<String, LatencyHistogram> e : registry.histograms.entrySet()) {
+                histograms.put(e.getKey(), e.getValue().snapshot());
+            }
+            for (Map.Entry<String, LongAdder> e : registry.counters.entrySet()) {
+                counters.put(e.getKey(), e.getValue().sum());
+            }
+            for (Map.Entry<String, LongSupplier> e : registry.gauges.entrySet()) {
+                try {
+                    gauges.put(e.getKey(), e.getValue().getAsLong());
+                } catch (RuntimeException ignored) {
+                    // A gauge whose owner has gone away is left out
+                }
+            }
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.walla;
 import android.os.Build;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.Log;
 import android.util.Base64;
 
 import com.facebook.react.bridge.Promise;
@@ -12,6 +11,7 @@ import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.Arguments;
 
 import android.security.keystore.KeyGenParameterSpec;
@@ -25,14 +25,13 @@ import java.security.KeyFactory;
 import java.security.spec.ECGenParameterSpec;
 import java.security.KeyStore.PrivateKeyEntry;
 
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
-import androidx.work.Constraints;
-import androidx.work.NetworkType;
-import androidx.work.ExistingWorkPolicy;
-import androidx.work.BackoffPolicy;
-import java.util.concurrent.TimeUnit;
 import com.walla.SecureStorage;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import java.util.Map;
+import java.util.UUID;
 
 import androidx.security.crypto.EncryptedSharedPreferences;
 import androidx.security.crypto.MasterKey;
@@ -41,24 +40,77 @@ import androidx.security.crypto.MasterKey;
 public class NFCModule extends ReactContextBaseJavaModule {
 
     private static final String MODULE_NAME = "NFCModule";
-    private SharedPreferences prefs;
-    private static ReactApplicationContext reactContext;
+    private static volatile ReactApplicationContext reactContext;
+    private static final EventBridge events = new EventBridge(NFCModule::emit);
 
 
     public NFCModule(ReactApplicationContext context) {
         super(context);
         reactContext = context; 
-        prefs = SecureStorage.getEncryptedPrefs(context);
     }
 
+    // Looked up per call, so a store reopened after logout is the one used
+    private SharedPreferences prefs() {
+        return SecureStorage.getEncryptedPrefs(reactContext);
+    }
+
+    // For saves: the memory-only fallback would lose them, so the caller gets an error
+    private SharedPreferences persistentPrefs() throws IOException {
+        if (!SecureStorage.isPersistent(reactContext)) {
+            throw new IOException("Secure storage unavailable, not saved");
+        }
+        return prefs();
+    }
+
+    /**
+     * Queue a message-only event ("failure", "offline", "syncFailed"). Never blocks.
+     */
     public static void sendEventToJS(String type, String message) {
-        if (reactContext != null) {
-            WritableMap map = Arguments.createMap();
-            map.putString("type", type);
-            map.putString("message", message);
-            reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                        .emit("NfcEvent", map);
+        events.post(type, message);
+    }
+
+    /**
+     * Queue a local balance change; only the latest one in a flush window reaches JS
+     */
+    public static void sendBalanceToJS(double newBalance) {
+        events.postBalance(newBalance);
+    }
+
+    /**
+     * Queue a backend redeem result; results in the same window reach JS as one batch
+     */
+    public static void sendTransactionToJS(String txId, String status, double fareDeducted, double newBalance) {
+        events.postTransaction(new EventBridge.TransactionResult(txId, status, fareDeducted, newBalance));
+    }
+
+    // Runs on the EventBridge thread, never on the APDU thread
+    private static boolean emit(EventBridge.Event event) {
+        ReactApplicationContext context = reactContext;
+        if (context == null || !context.hasActiveReactInstance()) return false;
+
+        WritableMap map = Arguments.createMap();
+        map.putString("type", event.type);
+        if (EventBridge.BALANCE_UPDATE.equals(event.type)) {
+            map.putDouble("balance", event.balance);
+            // Kept for listeners that still parse the message
+            map.putString("message", String.valueOf(event.balance));
+        } else if (event.results != null) {
+            WritableArray results = Arguments.createArray();
+            for (EventBridge.TransactionResult r : event.results) {
+                WritableMap result = Arguments.createMap();
+                if (r.txId != null) result.putString("txId", r.txId);
+                result.putString("status", r.status);
+                result.putDouble("fareDeducted", r.fareDeducted);
+                result.putDouble("newBalance", r.newBalance);
+                results.pushMap(result);
+            }
+            map.putArray("results", results);
+        } else {
+            map.putString("message", event.message);
         }
+        context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+               .emit("NfcEvent", map);
+        return true;
     }
 
     // Sync with the server before user logs out
@@ -66,47 +118,201 @@ public class NFCModule extends ReactContextBaseJavaModule {
     public void triggerOfflineSync(Promise promise) {
         try {
             // Check if there are queued transactions
-            String queueJson = prefs.getString("tx_queue", "[]");
-            org.json.JSONArray queue = new org.json.JSONArray(queueJson);
+            int pending = SecureStorage.getTxJournal(reactContext).pendingCount();
 
-            if (queue.length() == 0) {
-                Log.i("NFCModule", "[SYNC] No queued transactions to sync");
+            if (pending == 0) {
+                WalletLog.i("NFCModule", "[SYNC] No queued transactions to sync");
                 promise.resolve("No transactions to sync");
                 return;
             }
 
-            Log.i("NFCModule", "[SYNC] Triggering sync for " + queue.length() + " queued transaction(s)");
-
-            // Schedule work with network constraint
-            Constraints constraints = new Constraints.Builder()
-                    .setRequiredNetworkType(NetworkType.CONNECTED)
-                    .build();
+            WalletLog.i("NFCModule", "[SYNC] Triggering sync for {} queued transaction(s)", pending);
 
-            OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(OfflineSyncWorker.class)
-                    .setConstraints(constraints)
-                    .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 15, TimeUnit.SECONDS)
-                    .addTag("offline-sync")
-                    .build();
+            // Skips the debounce and any backoff; a run in progress gets a follow-up
+            OfflineSyncWorker.scheduler(reactContext).syncNow();
 
-            WorkManager.getInstance(reactContext)
-                    .enqueueUniqueWork("offline-sync", ExistingWorkPolicy.REPLACE, workRequest);
-
-            promise.resolve("Sync scheduled for " + queue.length() + " transaction(s)");
+            promise.resolve("Sync scheduled for " + pending + " transaction(s)");
         } catch (Exception e) {
-            Log.e("NFCModule", "[ERROR] Failed to trigger offline sync", e);
+            WalletLog.e("NFCModule", "[ERROR] Failed to trigger offline sync", e);
             promise.reject("SYNC_ERROR", e);
         }
     }
 
+    // Pending transactions as a JSON array string, streamed from the journal
     @ReactMethod
     public void getTransactionQueue(Promise promise) {
+        try (TxJournal.Cursor cursor = SecureStorage.getTxJournal(reactContext).cursor()) {
+            // JS only needs to know what is pending, not the signed bytes
+            StringWriter out = new StringWriter();
+            JsonWriter json = new JsonWriter(out);
+            json.beginArray();
+            OfflineTransaction tx;
+            while ((tx = cursor.next()) != null) {
+                json.beginObject();
+                json.name("txId").value(tx.txId);
+                json.name("amount").value(tx.amount);
+                json.name("timestamp").value(tx.timestamp);
+                json.endObject();
+            }
+            json.endArray();
+            json.close();
+            promise.resolve(out.toString());
+        } catch (Exception e) {
+            promise.reject("GET_QUEUE_FAILED", e);
+        }
+    }
+
+    // Number of transactions not yet synced, without sending them over the bridge
+    @ReactMethod
+    public void getPendingCount(Promise promise) {
         try {
-            String queueJson = prefs.getString("tx_queue", "[]");
-            promise.resolve(queueJson);
+            promise.resolve(SecureStorage.getTxJournal(reactContext).pendingCount());
         } catch (Exception e) {
             promise.reject("GET_QUEUE_FAILED", e);
         }
     }
+
+    // One page of history, newest first: { items, nextCursor }. Pass null for the newest
+    // page, then the previous nextCursor; nextCursor is null at the oldest entry.
+    @ReactMethod
+    public void getHistoryPage(Double cursor, int limit, Promise promise) {
+        try {
+            HistoryStore.Page page = SecureStorage.getHistoryStore(reactContext)
+                .page(cursor != null ? cursor.longValue() : -1, limit);
+            WritableArray items = Arguments.createArray();
+            for (HistoryStore.Entry entry : page.entries) {
+                WritableMap item = Arguments.createMap();
+                item.putString("id", entry.txId);
+                item.putString("type", entry.type == HistoryStore.TYPE_TOP_UP ? "TOPUP" : "DEDUCT");
+                item.putDouble("amount", WalletLedger.toMajor(entry.amountMinor));
+                item.putDouble("timestamp", entry.timestamp);
+                item.putString("status", historyStatus(entry.status));
+                items.pushMap(item);
+            }
+            WritableMap result = Arguments.createMap();
+            result.putArray("items", items);
+            if (page.nextCursor >= 0) result.putDouble("nextCursor", page.nextCursor);
+            else result.putNull("nextCursor");
+            promise.resolve(result);
+        } catch (Exception e) {
+            promise.reject("HISTORY_FAILED", e);
+        }
+    }
+
+    // Spend for the newest days and weeks with activity, newest first:
+    // { days: [{ start, spent, taps }], weeks: [...] }, start in epoch millis
+    @ReactMethod
+    public void getSpendSummary(int days, int weeks, Promise promise) {
+        try {
+            HistoryStore history = SecureStorage.getHistoryStore(reactContext);
+            WritableArray dayList = Arguments.createArray();
+            for (HistoryStore.Aggregate a : history.days(Math.min(days, HistoryStore.MAX_PAGE))) {
+                dayList.pushMap(toMap(a, history.dayStart(a.period)));
+            }
+            WritableArray weekList = Arguments.createArray();
+            for (HistoryStore.Aggregate a : history.weeks(Math.min(weeks, HistoryStore.MAX_PAGE))) {
+                weekList.pushMap(toMap(a, history.weekStart(a.period)));
+            }
+            WritableMap result = Arguments.createMap();
+            result.putArray("days", dayList);
+            result.putArray("weeks", weekList);
+            promise.resolve(result);
+        } catch (Exception e) {
+            promise.reject("HISTORY_FAILED", e);
+        }
+    }
+
+    // Fare caps (0 = none) and the spend counted against them:
+    // { dailyCap, weeklyCap, spentToday, spentThisWeek }, whole currency units
+    @ReactMethod
+    public void getFareCaps(Promise promise) {
+        try {
+            FarePolicy policy = SecureStorage.getFarePolicy(reactContext);
+            long now = System.currentTimeMillis();
+            WritableMap result = Arguments.createMap();
+            result.putInt("dailyCap", policy.dailyCap());
+            result.putInt("weeklyCap", policy.weeklyCap());
+            result.putInt("spentToday", policy.spentToday(now));
+            result.putInt("spentThisWeek", policy.spentThisWeek(now));
+            promise.resolve(result);
+        } catch (Exception e) {
+            promise.reject("FARE_CAPS_FAILED", e);
+        }
+    }
+
+    @ReactMethod
+    public void setFareCaps(int dailyCap, int weeklyCap, Promise promise) {
+        try {
+            AppConfig.setFareCaps(reactContext, dailyCap, weeklyCap);
+            SecureStorage.getFarePolicy(reactContext).setCaps(dailyCap, weeklyCap);
+            promise.resolve(true);
+        } catch (Exception e) {
+            promise.reject("FARE_CAPS_FAILED", e);
+        }
+    }
+
+    // Offline risk limits (0 = none) and what counts against them:
+    // { maxUnsyncedValue, maxUnsyncedCount, maxSyncAgeSeconds, unsyncedValue, unsyncedCount,
+    //   lastSyncMs }, values in whole currency units
+    @ReactMethod
+    public void getRiskLimits(Promise promise) {
+        try {
+            RiskLimits limits = SecureStorage.getRiskLimits(reactContext);
+            WritableMap result = Arguments.createMap();
+            result.putInt("maxUnsyncedValue", limits.maxValue());
+            result.putInt("maxUnsyncedCount", limits.maxCount());
+            result.putDouble("maxSyncAgeSeconds", limits.maxSyncAgeMs() / 1000.0);
+            result.putDouble("unsyncedValue", limits.unsyncedValue());
+            result.putInt("unsyncedCount", limits.unsyncedCount());
+            result.putDouble("lastSyncMs", limits.lastSyncMillis());
+            promise.resolve(result);
+        } catch (Exception e) {
+            promise.reject("RISK_LIMITS_FAILED", e);
+        }
+    }
+
+    @ReactMethod
+    public void setRiskLimits(int maxUnsyncedValue, int maxUnsyncedCount, double maxSyncAgeSeconds, Promise promise) {
+        try {
+            long maxSyncAgeMs = (long) (maxSyncAgeSeconds * 1000);
+            AppConfig.setRiskLimits(reactContext, maxUnsyncedValue, maxUnsyncedCount, maxSyncAgeMs);
+            SecureStorage.getRiskLimits(reactContext).setLimits(maxUnsyncedValue, maxUnsyncedCount, maxSyncAgeMs);
+            promise.resolve(true);
+        } catch (Exception e) {
+            promise.reject("RISK_LIMITS_FAILED", e);
+        }
+    }
+
+    // A confirmed top-up, for the history
+    @ReactMethod
+    public void recordTopUp(double amount, Promise promise) {
+        try {
+            SecureStorage.getHistoryStore(reactContext).add(UUID.randomUUID().toString(),
+                HistoryStore.TYPE_TOP_UP, WalletLedger.toMinor(amount), System.currentTimeMillis());
+            promise.resolve(true);
+        } catch (Exception e) {
+            promise.reject("HISTORY_FAILED", e);
+        }
+    }
+
+    private static String historyStatus(byte status) {
+        switch (status) {
+            case HistoryStore.STATUS_SYNCED:
+                return "SUCCESS";
+            case HistoryStore.STATUS_REJECTED:
+                return "REJECTED";
+            default:
+                return "PENDING";
+        }
+    }
+
+    private static WritableMap toMap(HistoryStore.Aggregate aggregate, long start) {
+        WritableMap map = Arguments.createMap();
+        map.putDouble("start", start);
+        map.putDouble("spent", WalletLedger.toMajor(aggregate.spentMinor));
+        map.putInt("taps", aggregate.taps);
+        return map;
+    }
     
     @Override
     public String getName() {
@@ -116,7 +322,7 @@ public class NFCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void saveJwtToken(String token, Promise promise) {
         try {
-            prefs.edit().putString("jwt_token", token).apply();
+            persistentPrefs().edit().putString("jwt_token", token).apply();
             promise.resolve(true);
         } catch (Exception e) {
             promise.reject("SAVE_FAILED", e);
@@ -127,7 +333,7 @@ public class NFCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void getJwtToken(Promise promise) {
         try {
-            String token = prefs.getString("jwt_token", null);
+            String token = prefs().getString("jwt_token", null);
             if (token != null) {
                 promise.resolve(token);
             } else {
@@ -151,7 +357,7 @@ public class NFCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void clearAllSessionData(Promise promise) {
         try {
-            SharedPreferences.Editor editor = prefs.edit();
+            SharedPreferences.Editor editor = prefs().edit();
             
             // Clear all session data
             editor.remove("jwt_token");
@@ -160,14 +366,19 @@ public class NFCModule extends ReactContextBaseJavaModule {
             editor.remove("local_balance");
             editor.remove("tx_queue");
             editor.apply();
-            
+
+            SecureStorage.getTxJournal(reactContext).clear();
+            SecureStorage.getBalanceStore(reactContext).clear();
+            SecureStorage.getHistoryStore(reactContext).clear();
+            SecureStorage.getFarePolicy(reactContext).clear();
             SecureStorage.clearCache();
             LeapHostApduService.clearCache();
+            WalletLog.clear();
 
-            Log.i(MODULE_NAME, "[LOGOUT] All session data cleared from SharedPreferences");
+            WalletLog.i(MODULE_NAME, "[LOGOUT] All session data cleared from SharedPreferences");
             promise.resolve(true);
         } catch (Exception e) {
-            Log.e(MODULE_NAME, "[LOGOUT] Failed to clear session data", e);
+            WalletLog.e(MODULE_NAME, "[LOGOUT] Failed to clear session data", e);
             promise.reject("CLEAR_ERROR", e.getMessage());
         }
     }
@@ -175,27 +386,25 @@ public class NFCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void isSessionValid(Promise promise) {
         try {
-            String token = prefs.getString("jwt_token", null);
-            String deviceId = prefs.getString("device_id", null);
+            String token = prefs().getString("jwt_token", null);
+            String deviceId = prefs().getString("device_id", null);
             
             boolean isValid = (token != null && !token.isEmpty() && 
                             deviceId != null && !deviceId.isEmpty());
             
-            Log.i(MODULE_NAME, "[SESSION] Valid: " + isValid);
+            WalletLog.i(MODULE_NAME, "[SESSION] Valid: {}", isValid);
             promise.resolve(isValid);
         } catch (Exception e) {
             promise.reject("SESSION_CHECK_ERROR", e.getMessage());
         }
     }
 
-    //Save balance to sharedRef and cache
+    //Save the server balance to the balance log; resolves with the local balance,
+    //which still has the fares the server has not acknowledged deducted
     @ReactMethod
     public void saveLocalBalance(double balance, Promise promise) {
         try {
-            // Store as long bits
-            prefs.edit().putLong("local_balance", Double.doubleToRawLongBits(balance)).apply();
-            LeapHostApduService.updateBalanceCache(balance);
-            promise.resolve(true);
+            promise.resolve(LeapHostApduService.reconcileBalance(reactContext, balance));
         } catch (Exception e) {
             promise.reject("SAVE_BALANCE_FAILED", e);
         }
@@ -204,9 +413,7 @@ public class NFCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void getLocalBalance(Promise promise) {
         try {
-            long bits = prefs.getLong("local_balance", Double.doubleToRawLongBits(0.0));
-            double balance = Double.longBitsToDouble(bits);
-            promise.resolve(balance);
+            promise.resolve(LeapHostApduService.getBalance(reactContext));
         } catch (Exception e) {
             promise.reject("GET_BALANCE_FAILED", e);
         }
@@ -251,14 +458,17 @@ public class NFCModule extends ReactContextBaseJavaModule {
         KeyFactory keyFactory = KeyFactory.getInstance(keyPair.getPrivate().getAlgorithm(), "AndroidKeyStore"); 
         KeyInfo keyInfo = keyFactory.getKeySpec(keyPair.getPrivate(), KeyInfo.class); 
         
-        Log.i("KeyCheck", "Hardware backed: " + keyInfo.isInsideSecureHardware()); 
+        WalletLog.i("KeyCheck", "Hardware backed: {}", keyInfo.isInsideSecureHardware()); 
         return keyPair;
     }
 
     @ReactMethod
     public void saveKeyAlias(String alias, Promise promise){
         try {
-            prefs.edit().putString("key_alias", alias).apply();
+            persistentPrefs().edit().putString("key_alias", alias).apply();
+            // Warm the new key and session before the first tap
+            LeapHostApduService.clearCache();
+            LeapHostApduService.prewarm(reactContext);
             promise.resolve(true);
         } catch (Exception e) {
             promise.reject("SAVE_FAILED", e);
@@ -268,7 +478,7 @@ public class NFCModule extends ReactContextBaseJavaModule {
     @ReactMethod
     public void saveDeviceId(String deviceId, Promise promise){
         try {
-            prefs.edit().putString("device_id", deviceId).apply();
+            persistentPrefs().edit().putString("device_id", deviceId).apply();
             promise.resolve(true);
         } catch (Exception e) {
             promise.reject("SAVE_FAILED", e);
@@ -285,6 +495,144 @@ public class NFCModule extends ReactContextBaseJavaModule {
         }
     }
 
+    @ReactMethod
+    public void setSessionKeyRotation(double maxAgeSeconds, int maxUses, Promise promise) {
+        try {
+            AppConfig.setSessionKeyRotation(reactContext, (long) (maxAgeSeconds * 1000), maxUses);
+            LeapHostApduService.getSessionSigner(reactContext);
+            promise.resolve(true);
+        } catch (Exception e) {
+            promise.reject("SET_ROTATION_FAILED", e);
+        }
+    }
+
+    // Post-tap pipeline queue depth and per-stage latency
+    @ReactMethod
+    public void getPipelineStats(Promise promise) {
+        TapPipeline.Stats stats = LeapHostApduService.getPipelineStats();
+        if (stats == null) {
+            promise.resolve(null);
+            return;
+        }
+        WritableMap map = Arguments.createMap();
+        map.putInt("depth", stats.depth);
+        map.putInt("capacity", stats.capacity);
+        map.putDouble("submitted", stats.submitted);
+        map.putDouble("rejected", stats.rejected);
+        map.putDouble("balanceWrites", stats.balanceWrites);
+        map.putDouble("balanceWritesCoalesced", stats.balanceWritesCoalesced);
+        for (int stage = TapPipeline.STAGE_PERSIST; stage <= TapPipeline.STAGE_DISPATCH; stage++) {
+            WritableMap stageMap = Arguments.createMap();
+            stageMap.putDouble("count", stats.stageCount[stage]);
+            stageMap.putDouble("meanMicros", stats.meanMicros(stage));
+            stageMap.putDouble("maxMicros", stats.stageMaxNanos[stage] / 1000.0);
+            stageMap.putDouble("errors", stats.stageErrors[stage]);
+            map.putMap(TapPipeline.Stats.stageName(stage), stageMap);
+        }
+        promise.resolve(map);
+    }
+
+    // HCE warm-up: state plus the time each step took (ms)
+    @ReactMethod
+    public void getServiceReadiness(Promise promise) {
+        Prewarm prewarm = LeapHostApduService.getPrewarm();
+        WritableMap map = Arguments.createMap();
+        if (prewarm == null) {
+            map.putString("state", Prewarm.stateName(Prewarm.COLD));
+            promise.resolve(map);
+            return;
+        }
+        int state = prewarm.state();
+        map.putString("state", Prewarm.stateName(state));
+        if (state == Prewarm.READY || state == Prewarm.FAILED) {
+            WritableMap steps = Arguments.createMap();
+            for (int i = 0; i < prewarm.stepCount(); i++) {
+                steps.putDouble(prewarm.stepName(i), prewarm.stepNanos(i) / 1e6);
+            }
+            map.putMap("steps", steps);
+            map.putDouble("totalMs", prewarm.totalNanos() / 1e6);
+            if (prewarm.error() != null) map.putString("error", prewarm.error());
+        }
+        promise.resolve(map);
+    }
+
+    // Compact metrics snapshot: latency percentiles (micros), counters and gauges.
+    // Histograms with no samples are left out.
+    @ReactMethod
+    public void getMetrics(Promise promise) {
+        try {
+            MetricsRegistry.Snapshot snapshot = MetricsRegistry.global().snapshot();
+            WritableMap histograms = Arguments.createMap();
+            for (Map.Entry<String, LatencyHistogram.Snapshot> e : snapshot.histograms.entrySet()) {
+                LatencyHistogram.Snapshot h = e.getValue();
+                if (h.count == 0) continue;
+                WritableMap m = Arguments.createMap();
+                m.putDouble("count", h.count);
+                m.putDouble("p50", h.percentileMicros(50));
+                m.putDouble("p99", h.percentileMicros(99));
+                m.putDouble("p999", h.percentileMicros(99.9));
+                m.putDouble("max", h.maxMicros());
+                m.putDouble("mean", h.meanMicros());
+                histograms.putMap(e.getKey(), m);
+            }
+            WritableMap counters = Arguments.createMap();
+            for (Map.Entry<String, Long> e : snapshot.counters.entrySet()) {
+                counters.putDouble(e.getKey(), e.getValue());
+            }
+            WritableMap gauges = Arguments.createMap();
+            for (Map.Entry<String, Long> e : snapshot.gauges.entrySet()) {
+                gauges.putDouble(e.getKey(), e.getValue());
+            }
+
+            WritableMap map = Arguments.createMap();
+            map.putDouble("takenAt", snapshot.takenAtMillis);
+            map.putMap("histograms", histograms);
+            map.putMap("counters", counters);
+            map.putMap("gauges", gauges);
+            promise.resolve(map);
+        } catch (Exception e) {
+            promise.reject("METRICS_ERROR", e);
+        }
+    }
+
+    @ReactMethod
+    public void resetMetrics(Promise promise) {
+        MetricsRegistry.global().reset();
+        promise.resolve(true);
+    }
+
+    @ReactMethod
+    public void setSyncBatchSize(int size, Promise promise) {
+        try {
+            AppConfig.setSyncBatchSize(reactContext, size);
+            promise.resolve(AppConfig.getSyncBatchSize(reactContext));
+        } catch (Exception e) {
+            promise.reject("SET_BATCH_SIZE_FAILED", e);
+        }
+    }
+
+    /**
+     * Recent native log events (flight recorder), redacted, for support cases
+     */
+    @ReactMethod
+    public void exportLogs(Promise promise) {
+        try {
+            promise.resolve(WalletLog.export());
+        } catch (Exception e) {
+            promise.reject("EXPORT_LOGS_FAILED", e);
+        }
+    }
+
+    @ReactMethod
+    public void setLogLevel(int level, Promise promise) {
+        try {
+            AppConfig.setLogLevel(reactContext, level);
+            promise.resolve(WalletLog.level());
+        } catch (Exception e) {
+            promise.reject("SET_LOG_LEVEL_FAILED", e);
+        }
+    }
+
    @ReactMethod
     public void addListener(String eventName) {
         
@@ -14,6 +14,7 @@ public class NFCModulePackage implements ReactPackage {
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
         List<NativeModule> modules = new ArrayList<>();
         modules.add(new NFCModule(reactContext));
+        DebugModules.addTo(modules, reactContext);
         return modules;
     }
 
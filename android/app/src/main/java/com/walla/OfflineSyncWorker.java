@@ -2,7 +2,9 @@ package com.walla;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.Log;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import androidx.annotation.NonNull;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
@@ -13,17 +15,18 @@ import androidx.work.NetworkType;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.BackoffPolicy;
 import java.util.concurrent.TimeUnit;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import com.google.gson.Gson;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import android.util.Base64;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
 import com.walla.LeapHostApduService;
 
 import androidx.security.crypto.EncryptedSharedPreferences;
@@ -32,192 +35,581 @@ import androidx.security.crypto.MasterKey;
 public class OfflineSyncWorker extends Worker {
     private static final String TAG = "OfflineSyncWorker";
 
+    // Per-transaction statuses returned by /api/wallet/redeem/batch
+    static final String STATUS_SUCCESS = "SUCCESS";
+    static final String STATUS_DUPLICATE = "DUPLICATE";
+    static final String STATUS_REJECTED = "REJECTED";
+    static final String STATUS_RETRY = "RETRY";
+    // /redeem/chain only: the batch signature does not reach this transaction (see TxChainVerifier)
+    static final String STATUS_UNANCHORED = "UNANCHORED";
+
+    static final String WORK_NAME = "offline-sync";
+
+    private static SyncScheduler sharedScheduler;
+
+    private BalanceReconciler reconciler;
+
     public OfflineSyncWorker(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
-        Log.i(TAG, "[INIT] OfflineSyncWorker created");
+        WalletLog.i(TAG, "[INIT] OfflineSyncWorker created");
     }
 
 @NonNull
 @Override
 public Result doWork() {
-    Log.i(TAG, "[START] =========== OFFLINE SYNC STARTING ===========");
+    SyncScheduler scheduler = scheduler(getApplicationContext());
+    int triggers = scheduler.runStarted();
+    WalletLog.i(TAG, "[START] =========== OFFLINE SYNC STARTING ({} trigger(s)) ===========", triggers);
+    count(MetricsRegistry.SYNC_RUNS);
+
+    Result result = Result.retry();
+    try {
+        result = sync();
+        return result;
+    } finally {
+        // Anything triggered during the run gets one run after it
+        scheduler.runFinished(result instanceof Result.Retry);
+    }
+}
+
+private Result sync() {
 
     SharedPreferences prefs = SecureStorage.getEncryptedPrefs(getApplicationContext());
-    String queueJson = prefs.getString("tx_queue", "[]");
     String deviceId = prefs.getString("device_id", null);
 
-    Log.i(TAG, "[LOG] Device ID: " + deviceId);
-    Log.i(TAG, "[LOG] Queue JSON: " + queueJson);
+    WalletLog.i(TAG, "[LOG] Device ID: {}", WalletLog.secret(deviceId));
 
     if (deviceId == null || deviceId.isEmpty()) {
-        Log.e(TAG, "[ERROR] No device ID found - aborting sync");
+        WalletLog.e(TAG, "[ERROR] No device ID found - aborting sync");
         return Result.failure();
     }
 
+    TxJournal journal;
     try {
-        JSONArray queue = new JSONArray(queueJson);
-        int queueSize = queue.length();
-        
-        Log.i(TAG, "[LOG] Found " + queueSize + " transactions in queue");
-        
-        if (queueSize == 0) {
-            Log.i(TAG, "[LOG] Queue is empty, nothing to sync");
-            return Result.success();
-        }
-
-        JSONArray failedTxs = new JSONArray();
-        int successCount = 0;
-        Gson gson = new Gson();
-
-        for (int i = 0; i < queueSize; i++) {
-            Log.i(TAG, "[LOG] Processing transaction " + (i + 1) + "/" + queueSize);
-            
-            try {
-                JSONObject txJson = queue.getJSONObject(i);
-                OfflineTransaction tx = gson.fromJson(txJson.toString(), OfflineTransaction.class);
+        journal = SecureStorage.getTxJournal(getApplicationContext());
+    } catch (Exception e) {
+        WalletLog.e(TAG, "[ERROR] Cannot open transaction journal", e);
+        return Result.retry();
+    }
 
-                if (tx == null || tx.txId == null) {
-                    Log.e(TAG, "[ERROR] Failed to parse transaction at index " + i);
-                    failedTxs.put(txJson);
-                    continue;
-                }
+    int queueSize = journal.pendingCount();
+    WalletLog.i(TAG, "[LOG] Found {} transactions in queue", queueSize);
+
+    if (queueSize == 0) {
+        WalletLog.i(TAG, "[LOG] Queue is empty, nothing to sync");
+        return Result.success();
+    }
 
-                Log.i(TAG, "[LOG] Syncing txId: " + tx.txId + ", amount: " + tx.amount);
-                
-                boolean synced = syncSingleTransaction(tx, deviceId, prefs);
-                
-                if (synced) {
-                    successCount++;
-                    Log.i(TAG, "[SUCCESS] Transaction synced: " + tx.txId);
-                } else {
-                    failedTxs.put(txJson);
-                    Log.w(TAG, "[FAILED] Transaction failed: " + tx.txId);
+    int batchSize = AppConfig.getSyncBatchSize(getApplicationContext());
+    boolean batchMode = batchSize > 1 && AppConfig.isBatchRedeemSupported(getApplicationContext());
+    WalletLog.i(TAG, "[LOG] Mode: {}", batchMode ? "batch of " + batchSize : "single");
+
+    try {
+        reconciler = SecureStorage.getBalanceReconciler(getApplicationContext());
+    } catch (Exception e) {
+        WalletLog.e(TAG, "[ERROR] Cannot open balance log", e);
+        return Result.retry();
+    }
+
+    SyncTally tally = new SyncTally();
+    List<OfflineTransaction> batch = new ArrayList<>(batchSize);
+
+    // Stream the journal, claiming each transaction so a concurrent HCE upload of the
+    // same txId is impossible; failed transactions are released back to pending
+    try (TxJournal.Cursor cursor = journal.cursor()) {
+        OfflineTransaction tx;
+        int i = 0;
+        while (!isStopped() && (tx = cursor.claimNext()) != null) {
+            i++;
+            WalletLog.i(TAG, "[LOG] Processing transaction {}/{}", i, queueSize);
+
+            if (batchMode) {
+                batch.add(tx);
+                if (batch.size() >= batchSize) {
+                    batchMode = flushBatch(batch, deviceId, journal, tally);
+                    batch.clear();
                 }
-                
-            } catch (Exception e) {
-                Log.e(TAG, "[ERROR] Exception processing transaction " + i, e);
-                failedTxs.put(queue.getJSONObject(i));
+            } else {
+                syncAndAck(tx, deviceId, journal, tally);
             }
         }
+        if (!batch.isEmpty()) {
+            flushBatch(batch, deviceId, journal, tally);
+        }
+        if (cursor.skippedRecords() > 0) {
+            WalletLog.w(TAG, "[WARN] Skipped {} unreadable journal record(s)", cursor.skippedRecords());
+        }
+    } catch (Exception e) {
+        WalletLog.e(TAG, "[ERROR] Offline sync crashed", e);
+        return Result.retry();
+    } finally {
+        // Claimed but never sent (stopped or crashed before the flush)
+        journal.releaseAll(txIds(batch));
+        // Single mode settles the whole run at once
+        commitBalance(tally);
+    }
 
-        // Update queue with only failed transactions
-        String newQueueJson = failedTxs.toString();
-        prefs.edit().putString("tx_queue", newQueueJson).apply();
+    int successCount = tally.success;
+    int failedCount = tally.failed;
 
-        Log.i(TAG, "[COMPLETE] Sync finished: " + successCount + " succeeded, " + 
-              failedTxs.length() + " failed");
-        Log.i(TAG, "[LOG] Updated queue: " + newQueueJson);
+    journal.compactAsync();
 
-        // WorkManager handle retries automatically
-        if (failedTxs.length() == 0) {
-            Log.i(TAG, "[END] =========== OFFLINE SYNC FINISHED (all successful) ===========");
-            return Result.success();
-        } else {
-            Log.w(TAG, "[END] =========== OFFLINE SYNC FINISHED (with failures) ===========");
-            return Result.retry(); 
-        }
+    WalletLog.i(TAG, "[COMPLETE] Sync finished: {} succeeded, {} failed, {} rejected",
+        successCount, failedCount, tally.rejected);
 
-    } catch (Exception e) {
-        Log.e(TAG, "[ERROR] Offline sync crashed", e);
-        return Result.retry();
+    // WorkManager handle retries automatically
+    if (failedCount == 0) {
+        WalletLog.i(TAG, "[END] =========== OFFLINE SYNC FINISHED (all successful) ===========");
+        return Result.success();
+    } else {
+        WalletLog.w(TAG, "[END] =========== OFFLINE SYNC FINISHED (with failures) ===========");
+        return Result.retry(); 
     }
 }
 
 
 
-    private boolean syncSingleTransaction(OfflineTransaction tx, String deviceId, SharedPreferences prefs) {
-        HttpURLConnection conn = null;
+    private static final class SyncTally {
+        int success;
+        int failed;
+        int rejected;
+        // What the current batch settled, applied to the balance by commitBalance
+        final BalanceReconciler.Settlement settlement = new BalanceReconciler.Settlement();
+        // transactionComplete events waiting for that balance
+        final List<EventBridge.TransactionResult> results = new ArrayList<>();
+    }
+
+    private void syncAndAck(OfflineTransaction tx, String deviceId, TxJournal journal,
+                            SyncTally tally) throws IOException {
+        WalletLog.i(TAG, "[LOG] Syncing txId: {}, amount: {}", tx.txId, tx.amount);
+
         try {
-            Log.i(TAG, "[HTTP] Preparing request for txId: " + tx.txId);
-            
-            // Build request body
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("deviceId", deviceId);
-            requestBody.put("payload", Base64.encodeToString(
-                tx.payload.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP));
-
-            //requestBody.put("payload", tx.payload);
-            requestBody.put("signature", tx.signature);
-
-            Log.i(TAG, "[HTTP] Request body: " + requestBody.toString());
-
-            // Create connection
-            URL url = new URL(AppConfig.Endpoints.walletRedeem(getApplicationContext()));
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(5000);
-            conn.setReadTimeout(5000);
-
-            Log.i(TAG, "[HTTP] Connecting to backend...");
-
-            // Send request
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(requestBody.toString().getBytes(StandardCharsets.UTF_8));
+            int outcome = syncSingleTransaction(tx, deviceId, tally);
+            if (outcome == BackendClient.OK) {
+                if (journal.ack(tx.txId)) tally.settlement.acked(amountMinor(tx));
+                LeapHostApduService.recordSettled(getApplicationContext(), Collections.singletonList(tx.txId),
+                        HistoryStore.STATUS_SYNCED);
+                tally.success++;
+                count(MetricsRegistry.SYNC_SUCCESS);
+                WalletLog.i(TAG, "[SUCCESS] Transaction synced: {}", tx.txId);
+            } else if (outcome == BackendClient.REJECTED) {
+                // Permanent - retrying will never succeed
+                if (journal.reject(tx.txId)) tally.settlement.rejected(amountMinor(tx));
+                LeapHostApduService.recordSettled(getApplicationContext(), Collections.singletonList(tx.txId),
+                        HistoryStore.STATUS_REJECTED);
+                tally.rejected++;
+                count(MetricsRegistry.SYNC_REJECTED);
+                WalletLog.w(TAG, "[REJECTED] Transaction rejected by backend: {}", tx.txId);
+            } else {
+                tally.failed++;
+                count(MetricsRegistry.SYNC_FAILED);
+                WalletLog.w(TAG, "[FAILED] Transaction failed: {}", tx.txId);
             }
+        } finally {
+            // No-op once settled
+            journal.release(tx.txId);
+        }
+    }
 
-            int status = conn.getResponseCode();
-            Log.i(TAG, "[HTTP] Response status: " + status);
-            
-            if (status == 200) {
-                // Read response
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                    StringBuilder sb = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) sb.append(line);
-                    
-                    String responseBody = sb.toString();
-                    Log.i(TAG, "[HTTP] Response: " + responseBody);
-                    
-                    // Parse and update local balance
-                    try {
-                        JSONObject result = new JSONObject(responseBody);
-                        double newBalance = result.getDouble("newBalance");
-                        
-                        LeapHostApduService.updateBalanceCache(newBalance);
-                        // Override local balance by backend new balance
-                        prefs.edit().putLong("local_balance", 
-                            Double.doubleToRawLongBits(newBalance)).apply();
-                        
-                        Log.i(TAG, "[BALANCE] Updated local balance to: " + newBalance);
-                        
-                        // Send event to JS
-                        JSONObject eventData = new JSONObject();
-                        eventData.put("status", result.getString("status"));
-                        eventData.put("newBalance", newBalance);
-                        eventData.put("fareDeducted", result.getDouble("fareDeducted"));
-                        
-                        NFCModule.sendEventToJS("transactionComplete", eventData.toString());
-                        Log.i(TAG, "[EVENT] Sent transactionComplete event to React Native");
-                        
-                    } catch (Exception e) {
-                        Log.e(TAG, "[ERROR] Failed to parse response or update balance", e);
-                    }
-                    
-                    return true;
-                }
+    /**
+     * Send one batch. Returns false when the backend has no batch endpoint; the
+     * batch is then sent one by one and the rest of the run stays in single mode.
+     */
+    private boolean flushBatch(List<OfflineTransaction> batch, String deviceId, TxJournal journal,
+                               SyncTally tally) throws IOException {
+        try {
+            List<OfflineTransaction> rest = batch;
+            if (AppConfig.isChainRedeemSupported(getApplicationContext())) {
+                rest = sendChainBatch(batch, deviceId, journal, tally);
+                if (rest.isEmpty()) return true;
+            }
+            return sendBatch(rest, deviceId, journal, tally);
+        } finally {
+            // Whatever the batch did not settle goes back to pending
+            journal.releaseAll(txIds(batch));
+            commitBalance(tally);
+        }
+    }
+
+    /**
+     * Send the chained transactions of a batch under one device key signature (TxChain).
+     * Returns what still has to go with per-transaction signatures: transactions from
+     * before the chain, the ones the backend could not anchor, or the whole batch when
+     * the backend has no chain endpoint.
+     */
+    private List<OfflineTransaction> sendChainBatch(List<OfflineTransaction> batch, String deviceId,
+                                                    TxJournal journal, SyncTally tally) throws IOException {
+        List<OfflineTransaction> chained = new ArrayList<>(batch.size());
+        List<OfflineTransaction> rest = new ArrayList<>();
+        for (OfflineTransaction tx : batch) {
+            OfflineTransaction last = chained.isEmpty() ? null : chained.get(chained.size() - 1);
+            if (tx.sequence > 0 && (last == null || (tx.chainId == last.chainId && tx.sequence > last.sequence))) {
+                chained.add(tx);
             } else {
-                Log.w(TAG, "[HTTP] Backend returned status " + status);
-                
-                // Try to read error response
-                try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getErrorStream()))) {
-                    StringBuilder sb = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) sb.append(line);
-                    Log.w(TAG, "[HTTP] Error response: " + sb.toString());
+                rest.add(tx);
+            }
+        }
+        if (chained.isEmpty()) return rest;
+
+        Map<String, String> statuses;
+        try {
+            long signStart = System.nanoTime();
+            TxChain.Batch signed = LeapHostApduService.signChainBatch(getApplicationContext(), deviceId, chained);
+            MetricsRegistry.global().histogram(MetricsRegistry.CHAIN_SIGN).recordSince(signStart);
+            statuses = syncChain(chained, signed, deviceId, tally);
+        } catch (Exception e) {
+            WalletLog.e(TAG, "[ERROR] Chain batch of {} failed, will retry", chained.size(), e);
+            tally.failed += chained.size();
+            MetricsRegistry.global().counter(MetricsRegistry.SYNC_FAILED).add(chained.size());
+            return rest;
+        }
+
+        if (statuses == null) {
+            WalletLog.w(TAG, "[CHAIN] Backend does not support chain redeem, signing per transaction");
+            AppConfig.setChainRedeemSupported(getApplicationContext(), false);
+            return batch;
+        }
+
+        count(MetricsRegistry.SYNC_CHAIN_BATCHES);
+        List<OfflineTransaction> unanchored = new ArrayList<>();
+        applyStatuses(chained, statuses, journal, tally, unanchored);
+        if (!unanchored.isEmpty()) {
+            WalletLog.w(TAG, "[CHAIN] {} transaction(s) not anchored, resending with their own signatures",
+                unanchored.size());
+            MetricsRegistry.global().counter(MetricsRegistry.SYNC_UNANCHORED).add(unanchored.size());
+            rest.addAll(unanchored);
+        }
+        return rest;
+    }
+
+    private boolean sendBatch(List<OfflineTransaction> batch, String deviceId, TxJournal journal,
+                              SyncTally tally) throws IOException {
+        Map<String, String> statuses;
+        try {
+            statuses = syncBatch(batch, deviceId, tally);
+        } catch (Exception e) {
+            WalletLog.e(TAG, "[ERROR] Batch of {} failed, will retry", batch.size(), e);
+            tally.failed += batch.size();
+            MetricsRegistry.global().counter(MetricsRegistry.SYNC_FAILED).add(batch.size());
+            return true;
+        }
+
+        if (statuses == null) {
+            WalletLog.w(TAG, "[BATCH] Backend does not support batch redeem, falling back to single requests");
+            AppConfig.setBatchRedeemSupported(getApplicationContext(), false);
+            count(MetricsRegistry.SYNC_BATCH_FALLBACKS);
+            for (OfflineTransaction tx : batch) {
+                syncAndAck(tx, deviceId, journal, tally);
+            }
+            return false;
+        }
+
+        count(MetricsRegistry.SYNC_BATCHES);
+        applyStatuses(batch, statuses, journal, tally, null);
+        return true;
+    }
+
+    /**
+     * Settle a batch by its per-transaction statuses. UNANCHORED ones go to {@code unanchored}.
+     */
+    private void applyStatuses(List<OfflineTransaction> batch, Map<String, String> statuses, TxJournal journal,
+                               SyncTally tally, List<OfflineTransaction> unanchored) throws IOException {
+        List<String> done = new ArrayList<>(batch.size());
+        List<String> rejected = new ArrayList<>();
+        long doneMinor = 0;
+        long rejectedMinor = 0;
+        for (OfflineTransaction tx : batch) {
+            String status = statuses.get(tx.txId);
+            if (unanchored != null && STATUS_UNANCHORED.equals(status)) {
+                unanchored.add(tx);
+            } else if (STATUS_SUCCESS.equals(status) || STATUS_DUPLICATE.equals(status)) {
+                done.add(tx.txId);
+                doneMinor += amountMinor(tx);
+                tally.success++;
+                count(STATUS_SUCCESS.equals(status) ? MetricsRegistry.SYNC_SUCCESS : MetricsRegistry.SYNC_DUPLICATE);
+            } else if (STATUS_REJECTED.equals(status)) {
+                // Permanent - retrying will never succeed
+                rejected.add(tx.txId);
+                rejectedMinor += amountMinor(tx);
+                tally.rejected++;
+                count(MetricsRegistry.SYNC_REJECTED);
+                WalletLog.w(TAG, "[REJECTED] Transaction rejected by backend: {}", tx.txId);
+            } else {
+                tally.failed++;
+                count(MetricsRegistry.SYNC_FAILED);
+                WalletLog.w(TAG, "[FAILED] Transaction not accepted ({}): {}", status, tx.txId);
+            }
+        }
+        journal.ackAll(done);
+        if (doneMinor != 0) tally.settlement.acked(doneMinor);
+        LeapHostApduService.recordSettled(getApplicationContext(), done, HistoryStore.STATUS_SYNCED);
+        if (!rejected.isEmpty()) {
+            journal.rejectAll(rejected);
+            tally.settlement.rejected(rejectedMinor);
+            LeapHostApduService.recordSettled(getApplicationContext(), rejected, HistoryStore.STATUS_REJECTED);
+        }
+        WalletLog.i(TAG, "[BATCH] Sent {}, acknowledged {}, rejected {}", batch.size(), done.size(), rejected.size());
+    }
+
+    /**
+     * Apply what has been settled since the last commit to the balance in one step, then
+     * send the waiting transaction results with the balance the user now has.
+     */
+    private void commitBalance(SyncTally tally) {
+        if (tally.settlement.isEmpty() && tally.results.isEmpty()) return;
+        try {
+            double balance = WalletLedger.toMajor(reconciler.commit(tally.settlement));
+            WalletLog.i(TAG, "[BALANCE] Local balance {} after {} result(s)", balance, tally.results.size());
+            // The event bridge delivers these to JS as one batch
+            for (EventBridge.TransactionResult r : tally.results) {
+                NFCModule.sendTransactionToJS(r.txId, r.status, r.fareDeducted, balance);
+            }
+            tally.results.clear();
+        } catch (IOException e) {
+            // The settlement is kept and goes with the next commit
+            WalletLog.e(TAG, "[ERROR] Failed to update local balance", e);
+        }
+    }
+
+    private static long amountMinor(OfflineTransaction tx) {
+        return tx.amount * WalletLedger.UNITS_PER_MAJOR;
+    }
+
+    private static List<String> txIds(List<OfflineTransaction> transactions) {
+        List<String> ids = new ArrayList<>(transactions.size());
+        for (OfflineTransaction tx : transactions) ids.add(tx.txId);
+        return ids;
+    }
+
+    private static void count(String metric) {
+        MetricsRegistry.global().counter(metric).increment();
+    }
+
+    /**
+     * The sync scheduler shared by LeapHostApduService, NFCModule and this worker. The
+     * first call registers a network callback that keeps isOnline() current and syncs
+     * right away when a validated network comes back with transactions pending.
+     */
+    static synchronized SyncScheduler scheduler(Context context) {
+        if (sharedScheduler != null) return sharedScheduler;
+
+        Context app = context.getApplicationContext();
+        SyncScheduler scheduler = new SyncScheduler(policy -> enqueue(app, policy),
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "sync-scheduler");
+                t.setDaemon(true);
+                return t;
+            }));
+        ConnectivityManager cm = (ConnectivityManager) app.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm != null) {
+            scheduler.setOnline(hasValidatedNetwork(cm));
+            cm.registerDefaultNetworkCallback(new NetworkWatch(app, scheduler));
+        }
+
+        MetricsRegistry metrics = MetricsRegistry.global();
+        metrics.gauge(MetricsRegistry.SYNC_TRIGGERS, scheduler::totalTriggers);
+        metrics.gauge(MetricsRegistry.SYNC_ENQUEUES, scheduler::enqueueCount);
+        metrics.gauge(MetricsRegistry.SYNC_COALESCED, scheduler::coalescedTriggers);
+        sharedScheduler = scheduler;
+        return scheduler;
+    }
+
+    private static boolean hasValidatedNetwork(ConnectivityManager cm) {
+        Network network = cm.getActiveNetwork();
+        if (network == null) return false;
+        NetworkCapabilities capabilities = cm.getNetworkCapabilities(network);
+        return capabilities != null && isUsable(capabilities);
+    }
+
+    private static boolean isUsable(NetworkCapabilities capabilities) {
+        return capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+            && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+    }
+
+    /**
+     * Default-network callback: online state for the tap path, immediate sync on reconnect
+     */
+    private static final class NetworkWatch extends ConnectivityManager.NetworkCallback {
+        private final Context app;
+        private final SyncScheduler scheduler;
+
+        NetworkWatch(Context app, SyncScheduler scheduler) {
+            this.app = app;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            if (scheduler.setOnline(isUsable(capabilities)) && hasPending()) {
+                WalletLog.i(TAG, "[NETWORK] Back online with transactions pending, syncing now");
+                scheduler.syncNow();
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            scheduler.setOnline(false);
+        }
+
+        private boolean hasPending() {
+            try {
+                return SecureStorage.getTxJournal(app).pendingCount() > 0;
+            } catch (Exception e) {
+                // Let the run find out
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Queue a sync run for when the network is up, as SyncScheduler asks: KEEP leaves a
+     * waiting run alone, REPLACE restarts one waiting in backoff, APPEND chains a run
+     * behind the one finishing. A running run is never cancelled.
+     */
+    private static void enqueue(Context context, int policy) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(OfflineSyncWorker.class)
+                .setConstraints(constraints)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 15, TimeUnit.SECONDS)
+                .addTag(WORK_NAME)
+                .build();
+
+        WorkManager.getInstance(context.getApplicationContext())
+                .enqueueUniqueWork(WORK_NAME, workPolicy(policy), workRequest);
+    }
+
+    private static ExistingWorkPolicy workPolicy(int policy) {
+        switch (policy) {
+            case SyncScheduler.ENQUEUE_REPLACE:
+                return ExistingWorkPolicy.REPLACE;
+            case SyncScheduler.ENQUEUE_APPEND:
+                return ExistingWorkPolicy.APPEND_OR_REPLACE;
+            default:
+                return ExistingWorkPolicy.KEEP;
+        }
+    }
+
+    /**
+     * POST a batch to /api/wallet/redeem/batch.
+     * Returns txId -> result status, or null if the endpoint is not available.
+     * The balance is applied once per batch, by commitBalance.
+     */
+    private Map<String, String> syncBatch(List<OfflineTransaction> batch, String deviceId,
+                                          SyncTally tally) throws Exception {
+        WalletLog.i(TAG, "[HTTP] Batch request with {} transaction(s)", batch.size());
+
+        long ticket = reconciler.ticket();
+        long httpStart = System.nanoTime();
+        BackendClient.Result response = BackendClient.shared().redeem(
+            AppConfig.Endpoints.walletRedeemBatch(getApplicationContext()), deviceId, batch, true,
+            AppConfig.isTlvSupported(getApplicationContext()));
+        MetricsRegistry.global().histogram(MetricsRegistry.HTTP_REDEEM_BATCH).recordSince(httpStart);
+        AppConfig.updateTlvSupport(getApplicationContext(), response);
+        WalletLog.i(TAG, "[HTTP] Batch response status: {}", response.status);
+
+        return batchStatuses(response, ticket, tally);
+    }
+
+    /**
+     * POST a TxChain batch to /api/wallet/redeem/chain. Same answer as the batch endpoint,
+     * plus UNANCHORED; null if the endpoint is not available.
+     */
+    private Map<String, String> syncChain(List<OfflineTransaction> chained, TxChain.Batch signed,
+                                          String deviceId, SyncTally tally) throws Exception {
+        WalletLog.i(TAG, "[HTTP] Chain request with {} transaction(s), seq {}..{}",
+            chained.size(), chained.get(0).sequence, chained.get(chained.size() - 1).sequence);
+
+        long ticket = reconciler.ticket();
+        long httpStart = System.nanoTime();
+        BackendClient.Result response = BackendClient.shared().redeemChain(
+            AppConfig.Endpoints.walletRedeemChain(getApplicationContext()), deviceId, chained, signed,
+            AppConfig.isTlvSupported(getApplicationContext()));
+        MetricsRegistry.global().histogram(MetricsRegistry.HTTP_REDEEM_CHAIN).recordSince(httpStart);
+        AppConfig.updateTlvSupport(getApplicationContext(), response);
+        WalletLog.i(TAG, "[HTTP] Chain response status: {}", response.status);
+        return batchStatuses(response, ticket, tally);
+    }
+
+    /**
+     * txId -> status from a batch or chain response. The reported balance and the results
+     * for JS go into the tally for commitBalance. Null when the endpoint does not exist.
+     */
+    private Map<String, String> batchStatuses(BackendClient.Result response, long ticket,
+                                              SyncTally tally) throws IOException {
+        if (response.retryClass == BackendClient.UNSUPPORTED) {
+            return null;
+        }
+        if (!response.isOk() || response.body == null) {
+            throw new IOException("Batch redeem returned HTTP " + response.status);
+        }
+
+        JsonArray results = response.body.getAsJsonArray("results");
+        Map<String, String> statuses = new HashMap<>();
+        // The balance after the whole batch; older backends only report it per result
+        JsonElement newBalance = response.body.get("newBalance");
+        for (JsonElement element : results) {
+            JsonObject result = element.getAsJsonObject();
+            String txId = result.get("txId").getAsString();
+            String resultStatus = result.has("status") ? result.get("status").getAsString() : STATUS_RETRY;
+            statuses.put(txId, resultStatus);
+            if ((STATUS_SUCCESS.equals(resultStatus) || STATUS_DUPLICATE.equals(resultStatus))
+                    && result.has("newBalance") && !response.body.has("newBalance")) {
+                newBalance = result.get("newBalance");
+            }
+            if (STATUS_SUCCESS.equals(resultStatus)) {
+                double fareDeducted = result.has("fareDeducted") ? result.get("fareDeducted").getAsDouble() : 0;
+                tally.results.add(new EventBridge.TransactionResult(txId, resultStatus, fareDeducted, 0));
+            }
+        }
+
+        if (newBalance != null && !newBalance.isJsonNull()) {
+            tally.settlement.serverBalance(ticket, WalletLedger.toMinor(newBalance.getAsDouble()));
+        }
+        return statuses;
+    }
+
+    /**
+     * POST one transaction to /api/wallet/redeem. Returns its BackendClient retry class;
+     * a missing endpoint counts as RETRY so the transaction is kept.
+     */
+    private int syncSingleTransaction(OfflineTransaction tx, String deviceId, SyncTally tally) {
+        try {
+            WalletLog.i(TAG, "[HTTP] Preparing request for txId: {}", tx.txId);
+
+            long ticket = reconciler.ticket();
+            long httpStart = System.nanoTime();
+            BackendClient.Result response = BackendClient.shared().redeem(
+                AppConfig.Endpoints.walletRedeem(getApplicationContext()), deviceId,
+                Collections.singletonList(tx), false, AppConfig.isTlvSupported(getApplicationContext()));
+            MetricsRegistry.global().histogram(MetricsRegistry.HTTP_REDEEM).recordSince(httpStart);
+            AppConfig.updateTlvSupport(getApplicationContext(), response);
+            WalletLog.i(TAG, "[HTTP] Response status: {}", response.status);
+
+            if (response.isOk()) {
+                WalletLog.d(TAG, "[HTTP] Response: {}", response.body);
+
+                // Parse; balance and event wait for commitBalance
+                try {
+                    double newBalance = response.body.get("newBalance").getAsDouble();
+                    tally.results.add(new EventBridge.TransactionResult(tx.txId,
+                            response.body.get("status").getAsString(),
+                            response.body.get("fareDeducted").getAsDouble(), 0));
+                    tally.settlement.serverBalance(ticket, WalletLedger.toMinor(newBalance));
                 } catch (Exception e) {
-                    // Ignore
+                    WalletLog.e(TAG, "[ERROR] Failed to parse response", e);
                 }
-                
-                return false;
+                return BackendClient.OK;
             }
 
+            WalletLog.w(TAG, "[HTTP] Backend returned status {}: {}", response.status, response.body);
+            return response.retryClass == BackendClient.REJECTED ? BackendClient.REJECTED : BackendClient.RETRY;
+
         } catch (Exception e) {
-            Log.e(TAG, "[ERROR] Exception syncing transaction " + tx.txId, e);
-            return false;
-        } finally {
-            if (conn != null) conn.disconnect();
+            WalletLog.e(TAG, "[ERROR] Exception syncing transaction {}", tx.txId, e);
+            return BackendClient.RETRY;
         }
     }
 }
\ No newline at end of file
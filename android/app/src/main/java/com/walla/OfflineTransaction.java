@@ -1,19 +1,35 @@
 package com.walla;
 
 public class OfflineTransaction {
-    public String txId;     
+
+    // How the signed payload bytes are encoded
+    public static final int PAYLOAD_JSON = 0;
+    public static final int PAYLOAD_TLV = 1;    // TxCodec KIND_PAYLOAD
+
+    public String txId;
     public int amount;
     public long timestamp;
-    public String signature;  
-    public String payload;
-    
+    public int payloadFormat;
+    // Exact bytes that were signed
+    public byte[] payload;
+    // DER signature over the payload
+    public byte[] signature;
+    // Session certificate and the device key's signature over it (see SessionSigner).
+    // Null for transactions signed directly with the device key.
+    public byte[] sessionCert;
+    public byte[] sessionCertSignature;
+    // Position on the device's hash chain (see TxChain), also inside the payload.
+    // Sequence 0 for transactions signed before the chain existed.
+    public long chainId;
+    public long sequence;
+
     public OfflineTransaction() {}
-    
-    public OfflineTransaction(String txId, int amount, long timestamp, String signature, String payload) {
+
+    public OfflineTransaction(String txId, int amount, long timestamp, byte[] signature, byte[] payload) {
         this.txId = txId;
         this.amount = amount;
         this.timestamp = timestamp;
         this.signature = signature;
         this.payload = payload;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+package com.walla;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a list of warm-up steps once, off the caller's thread, and tracks readiness.
+ *
+ * LeapHostApduService uses it so the first DEDUCT after a process start does not pay for
+ * EncryptedSharedPreferences, the balance log replay, AndroidKeyStore and the session key
+ * certificate while the reader is waiting. Steps run in order on one daemon thread. Every
+ * step is also done lazily on first use, so a step that throws is recorded and the rest
+ * still run.
+ */
+public class Prewarm {
+
+    public static final int COLD = 0;
+    public static final int WARMING = 1;
+    public static final int READY = 2;
+    // Finished, but at least one step threw; that work is left to the tap path
+    public static final int FAILED = 3;
+
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Step> steps = new ArrayList<>();
+    private long[] stepNanos;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private volatile int state = COLD;
+    private volatile long totalNanos;
+    private volatile String error;
+
+    /**
+     * Add a step. Only before {@link #start}.
+     */
+    public synchronized Prewarm step(String name, Step step) {
+        if (state != COLD) throw new IllegalStateException("Prewarm already started");
+        names.add(name);
+        steps.add(step);
+        return this;
+    }
+
+    /**
+     * Run the steps on a background thread. Returns false if already started.
+     */
+    public synchronized boolean start() {
+        if (state != COLD) return false;
+        state = WARMING;
+        stepNanos = new long[steps.size()];
+        Thread thread = new Thread(this::runSteps, "prewarm");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Wait until every step has run. Returns false on timeout.
+     */
+    public boolean await(long timeoutMs) throws InterruptedException {
+        return finished.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public int state() {
+        return state;
+    }
+
+    public boolean isReady() {
+        return state == READY;
+    }
+
+    public synchronized int stepCount() {
+        return names.size();
+    }
+
+    public synchronized String stepName(int i) {
+        return names.get(i);
+    }
+
+    /**
+     * Time taken by step i, 0 until it has run
+     */
+    public long stepNanos(int i) {
+        long[] nanos = stepNanos;
+        return nanos != null ? nanos[i] : 0;
+    }
+
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * "step: message" for the first step that threw, or null
+     */
+    public String error() {
+        return error;
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case COLD: return "cold";
+            case WARMING: return "warming";
+            case READY: return "ready";
+            case FAILED: return "failed";
+            default: return "unknown";
+        }
+    }
+
+    private void runSteps() {
+        long start = System.nanoTime();
+        boolean ok = true;
+        for (int i = 0; i < steps.size(); i++) {
+            long stepStart = System.nanoTime();
+            try {
+                steps.get(i).run();
+            } catch (Exception | LinkageError e) {
+                if (ok) error = names.get(i) + ": " + e;
+                ok = false;
+            }
+            stepNanos[i] = System.nanoTime() - stepStart;
+        }
+        totalNanos = System.nanoTime() - start;
+        state = ok ? READY : FAILED;
+        finished.countDown();
+    }
+}
@@ -0,0 +1,74 @@
+package com.walla;
+
+/**
+ * The last few approved tap DEDUCTs, by the tap nonce the reader put in the command, so a
+ * retransmitted DEDUCT gets the answer the first one got instead of a second charge.
+ *
+ * An entry is honoured for {@link #DEFAULT_TTL_MS}, across field sessions (the reader
+ * reconnects and resends). Commands without a tap nonce are never kept here: nothing in
+ * them tells a resend from a second fare, so each one is charged as in v1. A fixed ring
+ * of slots, overwritten oldest first: lookups scan it, and nothing is allocated after
+ * construction. Only the APDU thread touches it.
+ */
+public class RecentTaps {
+
+    // find() results other than a slot
+    public static final int MISS = -1;
+    // Same nonce, different fare: not a retransmission of that tap
+    public static final int CONFLICT = -2;
+
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final long DEFAULT_TTL_MS = 30_000;
+
+    private final long[] keys;
+    private final int[] fares;
+    private final long[] expires;
+    // null marks a free slot
+    private final byte[][] responses;
+    private final long ttlNanos;
+    private int next;
+
+    public RecentTaps() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MS);
+    }
+
+    public RecentTaps(int capacity, long ttlMs) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        keys = new long[capacity];
+        fares = new int[capacity];
+        expires = new long[capacity];
+        responses = new byte[capacity][];
+        ttlNanos = ttlMs * 1_000_000L;
+    }
+
+    /**
+     * Slot of a live entry for this tap nonce, MISS, or CONFLICT
+     */
+    public int find(long tapNonce, int fare, long nowNanos) {
+        for (int i = 0; i < keys.length; i++) {
+            if (responses[i] == null || keys[i] != tapNonce) continue;
+            if (nowNanos - expires[i] > 0) {
+                responses[i] = null;
+                return MISS;
+            }
+            return fares[i] == fare ? i : CONFLICT;
+        }
+        return MISS;
+    }
+
+    public byte[] response(int slot) {
+        return responses[slot];
+    }
+
+    /**
+     * Remember an approved tap's answer. The response is kept by reference, not copied.
+     */
+    public void put(long tapNonce, int fare, byte[] response, long nowNanos) {
+        int slot = next;
+        next = (next + 1) % keys.length;
+        keys[slot] = tapNonce;
+        fares[slot] = fare;
+        expires[slot] = nowNanos + ttlNanos;
+        responses[slot] = response;
+    }
+}
@@ -0,0 +1,125 @@
+package com.walla;
+
+/**
+ * Offline risk limits: how much value, how many taps and how long since the backend last
+ * answered the device may run up before taps are declined. A limit of 0 is off.
+ *
+ * The unsynced totals are counters, never a scan of the queue: an approved tap adds its
+ * charge ({@link #onApproved}) on the APDU thread, and the journal takes it off again
+ * when the backend acks or rejects the transaction ({@link TxJournal.QueueListener}).
+ * {@link #check} is a few comparisons under this object's lock, which is never held
+ * across I/O. A tap whose transaction never reaches the journal stays counted until the
+ * next start, so a lost tap errs on the side of declining.
+ *
+ * The sync age only counts while something is unsynced: with an empty queue the device
+ * holds nothing the backend has not seen, and the first tap after a long offline spell
+ * is approved as usual.
+ */
+public class RiskLimits implements TxJournal.QueueListener {
+
+    // check() results
+    public static final int OK = 0;
+    public static final int LIMIT_VALUE = 1;
+    public static final int LIMIT_COUNT = 2;
+    public static final int LIMIT_SYNC_AGE = 3;
+
+    // Guarded by this
+    private int maxValue;
+    private int maxCount;
+    private long maxSyncAgeMs;
+    private long unsyncedValue;
+    private int unsyncedCount;
+    private long lastSyncMillis;
+    private long declines;
+
+    /**
+     * @param lastSyncMillis last time the backend settled a transaction, 0 if unknown
+     *                       (the sync age then counts from now)
+     */
+    public RiskLimits(int maxValue, int maxCount, long maxSyncAgeMs, long lastSyncMillis) {
+        setLimits(maxValue, maxCount, maxSyncAgeMs);
+        this.lastSyncMillis = lastSyncMillis > 0 ? lastSyncMillis : System.currentTimeMillis();
+    }
+
+    public synchronized void setLimits(int maxValue, int maxCount, long maxSyncAgeMs) {
+        this.maxValue = Math.max(0, maxValue);
+        this.maxCount = Math.max(0, maxCount);
+        this.maxSyncAgeMs = Math.max(0, maxSyncAgeMs);
+    }
+
+    // ---- Tap path ----
+
+    /**
+     * Whether a tap charging {@code fare} (whole currency units) may be approved at
+     * {@code now}: OK or the first LIMIT_ it would break. Changes nothing.
+     */
+    public synchronized int check(int fare, long now) {
+        int result = OK;
+        if (maxValue > 0 && unsyncedValue + fare > maxValue) {
+            result = LIMIT_VALUE;
+        } else if (maxCount > 0 && unsyncedCount + 1 > maxCount) {
+            result = LIMIT_COUNT;
+        } else if (maxSyncAgeMs > 0 && unsyncedCount > 0 && now - lastSyncMillis > maxSyncAgeMs) {
+            result = LIMIT_SYNC_AGE;
+        }
+        if (result != OK) declines++;
+        return result;
+    }
+
+    /**
+     * The tap was approved; it is unsynced until the journal settles it
+     */
+    public synchronized void onApproved(int fare) {
+        unsyncedValue += fare;
+        unsyncedCount++;
+    }
+
+    // ---- Journal (called under its lock) ----
+
+    @Override
+    public synchronized void onQueueReset(int pendingCount, long pendingAmount) {
+        unsyncedCount = pendingCount;
+        unsyncedValue = pendingAmount;
+    }
+
+    @Override
+    public synchronized void onSettled(int amount) {
+        // Floors at 0 for transactions approved before the counters were seeded
+        unsyncedValue = Math.max(0, unsyncedValue - amount);
+        unsyncedCount = Math.max(0, unsyncedCount - 1);
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    // ---- Reads ----
+
+    public synchronized long unsyncedValue() {
+        return unsyncedValue;
+    }
+
+    public synchronized int unsyncedCount() {
+        return unsyncedCount;
+    }
+
+    public synchronized long lastSyncMillis() {
+        return lastSyncMillis;
+    }
+
+    public synchronized int maxValue() {
+        return maxValue;
+    }
+
+    public synchronized int maxCount() {
+        return maxCount;
+    }
+
+    public synchronized long maxSyncAgeMs() {
+        return maxSyncAgeMs;
+    }
+
+    /**
+     * Taps declined by a limit since the process started
+     */
+    public synchronized long declineCount() {
+        return declines;
+    }
+}
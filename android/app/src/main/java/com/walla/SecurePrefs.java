@@ -0,0 +1,198 @@
+package com.walla;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * SharedPreferences over a {@link KvStore}, so callers of SecureStorage.getEncryptedPrefs
+ * keep their code. apply() is the store's lazy write, commit() its durable one.
+ */
+public class SecurePrefs implements SharedPreferences {
+    private static final String TAG = "SecurePrefs";
+
+    private final KvStore store;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Weak, as SharedPreferences documents
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Boolean> listeners = new WeakHashMap<>();
+
+    public SecurePrefs(KvStore store) {
+        this.store = store;
+    }
+
+    public KvStore store() {
+        return store;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return store.getAll();
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        Object value = store.get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = store.get(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = store.get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = store.get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = store.get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = store.get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return store.contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new SecureEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.put(listener, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    private void notifyListeners(Set<String> changed) {
+        if (changed.isEmpty()) return;
+        synchronized (listeners) {
+            if (listeners.isEmpty()) return;
+        }
+        mainHandler.post(() -> {
+            OnSharedPreferenceChangeListener[] targets;
+            synchronized (listeners) {
+                targets = listeners.keySet().toArray(new OnSharedPreferenceChangeListener[0]);
+            }
+            for (String key : changed) {
+                for (OnSharedPreferenceChangeListener listener : targets) {
+                    listener.onSharedPreferenceChanged(this, key);
+                }
+            }
+        });
+    }
+
+    private final class SecureEditor implements Editor {
+        // A null value removes the key
+        private final Map<String, Object> changes = new HashMap<>();
+        private boolean clear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (this) {
+                clear = true;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            try {
+                notifyListeners(store.commit(takeChanges(), takeClear()));
+                return true;
+            } catch (IOException e) {
+                WalletLog.e(TAG, "Durable write failed", e);
+                return false;
+            }
+        }
+
+        @Override
+        public void apply() {
+            notifyListeners(store.apply(takeChanges(), takeClear()));
+        }
+
+        private synchronized Editor put(String key, Object value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        private synchronized Map<String, Object> takeChanges() {
+            Map<String, Object> taken = new HashMap<>(changes);
+            changes.clear();
+            return taken;
+        }
+
+        private synchronized boolean takeClear() {
+            boolean taken = clear;
+            clear = false;
+            return taken;
+        }
+    }
+}
@@ -2,47 +2,360 @@ package com.walla;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.Log;
+import android.util.Base64;
 import androidx.security.crypto.EncryptedSharedPreferences;
 import androidx.security.crypto.MasterKey;
 
+import org.json.JSONArray;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
 public class SecureStorage {
     private static final String TAG = "SecureStorage";
-    private static final String PREFS_NAME = "AppPrefsEncrypted";
+    // EncryptedSharedPreferences file used before KvStore; imported once, then deleted
+    private static final String LEGACY_PREFS_NAME = "AppPrefsEncrypted";
+    // Where the old code fell back to on errors, in plaintext (shared with AppConfig)
+    private static final String FALLBACK_PREFS_NAME = "AppPrefs";
+    private static final String KV_DIR = "secure_kv";
+    // KvStore data key, wrapped by the AndroidKeyStore master key: [12-byte IV][ciphertext]
+    private static final String KV_KEY_FILE = "secure_kv.key";
+    private static final int KV_KEY_IV_BYTES = 12;
+    private static final String JOURNAL_DIR = "tx_journal";
+    private static final String KEY_JOURNAL_KEY = "journal_key";
+    private static final String KEY_LEGACY_QUEUE = "tx_queue";
+    private static final String BALANCE_DIR = "balance";
+    private static final String HISTORY_DIR = "history";
+    private static final String FARE_CAPS_DIR = "fare_caps";
+    private static final String KEY_LEGACY_BALANCE = "local_balance";
+    // Secrets the old plaintext fallback may have left in AppPrefs
+    private static final String[] FALLBACK_KEYS = {
+        "jwt_token", "device_id", "key_alias", KEY_JOURNAL_KEY, KEY_LEGACY_QUEUE, KEY_LEGACY_BALANCE
+    };
     
     // CACHE the instance
-    private static SharedPreferences cachedPrefs = null;
+    private static volatile SharedPreferences cachedPrefs = null;
+    private static TxJournal cachedJournal = null;
+    private static BalanceStore cachedBalanceStore = null;
+    private static BalanceReconciler cachedReconciler = null;
+    private static HistoryStore cachedHistory = null;
+    private static FarePolicy cachedFarePolicy = null;
+    private static RiskLimits cachedRiskLimits = null;
     
-    public static SharedPreferences getEncryptedPrefs(Context context) {
+    /**
+     * Encrypted prefs backed by {@link KvStore}: decrypted once into memory, one record
+     * per key. Never falls back to plaintext. If the key store cannot be opened, every
+     * caller gets the same memory-only store until {@link #clearCache} (logout) or the
+     * next process start retries; {@link #isPersistent} tells callers that what they save
+     * will not survive, and the journal, balance log and history refuse to open rather
+     * than mint a new data key.
+     */
+    public static synchronized SharedPreferences getEncryptedPrefs(Context context) {
         // Return cached instance if available
         if (cachedPrefs != null) {
-            return cachedPrefs;  
+            return cachedPrefs;
         }
-        
-        // First call - create and cache
+
+        // First call - open, migrate and cache
+        Context app = context.getApplicationContext();
         try {
-            MasterKey masterKey = new MasterKey.Builder(context.getApplicationContext())
+            KvStore store = new KvStore(new File(app.getNoBackupFilesDir(), KV_DIR), loadStoreKey(app));
+            if (store.corruptRecords() > 0) {
+                WalletLog.w(TAG, "Secure store skipped {} unreadable record(s)", store.corruptRecords());
+            }
+            migrateLegacyPrefs(app, store);
+            cachedPrefs = new SecurePrefs(store);
+            WalletLog.i(TAG, "Secure store opened, keys={}", store.size());
+            return cachedPrefs;
+
+        } catch (Exception e) {
+            WalletLog.e(TAG, "Failed to open secure store, nothing will be persisted", e);
+            cachedPrefs = new SecurePrefs(KvStore.inMemory());
+            return cachedPrefs;
+        }
+    }
+
+    /**
+     * Whether {@link #getEncryptedPrefs} is backed by disk. False when the key store could
+     * not be opened: saves then only last as long as the process.
+     */
+    public static boolean isPersistent(Context context) {
+        SharedPreferences prefs = getEncryptedPrefs(context);
+        return prefs instanceof SecurePrefs && ((SecurePrefs) prefs).store().isPersistent();
+    }
+
+    /**
+     * The store's data key, generated on first use and kept wrapped by the AndroidKeyStore
+     * master key (the same one EncryptedSharedPreferences used). A key file that exists but
+     * does not unwrap is an error, never a reason to start over.
+     */
+    private static byte[] loadStoreKey(Context app) throws Exception {
+        new MasterKey.Builder(app)
+            .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
+            .build();
+        KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+        keyStore.load(null);
+        SecretKey masterKey = (SecretKey) keyStore.getKey(MasterKey.DEFAULT_MASTER_KEY_ALIAS, null);
+        if (masterKey == null) throw new IOException("Master key missing");
+
+        File keyFile = new File(app.getNoBackupFilesDir(), KV_KEY_FILE);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        if (keyFile.exists()) {
+            byte[] wrapped = new byte[(int) keyFile.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(keyFile))) {
+                in.readFully(wrapped);
+            }
+            cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(128, wrapped, 0, KV_KEY_IV_BYTES));
+            return cipher.doFinal(wrapped, KV_KEY_IV_BYTES, wrapped.length - KV_KEY_IV_BYTES);
+        }
+
+        byte[] rawKey = RecordCipher.newKey();
+        // The key store picks the IV
+        cipher.init(Cipher.ENCRYPT_MODE, masterKey);
+        byte[] iv = cipher.getIV();
+        byte[] sealed = cipher.doFinal(rawKey);
+        File tmp = new File(keyFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(iv);
+            out.write(sealed);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(keyFile)) throw new IOException("Cannot install " + keyFile);
+        return rawKey;
+    }
+
+    /**
+     * Import the old EncryptedSharedPreferences file, and any secrets the old plaintext
+     * fallback wrote to AppPrefs, then delete them. Idempotent: runs whenever the old file
+     * is still there, and nothing else can write the store before it finishes.
+     */
+    private static void migrateLegacyPrefs(Context app, KvStore store) throws Exception {
+        File legacyFile = new File(app.getFilesDir().getParentFile(), "shared_prefs/" + LEGACY_PREFS_NAME + ".xml");
+        if (legacyFile.exists()) {
+            MasterKey masterKey = new MasterKey.Builder(app)
                 .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
                 .build();
-
-            cachedPrefs = EncryptedSharedPreferences.create(
-                context.getApplicationContext(),
-                PREFS_NAME,
+            SharedPreferences legacy = EncryptedSharedPreferences.create(
+                app,
+                LEGACY_PREFS_NAME,
                 masterKey,
                 EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
                 EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
             );
-            
-            Log.i(TAG, "EncryptedSharedPreferences initialized and cached");
-            return cachedPrefs;
-            
+            Map<String, ?> all = legacy.getAll();
+            store.commit(all, false);
+            app.deleteSharedPreferences(LEGACY_PREFS_NAME);
+            WalletLog.i(TAG, "Migrated {} key(s) from EncryptedSharedPreferences", all.size());
+        }
+
+        SharedPreferences fallback = app.getSharedPreferences(FALLBACK_PREFS_NAME, Context.MODE_PRIVATE);
+        Map<String, ?> plain = fallback.getAll();
+        Map<String, Object> leaked = new HashMap<>();
+        SharedPreferences.Editor scrub = fallback.edit();
+        int found = 0;
+        for (String key : FALLBACK_KEYS) {
+            if (!plain.containsKey(key)) continue;
+            found++;
+            // A value already in the store is the newer one
+            if (!store.contains(key)) leaked.put(key, plain.get(key));
+            scrub.remove(key);
+        }
+        if (found == 0) return;
+        store.commit(leaked, false);
+        scrub.commit();
+        WalletLog.w(TAG, "Removed {} secret(s) from plaintext AppPrefs, {} moved to the secure store",
+            found, leaked.size());
+    }
+
+    /**
+     * Offline transaction journal. Its data key is kept in the encrypted prefs.
+     * Any legacy JSON "tx_queue" is imported on first open.
+     */
+    public static synchronized TxJournal getTxJournal(Context context) throws IOException {
+        if (cachedJournal != null) {
+            return cachedJournal;
+        }
+
+        SharedPreferences prefs = getEncryptedPrefs(context);
+        File dir = new File(context.getApplicationContext().getNoBackupFilesDir(), JOURNAL_DIR);
+        TxJournal journal = new TxJournal(dir, getRecordCipher(prefs));
+        if (journal.droppedTailBytes() > 0) {
+            WalletLog.w(TAG, "Journal recovery dropped {} bytes of torn tail", journal.droppedTailBytes());
+        }
+        if (journal.quarantinedSegments() > 0) {
+            WalletLog.e(TAG, "Journal recovery found {} damaged sealed segments, copies kept as .corrupt",
+                    journal.quarantinedSegments());
+        }
+
+        migrateLegacyQueue(prefs, journal);
+        MetricsRegistry.global().gauge(MetricsRegistry.JOURNAL_PENDING, journal::pendingCount);
+        cachedJournal = journal;
+        WalletLog.i(TAG, "Transaction journal opened, pending={}", journal.pendingCount());
+        return journal;
+    }
+
+    /**
+     * Balance write-ahead log. Replaces the old "local_balance" key, which is imported
+     * once when no log exists yet.
+     */
+    public static synchronized BalanceStore getBalanceStore(Context context) throws IOException {
+        if (cachedBalanceStore != null) {
+            return cachedBalanceStore;
+        }
+
+        SharedPreferences prefs = getEncryptedPrefs(context);
+        File dir = new File(context.getApplicationContext().getNoBackupFilesDir(), BALANCE_DIR);
+        BalanceStore store = new BalanceStore(dir, getRecordCipher(prefs));
+
+        if (!store.wasRestored() && prefs.contains(KEY_LEGACY_BALANCE)) {
+            double legacy = Double.longBitsToDouble(prefs.getLong(KEY_LEGACY_BALANCE, 0));
+            store.reconcile(WalletLedger.toMinor(legacy));
+            store.sync();
+            prefs.edit().remove(KEY_LEGACY_BALANCE).commit();
+            WalletLog.i(TAG, "Migrated local_balance into the balance log");
+        }
+
+        try {
+            store.seedUnsettled(getTxJournal(context).pendingAmount() * WalletLedger.UNITS_PER_MAJOR);
+        } catch (IOException e) {
+            // Only the first anchor uses it; the journal's own open will report the problem
+            WalletLog.e(TAG, "Could not read pending fares for the balance log", e);
+        }
+
+        MetricsRegistry.global().gauge(MetricsRegistry.BALANCE_FSYNCS, store::syncCount);
+        cachedBalanceStore = store;
+        WalletLog.i(TAG, "Balance log opened, replayed={}", store.replayedEvents());
+        return store;
+    }
+
+    /**
+     * Applies server balances to the balance log net of the fares still pending
+     */
+    public static synchronized BalanceReconciler getBalanceReconciler(Context context) throws IOException {
+        if (cachedReconciler != null) {
+            return cachedReconciler;
+        }
+
+        BalanceReconciler reconciler = new BalanceReconciler(getBalanceStore(context));
+        MetricsRegistry.global().gauge(MetricsRegistry.BALANCE_SETTLES, reconciler::commitCount);
+        MetricsRegistry.global().gauge(MetricsRegistry.BALANCE_STALE_RESPONSES, reconciler::staleResponses);
+        cachedReconciler = reconciler;
+        return reconciler;
+    }
+
+    /**
+     * Paged transaction history with per-day and per-week spend
+     */
+    public static synchronized HistoryStore getHistoryStore(Context context) throws IOException {
+        if (cachedHistory != null) {
+            return cachedHistory;
+        }
+
+        SharedPreferences prefs = getEncryptedPrefs(context);
+        File dir = new File(context.getApplicationContext().getNoBackupFilesDir(), HISTORY_DIR);
+        HistoryStore history = new HistoryStore(dir, getRecordCipher(prefs));
+        MetricsRegistry.global().gauge(MetricsRegistry.HISTORY_ENTRIES, history::size);
+        cachedHistory = history;
+        return history;
+    }
+
+    /**
+     * Daily/weekly fare caps with their spend so far, caps from AppConfig
+     */
+    public static synchronized FarePolicy getFarePolicy(Context context) throws IOException {
+        if (cachedFarePolicy != null) {
+            return cachedFarePolicy;
+        }
+
+        SharedPreferences prefs = getEncryptedPrefs(context);
+        File dir = new File(context.getApplicationContext().getNoBackupFilesDir(), FARE_CAPS_DIR);
+        FarePolicy policy = new FarePolicy(dir, getRecordCipher(prefs),
+            AppConfig.getDailyFareCap(context), AppConfig.getWeeklyFareCap(context));
+        cachedFarePolicy = policy;
+        return policy;
+    }
+
+    /**
+     * Offline risk limits, kept current by the journal as transactions settle
+     */
+    public static synchronized RiskLimits getRiskLimits(Context context) throws IOException {
+        if (cachedRiskLimits != null) {
+            return cachedRiskLimits;
+        }
+
+        RiskLimits limits = new RiskLimits(AppConfig.getMaxUnsyncedValue(context),
+            AppConfig.getMaxUnsyncedCount(context), AppConfig.getMaxSyncAgeMs(context),
+            AppConfig.getLastSyncMs(context));
+        getTxJournal(context).setQueueListener(limits);
+        MetricsRegistry.global().gauge(MetricsRegistry.RISK_UNSYNCED_COUNT, limits::unsyncedCount);
+        MetricsRegistry.global().gauge(MetricsRegistry.RISK_UNSYNCED_VALUE, limits::unsyncedValue);
+        cachedRiskLimits = limits;
+        return limits;
+    }
+
+    // Data key shared by the journal, the balance log, the history and the fare caps
+    private static RecordCipher getRecordCipher(SharedPreferences prefs) throws IOException {
+        if (!(prefs instanceof SecurePrefs) || !((SecurePrefs) prefs).store().isPersistent()) {
+            throw new IOException("Secure store unavailable; not creating a data key");
+        }
+        String encodedKey = prefs.getString(KEY_JOURNAL_KEY, null);
+        byte[] rawKey;
+        if (encodedKey == null) {
+            rawKey = RecordCipher.newKey();
+            prefs.edit().putString(KEY_JOURNAL_KEY, Base64.encodeToString(rawKey, Base64.NO_WRAP)).commit();
+        } else {
+            rawKey = Base64.decode(encodedKey, Base64.NO_WRAP);
+        }
+        return new RecordCipher(rawKey);
+    }
+
+    private static void migrateLegacyQueue(SharedPreferences prefs, TxJournal journal) {
+        String queueJson = prefs.getString(KEY_LEGACY_QUEUE, null);
+        if (queueJson == null) return;
+
+        try {
+            JSONArray queue = new JSONArray(queueJson);
+            for (int i = 0; i < queue.length(); i++) {
+                OfflineTransaction tx = TxCodec.decodeLegacyJson(queue.getJSONObject(i).toString());
+                if (tx != null && tx.txId != null) journal.append(tx);
+            }
+            prefs.edit().remove(KEY_LEGACY_QUEUE).commit();
+            WalletLog.i(TAG, "Migrated {} queued transaction(s) into the journal", queue.length());
         } catch (Exception e) {
-            Log.e(TAG, "Failed to create EncryptedSharedPreferences", e);
-            return context.getSharedPreferences("AppPrefs", Context.MODE_PRIVATE);
+            // Keep tx_queue so the import is retried next time
+            WalletLog.e(TAG, "Failed to migrate legacy tx_queue", e);
         }
     }
-    
+
+    /**
+     * Called at logout. The store's cache is always current, so the store stays open;
+     * this only waits for lazy writes so the logout is on disk. A memory-only fallback
+     * is dropped instead, so the next call tries the key store again.
+     */
     public static void clearCache() {
-        cachedPrefs = null;
+        SharedPreferences prefs;
+        synchronized (SecureStorage.class) {
+            prefs = cachedPrefs;
+            if (!(prefs instanceof SecurePrefs)) return;
+            if (!((SecurePrefs) prefs).store().isPersistent()) {
+                cachedPrefs = null;
+                return;
+            }
+        }
+        try {
+            ((SecurePrefs) prefs).store().flush();
+        } catch (IOException e) {
+            WalletLog.e(TAG, "Failed to flush secure store", e);
+        }
     }
 }
\ No newline at end of file
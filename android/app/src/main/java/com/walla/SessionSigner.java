@@ -0,0 +1,166 @@
+package com.walla;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Two-level signing for transactions.
+ *
+ * The device key (hardware-backed, created by NFCModule.getOrCreateKeyPair) is used only
+ * to certify a short-lived software P-256 session key. Each transaction is then signed
+ * with the session key in memory, and carries the session certificate so the backend can
+ * chain: device public key -> certificate -> transaction signature.
+ *
+ * Certificate layout (big-endian), signed with SHA256withECDSA by the device key:
+ *   [1]  version (1)
+ *   [16] session id
+ *   [8]  notBefore, epoch ms
+ *   [8]  notAfter, epoch ms
+ *   [2]  public key length
+ *   [n]  session public key, X.509 SubjectPublicKeyInfo
+ */
+public class SessionSigner {
+
+    public static final byte CERT_VERSION = 1;
+    public static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    public static final long DEFAULT_MAX_AGE_MS = 15 * 60 * 1000L;
+    public static final int DEFAULT_MAX_USES = 500;
+
+    /**
+     * Resolves the device private key for an alias (AndroidKeyStore in the app)
+     */
+    public interface DeviceKeySource {
+        PrivateKey deviceKey(String alias) throws Exception;
+    }
+
+    /**
+     * A certified session key
+     */
+    public static final class Session {
+        public final String alias;
+        public final byte[] certificate;
+        public final byte[] certificateSignature;
+        public final long notAfter;
+        final PrivateKey privateKey;
+        int uses;
+
+        Session(String alias, byte[] certificate, byte[] certificateSignature, long notAfter, PrivateKey privateKey) {
+            this.alias = alias;
+            this.certificate = certificate;
+            this.certificateSignature = certificateSignature;
+            this.notAfter = notAfter;
+            this.privateKey = privateKey;
+        }
+    }
+
+    /**
+     * Transaction signature plus the certificate of the session key that made it
+     */
+    public static final class SignedPayload {
+        public final byte[] signature;
+        public final Session session;
+
+        SignedPayload(byte[] signature, Session session) {
+            this.signature = signature;
+            this.session = session;
+        }
+    }
+
+    private final DeviceKeySource keySource;
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile long maxAgeMs;
+    private volatile int maxUses;
+    private Session current;
+    private Signature sessionSignature;
+    private int rotations;
+
+    public SessionSigner(DeviceKeySource keySource) {
+        this(keySource, DEFAULT_MAX_AGE_MS, DEFAULT_MAX_USES);
+    }
+
+    public SessionSigner(DeviceKeySource keySource, long maxAgeMs, int maxUses) {
+        this.keySource = keySource;
+        setRotation(maxAgeMs, maxUses);
+    }
+
+    /**
+     * Rotate after maxAgeMs or maxUses signatures, whichever comes first
+     */
+    public void setRotation(long maxAgeMs, int maxUses) {
+        if (maxAgeMs <= 0 || maxUses <= 0) throw new IllegalArgumentException("Rotation limits must be positive");
+        this.maxAgeMs = maxAgeMs;
+        this.maxUses = maxUses;
+    }
+
+    /**
+     * Sign with the current session key, certifying a new one first if needed
+     */
+    public synchronized SignedPayload sign(String alias, byte[] payload) throws Exception {
+        Session session = currentSession(alias, System.currentTimeMillis());
+        sessionSignature.update(payload);
+        byte[] signature = sessionSignature.sign();
+        session.uses++;
+        return new SignedPayload(signature, session);
+    }
+
+    /**
+     * Certify a session ahead of the first sign (keeps the hardware signature off the first tap)
+     */
+    public synchronized Session ensureSession(String alias) throws Exception {
+        return currentSession(alias, System.currentTimeMillis());
+    }
+
+    /**
+     * Drop the session key, e.g. on logout
+     */
+    public synchronized void reset() {
+        current = null;
+        sessionSignature = null;
+    }
+
+    public synchronized int rotations() {
+        return rotations;
+    }
+
+    private Session currentSession(String alias, long now) throws Exception {
+        Session session = current;
+        if (session != null && session.alias.equals(alias)
+                && now < session.notAfter && session.uses < maxUses) {
+            return session;
+        }
+        current = certify(alias, now);
+        sessionSignature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        sessionSignature.initSign(current.privateKey);
+        rotations++;
+        return current;
+    }
+
+    private Session certify(String alias, long now) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+        KeyPair pair = generator.generateKeyPair();
+
+        byte[] sessionId = new byte[16];
+        random.nextBytes(sessionId);
+        long notAfter = now + maxAgeMs;
+        byte[] publicKey = pair.getPublic().getEncoded();
+
+        ByteBuffer cert = ByteBuffer.allocate(1 + 16 + 8 + 8 + 2 + publicKey.length);
+        cert.put(CERT_VERSION).put(sessionId).putLong(now).putLong(notAfter)
+            .putShort((short) publicKey.length).put(publicKey);
+        byte[] certificate = cert.array();
+
+        Signature deviceSignature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        deviceSignature.initSign(keySource.deviceKey(alias));
+        deviceSignature.update(certificate);
+
+        return new Session(alias, certificate, deviceSignature.sign(), notAfter, pair.getPrivate());
+    }
+}
@@ -0,0 +1,211 @@
+package com.walla;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns sync triggers (offline taps, failed uploads, the logout button, the network
+ * coming back) into as few sync runs as possible.
+ *
+ * {@link #trigger} only counts. The first trigger of a quiet period schedules a flush
+ * debounceMs later; every trigger before it pushes it back, up to maxDelayMs after the
+ * first, so a rush-hour stream of taps still syncs regularly. A flush enqueues one run
+ * with KEEP, which leaves a run that is already waiting alone: it has not opened its
+ * journal cursor yet and will see the new transactions. While a run this scheduler
+ * enqueued is waiting (for the network, or in backoff), triggers are only counted.
+ *
+ * A run in progress is never cancelled or replaced. The worker reports
+ * {@link #runStarted} and {@link #runFinished}; triggers that arrive in between are
+ * held, and one follow-up run is APPENDed behind the finishing run when it will not be
+ * retried anyway. {@link #syncNow} (network back, user request) skips the debounce and
+ * REPLACEs a run still waiting, so a sync sitting in exponential backoff starts now.
+ *
+ * {@link #runStarted} returns the number of triggers coalesced into that run.
+ * Plain Java; the Android glue (WorkManager, NetworkCallback) is in OfflineSyncWorker.
+ */
+public class SyncScheduler {
+
+    public static final long DEFAULT_DEBOUNCE_MS = 2000;
+    public static final long DEFAULT_MAX_DELAY_MS = 10000;
+
+    // How a flush asks for a run
+    public static final int ENQUEUE_KEEP = 0;
+    public static final int ENQUEUE_REPLACE = 1;
+    public static final int ENQUEUE_APPEND = 2;
+
+    public interface Enqueuer {
+        void enqueue(int policy) throws Exception;
+    }
+
+    private final Enqueuer enqueuer;
+    private final ScheduledExecutorService executor;
+    private final long debounceNanos;
+    private final long maxDelayNanos;
+
+    // Guarded by this
+    private int triggers;
+    private long firstTriggerNanos;
+    private long lastTriggerNanos;
+    private ScheduledFuture<?> pendingFlush;
+    private boolean running;
+    // Enqueued and not started yet
+    private boolean queued;
+    private boolean followUp;
+    private long totalTriggers;
+    private long enqueues;
+    private long enqueueFailures;
+    private long runs;
+    private long coalesced;
+
+    private volatile boolean online = true;
+
+    public SyncScheduler(Enqueuer enqueuer, ScheduledExecutorService executor) {
+        this(enqueuer, executor, DEFAULT_DEBOUNCE_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    public SyncScheduler(Enqueuer enqueuer, ScheduledExecutorService executor, long debounceMs, long maxDelayMs) {
+        this.enqueuer = enqueuer;
+        this.executor = executor;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMs);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMs, maxDelayMs));
+    }
+
+    /**
+     * Something needs syncing. Cheap: no I/O on the caller's thread.
+     */
+    public synchronized void trigger() {
+        long now = System.nanoTime();
+        triggers++;
+        totalTriggers++;
+        lastTriggerNanos = now;
+        if (running || queued || pendingFlush != null) return;
+        firstTriggerNanos = now;
+        pendingFlush = executor.schedule(this::flush, debounceNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sync without waiting for the debounce
+     */
+    public void syncNow() {
+        synchronized (this) {
+            totalTriggers++;
+            triggers++;
+            if (running) {
+                followUp = true;
+                return;
+            }
+            cancelFlush();
+            queued = true;
+        }
+        enqueue(ENQUEUE_REPLACE);
+    }
+
+    /**
+     * Called by the worker as it starts. Returns the triggers this run covers.
+     */
+    public synchronized int runStarted() {
+        running = true;
+        queued = false;
+        followUp = false;
+        cancelFlush();
+        int covered = triggers;
+        triggers = 0;
+        runs++;
+        if (covered > 1) coalesced += covered - 1;
+        return covered;
+    }
+
+    /**
+     * Called by the worker as it returns. {@code willRetry}: WorkManager runs it again
+     * after backoff, which covers anything that came in meanwhile.
+     */
+    public void runFinished(boolean willRetry) {
+        synchronized (this) {
+            running = false;
+            if (willRetry || (triggers == 0 && !followUp)) return;
+            followUp = false;
+            queued = true;
+        }
+        enqueue(ENQUEUE_APPEND);
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    /**
+     * Kept up to date by the network callback. Returns true when the network came back.
+     */
+    public synchronized boolean setOnline(boolean online) {
+        boolean cameBack = online && !this.online;
+        this.online = online;
+        return cameBack;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized long totalTriggers() {
+        return totalTriggers;
+    }
+
+    public synchronized long enqueueCount() {
+        return enqueues;
+    }
+
+    public synchronized long enqueueFailures() {
+        return enqueueFailures;
+    }
+
+    public synchronized long runCount() {
+        return runs;
+    }
+
+    /**
+     * Triggers that did not get a run of their own
+     */
+    public synchronized long coalescedTriggers() {
+        return coalesced;
+    }
+
+    private void flush() {
+        synchronized (this) {
+            pendingFlush = null;
+            if (running || queued || triggers == 0) return;
+            long now = System.nanoTime();
+            long quietFor = now - lastTriggerNanos;
+            long waited = now - firstTriggerNanos;
+            if (quietFor < debounceNanos && waited < maxDelayNanos) {
+                long delay = Math.min(debounceNanos - quietFor, maxDelayNanos - waited);
+                pendingFlush = executor.schedule(this::flush, delay, TimeUnit.NANOSECONDS);
+                return;
+            }
+            queued = true;
+        }
+        enqueue(ENQUEUE_KEEP);
+    }
+
+    private void cancelFlush() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+    }
+
+    private void enqueue(int policy) {
+        try {
+            enqueuer.enqueue(policy);
+            synchronized (this) {
+                enqueues++;
+            }
+        } catch (Exception e) {
+            // The triggers stay counted; the next one schedules another flush
+            synchronized (this) {
+                enqueueFailures++;
+                queued = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.walla;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Post-tap work after a DEDUCT has been answered: persist -> sign -> dispatch.
+ *
+ * Each stage runs on its own single thread, so taps leave every stage in the order they
+ * were submitted. The number of taps in the pipeline is capped: the APDU handler reserves
+ * a slot before deducting and declines the tap when none is free.
+ *
+ * Balance commits are grouped. The persist stage makes the current balance durable, which
+ * already includes every tap submitted so far, so taps covered by that commit skip their own.
+ */
+public class TapPipeline {
+
+    public static final int DEFAULT_CAPACITY = 32;
+
+    public static final int STAGE_PERSIST = 0;
+    public static final int STAGE_SIGN = 1;
+    public static final int STAGE_DISPATCH = 2;
+    private static final String[] STAGE_NAMES = {"persist", "sign", "dispatch"};
+
+    /**
+     * The work done by each stage. Implemented by LeapHostApduService.
+     */
+    public interface Stages {
+        // Make the current balance durable; it covers every tap submitted before the call
+        void persistBalance() throws Exception;
+
+        OfflineTransaction sign(Tap tap) throws Exception;
+
+        void dispatch(OfflineTransaction tx) throws Exception;
+
+        void onStageError(int stage, Tap tap, Exception e);
+    }
+
+    /**
+     * One accepted fare
+     */
+    public static final class Tap {
+        public final long sequence;
+        public final String alias;
+        public final int fare;
+        // What the reader asked for, and the FarePolicy cap that reduced it to fare
+        public final int requestedFare;
+        public final int cap;
+        public final double balanceAfter;
+        final long submitNanos = System.nanoTime();
+
+        Tap(long sequence, String alias, int fare, int requestedFare, int cap, double balanceAfter) {
+            this.sequence = sequence;
+            this.alias = alias;
+            this.fare = fare;
+            this.requestedFare = requestedFare;
+            this.cap = cap;
+            this.balanceAfter = balanceAfter;
+        }
+    }
+
+    /**
+     * Point-in-time counters
+     */
+    public static final class Stats {
+        public final int depth;
+        public final int capacity;
+        public final long submitted;
+        public final long rejected;
+        public final long balanceWrites;
+        public final long balanceWritesCoalesced;
+        public final long[] stageCount = new long[3];
+        public final long[] stageTotalNanos = new long[3];
+        public final long[] stageMaxNanos = new long[3];
+        public final long[] stageErrors = new long[3];
+        // Service time per stage, and submit -> dispatch done per tap (includes queueing)
+        public final LatencyHistogram.Snapshot[] stageLatency = new LatencyHistogram.Snapshot[3];
+        public final LatencyHistogram.Snapshot completionLatency;
+
+        Stats(TapPipeline p) {
+            depth = p.inFlight.get();
+            capacity = p.capacity;
+            submitted = p.submitted.get();
+            rejected = p.rejected.get();
+            balanceWrites = p.balanceWrites.get();
+            balanceWritesCoalesced = p.balanceWritesCoalesced.get();
+            for (int i = 0; i < 3; i++) {
+                stageLatency[i] = p.stageLatency[i].snapshot();
+                stageCount[i] = stageLatency[i].count;
+                stageTotalNanos[i] = stageLatency[i].sumNanos;
+                stageMaxNanos[i] = stageLatency[i].maxNanos;
+                stageErrors[i] = p.stageErrors[i].get();
+            }
+            completionLatency = p.completionLatency.snapshot();
+        }
+
+        public static String stageName(int stage) {
+            return STAGE_NAMES[stage];
+        }
+
+        public double meanMicros(int stage) {
+            return stageCount[stage] == 0 ? 0 : stageTotalNanos[stage] / 1000.0 / stageCount[stage];
+        }
+    }
+
+    private final Stages stages;
+    private final int capacity;
+    private final ThreadPoolExecutor[] executors = new ThreadPoolExecutor[3];
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Newest submitted tap, and the newest tap already covered by a balance write
+    private volatile long submittedSeq = 0;
+    private long persistedSeq = 0;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong balanceWrites = new AtomicLong();
+    private final AtomicLong balanceWritesCoalesced = new AtomicLong();
+    private final LatencyHistogram[] stageLatency = {
+        new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+    private final LatencyHistogram completionLatency = new LatencyHistogram();
+    private final AtomicLong[] stageErrors = counters();
+
+    public TapPipeline(Stages stages) {
+        this(stages, DEFAULT_CAPACITY);
+    }
+
+    public TapPipeline(Stages stages, int capacity) {
+        this.stages = stages;
+        this.capacity = capacity;
+        for (int i = 0; i < 3; i++) {
+            final String name = "tap-" + STAGE_NAMES[i];
+            // inFlight <= capacity, so these queues never reject
+            executors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+    }
+
+    // ---- APDU thread ----
+
+    /**
+     * Reserve a slot before deducting. False means the pipeline is full and the tap
+     * should be declined.
+     */
+    public boolean tryReserve() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= capacity) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Give back a reserved slot when the tap was not accepted after all
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Hand an accepted tap (holding a reserved slot) to the persist stage.
+     * Call after the fare has been deducted from the ledger.
+     */
+    public void submit(String alias, int fare, double balanceAfter) {
+        submit(alias, fare, fare, FarePolicy.CAP_NONE, balanceAfter);
+    }
+
+    public synchronized void submit(String alias, int fare, int requestedFare, int cap, double balanceAfter) {
+        Tap tap = new Tap(sequence.incrementAndGet(), alias, fare, requestedFare, cap, balanceAfter);
+        submitted.incrementAndGet();
+        submittedSeq = tap.sequence;
+        executors[STAGE_PERSIST].execute(() -> persist(tap));
+    }
+
+    // ---- Stages ----
+
+    private void persist(Tap tap) {
+        long start = System.nanoTime();
+
+        if (tap.sequence <= persistedSeq) {
+            // An earlier write already covered this tap
+            balanceWritesCoalesced.incrementAndGet();
+        } else {
+            // Read before writing: the write includes at least every tap up to here
+            long seq = submittedSeq;
+            try {
+                stages.persistBalance();
+                persistedSeq = seq;
+                balanceWrites.incrementAndGet();
+            } catch (Exception e) {
+                fail(STAGE_PERSIST, tap, e);
+            }
+        }
+        record(STAGE_PERSIST, start);
+        // The transaction is still signed and sent if the local write failed
+        executors[STAGE_SIGN].execute(() -> sign(tap));
+    }
+
+    private void sign(Tap tap) {
+        long start = System.nanoTime();
+        OfflineTransaction tx;
+        try {
+            tx = stages.sign(tap);
+        } catch (Exception e) {
+            fail(STAGE_SIGN, tap, e);
+            record(STAGE_SIGN, start);
+            complete(tap);
+            return;
+        }
+        record(STAGE_SIGN, start);
+        executors[STAGE_DISPATCH].execute(() -> dispatch(tap, tx));
+    }
+
+    private void dispatch(Tap tap, OfflineTransaction tx) {
+        long start = System.nanoTime();
+        try {
+            stages.dispatch(tx);
+        } catch (Exception e) {
+            fail(STAGE_DISPATCH, tap, e);
+        } finally {
+            record(STAGE_DISPATCH, start);
+            complete(tap);
+        }
+    }
+
+    // ---- Stats / lifecycle ----
+
+    public int depth() {
+        return inFlight.get();
+    }
+
+    public Stats stats() {
+        return new Stats(this);
+    }
+
+    /**
+     * Publish stage latencies and queue depth under the tap.* names
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.register(MetricsRegistry.TAP_PERSIST, stageLatency[STAGE_PERSIST]);
+        metrics.register(MetricsRegistry.TAP_SIGN, stageLatency[STAGE_SIGN]);
+        metrics.register(MetricsRegistry.TAP_DISPATCH, stageLatency[STAGE_DISPATCH]);
+        metrics.register(MetricsRegistry.TAP_COMPLETE, completionLatency);
+        metrics.gauge(MetricsRegistry.TAP_DEPTH, inFlight::get);
+        metrics.gauge(MetricsRegistry.TAP_REJECTED, rejected::get);
+    }
+
+    /**
+     * Finish queued taps, then stop the stage threads
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        for (ThreadPoolExecutor executor : executors) executor.shutdown();
+    }
+
+    private void fail(int stage, Tap tap, Exception e) {
+        stageErrors[stage].incrementAndGet();
+        stages.onStageError(stage, tap, e);
+    }
+
+    private void record(int stage, long startNanos) {
+        stageLatency[stage].recordSince(startNanos);
+    }
+
+    private void complete(Tap tap) {
+        completionLatency.recordSince(tap.submitNanos);
+        inFlight.decrementAndGet();
+    }
+
+    private static AtomicLong[] counters() {
+        AtomicLong[] counters = new AtomicLong[3];
+        for (int i = 0; i < 3; i++) counters[i] = new AtomicLong();
+        return counters;
+    }
+}
@@ -0,0 +1,265 @@
+package com.walla;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of the gate <-> wallet tap, both sides.
+ *
+ * Version 1 (deployed gates) is two exchanges:
+ *   SELECT  00 A4 04 00 0B [AID] 00              -> "LEAP_OK" 9000
+ *   DEDUCT  80 10 00 00 04 [fare]                 -> 9000 / 6985 / 6A84
+ *
+ * Version 2 keeps that flow working and adds:
+ *   - The SELECT response is "LEAP_OK" followed by TLVs: version, capabilities and an
+ *     8-byte card nonce that is fresh for every SELECT. Readers that only check the
+ *     status word (all v1 gates) are unaffected.
+ *   - Bound DEDUCT: 80 10 00 01 0C [fare][card nonce]. It is refused with 6982 unless
+ *     the nonce is the one the last SELECT returned, in the same field session.
+ *   - Tap DEDUCT: 80 10 00 03 14 [fare][card nonce][tap nonce], a bound DEDUCT plus an
+ *     8-byte nonce the reader picks per tap and keeps when it resends. A DEDUCT repeating
+ *     an approved tap nonce (within RecentTaps.DEFAULT_TTL_MS, even after the field
+ *     dropped and the reader selected again) is answered as the first one was and not
+ *     charged again; the same nonce with another fare is refused with 6985.
+ *   - The other forms carry nothing that tells a resend from a second fare, so each one
+ *     is charged, as in v1: a DEDUCT repeated without a new SELECT, or a repeated
+ *     SELECT-and-DEDUCT, is a new charge. Readers that resend need the tap DEDUCT.
+ *   - SELECT-and-DEDUCT, one exchange: a SELECT whose AID is the wallet AID followed by
+ *     OP_DEDUCT and the fare (16 bytes, the ISO 7816-5 maximum). Android routes it to the
+ *     service through the aid-prefix-filter in apduservice.xml. On approval the answer is
+ *     the v2 SELECT response; otherwise only the status word the DEDUCT would have returned.
+ *     A phone that cannot route prefix AIDs, or runs a v1 wallet, answers 6A82 and the
+ *     reader falls back to SELECT + DEDUCT.
+ *   - A SELECT with no DF name, or one that is not the wallet AID, gets the plain SELECT
+ *     answer as in v1. Only the wallet AID followed by something other than OP_DEDUCT and
+ *     a fare is refused with 6A82, so a combined reader never reads 9000 from a SELECT
+ *     that charged nothing as an approval.
+ *
+ * Fares are whole currency units, 4 bytes big-endian, as in v1.
+ *
+ * Declines (any form): 6985 insufficient balance, 6A84 busy (retry the tap), and when an
+ * offline risk limit is reached (RiskLimits) 69E1 unsynced value, 69E2 unsynced tap
+ * count, 69E3 too long since the last sync. A v1 gate treats them all as a decline; a
+ * newer one can say why.
+ */
+public final class TapProtocol {
+
+    public static final int VERSION = 2;
+
+    public static final byte[] AID = Hex.hexToBytes("A00000080457414C4C4101");
+    public static final int MAX_AID_LENGTH = 16;
+
+    // Appended to the AID in a SELECT-and-DEDUCT (same value as the DEDUCT INS)
+    public static final int OP_DEDUCT = 0x10;
+
+    // ---- Capabilities (SELECT response, TAG_CAPABILITIES) ----
+    public static final int CAP_SELECT_DEDUCT = 0x01;
+    public static final int CAP_BOUND_DEDUCT = 0x02;
+    public static final int CAP_TAP_NONCE = 0x04;
+    public static final int CAPABILITIES = CAP_SELECT_DEDUCT | CAP_BOUND_DEDUCT | CAP_TAP_NONCE;
+
+    // ---- SELECT response TLVs, after the v1 "LEAP_OK" ----
+    public static final int TAG_VERSION = 0x01;
+    public static final int TAG_CAPABILITIES = 0x02;
+    public static final int TAG_CARD_NONCE = 0x03;
+    public static final int NONCE_LENGTH = 8;
+
+    // ---- DEDUCT forms ----
+    public static final int P2_DEDUCT = 0x00;
+    public static final int P2_BOUND_DEDUCT = 0x01;
+    public static final int P2_TAP_DEDUCT = 0x03;
+    public static final int DEDUCT_LC = 4;
+    public static final int BOUND_DEDUCT_LC = 4 + NONCE_LENGTH;
+    public static final int TAP_DEDUCT_LC = 4 + 2 * NONCE_LENGTH;
+
+    // ---- Risk limit declines, 69 class with wallet-specific SW2 ----
+    public static final int SW_UNSYNCED_VALUE = 0x69E1;
+    public static final int SW_UNSYNCED_COUNT = 0x69E2;
+    public static final int SW_SYNC_OVERDUE = 0x69E3;
+
+    // ---- How a SELECT's AID field was matched (card side) ----
+    public static final int SELECT_OTHER = 0;
+    public static final int SELECT_PLAIN = 1;
+    public static final int SELECT_DEDUCT = 2;
+
+    private static final byte[] LEAP_OK = "LEAP_OK".getBytes(StandardCharsets.US_ASCII);
+    private static final int SELECT_DEDUCT_LC = AID.length + 1 + 4;
+    private static final int SELECT_RESPONSE_LENGTH = LEAP_OK.length + 3 + 3 + 2 + NONCE_LENGTH + 2;
+
+    private TapProtocol() {
+    }
+
+    // ---- Card side ----
+
+    /**
+     * Classify a SELECT by DF name. Reads the command in place. Anything that does not
+     * start with the wallet AID is SELECT_PLAIN, as every SELECT was in v1.
+     */
+    public static int selectMode(byte[] apdu, int dataOffset, int lc) {
+        if (lc < AID.length) return SELECT_PLAIN;
+        for (int i = 0; i < AID.length; i++) {
+            if (apdu[dataOffset + i] != AID[i]) return SELECT_PLAIN;
+        }
+        if (lc == AID.length) return SELECT_PLAIN;
+        if (lc != SELECT_DEDUCT_LC) return SELECT_OTHER;
+        return (apdu[dataOffset + AID.length] & 0xFF) == OP_DEDUCT ? SELECT_DEDUCT : SELECT_OTHER;
+    }
+
+    /**
+     * Fare carried by a SELECT_DEDUCT command
+     */
+    public static int selectDeductFare(byte[] apdu, int dataOffset) {
+        return ApduDispatcher.readInt(apdu, dataOffset + AID.length + 1);
+    }
+
+    /**
+     * "LEAP_OK", version, capabilities, a zero card nonce and 9000. The card keeps one and
+     * writes each new nonce into it with {@link #putSelectNonce}, so a SELECT allocates nothing.
+     */
+    public static byte[] newSelectResponse() {
+        byte[] r = new byte[SELECT_RESPONSE_LENGTH];
+        System.arraycopy(LEAP_OK, 0, r, 0, LEAP_OK.length);
+        int p = LEAP_OK.length;
+        r[p++] = TAG_VERSION;
+        r[p++] = 1;
+        r[p++] = VERSION;
+        r[p++] = TAG_CAPABILITIES;
+        r[p++] = 1;
+        r[p++] = CAPABILITIES;
+        r[p++] = TAG_CARD_NONCE;
+        r[p++] = NONCE_LENGTH;
+        p += NONCE_LENGTH;
+        r[p++] = (byte) 0x90;
+        r[p] = 0x00;
+        return r;
+    }
+
+    public static void putSelectNonce(byte[] selectResponse, long cardNonce) {
+        putLong(selectResponse, SELECT_RESPONSE_LENGTH - 2 - NONCE_LENGTH, cardNonce);
+    }
+
+    public static long readLong(byte[] b, int offset) {
+        return ((long) ApduDispatcher.readInt(b, offset) << 32) | (ApduDispatcher.readInt(b, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    // ---- Reader side ----
+
+    /**
+     * What a card said about itself in its SELECT response
+     */
+    public static final class SelectInfo {
+        // 1 for a v1 wallet ("LEAP_OK" only)
+        public final int version;
+        public final int capabilities;
+        public final long cardNonce;
+        public final boolean hasNonce;
+
+        SelectInfo(int version, int capabilities, long cardNonce, boolean hasNonce) {
+            this.version = version;
+            this.capabilities = capabilities;
+            this.cardNonce = cardNonce;
+            this.hasNonce = hasNonce;
+        }
+
+        public boolean supports(int capability) {
+            return (capabilities & capability) == capability;
+        }
+    }
+
+    public static byte[] selectCommand() {
+        byte[] apdu = new byte[5 + AID.length + 1];
+        header(apdu, 0x00, 0xA4, 0x04, 0x00, AID.length);
+        System.arraycopy(AID, 0, apdu, 5, AID.length);
+        return apdu;
+    }
+
+    public static byte[] selectDeductCommand(int fare) {
+        byte[] apdu = new byte[5 + SELECT_DEDUCT_LC + 1];
+        header(apdu, 0x00, 0xA4, 0x04, 0x00, SELECT_DEDUCT_LC);
+        System.arraycopy(AID, 0, apdu, 5, AID.length);
+        apdu[5 + AID.length] = (byte) OP_DEDUCT;
+        putInt(apdu, 5 + AID.length + 1, fare);
+        return apdu;
+    }
+
+    public static byte[] deductCommand(int fare) {
+        byte[] apdu = new byte[5 + DEDUCT_LC];
+        header(apdu, 0x80, 0x10, 0x00, P2_DEDUCT, DEDUCT_LC);
+        putInt(apdu, 5, fare);
+        return apdu;
+    }
+
+    public static byte[] boundDeductCommand(int fare, long cardNonce) {
+        byte[] apdu = new byte[5 + BOUND_DEDUCT_LC];
+        header(apdu, 0x80, 0x10, 0x00, P2_BOUND_DEDUCT, BOUND_DEDUCT_LC);
+        putInt(apdu, 5, fare);
+        putLong(apdu, 9, cardNonce);
+        return apdu;
+    }
+
+    public static byte[] tapDeductCommand(int fare, long cardNonce, long tapNonce) {
+        byte[] apdu = new byte[5 + TAP_DEDUCT_LC];
+        header(apdu, 0x80, 0x10, 0x00, P2_TAP_DEDUCT, TAP_DEDUCT_LC);
+        putInt(apdu, 5, fare);
+        putLong(apdu, 9, cardNonce);
+        putLong(apdu, 9 + NONCE_LENGTH, tapNonce);
+        return apdu;
+    }
+
+    /**
+     * Parse a SELECT response (status word included). Returns null unless it starts with
+     * "LEAP_OK" and ends in 9000. Unknown TLVs are skipped.
+     */
+    public static SelectInfo parseSelectResponse(byte[] response) {
+        if (statusWord(response) != 0x9000) return null;
+        int end = response.length - 2;
+        if (end < LEAP_OK.length) return null;
+        for (int i = 0; i < LEAP_OK.length; i++) {
+            if (response[i] != LEAP_OK[i]) return null;
+        }
+
+        int version = 1;
+        int capabilities = 0;
+        long nonce = 0;
+        boolean hasNonce = false;
+        int p = LEAP_OK.length;
+        while (p + 2 <= end) {
+            int tag = response[p] & 0xFF;
+            int len = response[p + 1] & 0xFF;
+            p += 2;
+            if (p + len > end) return null;
+            if (tag == TAG_VERSION && len == 1) version = response[p] & 0xFF;
+            else if (tag == TAG_CAPABILITIES && len == 1) capabilities = response[p] & 0xFF;
+            else if (tag == TAG_CARD_NONCE && len == NONCE_LENGTH) {
+                nonce = readLong(response, p);
+                hasNonce = true;
+            }
+            p += len;
+        }
+        return new SelectInfo(version, capabilities, nonce, hasNonce);
+    }
+
+    public static int statusWord(byte[] response) {
+        if (response == null || response.length < 2) return -1;
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+
+    private static void header(byte[] apdu, int cla, int ins, int p1, int p2, int lc) {
+        apdu[0] = (byte) cla;
+        apdu[1] = (byte) ins;
+        apdu[2] = (byte) p1;
+        apdu[3] = (byte) p2;
+        apdu[4] = (byte) lc;
+    }
+
+    private static void putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    private static void putLong(byte[] b, int offset, long v) {
+        putInt(b, offset, (int) (v >>> 32));
+        putInt(b, offset + 4, (int) v);
+    }
+}
@@ -0,0 +1,247 @@
+package com.walla;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.List;
+
+/**
+ * Per-device hash chain over offline transactions.
+ *
+ * Every signed payload carries a link: the chain id, its sequence number (1, 2, ...) and
+ * prevHash, the SHA-256 of the previous transaction's payload bytes (all zeros for
+ * sequence 1). The hash of a payload therefore commits to every transaction before it,
+ * and one device key signature over a batch statement naming the newest hash covers the
+ * whole batch. A backend walks the batch back from that hash and finds deleted,
+ * reordered or altered entries on the way (see TxChainVerifier).
+ *
+ * Batch statement (big-endian), signed with SHA256withECDSA by the device key:
+ *   [1]  version (1)
+ *   [8]  chain id
+ *   [8]  first sequence in the batch
+ *   [8]  last sequence in the batch
+ *   [32] head: hash of the last transaction's payload
+ *   [n]  deviceId, UTF-8
+ *
+ * The sign stage is the only writer: it takes {@link #next} for the payload, and
+ * TxJournal {@link #advance}s the chain it handed out once the signed transaction is
+ * appended, so a failed sign or journal write leaves no hole and is never linked to.
+ * TxJournal restores the chain from its records on open.
+ */
+public class TxChain {
+
+    public static final byte STATEMENT_VERSION = 1;
+    public static final int HASH_LENGTH = 32;
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    // prevHash of sequence 1
+    static final byte[] GENESIS = new byte[HASH_LENGTH];
+
+    private static final int STATEMENT_FIXED_BYTES = 1 + 8 + 8 + 8 + HASH_LENGTH;
+
+    /**
+     * What the next payload carries
+     */
+    public static final class Link {
+        public final long chainId;
+        public final long sequence;
+        public final byte[] prevHash;
+
+        public Link(long chainId, long sequence, byte[] prevHash) {
+            this.chainId = chainId;
+            this.sequence = sequence;
+            this.prevHash = prevHash;
+        }
+    }
+
+    /**
+     * The newest transaction on a chain
+     */
+    public static final class Head {
+        public final long chainId;
+        public final long sequence;
+        public final byte[] hash;
+
+        public Head(long chainId, long sequence, byte[] hash) {
+            this.chainId = chainId;
+            this.sequence = sequence;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A batch statement and the device key's signature over it
+     */
+    public static final class Batch {
+        public final byte[] statement;
+        public final byte[] signature;
+
+        Batch(byte[] statement, byte[] signature) {
+            this.statement = statement;
+            this.signature = signature;
+        }
+    }
+
+    private final long chainId;
+    private long sequence;
+    private byte[] head;
+
+    /**
+     * Continue a chain from its newest transaction
+     */
+    public TxChain(Head head) {
+        this.chainId = head.chainId;
+        this.sequence = head.sequence;
+        this.head = head.hash;
+    }
+
+    /**
+     * A new chain with a random id, for a device with no transactions yet
+     */
+    public static TxChain start(SecureRandom random) {
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        return new TxChain(new Head(id, 0, GENESIS));
+    }
+
+    public synchronized Link next() {
+        return new Link(chainId, sequence + 1, head);
+    }
+
+    /**
+     * Whether a transaction is the one {@link #next} would link to the head
+     */
+    public synchronized boolean follows(OfflineTransaction tx) {
+        return tx.chainId == chainId && tx.sequence == sequence + 1;
+    }
+
+    /**
+     * Move the head to a signed transaction built from {@link #next}
+     */
+    public synchronized void advance(OfflineTransaction tx) {
+        if (!follows(tx)) {
+            throw new IllegalStateException("Transaction " + tx.sequence + " does not follow " + sequence);
+        }
+        head = hash(tx.payload);
+        sequence = tx.sequence;
+    }
+
+    public synchronized Head head() {
+        return new Head(chainId, sequence, head);
+    }
+
+    public long chainId() {
+        return chainId;
+    }
+
+    // ---- Hashes and statements ----
+
+    public static byte[] hash(byte[] payload) {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM).digest(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The link inside a signed payload, JSON or TxCodec. Null for payloads from before the chain.
+     */
+    public static Link linkOf(OfflineTransaction tx) {
+        try {
+            if (tx.payloadFormat == OfflineTransaction.PAYLOAD_TLV) {
+                TxCodec.Payload payload = TxCodec.decodePayload(tx.payload);
+                return payload.sequence > 0 ? new Link(payload.chainId, payload.sequence, payload.prevHash) : null;
+            }
+            JsonObject payload = JsonParser.parseString(new String(tx.payload, StandardCharsets.UTF_8)).getAsJsonObject();
+            if (!payload.has("seq")) return null;
+            return new Link(new BigInteger(payload.get("chain").getAsString(), 16).longValue(),
+                payload.get("seq").getAsLong(), TxCodec.fromBase64(payload.get("prev").getAsString()));
+        } catch (Exception e) {
+            // Not decodable, so not verifiable either
+            return null;
+        }
+    }
+
+    /**
+     * JSON payload fields for a link; TxCodec.encodePayload writes the same in binary
+     */
+    public static void putLink(JSONObject payload, Link link) throws JSONException {
+        payload.put("chain", Long.toHexString(link.chainId));
+        payload.put("seq", link.sequence);
+        payload.put("prev", TxCodec.toBase64(link.prevHash));
+    }
+
+    /**
+     * Statement for a batch of chained transactions in sequence order
+     */
+    public static byte[] statement(String deviceId, List<OfflineTransaction> batch) {
+        OfflineTransaction first = batch.get(0);
+        OfflineTransaction last = batch.get(batch.size() - 1);
+        byte[] device = deviceId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(STATEMENT_FIXED_BYTES + device.length)
+            .put(STATEMENT_VERSION)
+            .putLong(last.chainId)
+            .putLong(first.sequence)
+            .putLong(last.sequence)
+            .put(hash(last.payload))
+            .put(device)
+            .array();
+    }
+
+    /**
+     * One device key signature for the whole batch
+     */
+    public static Batch signBatch(PrivateKey deviceKey, String deviceId, List<OfflineTransaction> batch)
+            throws GeneralSecurityException {
+        byte[] statement = statement(deviceId, batch);
+        Signature signature = Signature.getInstance(SessionSigner.SIGNATURE_ALGORITHM);
+        signature.initSign(deviceKey);
+        signature.update(statement);
+        return new Batch(statement, signature.sign());
+    }
+
+    /**
+     * Parsed batch statement, null if malformed
+     */
+    static Statement parseStatement(byte[] statement) {
+        if (statement == null || statement.length < STATEMENT_FIXED_BYTES || statement[0] != STATEMENT_VERSION) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(statement, 1, statement.length - 1);
+        Statement s = new Statement();
+        s.chainId = in.getLong();
+        s.firstSequence = in.getLong();
+        s.lastSequence = in.getLong();
+        s.head = new byte[HASH_LENGTH];
+        in.get(s.head);
+        s.deviceId = new String(statement, STATEMENT_FIXED_BYTES, statement.length - STATEMENT_FIXED_BYTES,
+            StandardCharsets.UTF_8);
+        return s;
+    }
+
+    static final class Statement {
+        long chainId;
+        long firstSequence;
+        long lastSequence;
+        byte[] head;
+        String deviceId;
+    }
+
+    static boolean sameHash(byte[] a, byte[] b) {
+        return a != null && b != null && MessageDigest.isEqual(a, b);
+    }
+}
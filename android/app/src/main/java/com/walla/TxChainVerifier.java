@@ -0,0 +1,204 @@
+package com.walla;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backend-side check of a TxChain batch, in one pass and one signature verification.
+ *
+ * The device key signature covers the statement, the statement names the hash of the
+ * newest transaction, and each payload names the hash of the one before it. Walking the
+ * batch back from the head, a transaction is ANCHORED while every hash matches.
+ * Sequence numbers missing from the batch must be links the backend already holds
+ * ({@link KnownLinks}), e.g. taps that were uploaded on their own right after the tap.
+ * Behind a missing or altered link everything older is UNANCHORED: the signature does
+ * not reach it, and the client sends it again with its own signature. Transactions
+ * with no link, from another chain, or out of sequence order are INVALID.
+ *
+ * The statement's first sequence must be the batch's first transaction, and the next one
+ * the backend expects: 1, or one past a link it already holds. A batch that starts
+ * anywhere else is reported in {@link Result#error}, as a gap in front of it.
+ *
+ * Plain Java; the replay harness and the benchmarks use it as the backend would.
+ */
+public class TxChainVerifier {
+
+    public static final int ANCHORED = 0;
+    public static final int UNANCHORED = 1;
+    public static final int INVALID = 2;
+
+    /**
+     * Links from earlier uploads of the same device
+     */
+    public interface KnownLinks {
+        // Payload hash of an accepted transaction, or null if never seen
+        byte[] hash(long chainId, long sequence);
+
+        byte[] prevHash(long chainId, long sequence);
+    }
+
+    public static final KnownLinks NONE = new KnownLinks() {
+        @Override
+        public byte[] hash(long chainId, long sequence) {
+            return null;
+        }
+
+        @Override
+        public byte[] prevHash(long chainId, long sequence) {
+            return null;
+        }
+    };
+
+    /**
+     * In-memory KnownLinks, filled with {@link #add} as transactions are accepted
+     */
+    public static final class Store implements KnownLinks {
+        private final Map<String, byte[][]> links = new HashMap<>();
+
+        public synchronized void add(OfflineTransaction tx) {
+            TxChain.Link link = TxChain.linkOf(tx);
+            if (link != null) {
+                links.put(key(link.chainId, link.sequence), new byte[][]{TxChain.hash(tx.payload), link.prevHash});
+            }
+        }
+
+        public synchronized int size() {
+            return links.size();
+        }
+
+        @Override
+        public synchronized byte[] hash(long chainId, long sequence) {
+            byte[][] link = links.get(key(chainId, sequence));
+            return link != null ? link[0] : null;
+        }
+
+        @Override
+        public synchronized byte[] prevHash(long chainId, long sequence) {
+            byte[][] link = links.get(key(chainId, sequence));
+            return link != null ? link[1] : null;
+        }
+
+        private static String key(long chainId, long sequence) {
+            return chainId + ":" + sequence;
+        }
+    }
+
+    public static final class Result {
+        public final boolean signatureValid;
+        // One of ANCHORED, UNANCHORED, INVALID per batch transaction
+        public final int[] status;
+        // Sequence numbers between the oldest batch transaction's predecessor and the head
+        // that are neither in the batch nor known: deleted, or not uploaded yet
+        public final List<Long> missing;
+        // What is wrong with the batch (nothing anchored, or it does not start where the
+        // backend expects), or null
+        public final String error;
+
+        Result(boolean signatureValid, int[] status, List<Long> missing, String error) {
+            this.signatureValid = signatureValid;
+            this.status = status;
+            this.missing = missing;
+            this.error = error;
+        }
+
+        public int count(int state) {
+            int n = 0;
+            for (int s : status) if (s == state) n++;
+            return n;
+        }
+
+        public boolean allAnchored() {
+            return signatureValid && count(ANCHORED) == status.length;
+        }
+    }
+
+    private TxChainVerifier() {
+    }
+
+    public static Result verify(PublicKey deviceKey, String deviceId, List<OfflineTransaction> batch,
+                                byte[] statement, byte[] signature, KnownLinks known) {
+        int n = batch.size();
+        int[] status = new int[n];
+        List<Long> missing = new ArrayList<>();
+        Arrays.fill(status, UNANCHORED);
+
+        TxChain.Statement s = TxChain.parseStatement(statement);
+        if (s == null) return new Result(false, status, missing, "Malformed statement");
+        if (!s.deviceId.equals(deviceId)) return new Result(false, status, missing, "Statement is for another device");
+        boolean signatureValid;
+        try {
+            Signature verifier = Signature.getInstance(SessionSigner.SIGNATURE_ALGORITHM);
+            verifier.initVerify(deviceKey);
+            verifier.update(statement);
+            signatureValid = verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            signatureValid = false;
+        }
+        if (!signatureValid) return new Result(false, status, missing, "Bad statement signature");
+
+        // The signed range has to be this batch's, starting where the chain left off
+        TxChain.Link first = n > 0 ? TxChain.linkOf(batch.get(0)) : null;
+        if (first == null || first.sequence != s.firstSequence || s.firstSequence > s.lastSequence) {
+            return new Result(true, status, missing, "Statement does not cover this batch");
+        }
+        boolean expectedStart = s.firstSequence == 1 || known.hash(s.chainId, s.firstSequence - 1) != null;
+
+        // Links in batch order; anything off-chain or out of order is INVALID
+        TxChain.Link[] links = new TxChain.Link[n];
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            TxChain.Link link = TxChain.linkOf(batch.get(i));
+            if (link == null || link.chainId != s.chainId || link.sequence <= previous
+                    || link.sequence > s.lastSequence) {
+                status[i] = INVALID;
+                continue;
+            }
+            links[i] = link;
+            previous = link.sequence;
+        }
+
+        // Back from the head: expected is the hash that sequence expectedSeq must have
+        byte[] expected = s.head;
+        long expectedSeq = s.lastSequence;
+        boolean intact = true;
+        for (int i = n - 1; i >= 0; i--) {
+            if (links[i] == null) continue;
+            long sequence = links[i].sequence;
+            while (expectedSeq > sequence) {
+                byte[] knownHash = known.hash(s.chainId, expectedSeq);
+                if (knownHash == null) {
+                    missing.add(expectedSeq);
+                    intact = false;
+                } else if (!TxChain.sameHash(knownHash, expected)) {
+                    intact = false;
+                }
+                byte[] knownPrev = known.prevHash(s.chainId, expectedSeq);
+                expected = knownPrev != null ? knownPrev : expected;
+                expectedSeq--;
+            }
+            if (intact && TxChain.sameHash(TxChain.hash(batch.get(i).payload), expected)) {
+                status[i] = ANCHORED;
+            } else {
+                intact = false;
+            }
+            expected = links[i].prevHash;
+            expectedSeq = sequence - 1;
+        }
+
+        // The oldest transaction should follow something already accepted (or be sequence 1)
+        if (expectedSeq > 0 && known.hash(s.chainId, expectedSeq) == null) {
+            missing.add(expectedSeq);
+        }
+
+        String error = null;
+        if (status[n - 1] != ANCHORED) error = "Head does not match the newest transaction";
+        else if (!expectedStart) error = "Batch does not start at the next expected sequence";
+        return new Result(true, status, missing, error);
+    }
+}
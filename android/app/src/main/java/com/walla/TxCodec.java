@@ -0,0 +1,487 @@
+package com.walla;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import okio.ByteString;
+
+/**
+ * Compact binary (TLV) encoding of offline transactions, version 1.
+ *
+ * Every encoding starts with [version][kind] followed by tagged fields, each either a
+ * varint or length-prefixed bytes (unsigned LEB128 varints throughout). The tag's low bit
+ * says which, so decoders skip tags they do not know and fields can be added without a
+ * version bump. Three kinds share the tag space:
+ *   KIND_PAYLOAD - the bytes that get signed (txId, fare, timestamp, TxChain link,
+ *                  and for a capped tap the requested fare and the FarePolicy cap)
+ *   KIND_RECORD  - a signed transaction as TxJournal stores it, signatures as raw bytes
+ *   KIND_REDEEM  - the upload body for /redeem, /redeem/batch and /redeem/chain
+ *                  ({@link #MEDIA_TYPE}): deviceId plus one nested record per transaction;
+ *                  for /redeem/chain also the TxChain batch statement and its signature,
+ *                  with the per-transaction signatures left out
+ *
+ * The JSON forms stay as the fallback for backends that do not advertise the media type.
+ */
+public final class TxCodec {
+
+    public static final String MEDIA_TYPE = "application/vnd.walla.tx+tlv";
+
+    public static final int VERSION = 1;
+
+    static final int KIND_PAYLOAD = 1;
+    static final int KIND_RECORD = 2;
+    static final int KIND_REDEEM = 3;
+
+    // ---- Tags ----
+    // Field number << 1 | wire type; the low bit says how to skip an unknown tag:
+    // 0 = the value is a varint, 1 = the value is length-prefixed bytes
+    static final int T_TX_ID = 1 << 1 | 1;                      // UTF-8 text
+    static final int T_TX_UUID = 2 << 1 | 1;                    // 16 bytes, for txIds that are UUIDs
+    static final int T_AMOUNT = 3 << 1;                         // whole currency units
+    static final int T_TIMESTAMP = 4 << 1;                      // epoch millis
+    static final int T_PAYLOAD_FORMAT = 5 << 1;                 // OfflineTransaction.PAYLOAD_*
+    static final int T_PAYLOAD = 6 << 1 | 1;                    // signed payload bytes
+    static final int T_SIGNATURE = 7 << 1 | 1;
+    static final int T_SESSION_CERT = 8 << 1 | 1;
+    static final int T_SESSION_CERT_SIGNATURE = 9 << 1 | 1;
+    static final int T_DEVICE_ID = 10 << 1 | 1;                 // UTF-8 text
+    static final int T_TRANSACTION = 11 << 1 | 1;               // nested record fields
+    static final int T_CHAIN_ID = 12 << 1 | 1;                  // 8 bytes
+    static final int T_SEQUENCE = 13 << 1;
+    static final int T_PREV_HASH = 14 << 1 | 1;                 // SHA-256 of the previous payload
+    static final int T_CHAIN_STATEMENT = 15 << 1 | 1;           // TxChain batch statement
+    static final int T_CHAIN_SIGNATURE = 16 << 1 | 1;           // device key signature over it
+    static final int T_REQUESTED_FARE = 17 << 1;                // capped taps: what the reader asked
+    static final int T_FARE_CAP = 18 << 1;                      // capped taps: FarePolicy.CAP_*
+
+    private static final Gson gson = new Gson();
+
+    private TxCodec() {
+    }
+
+    /**
+     * Decoded KIND_PAYLOAD
+     */
+    public static final class Payload {
+        public String txId;
+        public int fare;
+        public long timestamp;
+        // TxChain link; sequence 0 when the payload has none
+        public long chainId;
+        public long sequence;
+        public byte[] prevHash;
+        // FarePolicy decision; requestedFare is fare and cap CAP_NONE for an uncapped tap
+        public int requestedFare;
+        public int cap;
+    }
+
+    // ---- Payload ----
+
+    public static byte[] encodePayload(String txId, int fare, long timestamp) {
+        return encodePayload(txId, fare, timestamp, null);
+    }
+
+    public static byte[] encodePayload(String txId, int fare, long timestamp, TxChain.Link link) {
+        return encodePayload(txId, fare, timestamp, link, fare, FarePolicy.CAP_NONE);
+    }
+
+    public static byte[] encodePayload(String txId, int fare, long timestamp, TxChain.Link link,
+                                       int requestedFare, int cap) {
+        Writer out = new Writer(link != null ? 104 : 48);
+        out.header(KIND_PAYLOAD);
+        out.txId(txId);
+        out.varintField(T_AMOUNT, fare);
+        out.varintField(T_TIMESTAMP, timestamp);
+        if (link != null) {
+            out.longField(T_CHAIN_ID, link.chainId);
+            out.varintField(T_SEQUENCE, link.sequence);
+            out.bytesField(T_PREV_HASH, link.prevHash);
+        }
+        if (cap != FarePolicy.CAP_NONE) {
+            out.varintField(T_REQUESTED_FARE, requestedFare);
+            out.varintField(T_FARE_CAP, cap);
+        }
+        return out.toByteArray();
+    }
+
+    public static Payload decodePayload(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes, 0, bytes.length);
+        in.header(KIND_PAYLOAD);
+        Payload payload = new Payload();
+        payload.requestedFare = -1;
+        while (in.hasMore()) {
+            int tag = in.tag();
+            switch (tag) {
+                case T_TX_ID: payload.txId = in.text(); break;
+                case T_TX_UUID: payload.txId = in.uuid(); break;
+                case T_AMOUNT: payload.fare = (int) in.varintValue(); break;
+                case T_TIMESTAMP: payload.timestamp = in.varintValue(); break;
+                case T_CHAIN_ID: payload.chainId = in.longValue(); break;
+                case T_SEQUENCE: payload.sequence = in.varintValue(); break;
+                case T_PREV_HASH: payload.prevHash = in.bytes(); break;
+                case T_REQUESTED_FARE: payload.requestedFare = (int) in.varintValue(); break;
+                case T_FARE_CAP: payload.cap = (int) in.varintValue(); break;
+                default: in.skip(tag); break;
+            }
+        }
+        if (payload.requestedFare < 0) payload.requestedFare = payload.fare;
+        return payload;
+    }
+
+    // ---- Journal record ----
+
+    public static byte[] encodeRecord(OfflineTransaction tx) {
+        Writer out = new Writer(recordSizeHint(tx));
+        out.header(KIND_RECORD);
+        writeRecordFields(out, tx);
+        return out.toByteArray();
+    }
+
+    public static OfflineTransaction decodeRecord(byte[] bytes, int offset, int length) throws IOException {
+        Reader in = new Reader(bytes, offset, offset + length);
+        in.header(KIND_RECORD);
+        return readRecordFields(in);
+    }
+
+    /**
+     * A journal record from before the binary format: Gson JSON with Base64 strings
+     */
+    public static OfflineTransaction decodeLegacyJson(String json) {
+        LegacyTransaction legacy = gson.fromJson(json, LegacyTransaction.class);
+        if (legacy == null) return null;
+        OfflineTransaction tx = new OfflineTransaction();
+        tx.txId = legacy.txId;
+        tx.amount = legacy.amount;
+        tx.timestamp = legacy.timestamp;
+        tx.payloadFormat = OfflineTransaction.PAYLOAD_JSON;
+        tx.payload = legacy.payload != null ? legacy.payload.getBytes(StandardCharsets.UTF_8) : null;
+        tx.signature = fromBase64(legacy.signature);
+        tx.sessionCert = fromBase64(legacy.sessionCert);
+        tx.sessionCertSignature = fromBase64(legacy.sessionCertSignature);
+        return tx;
+    }
+
+    private static final class LegacyTransaction {
+        String txId;
+        int amount;
+        long timestamp;
+        String signature;
+        String payload;
+        String sessionCert;
+        String sessionCertSignature;
+    }
+
+    // ---- Upload body ----
+
+    public static byte[] encodeRedeem(String deviceId, List<OfflineTransaction> transactions) {
+        return encodeRedeem(deviceId, transactions, null);
+    }
+
+    /**
+     * With a chain batch, the body for /redeem/chain: the statement and its signature
+     * stand in for every per-transaction signature and session certificate
+     */
+    public static byte[] encodeRedeem(String deviceId, List<OfflineTransaction> transactions, TxChain.Batch chain) {
+        int hint = 8 + deviceId.length();
+        for (OfflineTransaction tx : transactions) hint += recordSizeHint(tx) + 4;
+        if (chain != null) hint += chain.statement.length + chain.signature.length + 6;
+        Writer out = new Writer(hint);
+        out.header(KIND_REDEEM);
+        out.textField(T_DEVICE_ID, deviceId);
+        if (chain != null) {
+            out.bytesField(T_CHAIN_STATEMENT, chain.statement);
+            out.bytesField(T_CHAIN_SIGNATURE, chain.signature);
+        }
+        Writer nested = new Writer(256);
+        for (OfflineTransaction tx : transactions) {
+            nested.reset();
+            writeRecordFields(nested, tx, chain == null);
+            out.bytesField(T_TRANSACTION, nested.buf, 0, nested.size);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decoded KIND_REDEEM, as a backend (or the replay harness) would read it
+     */
+    public static List<OfflineTransaction> decodeRedeem(byte[] bytes, String[] deviceIdOut) throws IOException {
+        Reader in = new Reader(bytes, 0, bytes.length);
+        in.header(KIND_REDEEM);
+        List<OfflineTransaction> transactions = new ArrayList<>();
+        while (in.hasMore()) {
+            int tag = in.tag();
+            if (tag == T_DEVICE_ID) {
+                String deviceId = in.text();
+                if (deviceIdOut != null && deviceIdOut.length > 0) deviceIdOut[0] = deviceId;
+            } else if (tag == T_TRANSACTION) {
+                int length = in.length();
+                transactions.add(readRecordFields(new Reader(bytes, in.pos, in.pos + length)));
+                in.pos += length;
+            } else {
+                in.skip(tag);
+            }
+        }
+        return transactions;
+    }
+
+    // ---- Base64 for the JSON forms ----
+
+    public static String toBase64(byte[] bytes) {
+        return bytes == null ? null : ByteString.of(bytes).base64();
+    }
+
+    public static byte[] fromBase64(String base64) {
+        if (base64 == null) return null;
+        ByteString decoded = ByteString.decodeBase64(base64);
+        return decoded != null ? decoded.toByteArray() : null;
+    }
+
+    // ---- Internals ----
+
+    private static void writeRecordFields(Writer out, OfflineTransaction tx) {
+        writeRecordFields(out, tx, true);
+    }
+
+    private static void writeRecordFields(Writer out, OfflineTransaction tx, boolean signatures) {
+        out.txId(tx.txId);
+        out.varintField(T_AMOUNT, tx.amount);
+        out.varintField(T_TIMESTAMP, tx.timestamp);
+        if (tx.payloadFormat != OfflineTransaction.PAYLOAD_JSON) {
+            out.varintField(T_PAYLOAD_FORMAT, tx.payloadFormat);
+        }
+        if (tx.sequence > 0) {
+            out.longField(T_CHAIN_ID, tx.chainId);
+            out.varintField(T_SEQUENCE, tx.sequence);
+        }
+        out.bytesField(T_PAYLOAD, tx.payload);
+        if (!signatures) return;
+        out.bytesField(T_SIGNATURE, tx.signature);
+        out.bytesField(T_SESSION_CERT, tx.sessionCert);
+        out.bytesField(T_SESSION_CERT_SIGNATURE, tx.sessionCertSignature);
+    }
+
+    private static OfflineTransaction readRecordFields(Reader in) throws IOException {
+        OfflineTransaction tx = new OfflineTransaction();
+        while (in.hasMore()) {
+            int tag = in.tag();
+            switch (tag) {
+                case T_TX_ID: tx.txId = in.text(); break;
+                case T_TX_UUID: tx.txId = in.uuid(); break;
+                case T_AMOUNT: tx.amount = (int) in.varintValue(); break;
+                case T_TIMESTAMP: tx.timestamp = in.varintValue(); break;
+                case T_PAYLOAD_FORMAT: tx.payloadFormat = (int) in.varintValue(); break;
+                case T_PAYLOAD: tx.payload = in.bytes(); break;
+                case T_SIGNATURE: tx.signature = in.bytes(); break;
+                case T_SESSION_CERT: tx.sessionCert = in.bytes(); break;
+                case T_SESSION_CERT_SIGNATURE: tx.sessionCertSignature = in.bytes(); break;
+                case T_CHAIN_ID: tx.chainId = in.longValue(); break;
+                case T_SEQUENCE: tx.sequence = in.varintValue(); break;
+                default: in.skip(tag); break;
+            }
+        }
+        if (tx.txId == null) throw new IOException("Transaction record without txId");
+        return tx;
+    }
+
+    private static int recordSizeHint(OfflineTransaction tx) {
+        return 60 + len(tx.payload) + len(tx.signature) + len(tx.sessionCert) + len(tx.sessionCertSignature);
+    }
+
+    private static int len(byte[] b) {
+        return b == null ? 0 : b.length + 3;
+    }
+
+    /**
+     * Growable byte buffer; cheaper than ByteArrayOutputStream (no locking, no final copy
+     * when the size hint is right)
+     */
+    private static final class Writer {
+        byte[] buf;
+        int size;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        void header(int kind) {
+            write(VERSION);
+            write(kind);
+        }
+
+        void txId(String txId) {
+            if (txId.length() == 36 && txId.charAt(8) == '-') {
+                try {
+                    UUID uuid = UUID.fromString(txId);
+                    // Only if it round-trips (canonical lower-case form)
+                    if (uuid.toString().equals(txId)) {
+                        tagAndLength(T_TX_UUID, 16);
+                        writeLong(uuid.getMostSignificantBits());
+                        writeLong(uuid.getLeastSignificantBits());
+                        return;
+                    }
+                } catch (IllegalArgumentException ignored) {
+                    // Not a UUID after all
+                }
+            }
+            textField(T_TX_ID, txId);
+        }
+
+        void longField(int tag, long value) {
+            tagAndLength(tag, 8);
+            writeLong(value);
+        }
+
+        void varintField(int tag, long value) {
+            write(tag);
+            varint(value);
+        }
+
+        void textField(int tag, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            bytesField(tag, bytes, 0, bytes.length);
+        }
+
+        void bytesField(int tag, byte[] value) {
+            if (value != null) bytesField(tag, value, 0, value.length);
+        }
+
+        void bytesField(int tag, byte[] value, int offset, int length) {
+            tagAndLength(tag, length);
+            ensure(length);
+            System.arraycopy(value, offset, buf, size, length);
+            size += length;
+        }
+
+        private void tagAndLength(int tag, int length) {
+            write(tag);
+            varint(length);
+        }
+
+        private void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        private void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) buf[size++] = (byte) (v >>> shift);
+        }
+
+        private void write(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra <= buf.length) return;
+            byte[] grown = new byte[Math.max(buf.length * 2, size + extra)];
+            System.arraycopy(buf, 0, grown, 0, size);
+            buf = grown;
+        }
+
+        byte[] toByteArray() {
+            if (size == buf.length) return buf;
+            byte[] out = new byte[size];
+            System.arraycopy(buf, 0, out, 0, size);
+            return out;
+        }
+    }
+
+    private static final class Reader {
+        final byte[] buf;
+        int pos;
+        final int limit;
+
+        Reader(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        void header(int expectedKind) throws IOException {
+            if (limit - pos < 2) throw new IOException("Truncated tx encoding");
+            int version = buf[pos++] & 0xFF;
+            int kind = buf[pos++] & 0xFF;
+            if (version != VERSION) throw new IOException("Unsupported tx encoding version " + version);
+            if (kind != expectedKind) throw new IOException("Expected tx encoding kind " + expectedKind + ", got " + kind);
+        }
+
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        int tag() {
+            return buf[pos++] & 0xFF;
+        }
+
+        // The value of a varint field (tag already read)
+        long varintValue() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) throw new IOException("Truncated varint");
+                int b = buf[pos++] & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Varint too long");
+        }
+
+        int length() throws IOException {
+            long length = varintValue();
+            if (length < 0 || length > limit - pos) throw new IOException("Bad field length " + length);
+            return (int) length;
+        }
+
+        byte[] bytes() throws IOException {
+            int length = length();
+            byte[] out = new byte[length];
+            System.arraycopy(buf, pos, out, 0, length);
+            pos += length;
+            return out;
+        }
+
+        String text() throws IOException {
+            int length = length();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        long longValue() throws IOException {
+            if (length() != 8) throw new IOException("Bad fixed64 length");
+            long v = 0;
+            for (int i = 0; i < 8; i++) v = (v << 8) | (buf[pos++] & 0xFF);
+            return v;
+        }
+
+        String uuid() throws IOException {
+            if (length() != 16) throw new IOException("Bad UUID length");
+            long msb = 0;
+            long lsb = 0;
+            for (int i = 0; i < 8; i++) msb = (msb << 8) | (buf[pos++] & 0xFF);
+            for (int i = 0; i < 8; i++) lsb = (lsb << 8) | (buf[pos++] & 0xFF);
+            return new UUID(msb, lsb).toString();
+        }
+
+        void skip(int tag) throws IOException {
+            if ((tag & 1) == 0) {
+                varintValue();
+            } else {
+                pos += length();
+            }
+        }
+    }
+}
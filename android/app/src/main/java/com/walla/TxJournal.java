@@ -0,0 +1,907 @@
+package com.walla;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Append-only journal of offline transactions.
+ *
+ * Transactions live in numbered segment files (seg-00000001.log, ...). Every record is
+ * length-prefixed and sealed on its own with {@link RecordCipher}, so an append only
+ * encrypts and writes that record - the cost no longer grows with the queue size.
+ *
+ * Acknowledging a transaction appends a small ACK record (REJECT for one the backend
+ * refused). Sealed segments whose transactions are all settled are deleted by
+ * compaction; mostly-settled ones are rewritten with only their live records.
+ *
+ * Only txIds and their states are kept in memory. Transactions themselves are streamed
+ * from disk through a {@link Cursor}.
+ *
+ * Each transaction moves PENDING -> IN_FLIGHT -> ACKED or REJECTED, every transition
+ * a single lookup under the journal lock. An uploader must {@link #claim} a transaction
+ * (or append it already claimed) before sending it, so the HCE service and the sync
+ * worker never upload the same txId at once; a failed upload {@link #release}s it back
+ * to PENDING. IN_FLIGHT is not written to disk - after a restart it is PENDING again
+ * and the backend's duplicate check covers an upload that was cut off mid-way.
+ *
+ * The journal also keeps the device's {@link TxChain}: the head is recovered from the
+ * newest chained transaction record, and every new segment starts with a CHAIN record
+ * holding it, so compaction never drops the head with the settled transactions.
+ *
+ * A {@link QueueListener} hears about every settlement, for counters over the unsettled
+ * queue (RiskLimits) that the tap path reads without taking the journal lock.
+ */
+public class TxJournal implements Closeable {
+
+    // ---- Transaction states ----
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_PENDING = 1;
+    public static final int STATE_IN_FLIGHT = 2;
+    public static final int STATE_ACKED = 3;
+    public static final int STATE_REJECTED = 4;
+
+    private static final byte KIND_TX = 1;
+    private static final byte KIND_ACK = 2;
+    private static final byte KIND_REJECT = 3;
+    private static final byte KIND_CHAIN = 4;
+
+    // Record body encoding. FORMAT_JSON transaction records predate TxCodec and are
+    // still read; new ones are written as FORMAT_TLV. ACK and REJECT bodies are the bare
+    // UTF-8 txId, tagged FORMAT_TXID (older journals tagged them FORMAT_JSON; the body is
+    // the same). CHAIN bodies are FORMAT_TLV [8 chain id][8 sequence][32 hash].
+    private static final byte FORMAT_JSON = 1;
+    private static final byte FORMAT_TLV = 2;
+    private static final byte FORMAT_TXID = 3;
+
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final int DEFAULT_SEGMENT_BYTES = 64 * 1024;
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Copy of a sealed segment that failed to read back in full, kept for support
+    private static final String QUARANTINE_SUFFIX = ".corrupt";
+
+    private final File dir;
+    private final RecordCipher cipher;
+    private final int maxSegmentBytes;
+    private final boolean syncOnWrite;
+
+    // Segment id -> segment, oldest first
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    // Every transaction record still on disk, acknowledged or not
+    private final Map<String, Entry> index = new HashMap<>();
+
+    /**
+     * Called under the journal lock, so keep it cheap and never call back into the journal
+     */
+    public interface QueueListener {
+        // The whole unsettled queue: when the listener is set, and after clear()
+        void onQueueReset(int pendingCount, long pendingAmount);
+
+        // One transaction of {@code amount} was acked or rejected
+        void onSettled(int amount);
+    }
+
+    private QueueListener listener;
+
+    private Segment active;
+    private FileOutputStream activeOut;
+    private int pendingCount;
+    private long pendingAmount;
+    private int inFlightCount;
+    private int openCursors;
+    private int droppedTailBytes;
+    private int quarantinedSegments;
+
+    // Newest chained transaction appended, and the chain the sign stage extends
+    private TxChain.Head chainHead;
+    private TxChain chain;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "tx-journal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+
+    private static final class Entry {
+        final int segment;
+        // Fare in whole currency units, counted in pendingAmount until settled
+        final int amount;
+        int state = STATE_PENDING;
+        // Segment holding the ACK or REJECT record, -1 until settled
+        int settleSegment = -1;
+
+        Entry(int segment, int amount) {
+            this.segment = segment;
+            this.amount = amount;
+        }
+
+        boolean isSettled() {
+            return settleSegment >= 0;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        long bytes;
+        int txRecords;
+        int liveTx;
+        // ACK and REJECT records here whose transaction lives in another segment still on disk
+        int foreignAcks;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    public TxJournal(File dir, RecordCipher cipher) throws IOException {
+        this(dir, cipher, DEFAULT_SEGMENT_BYTES, true);
+    }
+
+    public TxJournal(File dir, RecordCipher cipher, int maxSegmentBytes, boolean syncOnWrite) throws IOException {
+        this.dir = dir;
+        this.cipher = cipher;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncOnWrite = syncOnWrite;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        recover();
+    }
+
+    // ---- Writes ----
+
+    /**
+     * Append a transaction. O(1): one sealed record written to the active segment.
+     * Returns false if the txId is already in the journal.
+     */
+    public boolean append(OfflineTransaction tx) throws IOException {
+        return append(tx, false);
+    }
+
+    /**
+     * Append a transaction, IN_FLIGHT when {@code claim} is set: the caller is about to
+     * upload it and no cursor will hand it out until it is released.
+     *
+     * A transaction linked from {@link #chain} advances the chain once its record is
+     * written; if the write fails the head stays put and the next link reuses the sequence.
+     */
+    public synchronized boolean append(OfflineTransaction tx, boolean claim) throws IOException {
+        if (tx == null || tx.txId == null) throw new IllegalArgumentException("Transaction without txId");
+        if (index.containsKey(tx.txId)) return false;
+        boolean linked = tx.sequence > 0 && chain != null && chain.chainId() == tx.chainId;
+        if (linked && !chain.follows(tx)) {
+            throw new IllegalStateException("Transaction " + tx.sequence + " does not follow the chain head");
+        }
+
+        writeRecord(KIND_TX, FORMAT_TLV, TxCodec.encodeRecord(tx));
+
+        if (tx.sequence > 0) chainHead = new TxChain.Head(tx.chainId, tx.sequence, TxChain.hash(tx.payload));
+        if (linked) chain.advance(tx);
+
+        Entry entry = new Entry(active.id, tx.amount);
+        if (claim) {
+            entry.state = STATE_IN_FLIGHT;
+            inFlightCount++;
+        }
+        index.put(tx.txId, entry);
+        active.txRecords++;
+        active.liveTx++;
+        pendingCount++;
+        pendingAmount += tx.amount;
+        rollIfFull();
+        return true;
+    }
+
+    /**
+     * Replaces any previous listener; it is handed the current queue straight away
+     */
+    public synchronized void setQueueListener(QueueListener listener) {
+        this.listener = listener;
+        if (listener != null) listener.onQueueReset(pendingCount, pendingAmount);
+    }
+
+    /**
+     * PENDING -> IN_FLIGHT. Returns false if the transaction is unknown, settled or
+     * already claimed by another uploader.
+     */
+    public synchronized boolean claim(String txId) {
+        Entry entry = index.get(txId);
+        if (entry == null || entry.state != STATE_PENDING) return false;
+        entry.state = STATE_IN_FLIGHT;
+        inFlightCount++;
+        return true;
+    }
+
+    /**
+     * IN_FLIGHT -> PENDING after an upload that did not settle the transaction.
+     * A no-op in any other state, so it is safe in a finally block.
+     */
+    public synchronized boolean release(String txId) {
+        Entry entry = index.get(txId);
+        if (entry == null || entry.state != STATE_IN_FLIGHT) return false;
+        entry.state = STATE_PENDING;
+        inFlightCount--;
+        return true;
+    }
+
+    public synchronized int releaseAll(Collection<String> txIds) {
+        int released = 0;
+        for (String txId : txIds) {
+            if (release(txId)) released++;
+        }
+        return released;
+    }
+
+    /**
+     * Acknowledge a synced transaction. Returns false if it was already settled.
+     */
+    public synchronized boolean ack(String txId) throws IOException {
+        return settle(txId, KIND_ACK);
+    }
+
+    /**
+     * Settle a transaction the backend refused for good. Returns false if it was already settled.
+     */
+    public synchronized boolean reject(String txId) throws IOException {
+        return settle(txId, KIND_REJECT);
+    }
+
+    /**
+     * Acknowledge several transactions with a single write and sync
+     */
+    public synchronized int ackAll(Collection<String> txIds) throws IOException {
+        return settleAll(txIds, KIND_ACK);
+    }
+
+    public synchronized int rejectAll(Collection<String> txIds) throws IOException {
+        return settleAll(txIds, KIND_REJECT);
+    }
+
+    /**
+     * Not yet settled, whether or not an upload is in flight
+     */
+    public synchronized boolean isPending(String txId) {
+        Entry entry = index.get(txId);
+        return entry != null && !entry.isSettled();
+    }
+
+    /**
+     * One of the STATE_ constants, O(1). STATE_UNKNOWN for txIds never appended, and for
+     * settled ones once compaction has dropped them.
+     */
+    public synchronized int state(String txId) {
+        Entry entry = index.get(txId);
+        return entry != null ? entry.state : STATE_UNKNOWN;
+    }
+
+    /**
+     * Number of unsettled transactions (PENDING or IN_FLIGHT), O(1)
+     */
+    public synchronized int pendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Sum of the unsettled fares, whole currency units, O(1). Seeds the balance store's
+     * unsettled count when it opens (see BalanceReconciler).
+     */
+    public synchronized long pendingAmount() {
+        return pendingAmount;
+    }
+
+    public synchronized int inFlightCount() {
+        return inFlightCount;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * The chain new transactions are linked into: continued from the newest chained
+     * record, or a new one if there is none
+     */
+    public synchronized TxChain chain() {
+        if (chain == null) {
+            chain = chainHead != null ? new TxChain(chainHead) : TxChain.start(new SecureRandom());
+        }
+        return chain;
+    }
+
+    /**
+     * Newest chained transaction in the journal, or null
+     */
+    public synchronized TxChain.Head chainHead() {
+        return chainHead;
+    }
+
+    /**
+     * Bytes dropped from a torn tail write during the last recovery
+     */
+    public synchronized int droppedTailBytes() {
+        return droppedTailBytes;
+    }
+
+    /**
+     * Sealed segments found damaged during the last recovery. Their readable records
+     * were kept and the original file copied aside with a .corrupt suffix.
+     */
+    public synchronized int quarantinedSegments() {
+        return quarantinedSegments;
+    }
+
+    /**
+     * Remove every segment (logout)
+     */
+    public synchronized void clear() throws IOException {
+        closeActive();
+        for (Segment segment : segments.values()) {
+            if (!segment.file.delete() && segment.file.exists()) {
+                throw new IOException("Cannot delete " + segment.file);
+            }
+        }
+        File[] quarantined = dir.listFiles((d, name) -> name.endsWith(QUARANTINE_SUFFIX));
+        if (quarantined != null) {
+            for (File file : quarantined) file.delete();
+        }
+        segments.clear();
+        index.clear();
+        pendingCount = 0;
+        pendingAmount = 0;
+        inFlightCount = 0;
+        chainHead = null;
+        chain = null;
+        openNewSegment(1);
+        if (listener != null) listener.onQueueReset(0, 0);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        compactor.shutdown();
+        closeActive();
+    }
+
+    // ---- Reads ----
+
+    /**
+     * Stream unsettled transactions in append order. Records settled while the cursor
+     * is open are skipped. Compaction waits until every cursor is closed.
+     */
+    public synchronized Cursor cursor() {
+        List<Segment> snapshot = new ArrayList<>(segments.values());
+        long[] limits = new long[snapshot.size()];
+        for (int i = 0; i < limits.length; i++) limits[i] = snapshot.get(i).bytes;
+        openCursors++;
+        return new Cursor(snapshot, limits);
+    }
+
+    public final class Cursor implements Closeable {
+        private final List<Segment> segmentList;
+        private final long[] limits;
+        private int segmentIndex = -1;
+        private DataInputStream in;
+        private byte[] aad;
+        private long position;
+        private boolean closed;
+        private int skippedRecords;
+
+        private Cursor(List<Segment> segmentList, long[] limits) {
+            this.segmentList = segmentList;
+            this.limits = limits;
+        }
+
+        /**
+         * Next unsettled transaction, in flight or not, or null when the journal is exhausted
+         */
+        public OfflineTransaction next() throws IOException {
+            while (!closed) {
+                if (in == null && !openNextSegment()) return null;
+
+                if (position >= limits[segmentIndex]) {
+                    closeSegment();
+                    continue;
+                }
+
+                byte[] plain;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES
+                            || position + 4 + length > limits[segmentIndex]) {
+                        throw new IOException("Bad record length " + length);
+                    }
+                    byte[] sealed = new byte[length];
+                    in.readFully(sealed);
+                    position += 4 + length;
+                    plain = cipher.open(sealed, aad);
+                } catch (IOException | GeneralSecurityException e) {
+                    // Unreadable remainder of this segment - move on to the next one
+                    skippedRecords++;
+                    closeSegment();
+                    continue;
+                }
+
+                if (plain[0] != KIND_TX) continue;
+
+                OfflineTransaction tx = decodeTx(plain);
+                if (tx != null && isPending(tx.txId)) return tx;
+            }
+            return null;
+        }
+
+        /**
+         * Next PENDING transaction, claimed for the caller (now IN_FLIGHT). Transactions
+         * another uploader holds are skipped.
+         */
+        public OfflineTransaction claimNext() throws IOException {
+            OfflineTransaction tx;
+            while ((tx = next()) != null) {
+                if (claim(tx.txId)) return tx;
+            }
+            return null;
+        }
+
+        public int skippedRecords() {
+            return skippedRecords;
+        }
+
+        private boolean openNextSegment() {
+            while (++segmentIndex < segmentList.size()) {
+                Segment segment = segmentList.get(segmentIndex);
+                try {
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+                    aad = segmentAad(segment.id);
+                    position = 0;
+                    return true;
+                } catch (IOException e) {
+                    skippedRecords++;
+                }
+            }
+            return false;
+        }
+
+        private void closeSegment() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+                in = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            closeSegment();
+            synchronized (TxJournal.this) {
+                openCursors--;
+            }
+            scheduleCompactionIfUseful();
+        }
+    }
+
+    // ---- Compaction ----
+
+    /**
+     * Run compaction on the journal's background thread
+     */
+    public void compactAsync() {
+        if (!compactionScheduled.compareAndSet(false, true)) return;
+        compactor.execute(() -> {
+            compactionScheduled.set(false);
+            try {
+                compact();
+            } catch (IOException | GeneralSecurityException ignored) {
+                // Left for the next compaction pass
+            }
+        });
+    }
+
+    /**
+     * Delete sealed segments with nothing left to keep and rewrite sealed segments
+     * that are mostly acknowledged. Returns the number of segments removed or rewritten.
+     * Skipped while a cursor is open.
+     */
+    public synchronized int compact() throws IOException, GeneralSecurityException {
+        if (openCursors > 0) return 0;
+
+        int changed = 0;
+        List<Segment> sealed = new ArrayList<>(segments.values());
+        sealed.remove(active);
+
+        for (Segment segment : sealed) {
+            if (segment.liveTx == 0 && segment.foreignAcks == 0) {
+                dropIndexEntries(segment);
+                if (!segment.file.delete()) throw new IOException("Cannot delete " + segment.file);
+                segments.remove(segment.id);
+                changed++;
+            } else if (segment.txRecords - segment.liveTx > segment.liveTx) {
+                rewrite(segment);
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private boolean hasCompactableSegment() {
+        for (Segment segment : segments.values()) {
+            if (segment == active) continue;
+            if (segment.liveTx == 0 && segment.foreignAcks == 0) return true;
+            if (segment.txRecords - segment.liveTx > segment.liveTx) return true;
+        }
+        return false;
+    }
+
+    private void scheduleCompactionIfUseful() {
+        boolean useful;
+        synchronized (this) {
+            useful = openCursors == 0 && hasCompactableSegment();
+        }
+        if (useful) compactAsync();
+    }
+
+    private void rewrite(Segment segment) throws IOException, GeneralSecurityException {
+        byte[] aad = segmentAad(segment.id);
+        File tmp = new File(dir, segment.file.getName() + ".tmp");
+
+        long bytes = 0;
+        int txRecords = 0;
+        int foreignAcks = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+             FileOutputStream out = new FileOutputStream(tmp)) {
+            long remaining = segment.bytes;
+            while (remaining > 0) {
+                int length = in.readInt();
+                byte[] sealed = new byte[length];
+                in.readFully(sealed);
+                remaining -= 4 + length;
+
+                byte[] plain = cipher.open(sealed, aad);
+                // Every newer segment starts with its own copy of the chain head
+                if (plain[0] == KIND_CHAIN) continue;
+                String txId;
+                if (plain[0] == KIND_TX) {
+                    OfflineTransaction tx = decodeTx(plain);
+                    txId = tx != null ? tx.txId : null;
+                } else {
+                    txId = decodeAckTxId(plain);
+                }
+                Entry entry = index.get(txId);
+                if (entry == null) continue;
+
+                boolean keep;
+                if (plain[0] == KIND_TX) {
+                    keep = !entry.isSettled();
+                    if (keep) txRecords++;
+                } else {
+                    // Keep an ACK/REJECT only while its transaction is still on disk elsewhere
+                    keep = entry.segment != segment.id;
+                    if (keep) foreignAcks++;
+                }
+                if (keep) {
+                    bytes += writeFrame(out, sealed);
+                }
+            }
+            if (syncOnWrite) out.getFD().sync();
+        }
+
+        dropIndexEntries(segment);
+        if (!tmp.renameTo(segment.file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + segment.file);
+        }
+        segment.bytes = bytes;
+        segment.txRecords = txRecords;
+        segment.liveTx = txRecords;
+        segment.foreignAcks = foreignAcks;
+    }
+
+    /**
+     * Forget settled transactions stored in this segment before it is removed
+     * or rewritten without them.
+     */
+    private void dropIndexEntries(Segment segment) {
+        Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.segment != segment.id || !entry.isSettled()) continue;
+            if (entry.settleSegment != segment.id) {
+                Segment settleSegment = segments.get(entry.settleSegment);
+                if (settleSegment != null) settleSegment.foreignAcks--;
+            }
+            it.remove();
+        }
+    }
+
+    // ---- Internals ----
+
+    private boolean settle(String txId, byte kind) throws IOException {
+        Entry entry = index.get(txId);
+        if (entry == null || entry.isSettled()) return false;
+
+        writeRecord(kind, FORMAT_TXID, txId.getBytes(StandardCharsets.UTF_8));
+        markSettled(entry, active.id, kind);
+        rollIfFull();
+        scheduleCompactionIfUseful();
+        return true;
+    }
+
+    private int settleAll(Collection<String> txIds, byte kind) throws IOException {
+        int settled = 0;
+        for (String txId : txIds) {
+            Entry entry = index.get(txId);
+            if (entry == null || entry.isSettled()) continue;
+            writeRecordNoSync(kind, FORMAT_TXID, txId.getBytes(StandardCharsets.UTF_8));
+            markSettled(entry, active.id, kind);
+            settled++;
+        }
+        if (settled > 0 && syncOnWrite) activeOut.getFD().sync();
+        rollIfFull();
+        scheduleCompactionIfUseful();
+        return settled;
+    }
+
+    private void markSettled(Entry entry, int settleSegmentId, byte kind) {
+        if (entry.state == STATE_IN_FLIGHT) inFlightCount--;
+        entry.state = kind == KIND_REJECT ? STATE_REJECTED : STATE_ACKED;
+        entry.settleSegment = settleSegmentId;
+        pendingCount--;
+        pendingAmount -= entry.amount;
+        if (listener != null) listener.onSettled(entry.amount);
+        Segment txSegment = segments.get(entry.segment);
+        if (txSegment != null) txSegment.liveTx--;
+        if (entry.segment != settleSegmentId) segments.get(settleSegmentId).foreignAcks++;
+    }
+
+    private void writeRecord(byte kind, byte format, byte[] body) throws IOException {
+        writeRecordNoSync(kind, format, body);
+        if (syncOnWrite) activeOut.getFD().sync();
+    }
+
+    private void writeRecordNoSync(byte kind, byte format, byte[] body) throws IOException {
+        byte[] plain = new byte[2 + body.length];
+        plain[0] = kind;
+        plain[1] = format;
+        System.arraycopy(body, 0, plain, 2, body.length);
+
+        byte[] sealed;
+        try {
+            sealed = cipher.seal(plain, segmentAad(active.id));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal journal record", e);
+        }
+        if (sealed.length > MAX_RECORD_BYTES) throw new IOException("Journal record too large");
+        try {
+            active.bytes += writeFrame(activeOut, sealed);
+        } catch (IOException e) {
+            // Cut off whatever part of the frame reached the file, or the next append
+            // would land behind it and recovery would drop both
+            try {
+                activeOut.getChannel().truncate(active.bytes);
+            } catch (IOException truncate) {
+                e.addSuppressed(truncate);
+            }
+            throw e;
+        }
+    }
+
+    private static int writeFrame(FileOutputStream out, byte[] sealed) throws IOException {
+        byte[] frame = new byte[4 + sealed.length];
+        frame[0] = (byte) (sealed.length >>> 24);
+        frame[1] = (byte) (sealed.length >>> 16);
+        frame[2] = (byte) (sealed.length >>> 8);
+        frame[3] = (byte) sealed.length;
+        System.arraycopy(sealed, 0, frame, 4, sealed.length);
+        out.write(frame);
+        return frame.length;
+    }
+
+    private void rollIfFull() throws IOException {
+        if (active.bytes < maxSegmentBytes) return;
+        closeActive();
+        openNewSegment(active.id + 1);
+        if (chainHead != null) writeRecord(KIND_CHAIN, FORMAT_TLV, encodeChainHead(chainHead));
+    }
+
+    private void openNewSegment(int id) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id));
+        activeOut = new FileOutputStream(segment.file, true);
+        segment.bytes = segment.file.length();
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    private void closeActive() throws IOException {
+        if (activeOut != null) {
+            activeOut.close();
+            activeOut = null;
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] segmentAad(int id) {
+        return new byte[]{(byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id};
+    }
+
+    private static OfflineTransaction decodeTx(byte[] plain) {
+        try {
+            if (plain[1] == FORMAT_TLV) return TxCodec.decodeRecord(plain, 2, plain.length - 2);
+            return TxCodec.decodeLegacyJson(new String(plain, 2, plain.length - 2, StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            // Authenticated but undecodable (e.g. written by a newer version) - skipped
+            return null;
+        }
+    }
+
+    private static byte[] encodeChainHead(TxChain.Head head) {
+        return ByteBuffer.allocate(16 + TxChain.HASH_LENGTH)
+            .putLong(head.chainId).putLong(head.sequence).put(head.hash).array();
+    }
+
+    private static TxChain.Head decodeChainHead(byte[] plain) {
+        if (plain.length != 2 + 16 + TxChain.HASH_LENGTH) return null;
+        ByteBuffer in = ByteBuffer.wrap(plain, 2, plain.length - 2);
+        long chainId = in.getLong();
+        long sequence = in.getLong();
+        byte[] hash = new byte[TxChain.HASH_LENGTH];
+        in.get(hash);
+        return new TxChain.Head(chainId, sequence, hash);
+    }
+
+    // Body of an ACK or REJECT, FORMAT_TXID or the FORMAT_JSON tag older journals used
+    private static String decodeAckTxId(byte[] plain) {
+        return new String(plain, 2, plain.length - 2, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rebuild the in-memory index from the segment files. A torn record at the end
+     * of the newest segment (process killed mid-write) is truncated away.
+     *
+     * Older segments were sealed by a completed roll, so unreadable bytes there are
+     * damage, not a torn write. Their readable records are kept, the file is copied
+     * aside as .corrupt before it is cut back to them, and quarantinedSegments()
+     * reports it.
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        TreeMap<Integer, File> found = new TreeMap<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".tmp")) {
+                    // Interrupted rewrite - the original segment is still intact
+                    file.delete();
+                    continue;
+                }
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+                try {
+                    int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    found.put(id, file);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        int newest = found.isEmpty() ? 0 : found.lastKey();
+        for (Map.Entry<Integer, File> e : found.entrySet()) {
+            Segment segment = new Segment(e.getKey(), e.getValue());
+            segments.put(segment.id, segment);
+            long valid = scanSegment(segment);
+            long length = segment.file.length();
+            if (valid < length) {
+                if (segment.id == newest) {
+                    droppedTailBytes += (int) (length - valid);
+                } else {
+                    quarantine(segment.file);
+                    quarantinedSegments++;
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+            segment.bytes = valid;
+        }
+
+        if (segments.isEmpty()) {
+            openNewSegment(1);
+        } else {
+            Segment last = segments.lastEntry().getValue();
+            activeOut = new FileOutputStream(last.file, true);
+            active = last;
+            rollIfFull();
+        }
+    }
+
+    private void quarantine(File file) throws IOException {
+        File copy = new File(dir, file.getName() + QUARANTINE_SUFFIX);
+        byte[] buffer = new byte[8192];
+        try (FileInputStream in = new FileInputStream(file);
+             FileOutputStream out = new FileOutputStream(copy)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            out.getFD().sync();
+        }
+    }
+
+    private long scanSegment(Segment segment) throws IOException {
+        byte[] aad = segmentAad(segment.id);
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException end) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_BYTES) break;
+                byte[] sealed = new byte[length];
+                try {
+                    in.readFully(sealed);
+                } catch (EOFException torn) {
+                    break;
+                }
+
+                byte[] plain;
+                try {
+                    plain = cipher.open(sealed, aad);
+                } catch (GeneralSecurityException corrupt) {
+                    break;
+                }
+                valid += 4 + length;
+                applyRecovered(segment, plain);
+            }
+        }
+        return valid;
+    }
+
+    private void applyRecovered(Segment segment, byte[] plain) {
+        if (plain[0] == KIND_TX) {
+            OfflineTransaction tx = decodeTx(plain);
+            if (tx == null || tx.txId == null || index.containsKey(tx.txId)) return;
+            // Records are scanned in write order, so the last chained one is the head
+            if (tx.sequence > 0) chainHead = new TxChain.Head(tx.chainId, tx.sequence, TxChain.hash(tx.payload));
+            index.put(tx.txId, new Entry(segment.id, tx.amount));
+            segment.txRecords++;
+            segment.liveTx++;
+            pendingCount++;
+            pendingAmount += tx.amount;
+        } else if (plain[0] == KIND_ACK || plain[0] == KIND_REJECT) {
+            Entry entry = index.get(decodeAckTxId(plain));
+            if (entry != null && !entry.isSettled()) markSettled(entry, segment.id, plain[0]);
+        } else if (plain[0] == KIND_CHAIN) {
+            TxChain.Head head = decodeChainHead(plain);
+            if (head != null) chainHead = head;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.walla;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The card side of the tap protocol ({@link TapProtocol}), free of Android types.
+ *
+ * LeapHostApduService forwards every command APDU here and supplies a {@link Host} for
+ * the things that need a Context (alias, balance log) or the UI (events). The benchmarks
+ * and the replay harness drive the same code with their own Host.
+ *
+ * A tap DEDUCT is idempotent per tap nonce (see TapProtocol): approved ones are kept in
+ * a {@link RecentTaps} and a retransmission is answered from there without touching the
+ * balance. Every other DEDUCT form is charged each time it arrives, as in v1.
+ *
+ * A SELECT allocates nothing per call. An approved DEDUCT allocates about 1.5 KB on the
+ * APDU thread: the sealed balance record (it is in the log before SW_OK goes out), the
+ * pipeline's Tap and its task. DeductAllocationTest bounds it at 3 KB.
+ */
+public class WalletApplet {
+
+    // CLA/INS of the commands this card answers
+    public static final int CLA_ISO = 0x00;
+    public static final int CLA_PROPRIETARY = 0x80;
+    public static final int INS_SELECT = 0xA4;
+    public static final int INS_DEDUCT = 0x10;
+
+    public static final byte[] SW_OK = ApduDispatcher.SW_OK;
+    public static final byte[] SW_FAIL = ApduDispatcher.SW_CONDITIONS_NOT_SATISFIED;
+    // Post-tap pipeline is full - the reader should retry the tap
+    public static final byte[] SW_BUSY = ApduDispatcher.SW_NOT_ENOUGH_MEMORY;
+    // Bound DEDUCT whose card nonce is not the one from the last SELECT
+    public static final byte[] SW_STALE_NONCE = ApduDispatcher.SW_SECURITY_STATUS_NOT_SATISFIED;
+    // An offline risk limit is reached - the wallet must sync first
+    public static final byte[] SW_UNSYNCED_VALUE = ApduDispatcher.sw(TapProtocol.SW_UNSYNCED_VALUE);
+    public static final byte[] SW_UNSYNCED_COUNT = ApduDispatcher.sw(TapProtocol.SW_UNSYNCED_COUNT);
+    public static final byte[] SW_SYNC_OVERDUE = ApduDispatcher.sw(TapProtocol.SW_SYNC_OVERDUE);
+
+    // Why a DEDUCT was declined
+    public static final int DECLINE_BUSY = 1;
+    public static final int DECLINE_NOT_REGISTERED = 2;
+    public static final int DECLINE_NO_BALANCE = 3;
+    public static final int DECLINE_INSUFFICIENT = 4;
+    public static final int DECLINE_UNSYNCED_VALUE = 5;
+    public static final int DECLINE_UNSYNCED_COUNT = 6;
+    public static final int DECLINE_SYNC_OVERDUE = 7;
+
+    private static final int NONCE_BLOCK = 32;
+
+    /**
+     * Platform side of the applet. Called on the APDU thread, so keep it cheap.
+     */
+    public interface Host {
+        // Registered key alias, loaded on a cold start; null if the device is not registered
+        String alias();
+
+        // Balance log, replayed on a cold start; null if it cannot be opened
+        BalanceStore balanceStore();
+
+        // Daily/weekly fare caps; null charges the requested fare
+        FarePolicy farePolicy();
+
+        // Offline risk limits; null approves whatever the balance covers
+        RiskLimits riskLimits();
+
+        void onDeducted(int fare, double newBalance);
+
+        void onDeclined(int reason, long balanceMinor);
+
+        void onError(Exception e);
+    }
+
+    private final Host host;
+    private final TapPipeline pipeline;
+
+    private final LatencyHistogram selectLatency;
+    private final LatencyHistogram selectDeductLatency;
+    private final LatencyHistogram deductLatency;
+    private final LatencyHistogram otherLatency;
+    private final LatencyHistogram deductCritical;
+    private final LongAdder approved;
+    private final LongAdder declined;
+    private final LongAdder capped;
+    private final LongAdder riskDeclined;
+    private final LongAdder replayed;
+
+    // Card nonce handed out by the last SELECT of this field session. APDUs arrive on one
+    // thread, so these are only touched there.
+    private final SecureRandom random = new SecureRandom();
+    // Card nonces are drawn from a block filled in one call; nextLong allocates per call
+    private final byte[] nonceBlock = new byte[NONCE_BLOCK * TapProtocol.NONCE_LENGTH];
+    private int noncePos = nonceBlock.length;
+    private long cardNonce;
+    private boolean nonceValid;
+    // SELECT response carrying cardNonce, rewritten in place for every new nonce
+    private final byte[] selectResponse = TapProtocol.newSelectResponse();
+    private final RecentTaps recentTaps = new RecentTaps();
+
+    private final ApduDispatcher dispatcher = new ApduDispatcher()
+        .register(CLA_ISO, INS_SELECT, this::handleSelect)
+        .register(CLA_PROPRIETARY, INS_DEDUCT, this::handleDeduct);
+
+    public WalletApplet(Host host, TapPipeline pipeline) {
+        this(host, pipeline, MetricsRegistry.global());
+    }
+
+    public WalletApplet(Host host, TapPipeline pipeline, MetricsRegistry metrics) {
+        this.host = host;
+        this.pipeline = pipeline;
+        selectLatency = metrics.histogram(MetricsRegistry.APDU_SELECT);
+        selectDeductLatency = metrics.histogram(MetricsRegistry.APDU_SELECT_DEDUCT);
+        deductLatency = metrics.histogram(MetricsRegistry.APDU_DEDUCT);
+        otherLatency = metrics.histogram(MetricsRegistry.APDU_OTHER);
+        deductCritical = metrics.histogram(MetricsRegistry.DEDUCT_CRITICAL);
+        approved = metrics.counter(MetricsRegistry.DEDUCT_APPROVED);
+        declined = metrics.counter(MetricsRegistry.DEDUCT_DECLINED);
+        capped = metrics.counter(MetricsRegistry.DEDUCT_CAPPED);
+        riskDeclined = metrics.counter(MetricsRegistry.DEDUCT_RISK_DECLINED);
+        replayed = metrics.counter(MetricsRegistry.DEDUCT_REPLAYED);
+        // Seed and fill now rather than on the first SELECT
+        refillNonces();
+    }
+
+    public void setTracer(ApduDispatcher.Tracer tracer) {
+        dispatcher.setTracer(tracer);
+    }
+
+    public byte[] process(byte[] apdu) {
+        if (apdu == null) return SW_FAIL;
+        long start = System.nanoTime();
+        byte[] response = dispatcher.dispatch(apdu);
+        long elapsed = System.nanoTime() - start;
+
+        // By CLA and INS, as dispatched: 80 A4 or 00 10 are not commands this card answers
+        int cla = apdu.length > 0 ? apdu[0] & 0xFF : -1;
+        int ins = apdu.length > 1 ? apdu[1] & 0xFF : -1;
+        if (cla == CLA_PROPRIETARY && ins == INS_DEDUCT) deductLatency.record(elapsed);
+        else if (cla == CLA_ISO && ins == INS_SELECT) {
+            if (apdu.length > 5 && (apdu[4] & 0xFF) > TapProtocol.AID.length) selectDeductLatency.record(elapsed);
+            else selectLatency.record(elapsed);
+        } else otherLatency.record(elapsed);
+        return response;
+    }
+
+    /**
+     * The reader has gone (HostApduService.onDeactivated); the card nonce dies with the
+     * session. Reader tap nonces stay until they expire.
+     */
+    public void onDeactivated() {
+        nonceValid = false;
+    }
+
+    // ---- SELECT AID, and SELECT-and-DEDUCT ----
+    private byte[] handleSelect(byte[] apdu, int dataOffset, int lc, int le) {
+        if (apdu[2] != (byte) 0x04 || apdu[3] != (byte) 0x00) return ApduDispatcher.SW_WRONG_P1P2;
+        int mode = TapProtocol.selectMode(apdu, dataOffset, lc);
+        if (mode == TapProtocol.SELECT_OTHER) return ApduDispatcher.SW_FILE_NOT_FOUND;
+
+        if (mode == TapProtocol.SELECT_PLAIN) {
+            newCardNonce();
+            return selectResponse;
+        }
+
+        // No tap nonce fits after the AID, so every SELECT-and-DEDUCT is a new charge
+        int fare = TapProtocol.selectDeductFare(apdu, dataOffset);
+        newCardNonce();
+        byte[] sw = deduct(fare);
+        return sw == SW_OK ? selectResponse : sw;
+    }
+
+    private void newCardNonce() {
+        if (noncePos == nonceBlock.length) refillNonces();
+        cardNonce = TapProtocol.readLong(nonceBlock, noncePos);
+        noncePos += TapProtocol.NONCE_LENGTH;
+        nonceValid = true;
+        TapProtocol.putSelectNonce(selectResponse, cardNonce);
+    }
+
+    private void refillNonces() {
+        random.nextBytes(nonceBlock);
+        noncePos = 0;
+    }
+
+    // ---- DEDUCT FARE ----
+    private byte[] handleDeduct(byte[] apdu, int dataOffset, int lc, int le) {
+        int p2 = apdu[3] & 0xFF;
+        if (p2 == TapProtocol.P2_BOUND_DEDUCT || p2 == TapProtocol.P2_TAP_DEDUCT) {
+            int expectedLc = p2 == TapProtocol.P2_TAP_DEDUCT ? TapProtocol.TAP_DEDUCT_LC : TapProtocol.BOUND_DEDUCT_LC;
+            if (lc != expectedLc) return ApduDispatcher.SW_WRONG_LENGTH;
+            if (!nonceValid || TapProtocol.readLong(apdu, dataOffset + 4) != cardNonce) {
+                declined.increment();
+                return SW_STALE_NONCE;
+            }
+        } else if (p2 != TapProtocol.P2_DEDUCT) {
+            return ApduDispatcher.SW_WRONG_P1P2;
+        } else if (lc != TapProtocol.DEDUCT_LC) {
+            return ApduDispatcher.SW_WRONG_LENGTH;
+        }
+
+        int fare = ApduDispatcher.readInt(apdu, dataOffset);
+        // Without a tap nonce a resend and a second fare in the same session look alike;
+        // v1 charged both, and so does this
+        if (p2 != TapProtocol.P2_TAP_DEDUCT) return deduct(fare);
+        long tapNonce = TapProtocol.readLong(apdu, dataOffset + 4 + TapProtocol.NONCE_LENGTH);
+        byte[] previous = previousAnswer(tapNonce, fare);
+        if (previous != null) return previous;
+        byte[] sw = deduct(fare);
+        if (sw == SW_OK) recentTaps.put(tapNonce, fare, sw, System.nanoTime());
+        return sw;
+    }
+
+    /**
+     * The answer an approved tap got, SW_FAIL when its nonce comes back with another fare,
+     * or null for a new tap. Declined taps are not kept: they charged nothing, so a resend
+     * is simply decided again.
+     */
+    private byte[] previousAnswer(long tapNonce, int fare) {
+        int slot = recentTaps.find(tapNonce, fare, System.nanoTime());
+        if (slot == RecentTaps.MISS) return null;
+        if (slot == RecentTaps.CONFLICT) {
+            declined.increment();
+            return SW_FAIL;
+        }
+        replayed.increment();
+        return recentTaps.response(slot);
+    }
+
+    private byte[] deduct(int fare) {
+        // Backpressure: decline rather than queue unbounded post-tap work
+        if (!pipeline.tryReserve()) {
+            declined.increment();
+            host.onDeclined(DECLINE_BUSY, 0);
+            return SW_BUSY;
+        }
+
+        boolean accepted = false;
+        try {
+            String alias = host.alias();
+            if (alias == null) {
+                declined.increment();
+                host.onDeclined(DECLINE_NOT_REGISTERED, 0);
+                return SW_FAIL;
+            }
+            BalanceStore store = host.balanceStore();
+            if (store == null) {
+                declined.increment();
+                host.onDeclined(DECLINE_NO_BALANCE, 0);
+                return SW_FAIL;
+            }
+
+            // Caps are priced before the balance check, so a capped tap needs only the
+            // capped fare, and the risk limits see what would actually be charged. Fares
+            // arrive in whole currency units, the ledger counts cents. The deduct is in
+            // the log (page cache) before SW_OK goes out.
+            long criticalStart = System.nanoTime();
+            long now = System.currentTimeMillis();
+            FarePolicy policy = host.farePolicy();
+            FarePolicy.Decision decision = policy != null ? policy.quote(fare, now) : null;
+            int charge = decision != null ? decision.fare : fare;
+            RiskLimits limits = host.riskLimits();
+            int limit = limits != null ? limits.check(charge, now) : RiskLimits.OK;
+            if (limit != RiskLimits.OK) {
+                deductCritical.recordSince(criticalStart);
+                return declineOverLimit(limit, store);
+            }
+            long newBalanceMinor = store.deduct(charge * WalletLedger.UNITS_PER_MAJOR);
+            if (newBalanceMinor != WalletLedger.INSUFFICIENT) {
+                if (decision != null) policy.record(decision);
+                if (limits != null) limits.onApproved(charge);
+            }
+            deductCritical.recordSince(criticalStart);
+
+            if (newBalanceMinor == WalletLedger.INSUFFICIENT) {
+                declined.increment();
+                host.onDeclined(DECLINE_INSUFFICIENT, store.balance());
+                return SW_FAIL;
+            }
+
+            double newLocalBalance = WalletLedger.toMajor(newBalanceMinor);
+            int cap = decision != null ? decision.cap : FarePolicy.CAP_NONE;
+            pipeline.submit(alias, charge, fare, cap, newLocalBalance);
+            accepted = true;
+            approved.increment();
+            if (cap != FarePolicy.CAP_NONE) capped.increment();
+
+            host.onDeducted(charge, newLocalBalance);
+
+            // RETURN IMMEDIATELY
+            return SW_OK;
+
+        } catch (Exception e) {
+            host.onError(e);
+            return SW_FAIL;
+        } finally {
+            if (!accepted) pipeline.release();
+        }
+    }
+
+    private byte[] declineOverLimit(int limit, BalanceStore store) {
+        declined.increment();
+        riskDeclined.increment();
+        switch (limit) {
+            case RiskLimits.LIMIT_VALUE:
+                host.onDeclined(DECLINE_UNSYNCED_VALUE, store.balance());
+                return SW_UNSYNCED_VALUE;
+            case RiskLimits.LIMIT_COUNT:
+                host.onDeclined(DECLINE_UNSYNCED_COUNT, store.balance());
+                return SW_UNSYNCED_COUNT;
+            default:
+                host.onDeclined(DECLINE_SYNC_OVERDUE, store.balance());
+                return SW_SYNC_OVERDUE;
+        }
+    }
+}
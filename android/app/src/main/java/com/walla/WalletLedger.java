@@ -0,0 +1,113 @@
+package com.walla;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory wallet balance, held as a long in minor currency units (cents).
+ *
+ * Every mutation is a single CAS on one AtomicLong: a fare is checked and deducted in
+ * one step, top-ups add atomically, and a server reconciliation replaces the value.
+ * Concurrent taps, top-ups and syncs therefore never lose an update and never box.
+ */
+public class WalletLedger {
+
+    public static final long UNITS_PER_MAJOR = 100;
+
+    // Returned by tryDeduct
+    public static final long INSUFFICIENT = Long.MIN_VALUE;
+    public static final long NOT_LOADED = Long.MIN_VALUE + 1;
+
+    private final AtomicLong balance = new AtomicLong(NOT_LOADED);
+
+    public boolean isLoaded() {
+        return balance.get() != NOT_LOADED;
+    }
+
+    /**
+     * Seed the balance from disk. No-op if a value is already loaded.
+     */
+    public boolean load(long balanceMinor) {
+        return balance.compareAndSet(NOT_LOADED, balanceMinor);
+    }
+
+    /**
+     * Current balance in minor units, or NOT_LOADED
+     */
+    public long get() {
+        return balance.get();
+    }
+
+    /**
+     * Check-and-deduct as one CAS.
+     * Returns the new balance, INSUFFICIENT, or NOT_LOADED.
+     */
+    public long tryDeduct(long amountMinor) {
+        if (amountMinor < 0) throw new IllegalArgumentException("Negative fare");
+        while (true) {
+            long current = balance.get();
+            if (current == NOT_LOADED) return NOT_LOADED;
+            if (current < amountMinor) return INSUFFICIENT;
+            long updated = current - amountMinor;
+            if (balance.compareAndSet(current, updated)) return updated;
+        }
+    }
+
+    /**
+     * Add a top-up. Returns the new balance, or NOT_LOADED.
+     */
+    public long topUp(long amountMinor) {
+        if (amountMinor < 0) throw new IllegalArgumentException("Negative top-up");
+        while (true) {
+            long current = balance.get();
+            if (current == NOT_LOADED) return NOT_LOADED;
+            long updated = current + amountMinor;
+            if (balance.compareAndSet(current, updated)) return updated;
+        }
+    }
+
+    /**
+     * Add a signed amount (a reconciliation delta). Returns the new balance, or NOT_LOADED.
+     */
+    public long adjust(long deltaMinor) {
+        while (true) {
+            long current = balance.get();
+            if (current == NOT_LOADED) return NOT_LOADED;
+            long updated = current + deltaMinor;
+            if (balance.compareAndSet(current, updated)) return updated;
+        }
+    }
+
+    /**
+     * Replace the balance with the server-confirmed value
+     */
+    public void reconcile(long serverBalanceMinor) {
+        balance.set(serverBalanceMinor);
+    }
+
+    /**
+     * Replace the balance with the server-confirmed value and return the change it made,
+     * so the caller can log it as a delta
+     */
+    public long reconcileDelta(long serverBalanceMinor) {
+        while (true) {
+            long current = balance.get();
+            long base = current == NOT_LOADED ? 0 : current;
+            if (balance.compareAndSet(current, serverBalanceMinor)) return serverBalanceMinor - base;
+        }
+    }
+
+    /**
+     * Forget the balance (logout); the next tap reloads it
+     */
+    public void clear() {
+        balance.set(NOT_LOADED);
+    }
+
+    public static long toMinor(double major) {
+        return Math.round(major * UNITS_PER_MAJOR);
+    }
+
+    public static double toMajor(long minor) {
+        return minor / (double) UNITS_PER_MAJOR;
+    }
+}
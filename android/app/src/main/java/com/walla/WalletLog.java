@@ -0,0 +1,350 @@
+package com.walla;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Logging facade: level gate, deferred formatting, flight recorder.
+ *
+ * A call below the runtime level returns after one volatile read. Otherwise the event
+ * (level, tag, "{}" template, arguments, time, thread) is stored in a ring of
+ * preallocated slots: one atomic increment to claim a slot, a few field writes, no lock
+ * and no formatting on the caller's thread. A daemon thread formats what is new every
+ * DRAIN_INTERVAL_MS and hands it to the sink (Logcat on the device, see LogcatSink).
+ * Arguments are formatted after the call returns, so pass values that will not change;
+ * byte[] arguments are printed as hex, and a trailing Throwable is logged with its stack.
+ *
+ * The ring keeps the last CAPACITY events. {@link #export} formats them for a support
+ * case. Both the sink and the export are redacted: bearer tokens, JWTs and the values of
+ * sensitive JSON fields are masked, and arguments wrapped in {@link #secret} print only
+ * their length.
+ */
+public final class WalletLog {
+
+    // Same numbers as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int OFF = 8;
+
+    public static final int CAPACITY = 512;
+    public static final long DRAIN_INTERVAL_MS = 50;
+
+    public interface Sink {
+        void write(int level, String tag, String message, Throwable error);
+    }
+
+    /**
+     * An argument that is never printed, only its length
+     */
+    public static final class Secret {
+        final Object value;
+
+        Secret(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            int length = value instanceof byte[] ? ((byte[]) value).length : String.valueOf(value).length();
+            return "<redacted " + length + ">";
+        }
+    }
+
+    private static final int MASK = CAPACITY - 1;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    // Values of these JSON fields are masked wherever they appear in a message
+    private static final Pattern SENSITIVE_JSON = Pattern.compile(
+        "(\"(?:token|jwt_token|signature|sessionCert|sessionCertSignature|payload|statement|"
+            + "deviceId|device_id|key_alias|publicKey)\"\\s*:\\s*)(\"[^\"]*\"|[^,}\\]\\s]+)");
+    private static final Pattern BEARER = Pattern.compile("(Bearer\\s+)[A-Za-z0-9._~+/=-]+");
+    private static final Pattern JWT = Pattern.compile("eyJ[A-Za-z0-9_-]*\\.[A-Za-z0-9_-]+\\.[A-Za-z0-9_-]*");
+
+    /**
+     * One ring slot. {@code seq} is written last: a reader that sees the same seq before
+     * and after copying the fields has a consistent event.
+     */
+    private static final class Slot {
+        volatile long seq = -1;
+        int level;
+        String tag;
+        String template;
+        Object[] args;
+        Throwable error;
+        long timeMillis;
+        String thread;
+    }
+
+    private static final Slot[] ring = new Slot[CAPACITY];
+    private static final AtomicLong next = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) ring[i] = new Slot();
+    }
+
+    private static volatile int level = INFO;
+    // snapshot() starts here; moved by clear()
+    private static volatile long exportFrom;
+    private static volatile Sink sink;
+    private static Thread drainer;
+    // Next sequence the drainer writes; only the drainer thread touches it
+    private static long drained;
+
+    private WalletLog() {
+    }
+
+    // ---- Configuration ----
+
+    /**
+     * Set the sink and start the drain thread. Safe to call more than once.
+     */
+    public static synchronized void install(Sink target) {
+        sink = target;
+        if (drainer != null) return;
+        drained = next.get();
+        drainer = new Thread(WalletLog::drainLoop, "wallet-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static int level() {
+        return level;
+    }
+
+    public static boolean isLoggable(int eventLevel) {
+        return eventLevel >= level;
+    }
+
+    public static Secret secret(Object value) {
+        return new Secret(value);
+    }
+
+    // ---- Logging ----
+
+    public static void v(String tag, String template, Object... args) {
+        if (VERBOSE >= level) record(VERBOSE, tag, template, args);
+    }
+
+    public static void d(String tag, String template, Object... args) {
+        if (DEBUG >= level) record(DEBUG, tag, template, args);
+    }
+
+    public static void i(String tag, String message) {
+        if (INFO >= level) record(INFO, tag, message, NO_ARGS);
+    }
+
+    public static void i(String tag, String template, Object arg) {
+        if (INFO >= level) record(INFO, tag, template, new Object[]{arg});
+    }
+
+    public static void i(String tag, String template, Object... args) {
+        if (INFO >= level) record(INFO, tag, template, args);
+    }
+
+    public static void w(String tag, String template, Object... args) {
+        if (WARN >= level) record(WARN, tag, template, args);
+    }
+
+    public static void e(String tag, String template, Object... args) {
+        if (ERROR >= level) record(ERROR, tag, template, args);
+    }
+
+    private static void record(int eventLevel, String tag, String template, Object[] args) {
+        // A trailing Throwable is the event's stack trace, as in SLF4J
+        Throwable error = args.length > 0 && args[args.length - 1] instanceof Throwable
+            ? (Throwable) args[args.length - 1] : null;
+        long seq = next.getAndIncrement();
+        Slot slot = ring[(int) (seq & MASK)];
+        slot.seq = -1;
+        slot.level = eventLevel;
+        slot.tag = tag;
+        slot.template = template;
+        slot.args = args;
+        slot.error = error;
+        slot.timeMillis = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.seq = seq;
+    }
+
+    // ---- Reading ----
+
+    /**
+     * A formatted, redacted event
+     */
+    public static final class Event {
+        public final long seq;
+        public final int level;
+        public final String tag;
+        public final String message;
+        public final Throwable error;
+        public final long timeMillis;
+        public final String thread;
+
+        Event(long seq, int level, String tag, String message, Throwable error, long timeMillis, String thread) {
+            this.seq = seq;
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+            this.error = error;
+            this.timeMillis = timeMillis;
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * The events still in the ring, oldest first
+     */
+    public static List<Event> snapshot() {
+        long end = next.get();
+        long start = Math.max(exportFrom, end - CAPACITY);
+        List<Event> events = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            Event event = read(seq);
+            if (event != null) events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * The flight recorder as text, one event per line, oldest first
+     */
+    public static String export() {
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        time.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder out = new StringBuilder();
+        for (Event event : snapshot()) {
+            out.append(time.format(new Date(event.timeMillis)))
+                .append(' ').append(levelChar(event.level))
+                .append('/').append(event.tag)
+                .append(" [").append(event.thread).append("] ")
+                .append(event.message);
+            if (event.error != null) out.append(" | ").append(redact(String.valueOf(event.error)));
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Events overwritten before the drain thread got to them
+     */
+    public static long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Leave everything recorded so far out of later exports (logout)
+     */
+    public static void clear() {
+        exportFrom = next.get();
+    }
+
+    private static Event read(long seq) {
+        Slot slot = ring[(int) (seq & MASK)];
+        if (slot.seq != seq) return null;
+        int eventLevel = slot.level;
+        String tag = slot.tag;
+        String template = slot.template;
+        Object[] args = slot.args;
+        Throwable error = slot.error;
+        long timeMillis = slot.timeMillis;
+        String thread = slot.thread;
+        // Overwritten while copying
+        if (slot.seq != seq) return null;
+        return new Event(seq, eventLevel, tag, redact(format(template, args)), error, timeMillis, thread);
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            try {
+                Thread.sleep(DRAIN_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            drain();
+        }
+    }
+
+    static void drain() {
+        Sink target = sink;
+        long end = next.get();
+        if (end - drained > CAPACITY) {
+            dropped.addAndGet(end - drained - CAPACITY);
+            drained = end - CAPACITY;
+        }
+        for (; drained < end; drained++) {
+            Event event = read(drained);
+            if (event == null) {
+                // Still being written, or already overwritten
+                if (ring[(int) (drained & MASK)].seq < drained) break;
+                dropped.incrementAndGet();
+                continue;
+            }
+            if (target != null) target.write(event.level, event.tag, event.message, event.error);
+        }
+    }
+
+    // ---- Formatting ----
+
+    static String format(String template, Object[] args) {
+        if (args == null || args.length == 0) return template;
+        StringBuilder out = new StringBuilder(template.length() + 16 * args.length);
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            out.append(template, from, at).append(render(args[arg++]));
+            from = at + 2;
+        }
+        out.append(template, from, template.length());
+        return out.toString();
+    }
+
+    private static String render(Object arg) {
+        if (arg instanceof byte[]) return Hex.bytesToHex((byte[]) arg);
+        return String.valueOf(arg);
+    }
+
+    static String redact(String message) {
+        if (message.indexOf('"') >= 0) {
+            message = SENSITIVE_JSON.matcher(message).replaceAll("$1\"<redacted>\"");
+        }
+        if (message.contains("Bearer")) {
+            message = BEARER.matcher(message).replaceAll("$1<redacted>");
+        }
+        if (message.contains("eyJ")) {
+            Matcher jwt = JWT.matcher(message);
+            message = jwt.replaceAll("<redacted jwt>");
+        }
+        return message;
+    }
+
+    private static char levelChar(int eventLevel) {
+        switch (eventLevel) {
+            case VERBOSE:
+                return 'V';
+            case DEBUG:
+                return 'D';
+            case INFO:
+                return 'I';
+            case WARN:
+                return 'W';
+            default:
+                return 'E';
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.walla;
+
+import com.facebook.react.bridge.NativeModule;
+import com.facebook.react.bridge.ReactApplicationContext;
+
+import java.util.List;
+
+/**
+ * Release build: no debug-only native modules (see src/debug)
+ */
+final class DebugModules {
+
+    private DebugModules() {
+    }
+
+    static void addTo(List<NativeModule> modules, ReactApplicationContext reactContext) {
+    }
+}
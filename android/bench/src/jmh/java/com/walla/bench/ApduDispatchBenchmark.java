@@ -0,0 +1,160 @@
+package com.walla.bench;
+
+import com.walla.ApduDispatcher;
+import com.walla.BalanceStore;
+import com.walla.FarePolicy;
+import com.walla.OfflineTransaction;
+import com.walla.RecordCipher;
+import com.walla.RiskLimits;
+import com.walla.TapPipeline;
+import com.walla.WalletApplet;
+import com.walla.WalletLedger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command APDU handling as LeapHostApduService runs it: header/Lc/Le parsing and table
+ * dispatch alone, then a full DEDUCT through WalletApplet including the balance log write
+ * and the hand-off to the post-tap pipeline (whose stages do nothing here).
+ */
+@State(Scope.Benchmark)
+public class ApduDispatchBenchmark {
+
+    private static final byte[] SELECT = {0x00, (byte) 0xA4, 0x04, 0x00, 0x07,
+        (byte) 0xF0, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06};
+    private static final byte[] DEDUCT = {(byte) 0x80, 0x10, 0x00, 0x00, 0x04, 0x00, 0x00, 0x00, 0x01};
+    private static final byte[] DEDUCT_EXTENDED = {(byte) 0x80, 0x10, 0x00, 0x00, 0x00, 0x00, 0x04,
+        0x00, 0x00, 0x00, 0x01, 0x00, 0x00};
+    private static final byte[] UNKNOWN_INS = {(byte) 0x80, 0x7F, 0x00, 0x00};
+
+    private ApduDispatcher parseOnly;
+    private WalletApplet applet;
+    private TapPipeline pipeline;
+    private BalanceStore store;
+    private File dir;
+
+    @Setup
+    public void setUp() throws Exception {
+        parseOnly = new ApduDispatcher()
+            .register(WalletApplet.CLA_ISO, WalletApplet.INS_SELECT, (apdu, off, lc, le) -> ApduDispatcher.SW_OK)
+            .register(WalletApplet.CLA_PROPRIETARY, WalletApplet.INS_DEDUCT, (apdu, off, lc, le) ->
+                ApduDispatcher.readInt(apdu, off) > 0 ? ApduDispatcher.SW_OK : ApduDispatcher.SW_UNKNOWN);
+
+        dir = Files.createTempDirectory("bench-balance").toFile();
+        store = new BalanceStore(dir, new RecordCipher(RecordCipher.newKey()));
+        store.reconcile(Long.MAX_VALUE / 4);
+
+        // Stages are no-ops; a large capacity keeps the pipeline from declining taps
+        pipeline = new TapPipeline(new NoopStages(), 1 << 16);
+        applet = new WalletApplet(new BenchHost(store), pipeline);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public byte[] parseSelect() {
+        return parseOnly.dispatch(SELECT);
+    }
+
+    @Benchmark
+    public byte[] parseDeductShort() {
+        return parseOnly.dispatch(DEDUCT);
+    }
+
+    @Benchmark
+    public byte[] parseDeductExtended() {
+        return parseOnly.dispatch(DEDUCT_EXTENDED);
+    }
+
+    @Benchmark
+    public byte[] parseUnknownIns() {
+        return parseOnly.dispatch(UNKNOWN_INS);
+    }
+
+    @Benchmark
+    public byte[] appletSelect() {
+        return applet.process(SELECT);
+    }
+
+    @Benchmark
+    public byte[] appletDeduct() {
+        return applet.process(DEDUCT);
+    }
+
+    static final class BenchHost implements WalletApplet.Host {
+        private final BalanceStore store;
+
+        BenchHost(BalanceStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public String alias() {
+            return "bench";
+        }
+
+        @Override
+        public BalanceStore balanceStore() {
+            return store;
+        }
+
+        @Override
+        public FarePolicy farePolicy() {
+            return null;
+        }
+
+        @Override
+        public RiskLimits riskLimits() {
+            return null;
+        }
+
+        @Override
+        public void onDeducted(int fare, double newBalance) {
+        }
+
+        @Override
+        public void onDeclined(int reason, long balanceMinor) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static final class NoopStages implements TapPipeline.Stages {
+        private static final OfflineTransaction TX = new OfflineTransaction();
+
+        @Override
+        public void persistBalance() {
+        }
+
+        @Override
+        public OfflineTransaction sign(TapPipeline.Tap tap) {
+            return TX;
+        }
+
+        @Override
+        public void dispatch(OfflineTransaction tx) {
+        }
+
+        @Override
+        public void onStageError(int stage, TapPipeline.Tap tap, Exception e) {
+        }
+    }
+}
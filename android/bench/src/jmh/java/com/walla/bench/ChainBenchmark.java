@@ -0,0 +1,152 @@
+package com.walla.bench;
+
+import com.walla.OfflineTransaction;
+import com.walla.SessionSigner;
+import com.walla.TxChain;
+import com.walla.TxChainVerifier;
+import com.walla.TxCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * A sync batch checked the way the backend does it, per transaction (/redeem/batch: the
+ * session certificate against the device key, then every transaction signature) against
+ * one TxChain statement (/redeem/chain: one device key signature, then a hash walk).
+ * chainSign is the device key signature the phone adds per batch.
+ *
+ * Signature counts and upload sizes per batch size are not something JMH reports; print them with
+ *   ./gradlew :bench:chainSizes
+ */
+@State(Scope.Benchmark)
+public class ChainBenchmark {
+
+    private static final String DEVICE_ID = "bench-device";
+
+    @Param({"1", "5", "20", "100"})
+    public int batchSize;
+
+    private KeyPair deviceKey;
+    private List<OfflineTransaction> batch;
+    private TxChain.Batch signed;
+
+    @Setup
+    public void setUp() throws Exception {
+        deviceKey = deviceKey();
+        batch = chainedBatch(deviceKey, batchSize);
+        signed = TxChain.signBatch(deviceKey.getPrivate(), DEVICE_ID, batch);
+    }
+
+    @Benchmark
+    public int perTransactionVerify() throws Exception {
+        return verifyEach(deviceKey.getPublic(), batch);
+    }
+
+    @Benchmark
+    public TxChainVerifier.Result chainVerify() {
+        return TxChainVerifier.verify(deviceKey.getPublic(), DEVICE_ID, batch, signed.statement, signed.signature,
+            TxChainVerifier.NONE);
+    }
+
+    @Benchmark
+    public TxChain.Batch chainSign() throws Exception {
+        return TxChain.signBatch(deviceKey.getPrivate(), DEVICE_ID, batch);
+    }
+
+    public static void main(String[] args) throws Exception {
+        KeyPair deviceKey = deviceKey();
+        System.out.printf(Locale.ROOT, "%-6s %22s %22s%n", "", "signatures verified", "upload bytes (tlv)");
+        System.out.printf(Locale.ROOT, "%-6s %10s %11s %10s %11s%n", "batch", "per-tx", "chain", "per-tx", "chain");
+        for (int size : new int[]{1, 5, 20, 100}) {
+            List<OfflineTransaction> batch = chainedBatch(deviceKey, size);
+            TxChain.Batch signed = TxChain.signBatch(deviceKey.getPrivate(), DEVICE_ID, batch);
+            System.out.printf(Locale.ROOT, "%-6d %10d %11d %10d %11d%n", size,
+                verifyEach(deviceKey.getPublic(), batch), 1,
+                TxCodec.encodeRedeem(DEVICE_ID, batch).length,
+                TxCodec.encodeRedeem(DEVICE_ID, batch, signed).length);
+        }
+    }
+
+    private static KeyPair deviceKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * TLV transactions as the sign stage makes them: linked, then signed by a session key
+     */
+    private static List<OfflineTransaction> chainedBatch(KeyPair deviceKey, int size) throws Exception {
+        SessionSigner signer = new SessionSigner(alias -> deviceKey.getPrivate(), Long.MAX_VALUE / 2, Integer.MAX_VALUE);
+        TxChain chain = TxChain.start(new SecureRandom());
+        List<OfflineTransaction> batch = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            TxChain.Link link = chain.next();
+            OfflineTransaction tx = new OfflineTransaction();
+            tx.txId = UUID.randomUUID().toString();
+            tx.amount = 3;
+            tx.timestamp = 1700000000000L + i;
+            tx.chainId = link.chainId;
+            tx.sequence = link.sequence;
+            tx.payloadFormat = OfflineTransaction.PAYLOAD_TLV;
+            tx.payload = TxCodec.encodePayload(tx.txId, tx.amount, tx.timestamp, link);
+            SessionSigner.SignedPayload signed = signer.sign("bench", tx.payload);
+            tx.signature = signed.signature;
+            tx.sessionCert = signed.session.certificate;
+            tx.sessionCertSignature = signed.session.certificateSignature;
+            chain.advance(tx);
+            batch.add(tx);
+        }
+        return batch;
+    }
+
+    /**
+     * Backend check without the chain: each distinct session certificate once, then every
+     * transaction. Returns the number of signatures verified.
+     */
+    private static int verifyEach(PublicKey devicePublicKey, List<OfflineTransaction> batch) throws Exception {
+        int verified = 0;
+        byte[] certificate = null;
+        Signature session = Signature.getInstance(SessionSigner.SIGNATURE_ALGORITHM);
+        for (OfflineTransaction tx : batch) {
+            if (certificate != tx.sessionCert) {
+                Signature device = Signature.getInstance(SessionSigner.SIGNATURE_ALGORITHM);
+                device.initVerify(devicePublicKey);
+                device.update(tx.sessionCert);
+                if (!device.verify(tx.sessionCertSignature)) throw new IllegalStateException("Bad certificate");
+                verified++;
+                certificate = tx.sessionCert;
+                session.initVerify(sessionKey(certificate));
+            }
+            session.update(tx.payload);
+            if (!session.verify(tx.signature)) throw new IllegalStateException("Bad signature");
+            verified++;
+        }
+        return verified;
+    }
+
+    // Certificate layout in SessionSigner: [1][16][8][8][2 length][public key]
+    private static PublicKey sessionKey(byte[] certificate) throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(certificate, 1 + 16 + 8 + 8, certificate.length - 33);
+        byte[] encoded = new byte[in.getShort()];
+        in.get(encoded);
+        return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+}
@@ -0,0 +1,63 @@
+package com.walla.bench;
+
+import com.walla.SessionSigner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Transaction payload signing with the JDK's software P-256 provider standing in for the
+ * key store. Measures the per-fare cost of a fresh Signature per call (the old path, minus
+ * the key store lookup) against a reused Signature and SessionSigner.sign.
+ */
+@State(Scope.Benchmark)
+public class EcSigningBenchmark {
+
+    private static final byte[] PAYLOAD = ("{\"txId\":\"3f1c9a52-8e0b-4d7e-9a61-0c5b2f7d8e41\","
+        + "\"fare\":3,\"timestamp\":1700000000000}").getBytes(StandardCharsets.UTF_8);
+
+    private KeyPair deviceKey;
+    private Signature reused;
+    private SessionSigner signer;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        deviceKey = generator.generateKeyPair();
+
+        reused = Signature.getInstance(SessionSigner.SIGNATURE_ALGORITHM);
+        reused.initSign(deviceKey.getPrivate());
+
+        // Rotation effectively off so the benchmark measures steady-state signing
+        signer = new SessionSigner(alias -> deviceKey.getPrivate(), Long.MAX_VALUE / 2, Integer.MAX_VALUE);
+        signer.ensureSession("bench");
+    }
+
+    @Benchmark
+    public byte[] freshSignature() throws Exception {
+        Signature signature = Signature.getInstance(SessionSigner.SIGNATURE_ALGORITHM);
+        signature.initSign(deviceKey.getPrivate());
+        signature.update(PAYLOAD);
+        return signature.sign();
+    }
+
+    @Benchmark
+    public byte[] reusedSignature() throws Exception {
+        reused.update(PAYLOAD);
+        return reused.sign();
+    }
+
+    @Benchmark
+    public byte[] sessionSigner() throws Exception {
+        return signer.sign("bench", PAYLOAD).signature;
+    }
+}
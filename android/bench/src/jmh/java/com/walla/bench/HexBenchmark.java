@@ -0,0 +1,49 @@
+package com.walla.bench;
+
+import com.walla.Hex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Hex.bytesToHex / hexToBytes against the String.format loop LeapHostApduService used
+ * before. 13 bytes is a DEDUCT APDU, 256 a large response.
+ */
+@State(Scope.Benchmark)
+public class HexBenchmark {
+
+    @Param({"13", "256"})
+    public int size;
+
+    private byte[] bytes;
+    private String hex;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        hex = Hex.bytesToHex(bytes);
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return Hex.bytesToHex(bytes);
+    }
+
+    @Benchmark
+    public String bytesToHexFormatLoop() {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) sb.append(String.format("%02X", b));
+        return sb.toString();
+    }
+
+    @Benchmark
+    public byte[] hexToBytes() {
+        return Hex.hexToBytes(hex);
+    }
+}
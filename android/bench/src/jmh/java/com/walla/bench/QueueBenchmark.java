@@ -0,0 +1,102 @@
+package com.walla.bench;
+
+import com.walla.OfflineTransaction;
+import com.walla.RecordCipher;
+import com.walla.TxCodec;
+import com.walla.TxJournal;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Offline queue cost as it grows: the TxJournal against the old "tx_queue" pattern of
+ * re-parsing and re-serializing one JSON array string per append.
+ *
+ * The journal runs without fsync so the numbers are CPU cost; on a device each append
+ * additionally pays one fsync.
+ */
+@State(Scope.Benchmark)
+public class QueueBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int entries;
+
+    private String legacyQueue;
+    private OfflineTransaction next;
+    private int counter;
+
+    private File dir;
+    private TxJournal journal;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        JSONArray queue = new JSONArray();
+        for (int i = 0; i < entries; i++) {
+            queue.put(new JSONObject(SerializationBenchmark.legacyJson(SerializationBenchmark.sampleTransaction(i))));
+        }
+        legacyQueue = queue.toString();
+
+        dir = Files.createTempDirectory("bench-journal").toFile();
+        journal = new TxJournal(dir, new RecordCipher(RecordCipher.newKey()), 64 * 1024, false);
+        for (int i = 0; i < entries; i++) {
+            journal.append(SerializationBenchmark.sampleTransaction(i));
+        }
+        counter = entries;
+        next = SerializationBenchmark.sampleTransaction(counter);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+        journal.clear();
+        journal.close();
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public String legacyAppend() {
+        // The queue itself is not kept growing, so every call appends to `entries` items
+        JSONArray queue = new JSONArray(legacyQueue);
+        queue.put(new JSONObject(SerializationBenchmark.legacyJson(next)));
+        return queue.toString();
+    }
+
+    @Benchmark
+    public int legacyReadAll() {
+        JSONArray queue = new JSONArray(legacyQueue);
+        int total = 0;
+        for (int i = 0; i < queue.length(); i++) {
+            total += TxCodec.decodeLegacyJson(queue.getJSONObject(i).toString()).amount;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public boolean journalAppend() throws Exception {
+        // Fresh txId each call so the journal does not dedupe it away
+        next.txId = Integer.toString(++counter);
+        return journal.append(next);
+    }
+
+    @Benchmark
+    public int journalReadAll() throws Exception {
+        int total = 0;
+        try (TxJournal.Cursor cursor = journal.cursor()) {
+            for (OfflineTransaction tx = cursor.next(); tx != null; tx = cursor.next()) {
+                total += tx.amount;
+            }
+        }
+        return total;
+    }
+}
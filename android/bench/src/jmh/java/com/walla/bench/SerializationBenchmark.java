@@ -0,0 +1,205 @@
+package com.walla.bench;
+
+import com.google.gson.stream.JsonWriter;
+import com.walla.BackendClient;
+import com.walla.OfflineTransaction;
+import com.walla.TxCodec;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+import okio.Buffer;
+
+/**
+ * One offline transaction through its three encodings, JSON (the format before TxCodec
+ * and still the fallback) against TxCodec TLV:
+ *   payload - the bytes that get signed
+ *   record  - the journal record body (legacy: Gson JSON with Base64 strings)
+ *   upload  - a 20-transaction /redeem/batch body (JSON: Base64 fields via JsonWriter)
+ *
+ * Encoded sizes are not something JMH reports; print them with
+ *   ./gradlew :bench:payloadSizes
+ */
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    static final int UPLOAD_BATCH = 20;
+
+    private OfflineTransaction jsonTx;
+    private OfflineTransaction tlvTx;
+    private List<OfflineTransaction> jsonBatch;
+    private List<OfflineTransaction> tlvBatch;
+    private String legacyRecord;
+    private byte[] tlvRecord;
+
+    @Setup
+    public void setUp() {
+        jsonTx = sampleTransaction(1, OfflineTransaction.PAYLOAD_JSON);
+        tlvTx = sampleTransaction(1, OfflineTransaction.PAYLOAD_TLV);
+        jsonBatch = sampleBatch(OfflineTransaction.PAYLOAD_JSON);
+        tlvBatch = sampleBatch(OfflineTransaction.PAYLOAD_TLV);
+        legacyRecord = legacyJson(jsonTx);
+        tlvRecord = TxCodec.encodeRecord(tlvTx);
+    }
+
+    // ---- payload ----
+
+    @Benchmark
+    public byte[] payloadJson() {
+        return jsonPayload(jsonTx.txId, jsonTx.amount, jsonTx.timestamp);
+    }
+
+    @Benchmark
+    public byte[] payloadTlv() {
+        return TxCodec.encodePayload(tlvTx.txId, tlvTx.amount, tlvTx.timestamp);
+    }
+
+    // ---- record ----
+
+    @Benchmark
+    public byte[] recordEncodeJson() {
+        return legacyJson(jsonTx).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] recordEncodeTlv() {
+        return TxCodec.encodeRecord(tlvTx);
+    }
+
+    @Benchmark
+    public OfflineTransaction recordDecodeJson() {
+        return TxCodec.decodeLegacyJson(legacyRecord);
+    }
+
+    @Benchmark
+    public OfflineTransaction recordDecodeTlv() throws IOException {
+        return TxCodec.decodeRecord(tlvRecord, 0, tlvRecord.length);
+    }
+
+    // ---- upload ----
+
+    @Benchmark
+    public long uploadJson() throws IOException {
+        return jsonUpload(jsonBatch).size();
+    }
+
+    @Benchmark
+    public int uploadTlv() {
+        return TxCodec.encodeRedeem("bench-device", tlvBatch).length;
+    }
+
+    /**
+     * Encoded sizes in bytes, JSON against TLV
+     */
+    public static void main(String[] args) throws IOException {
+        OfflineTransaction json = sampleTransaction(1, OfflineTransaction.PAYLOAD_JSON);
+        OfflineTransaction tlv = sampleTransaction(1, OfflineTransaction.PAYLOAD_TLV);
+        List<OfflineTransaction> jsonBatch = sampleBatch(OfflineTransaction.PAYLOAD_JSON);
+        List<OfflineTransaction> tlvBatch = sampleBatch(OfflineTransaction.PAYLOAD_TLV);
+
+        System.out.printf(Locale.ROOT, "%-34s %8s %8s %8s%n", "bytes", "json", "tlv", "saved");
+        row("payload (signed)", json.payload.length, tlv.payload.length);
+        row("journal record", legacyJson(json).getBytes(StandardCharsets.UTF_8).length,
+            TxCodec.encodeRecord(tlv).length);
+        row("upload, 1 tx (/redeem)", jsonUpload(jsonBatch.subList(0, 1)).size(),
+            TxCodec.encodeRedeem("bench-device", tlvBatch.subList(0, 1)).length);
+        row("upload, " + UPLOAD_BATCH + " tx (/redeem/batch)", jsonUpload(jsonBatch).size(),
+            TxCodec.encodeRedeem("bench-device", tlvBatch).length);
+    }
+
+    private static void row(String name, long json, long tlv) {
+        System.out.printf(Locale.ROOT, "%-34s %8d %8d %7.0f%%%n", name, json, tlv, 100.0 * (json - tlv) / json);
+    }
+
+    /**
+     * Shaped like createSignedTransaction output: UUID txId, DER signature and session
+     * certificate
+     */
+    static OfflineTransaction sampleTransaction(int i, int payloadFormat) {
+        Random random = new Random(i);
+        OfflineTransaction tx = new OfflineTransaction();
+        tx.txId = new UUID(random.nextLong(), random.nextLong()).toString();
+        tx.amount = 3;
+        tx.timestamp = 1700000000000L + i;
+        tx.payloadFormat = payloadFormat;
+        tx.payload = payloadFormat == OfflineTransaction.PAYLOAD_TLV
+            ? TxCodec.encodePayload(tx.txId, tx.amount, tx.timestamp)
+            : jsonPayload(tx.txId, tx.amount, tx.timestamp);
+        tx.signature = randomBytes(random, 71);
+        tx.sessionCert = randomBytes(random, 126);
+        tx.sessionCertSignature = randomBytes(random, 71);
+        return tx;
+    }
+
+    static OfflineTransaction sampleTransaction(int i) {
+        return sampleTransaction(i, OfflineTransaction.PAYLOAD_TLV);
+    }
+
+    private static List<OfflineTransaction> sampleBatch(int payloadFormat) {
+        List<OfflineTransaction> batch = new ArrayList<>(UPLOAD_BATCH);
+        for (int i = 0; i < UPLOAD_BATCH; i++) batch.add(sampleTransaction(i, payloadFormat));
+        return batch;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static byte[] jsonPayload(String txId, int fare, long timestamp) {
+        JSONObject payload = new JSONObject();
+        payload.put("txId", txId);
+        payload.put("fare", fare);
+        payload.put("timestamp", timestamp);
+        return payload.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The journal and tx_queue record as it was stored before TxCodec
+     */
+    static String legacyJson(OfflineTransaction tx) {
+        Base64.Encoder base64 = Base64.getEncoder();
+        JSONObject o = new JSONObject();
+        o.put("txId", tx.txId);
+        o.put("amount", tx.amount);
+        o.put("timestamp", tx.timestamp);
+        o.put("signature", base64.encodeToString(tx.signature));
+        o.put("payload", new String(tx.payload, StandardCharsets.UTF_8));
+        o.put("sessionCert", base64.encodeToString(tx.sessionCert));
+        o.put("sessionCertSignature", base64.encodeToString(tx.sessionCertSignature));
+        return o.toString();
+    }
+
+    // The JSON /redeem/batch body as BackendClient writes it, before compression
+    private static Buffer jsonUpload(List<OfflineTransaction> batch) throws IOException {
+        Buffer body = new Buffer();
+        try (JsonWriter json = new JsonWriter(new OutputStreamWriter(body.outputStream(), StandardCharsets.UTF_8))) {
+            json.beginObject();
+            json.name("deviceId").value("bench-device");
+            json.name("transactions").beginArray();
+            for (OfflineTransaction tx : batch) {
+                json.beginObject();
+                json.name("txId").value(tx.txId);
+                BackendClient.writeRedeemFields(json, tx);
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        return body;
+    }
+}
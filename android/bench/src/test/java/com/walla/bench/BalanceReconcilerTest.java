@@ -0,0 +1,224 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.walla.BalanceReconciler;
+import com.walla.BalanceStore;
+import com.walla.FarePolicy;
+import com.walla.MetricsRegistry;
+import com.walla.OfflineTransaction;
+import com.walla.RecordCipher;
+import com.walla.RiskLimits;
+import com.walla.TapPipeline;
+import com.walla.WalletApplet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BalanceReconciler against a real BalanceStore: the first anchor while a tap is still in
+ * the post-tap pipeline, deducts racing an anchor, a response that arrives late, and
+ * settlements without a balance, across a restart
+ */
+public class BalanceReconcilerTest {
+
+    // DEDUCT for a fare of 1, which the ledger counts as 100 minor units
+    private static final byte[] DEDUCT = {(byte) 0x80, 0x10, 0x00, 0x00, 0x04, 0x00, 0x00, 0x00, 0x01};
+    private static final long FARE_MINOR = 100;
+
+    private File dir;
+    private byte[] key;
+    private BalanceStore store;
+    private BalanceReconciler reconciler;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("reconciler").toFile();
+        key = RecordCipher.newKey();
+        store = new BalanceStore(dir, new RecordCipher(key));
+        store.reconcile(10_000);
+        reconciler = new BalanceReconciler(store);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void anchorKeepsATapStillInTheSignStage() throws Exception {
+        CountDownLatch signing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TapPipeline pipeline = new TapPipeline(new BlockingStages(signing, release));
+        WalletApplet applet = new WalletApplet(new Host(store), pipeline, new MetricsRegistry());
+        try {
+            assertSame(WalletApplet.SW_OK, applet.process(DEDUCT));
+            assertTrue(signing.await(5, TimeUnit.SECONDS));
+
+            // The server has not seen the tap, and it is not in the journal yet
+            BalanceReconciler.Settlement first = new BalanceReconciler.Settlement();
+            first.serverBalance(reconciler.ticket(), 20_000);
+            assertEquals(20_000 - FARE_MINOR, reconciler.commit(first));
+            assertEquals(20_000, store.confirmedBalance());
+            assertEquals(FARE_MINOR, store.unsettled());
+
+            release.countDown();
+            BalanceReconciler.Settlement ack = new BalanceReconciler.Settlement();
+            ack.acked(FARE_MINOR);
+            ack.serverBalance(reconciler.ticket(), 20_000 - FARE_MINOR);
+            assertEquals(20_000 - FARE_MINOR, reconciler.commit(ack));
+            assertEquals(0, store.unsettled());
+        } finally {
+            release.countDown();
+            pipeline.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void deductsRacingTheAnchorAreKept() throws Exception {
+        int taps = 50;
+        Thread tapping = new Thread(() -> {
+            try {
+                for (int i = 0; i < taps; i++) store.deduct(FARE_MINOR);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        tapping.start();
+        BalanceReconciler.Settlement first = new BalanceReconciler.Settlement();
+        first.serverBalance(reconciler.ticket(), 50_000);
+        reconciler.commit(first);
+        tapping.join();
+
+        // Whatever the interleaving, none of the fares reached the server
+        assertEquals(50_000 - taps * FARE_MINOR, store.balance());
+        assertEquals(taps * FARE_MINOR, store.unsettled());
+    }
+
+    @Test
+    public void lateResponseDoesNotMoveTheBalance() throws Exception {
+        long older = reconciler.ticket();
+        long newer = reconciler.ticket();
+
+        BalanceReconciler.Settlement fresh = new BalanceReconciler.Settlement();
+        fresh.serverBalance(newer, 30_000);
+        assertEquals(30_000, reconciler.commit(fresh));
+
+        BalanceReconciler.Settlement stale = new BalanceReconciler.Settlement();
+        stale.serverBalance(older, 45_000);
+        assertEquals(30_000, reconciler.commit(stale));
+        assertEquals(30_000, store.confirmedBalance());
+        assertEquals(1, reconciler.staleResponses());
+    }
+
+    @Test
+    public void ackedAndRejectedFaresSettleAcrossARestart() throws Exception {
+        BalanceReconciler.Settlement first = new BalanceReconciler.Settlement();
+        first.serverBalance(reconciler.ticket(), 10_000);
+        reconciler.commit(first);
+        for (int i = 0; i < 3; i++) store.deduct(FARE_MINOR);
+
+        // No balance in the answer: the acked fare is charged, the rejected one refunded
+        BalanceReconciler.Settlement partial = new BalanceReconciler.Settlement();
+        partial.acked(FARE_MINOR);
+        partial.rejected(FARE_MINOR);
+        assertEquals(10_000 - 2 * FARE_MINOR, reconciler.commit(partial));
+        assertEquals(10_000 - FARE_MINOR, store.confirmedBalance());
+        assertEquals(FARE_MINOR, store.unsettled());
+        store.close();
+
+        // A restart seeds what the journal still has pending, as SecureStorage does
+        store = new BalanceStore(dir, new RecordCipher(key));
+        store.seedUnsettled(FARE_MINOR);
+        reconciler = new BalanceReconciler(store);
+        assertEquals(10_000 - 2 * FARE_MINOR, store.balance());
+        assertEquals(10_000 - FARE_MINOR, store.confirmedBalance());
+
+        BalanceReconciler.Settlement last = new BalanceReconciler.Settlement();
+        last.acked(FARE_MINOR);
+        last.serverBalance(reconciler.ticket(), 10_000 - 2 * FARE_MINOR);
+        assertEquals(10_000 - 2 * FARE_MINOR, reconciler.commit(last));
+        assertEquals(0, store.unsettled());
+    }
+
+    private static final class BlockingStages implements TapPipeline.Stages {
+        private final CountDownLatch signing;
+        private final CountDownLatch release;
+
+        BlockingStages(CountDownLatch signing, CountDownLatch release) {
+            this.signing = signing;
+            this.release = release;
+        }
+
+        @Override
+        public void persistBalance() {
+        }
+
+        @Override
+        public OfflineTransaction sign(TapPipeline.Tap tap) throws Exception {
+            signing.countDown();
+            release.await();
+            return new OfflineTransaction();
+        }
+
+        @Override
+        public void dispatch(OfflineTransaction tx) {
+        }
+
+        @Override
+        public void onStageError(int stage, TapPipeline.Tap tap, Exception e) {
+        }
+    }
+
+    private static final class Host implements WalletApplet.Host {
+        private final BalanceStore store;
+
+        Host(BalanceStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public String alias() {
+            return "reconciler-test";
+        }
+
+        @Override
+        public BalanceStore balanceStore() {
+            return store;
+        }
+
+        @Override
+        public FarePolicy farePolicy() {
+            return null;
+        }
+
+        @Override
+        public RiskLimits riskLimits() {
+            return null;
+        }
+
+        @Override
+        public void onDeducted(int fare, double newBalance) {
+        }
+
+        @Override
+        public void onDeclined(int reason, long balanceMinor) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
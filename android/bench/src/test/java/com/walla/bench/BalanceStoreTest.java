@@ -0,0 +1,114 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.walla.BalanceStore;
+import com.walla.RecordCipher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+/**
+ * BalanceStore on disk: a log event torn by a kill mid-write, and recovery from a
+ * snapshot plus the log generation after it
+ */
+public class BalanceStoreTest {
+
+    private File dir;
+    private RecordCipher cipher;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("balance").toFile();
+        cipher = new RecordCipher(RecordCipher.newKey());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void tornEventIsDroppedAndTheLogStaysWritable() throws Exception {
+        BalanceStore store = new BalanceStore(dir, cipher);
+        store.reconcile(1_000);
+        for (int i = 0; i < 3; i++) store.deduct(100);
+        store.close();
+
+        // A frame whose length made it to disk but whose body did not
+        File wal = new File(dir, "wal-1.log");
+        long intact = wal.length();
+        try (FileOutputStream out = new FileOutputStream(wal, true)) {
+            out.write(new byte[] {0, 0, 0, 60, 1, 2, 3});
+        }
+
+        BalanceStore recovered = new BalanceStore(dir, cipher);
+        assertTrue(recovered.wasRestored());
+        assertEquals(4, recovered.replayedEvents());
+        assertEquals(700, recovered.balance());
+        assertEquals(intact, wal.length());
+        assertEquals(600, recovered.deduct(100));
+        recovered.close();
+
+        BalanceStore reopened = new BalanceStore(dir, cipher);
+        assertEquals(600, reopened.balance());
+        reopened.close();
+    }
+
+    @Test
+    public void snapshotAndLaterEventsReplayToTheSameState() throws Exception {
+        // Group commit every millisecond, snapshot every 8 events
+        BalanceStore store = new BalanceStore(dir, cipher, 1, 8);
+        store.reconcile(10_000);
+        store.settle(0, 12_000, 0);
+        for (int i = 0; i < 20; i++) store.deduct(10);
+        store.topUp(500);
+        waitForSnapshot(store);
+        store.deduct(10);
+        long balance = store.balance();
+        store.close();
+
+        // Older generations went with the snapshot
+        assertFalse(new File(dir, "wal-1.log").exists());
+
+        BalanceStore reopened = new BalanceStore(dir, cipher);
+        assertEquals(balance, reopened.balance());
+        assertEquals(10_000 - 21 * 10 + 500, reopened.balance());
+        assertEquals(12_000, reopened.confirmedBalance());
+        assertTrue(reopened.replayedEvents() < 23);
+        reopened.close();
+    }
+
+    @Test
+    public void clearForgetsTheBalance() throws Exception {
+        BalanceStore store = new BalanceStore(dir, cipher);
+        store.reconcile(1_000);
+        store.settle(0, 1_000, 0);
+        store.clear();
+        assertEquals(0, store.balance());
+        assertEquals(BalanceStore.UNCONFIRMED, store.confirmedBalance());
+        store.close();
+
+        BalanceStore reopened = new BalanceStore(dir, cipher);
+        assertEquals(0, reopened.balance());
+        assertEquals(BalanceStore.UNCONFIRMED, reopened.confirmedBalance());
+        reopened.close();
+    }
+
+    private static void waitForSnapshot(BalanceStore store) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (store.snapshotCount() == 0) {
+            assertTrue("no snapshot written", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
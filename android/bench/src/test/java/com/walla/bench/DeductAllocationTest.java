@@ -0,0 +1,143 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.walla.BalanceStore;
+import com.walla.FarePolicy;
+import com.walla.MetricsRegistry;
+import com.walla.OfflineTransaction;
+import com.walla.RecordCipher;
+import com.walla.RiskLimits;
+import com.walla.TapPipeline;
+import com.walla.WalletApplet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes the APDU thread allocates per DEDUCT, measured with the thread's own allocation
+ * counter so the pipeline and flusher threads do not count. JMH's gc.alloc.rate.norm for
+ * ApduDispatchBenchmark.appletDeduct covers every thread and is the wider figure.
+ *
+ * The DEDUCT is not allocation-free: what is left is one sealed balance record (cipher
+ * init, nonce, frame), the pipeline's Tap and its task, about 1.5 KB per DEDUCT.
+ * MAX_BYTES_PER_DEDUCT is twice that; a DEDUCT that starts allocating per call again (a
+ * Cipher.getInstance alone is ~5 KB) trips it.
+ */
+public class DeductAllocationTest {
+
+    private static final int MAX_BYTES_PER_DEDUCT = 3 * 1024;
+    private static final int WARMUP = 20_000;
+    private static final int MEASURED = 2_000;
+
+    private static final byte[] DEDUCT = {(byte) 0x80, 0x10, 0x00, 0x00, 0x04, 0x00, 0x00, 0x00, 0x01};
+
+    private File dir;
+    private BalanceStore store;
+    private TapPipeline pipeline;
+    private WalletApplet applet;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("deduct-alloc").toFile();
+        store = new BalanceStore(dir, new RecordCipher(RecordCipher.newKey()));
+        store.reconcile(Long.MAX_VALUE / 4);
+        // Capacity above WARMUP + MEASURED, so no DEDUCT is declined as busy
+        pipeline = new TapPipeline(new NoopStages(), 1 << 16);
+        applet = new WalletApplet(new Host(store), pipeline, new MetricsRegistry());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void deductAllocationIsBounded() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++) assertSame(WalletApplet.SW_OK, applet.process(DEDUCT));
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < MEASURED; i++) assertSame(WalletApplet.SW_OK, applet.process(DEDUCT));
+        long perDeduct = (threads.getThreadAllocatedBytes(thread) - before) / MEASURED;
+
+        assertTrue("DEDUCT allocated " + perDeduct + " B/op, bound " + MAX_BYTES_PER_DEDUCT,
+            perDeduct <= MAX_BYTES_PER_DEDUCT);
+    }
+
+    private static final class Host implements WalletApplet.Host {
+        private final BalanceStore store;
+
+        Host(BalanceStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public String alias() {
+            return "alloc-test";
+        }
+
+        @Override
+        public BalanceStore balanceStore() {
+            return store;
+        }
+
+        @Override
+        public FarePolicy farePolicy() {
+            return null;
+        }
+
+        @Override
+        public RiskLimits riskLimits() {
+            return null;
+        }
+
+        @Override
+        public void onDeducted(int fare, double newBalance) {
+        }
+
+        @Override
+        public void onDeclined(int reason, long balanceMinor) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class NoopStages implements TapPipeline.Stages {
+        private static final OfflineTransaction TX = new OfflineTransaction();
+
+        @Override
+        public void persistBalance() {
+        }
+
+        @Override
+        public OfflineTransaction sign(TapPipeline.Tap tap) {
+            return TX;
+        }
+
+        @Override
+        public void dispatch(OfflineTransaction tx) {
+        }
+
+        @Override
+        public void onStageError(int stage, TapPipeline.Tap tap, Exception e) {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+
+import com.walla.FarePolicy;
+import com.walla.RecordCipher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.TimeZone;
+
+/**
+ * FarePolicy: daily and weekly caps over the day buckets, and fare_caps.bin after a torn
+ * slot write
+ */
+public class FarePolicyTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    // Monday 2023-11-20, 08:00 UTC
+    private static final long MONDAY = 1_700_438_400_000L + 8 * 60 * 60 * 1000;
+
+    private File dir;
+    private RecordCipher cipher;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("fare-caps").toFile();
+        cipher = new RecordCipher(RecordCipher.newKey());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void dailyThenWeeklyCapApplyAndANewWeekResets() throws Exception {
+        FarePolicy policy = new FarePolicy(dir, cipher, UTC, 5, 12);
+
+        // Monday: 2 + 2, then capped to what is left of the day
+        assertEquals(2, charge(policy, 2, MONDAY).fare);
+        assertEquals(2, charge(policy, 2, MONDAY + 1).fare);
+        FarePolicy.Decision third = charge(policy, 2, MONDAY + 2);
+        assertEquals(1, third.fare);
+        assertEquals(FarePolicy.CAP_DAILY, third.cap);
+        assertEquals(0, charge(policy, 2, MONDAY + 3).fare);
+
+        // Tuesday another 5, Wednesday runs into the week's 12
+        for (int i = 0; i < 3; i++) charge(policy, 2, MONDAY + DAY_MS + i);
+        assertEquals(10, policy.spentThisWeek(MONDAY + DAY_MS));
+        assertEquals(2, charge(policy, 2, MONDAY + 2 * DAY_MS).fare);
+        FarePolicy.Decision weekly = charge(policy, 2, MONDAY + 2 * DAY_MS + 1);
+        assertEquals(0, weekly.fare);
+        assertEquals(FarePolicy.CAP_WEEKLY, weekly.cap);
+
+        // The next Monday starts from nothing, without a sweep
+        assertEquals(0, policy.spentThisWeek(MONDAY + 7 * DAY_MS));
+        assertEquals(2, charge(policy, 2, MONDAY + 7 * DAY_MS).fare);
+        assertEquals(4, policy.cappedCount());
+        policy.close();
+    }
+
+    @Test
+    public void tornSlotWriteKeepsThePreviousState() throws Exception {
+        FarePolicy policy = new FarePolicy(dir, cipher, UTC, 0, 0);
+        charge(policy, 3, MONDAY);
+        policy.persist();
+        charge(policy, 4, MONDAY);
+        // Second slot
+        policy.persist();
+        policy.close();
+
+        File state = new File(dir, "fare_caps.bin");
+        try (RandomAccessFile file = new RandomAccessFile(state, "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        // Under-caps by the torn write's tap, never over-caps
+        FarePolicy reopened = new FarePolicy(dir, cipher, UTC, 0, 0);
+        assertEquals(3, reopened.spentToday(MONDAY));
+        charge(reopened, 5, MONDAY);
+        reopened.close();
+
+        FarePolicy again = new FarePolicy(dir, cipher, UTC, 0, 0);
+        assertEquals(8, again.spentToday(MONDAY));
+        again.close();
+    }
+
+    private static FarePolicy.Decision charge(FarePolicy policy, int fare, long now) {
+        FarePolicy.Decision decision = policy.quote(fare, now);
+        policy.record(decision);
+        return decision;
+    }
+}
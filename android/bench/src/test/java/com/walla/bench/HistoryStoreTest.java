@@ -0,0 +1,126 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+
+import com.walla.HistoryStore;
+import com.walla.RecordCipher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * HistoryStore on disk: paging newest first, a sync result for a tap added by an earlier
+ * process, and a slot torn by a kill mid-write
+ */
+public class HistoryStoreTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    // Monday 2023-11-20, 00:00 UTC
+    private static final long MONDAY = 1_700_438_400_000L;
+
+    private File dir;
+    private RecordCipher cipher;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("history").toFile();
+        cipher = new RecordCipher(RecordCipher.newKey());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void pagesRunNewestFirstToTheStart() throws Exception {
+        HistoryStore store = new HistoryStore(dir, cipher, UTC);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            String txId = UUID.randomUUID().toString();
+            ids.add(txId);
+            store.add(txId, HistoryStore.TYPE_DEDUCT, 200, MONDAY + i);
+        }
+
+        List<String> seen = new ArrayList<>();
+        long cursor = -1;
+        int pages = 0;
+        do {
+            HistoryStore.Page page = store.page(cursor, HistoryStore.MAX_PAGE);
+            for (HistoryStore.Entry entry : page.entries) seen.add(entry.txId);
+            cursor = page.nextCursor;
+            pages++;
+        } while (cursor >= 0);
+
+        assertEquals(3, pages);
+        assertEquals(250, seen.size());
+        for (int i = 0; i < 250; i++) assertEquals(ids.get(249 - i), seen.get(i));
+        store.close();
+    }
+
+    @Test
+    public void rejectionAfterARestartLeavesTheAggregates() throws Exception {
+        HistoryStore store = new HistoryStore(dir, cipher, UTC);
+        String kept = UUID.randomUUID().toString();
+        String refused = UUID.randomUUID().toString();
+        store.add(kept, HistoryStore.TYPE_DEDUCT, 200, MONDAY);
+        store.add(refused, HistoryStore.TYPE_DEDUCT, 300, MONDAY + DAY_MS);
+        store.add(UUID.randomUUID().toString(), HistoryStore.TYPE_TOP_UP, 5_000, MONDAY + DAY_MS);
+        store.close();
+
+        // A new process has to find the pending slots on disk
+        HistoryStore reopened = new HistoryStore(dir, cipher, UTC);
+        assertEquals(1, reopened.settle(kept, HistoryStore.STATUS_SYNCED));
+        assertEquals(1, reopened.settle(refused, HistoryStore.STATUS_REJECTED));
+        assertEquals(0, reopened.settle(refused, HistoryStore.STATUS_REJECTED));
+
+        List<HistoryStore.Aggregate> days = reopened.days(7);
+        assertEquals(2, days.size());
+        assertEquals(0, days.get(0).spentMinor);
+        assertEquals(0, days.get(0).taps);
+        assertEquals(200, days.get(1).spentMinor);
+        HistoryStore.Aggregate week = reopened.weeks(1).get(0);
+        assertEquals(HistoryStore.week(reopened.day(MONDAY)), week.period);
+        assertEquals(200, week.spentMinor);
+        assertEquals(1, week.taps);
+
+        HistoryStore.Page page = reopened.page(-1, 10);
+        assertEquals(HistoryStore.TYPE_TOP_UP, page.entries.get(0).type);
+        assertEquals(HistoryStore.STATUS_REJECTED, page.entries.get(1).status);
+        assertEquals(HistoryStore.STATUS_SYNCED, page.entries.get(2).status);
+        reopened.close();
+    }
+
+    @Test
+    public void tornLastSlotIsCutOff() throws Exception {
+        HistoryStore store = new HistoryStore(dir, cipher, UTC);
+        for (int i = 0; i < 3; i++) store.add(UUID.randomUUID().toString(), HistoryStore.TYPE_DEDUCT, 100, MONDAY);
+        store.close();
+
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "history.bin"), true)) {
+            out.write(new byte[] {1, 2, 3, 4, 5});
+        }
+
+        HistoryStore reopened = new HistoryStore(dir, cipher, UTC);
+        assertEquals(3, reopened.size());
+        String next = UUID.randomUUID().toString();
+        reopened.add(next, HistoryStore.TYPE_DEDUCT, 100, MONDAY);
+        HistoryStore.Page page = reopened.page(-1, 10);
+        assertEquals(4, page.entries.size());
+        assertEquals(next, page.entries.get(0).txId);
+        assertEquals(0, reopened.skippedSlots());
+        reopened.close();
+    }
+}
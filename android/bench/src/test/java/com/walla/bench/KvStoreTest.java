@@ -0,0 +1,115 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.walla.KvStore;
+import com.walla.RecordCipher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+
+/**
+ * KvStore on disk: a commit whose file write fails, and a record that no longer decrypts
+ */
+public class KvStoreTest {
+
+    private File root;
+    private File dir;
+    private byte[] key;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("kvstore").toFile();
+        dir = new File(root, "kv");
+        key = RecordCipher.newKey();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void failedCommitIsWrittenByTheWriterThread() throws Exception {
+        KvStore store = new KvStore(dir, key);
+        store.commit(Collections.singletonMap("token", "old"), false);
+
+        // The directory goes away, so the record cannot be written
+        File moved = new File(root, "moved");
+        assertTrue(dir.renameTo(moved));
+        try {
+            store.commit(Collections.singletonMap("token", "new"), false);
+            fail("commit wrote into a missing directory");
+        } catch (IOException expected) {
+            // The caller sees the failure; readers already see the new value
+        }
+        assertEquals("new", store.get("token"));
+        assertTrue(moved.renameTo(dir));
+
+        // The writer retries the key; its first attempt may have hit the missing directory
+        flushUntilClean(store);
+        store.close();
+
+        KvStore reopened = new KvStore(dir, key);
+        assertEquals("new", reopened.get("token"));
+        reopened.close();
+    }
+
+    @Test
+    public void unreadableRecordIsSkippedThenReplacedByTheNextWrite() throws Exception {
+        KvStore store = new KvStore(dir, key);
+        store.commit(Collections.singletonMap("device_id", "abc"), false);
+        store.close();
+
+        File[] records = dir.listFiles();
+        assertEquals(1, records.length);
+        try (RandomAccessFile file = new RandomAccessFile(records[0], "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        KvStore damaged = new KvStore(dir, key);
+        assertEquals(1, damaged.corruptRecords());
+        assertNull(damaged.get("device_id"));
+        assertFalse(damaged.contains("device_id"));
+        // Still on disk until the key is written again
+        assertEquals(1, dir.listFiles().length);
+        damaged.commit(Collections.singletonMap("device_id", "def"), false);
+        damaged.close();
+
+        KvStore reopened = new KvStore(dir, key);
+        assertEquals(0, reopened.corruptRecords());
+        assertEquals("def", reopened.get("device_id"));
+        reopened.close();
+    }
+
+    private static void flushUntilClean(KvStore store) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                store.flush();
+                return;
+            } catch (IOException e) {
+                if (attempt == 5) throw e;
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) deleteRecursively(child);
+        file.delete();
+    }
+}
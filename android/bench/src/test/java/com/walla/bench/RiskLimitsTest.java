@@ -0,0 +1,111 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+
+import com.walla.OfflineTransaction;
+import com.walla.RecordCipher;
+import com.walla.RiskLimits;
+import com.walla.TxJournal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * RiskLimits fed by a real TxJournal: counters seeded from the queue after a restart,
+ * taken off as the journal settles, reset with the journal, and the sync age
+ */
+public class RiskLimitsTest {
+
+    private File dir;
+    private RecordCipher cipher;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("risk-limits").toFile();
+        cipher = new RecordCipher(RecordCipher.newKey());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void countersComeBackFromTheJournalAfterARestart() throws Exception {
+        TxJournal journal = open();
+        for (int i = 0; i < 3; i++) journal.append(tx("tx-" + i, 2));
+        journal.close();
+
+        TxJournal reopened = open();
+        RiskLimits limits = new RiskLimits(10, 4, 0, 0);
+        reopened.setQueueListener(limits);
+        assertEquals(3, limits.unsyncedCount());
+        assertEquals(6, limits.unsyncedValue());
+
+        long now = System.currentTimeMillis();
+        assertEquals(RiskLimits.OK, limits.check(2, now));
+        limits.onApproved(2);
+        assertEquals(RiskLimits.LIMIT_COUNT, limits.check(2, now));
+        assertEquals(RiskLimits.LIMIT_VALUE, limits.check(3, now));
+
+        // The backend acks one: room for another tap
+        reopened.ack("tx-0");
+        assertEquals(3, limits.unsyncedCount());
+        assertEquals(6, limits.unsyncedValue());
+        assertEquals(RiskLimits.OK, limits.check(2, now));
+        assertEquals(2, limits.declineCount());
+        reopened.close();
+    }
+
+    @Test
+    public void journalResetLiftsTheLimits() throws Exception {
+        TxJournal journal = open();
+        RiskLimits limits = new RiskLimits(0, 2, 0, 0);
+        journal.setQueueListener(limits);
+        for (int i = 0; i < 2; i++) {
+            journal.append(tx("tx-" + i, 2));
+            limits.onApproved(2);
+        }
+        long now = System.currentTimeMillis();
+        assertEquals(RiskLimits.LIMIT_COUNT, limits.check(2, now));
+
+        // Logout clears the queue, and the counters with it
+        journal.clear();
+        assertEquals(0, limits.unsyncedCount());
+        assertEquals(0, limits.unsyncedValue());
+        assertEquals(RiskLimits.OK, limits.check(2, now));
+        journal.close();
+    }
+
+    @Test
+    public void syncAgeOnlyCountsWithSomethingUnsynced() throws Exception {
+        long now = System.currentTimeMillis();
+        RiskLimits limits = new RiskLimits(0, 0, 60_000, now - 3_600_000);
+
+        // Nothing held: the first tap after a long offline spell is approved
+        assertEquals(RiskLimits.OK, limits.check(2, now));
+        limits.onApproved(2);
+        assertEquals(RiskLimits.LIMIT_SYNC_AGE, limits.check(2, now));
+
+        // A settlement is a sync
+        limits.onSettled(2);
+        limits.onApproved(2);
+        assertEquals(RiskLimits.OK, limits.check(2, System.currentTimeMillis()));
+    }
+
+    private TxJournal open() throws Exception {
+        return new TxJournal(dir, cipher, 64 * 1024, false);
+    }
+
+    private static OfflineTransaction tx(String txId, int amount) {
+        byte[] payload = ("{\"txId\":\"" + txId + "\"}").getBytes(StandardCharsets.UTF_8);
+        return new OfflineTransaction(txId, amount, 1_700_000_000_000L, new byte[64], payload);
+    }
+}
@@ -0,0 +1,103 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.walla.SyncScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyncScheduler on a real executor with short delays: debounce, the max-delay flush under
+ * a steady stream of triggers, the follow-up run, and syncNow
+ */
+public class SyncSchedulerTest {
+
+    private static final long DEBOUNCE_MS = 100;
+    private static final long MAX_DELAY_MS = 400;
+
+    private ScheduledExecutorService executor;
+    // Policies passed to the enqueuer, in order
+    private LinkedBlockingQueue<Integer> enqueued;
+    private SyncScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        enqueued = new LinkedBlockingQueue<>();
+        scheduler = new SyncScheduler(enqueued::add, executor, DEBOUNCE_MS, MAX_DELAY_MS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void burstOfTriggersIsOneRun() throws Exception {
+        for (int i = 0; i < 5; i++) scheduler.trigger();
+
+        assertEquals(Integer.valueOf(SyncScheduler.ENQUEUE_KEEP), enqueued.poll(2, TimeUnit.SECONDS));
+        assertNull(enqueued.poll(3 * DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+        assertEquals(5, scheduler.runStarted());
+        scheduler.runFinished(false);
+        assertNull(enqueued.poll(3 * DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+        assertEquals(4, scheduler.coalescedTriggers());
+    }
+
+    @Test
+    public void steadyTriggersFlushAtTheMaxDelay() throws Exception {
+        // Never quiet for a whole debounce, so only the max delay can flush
+        long start = System.nanoTime();
+        Integer policy = null;
+        while (policy == null && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3)) {
+            scheduler.trigger();
+            policy = enqueued.poll(DEBOUNCE_MS / 4, TimeUnit.MILLISECONDS);
+        }
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertNotNull("no flush while triggers kept coming", policy);
+        assertEquals(SyncScheduler.ENQUEUE_KEEP, policy.intValue());
+        assertTrue("flushed after " + waitedMs + " ms", waitedMs >= MAX_DELAY_MS - DEBOUNCE_MS / 4);
+    }
+
+    @Test
+    public void triggersDuringARunGetOneFollowUp() throws Exception {
+        scheduler.trigger();
+        assertEquals(Integer.valueOf(SyncScheduler.ENQUEUE_KEEP), enqueued.poll(2, TimeUnit.SECONDS));
+        scheduler.runStarted();
+
+        // Held while the run is in progress, then appended behind it
+        scheduler.trigger();
+        scheduler.trigger();
+        assertNull(enqueued.poll(3 * DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+        scheduler.runFinished(false);
+        assertEquals(Integer.valueOf(SyncScheduler.ENQUEUE_APPEND), enqueued.poll(1, TimeUnit.SECONDS));
+        assertEquals(2, scheduler.runStarted());
+
+        // A run that will be retried covers what came in meanwhile
+        scheduler.trigger();
+        scheduler.runFinished(true);
+        assertNull(enqueued.poll(3 * DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void syncNowSkipsTheDebounce() throws Exception {
+        scheduler.trigger();
+        scheduler.syncNow();
+        assertEquals(Integer.valueOf(SyncScheduler.ENQUEUE_REPLACE), enqueued.poll(0, TimeUnit.MILLISECONDS));
+
+        // The debounced flush was cancelled, and the waiting run covers both requests
+        assertNull(enqueued.poll(3 * DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2, scheduler.runStarted());
+    }
+}
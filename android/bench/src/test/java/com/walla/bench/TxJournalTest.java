@@ -0,0 +1,188 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.walla.OfflineTransaction;
+import com.walla.RecordCipher;
+import com.walla.TxJournal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * TxJournal on disk: a record torn by a kill mid-write, compaction of settled segments,
+ * and the per-transaction sync states
+ */
+public class TxJournalTest {
+
+    // Small segments, so a few transactions roll several
+    private static final int SEGMENT_BYTES = 1024;
+
+    private File dir;
+    private RecordCipher cipher;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("journal").toFile();
+        cipher = new RecordCipher(RecordCipher.newKey());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void tornTailIsDroppedAndTheJournalStaysWritable() throws Exception {
+        TxJournal journal = open();
+        for (int i = 0; i < 3; i++) assertTrue(journal.append(tx("tx-" + i, 2)));
+        journal.close();
+
+        // A record whose length made it to disk but whose body did not
+        File newest = newestSegment();
+        long intact = newest.length();
+        try (FileOutputStream out = new FileOutputStream(newest, true)) {
+            out.write(new byte[] {0, 0, 0, 100, 1, 2, 3});
+        }
+
+        TxJournal recovered = open();
+        assertEquals(7, recovered.droppedTailBytes());
+        assertEquals(intact, newest.length());
+        assertEquals(3, recovered.pendingCount());
+        assertEquals(6, recovered.pendingAmount());
+        assertTrue(recovered.append(tx("tx-3", 2)));
+        recovered.close();
+
+        TxJournal reopened = open();
+        assertEquals(0, reopened.droppedTailBytes());
+        assertEquals(setOf("tx-0", "tx-1", "tx-2", "tx-3"), pendingIds(reopened));
+        reopened.close();
+    }
+
+    @Test
+    public void compactionDropsSettledSegmentsAndKeepsPending() throws Exception {
+        TxJournal journal = open();
+        int count = 40;
+        for (int i = 0; i < count; i++) journal.append(tx("tx-" + i, 1));
+        int segments = journal.segmentCount();
+        assertTrue("expected several segments, got " + segments, segments > 2);
+
+        // Everything but the last transaction is settled
+        for (int i = 0; i < count - 1; i++) {
+            if (i % 2 == 0) journal.ack("tx-" + i);
+            else journal.reject("tx-" + i);
+        }
+        // Settling schedules compaction in the background; this finishes whatever it left
+        journal.compact();
+        assertTrue(journal.segmentCount() < segments);
+        assertEquals(1, journal.pendingCount());
+        // Settled in a dropped segment: forgotten, not just settled
+        assertEquals(TxJournal.STATE_UNKNOWN, journal.state("tx-0"));
+        assertEquals(TxJournal.STATE_PENDING, journal.state("tx-" + (count - 1)));
+        journal.close();
+
+        TxJournal reopened = open();
+        assertEquals(setOf("tx-" + (count - 1)), pendingIds(reopened));
+        assertEquals(1, reopened.pendingAmount());
+        reopened.close();
+    }
+
+    @Test
+    public void claimedTransactionIsHandedToOneUploaderOnly() throws Exception {
+        TxJournal journal = open();
+        journal.append(tx("tx-a", 2));
+        journal.append(tx("tx-b", 3), true);
+        assertEquals(TxJournal.STATE_IN_FLIGHT, journal.state("tx-b"));
+        assertEquals(1, journal.inFlightCount());
+
+        // tx-b was appended claimed, so a sync worker's cursor only gets tx-a
+        try (TxJournal.Cursor cursor = journal.cursor()) {
+            assertEquals("tx-a", cursor.claimNext().txId);
+            assertNull(cursor.claimNext());
+        }
+        assertFalse(journal.claim("tx-a"));
+
+        // A failed upload goes back to PENDING; a second release is a no-op
+        assertTrue(journal.release("tx-a"));
+        assertFalse(journal.release("tx-a"));
+        assertEquals(TxJournal.STATE_PENDING, journal.state("tx-a"));
+        assertTrue(journal.claim("tx-a"));
+
+        assertTrue(journal.ack("tx-a"));
+        assertFalse(journal.ack("tx-a"));
+        assertFalse(journal.claim("tx-a"));
+        assertEquals(TxJournal.STATE_ACKED, journal.state("tx-a"));
+        assertEquals(1, journal.pendingCount());
+        assertEquals(3, journal.pendingAmount());
+        assertEquals(TxJournal.STATE_UNKNOWN, journal.state("tx-never"));
+        journal.close();
+    }
+
+    @Test
+    public void settledStatesSurviveARestartAndInFlightDoesNot() throws Exception {
+        TxJournal journal = open();
+        journal.append(tx("tx-acked", 1));
+        journal.append(tx("tx-rejected", 2));
+        journal.append(tx("tx-uploading", 4), true);
+        journal.ack("tx-acked");
+        journal.reject("tx-rejected");
+        journal.close();
+
+        // The upload was cut off with the process; the backend's duplicate check covers it
+        TxJournal reopened = open();
+        assertEquals(TxJournal.STATE_ACKED, reopened.state("tx-acked"));
+        assertEquals(TxJournal.STATE_REJECTED, reopened.state("tx-rejected"));
+        assertEquals(TxJournal.STATE_PENDING, reopened.state("tx-uploading"));
+        assertEquals(0, reopened.inFlightCount());
+        assertEquals(1, reopened.pendingCount());
+        assertEquals(4, reopened.pendingAmount());
+        assertFalse(reopened.append(tx("tx-acked", 1)));
+        reopened.close();
+    }
+
+    private TxJournal open() throws Exception {
+        return new TxJournal(dir, cipher, SEGMENT_BYTES, false);
+    }
+
+    private File newestSegment() {
+        File newest = null;
+        for (File f : dir.listFiles()) {
+            if (newest == null || f.getName().compareTo(newest.getName()) > 0) newest = f;
+        }
+        return newest;
+    }
+
+    private static OfflineTransaction tx(String txId, int amount) {
+        byte[] payload = ("{\"txId\":\"" + txId + "\"}").getBytes(StandardCharsets.UTF_8);
+        return new OfflineTransaction(txId, amount, 1_700_000_000_000L, new byte[64], payload);
+    }
+
+    private static Set<String> pendingIds(TxJournal journal) throws Exception {
+        Set<String> ids = new HashSet<>();
+        try (TxJournal.Cursor cursor = journal.cursor()) {
+            OfflineTransaction tx;
+            while ((tx = cursor.next()) != null) ids.add(tx.txId);
+            assertEquals(0, cursor.skippedRecords());
+        }
+        return ids;
+    }
+
+    private static Set<String> setOf(String... ids) {
+        Set<String> set = new HashSet<>();
+        for (String id : ids) set.add(id);
+        return set;
+    }
+}
@@ -0,0 +1,130 @@
+package com.walla.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.walla.WalletLedger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taps, top-ups and server reconciliations racing on one WalletLedger. Every thread keeps
+ * its own tally of what it changed; once they are done the balance has to be exactly the
+ * start plus those tallies, and no deduct may ever have taken the balance below zero.
+ */
+public class WalletLedgerStressTest {
+
+    private static final int DEDUCTERS = 4;
+    private static final int TOP_UPPERS = 2;
+    private static final int OPS_PER_THREAD = 200_000;
+    private static final long FARE = 3;
+    private static final long TOP_UP = 7;
+
+    @Test
+    public void deductsRacingTopUpsAndReconcilesLoseNothing() throws Exception {
+        WalletLedger ledger = new WalletLedger();
+        long start = 1_000;
+        ledger.load(start);
+
+        List<Callable<long[]>> workers = new ArrayList<>();
+        // {deducts approved, minor units deducted}
+        for (int i = 0; i < DEDUCTERS; i++) {
+            workers.add(() -> {
+                long approved = 0;
+                for (int op = 0; op < OPS_PER_THREAD; op++) {
+                    long updated = ledger.tryDeduct(FARE);
+                    if (updated == WalletLedger.INSUFFICIENT) continue;
+                    assertTrue("balance went negative: " + updated, updated >= 0);
+                    approved++;
+                }
+                return new long[]{approved, -approved * FARE};
+            });
+        }
+        for (int i = 0; i < TOP_UPPERS; i++) {
+            workers.add(() -> {
+                for (int op = 0; op < OPS_PER_THREAD; op++) ledger.topUp(TOP_UP);
+                return new long[]{0, OPS_PER_THREAD * TOP_UP};
+            });
+        }
+        // The sync worker: replaces the balance, and what it replaced is logged as a delta
+        workers.add(() -> {
+            long deltas = 0;
+            for (int op = 0; op < OPS_PER_THREAD / 100; op++) {
+                deltas += ledger.reconcileDelta(op % 2 == 0 ? 0 : 5_000);
+            }
+            return new long[]{0, deltas};
+        });
+
+        long[] totals = runTogether(workers);
+        assertEquals(start + totals[1], ledger.get());
+        assertTrue("no deduct was approved", totals[0] > 0);
+    }
+
+    @Test
+    public void approvedDeductsSpendExactlyWhatWasLoaded() throws Exception {
+        WalletLedger ledger = new WalletLedger();
+        long start = 10_000;
+        ledger.load(start);
+        long toppedUp = TOP_UPPERS * (long) OPS_PER_THREAD * TOP_UP;
+
+        List<Callable<long[]>> workers = new ArrayList<>();
+        for (int i = 0; i < DEDUCTERS; i++) {
+            workers.add(() -> {
+                long approved = 0;
+                for (int op = 0; op < OPS_PER_THREAD; op++) {
+                    if (ledger.tryDeduct(1) != WalletLedger.INSUFFICIENT) approved++;
+                }
+                return new long[]{approved, 0};
+            });
+        }
+        for (int i = 0; i < TOP_UPPERS; i++) {
+            workers.add(() -> {
+                for (int op = 0; op < OPS_PER_THREAD; op++) ledger.topUp(TOP_UP);
+                return new long[]{0, 0};
+            });
+        }
+
+        long approved = runTogether(workers)[0];
+        // Spend what is left, one unit at a time, and the count comes out exact
+        while (ledger.tryDeduct(1) != WalletLedger.INSUFFICIENT) approved++;
+
+        assertEquals(0, ledger.get());
+        assertEquals(start + toppedUp, approved);
+    }
+
+    /**
+     * Start every worker at once and sum their {count, delta} tallies
+     */
+    private static long[] runTogether(List<Callable<long[]>> workers) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+        CountDownLatch go = new CountDownLatch(1);
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+            for (Callable<long[]> worker : workers) {
+                results.add(pool.submit(() -> {
+                    go.await();
+                    return worker.call();
+                }));
+            }
+            go.countDown();
+            long[] totals = new long[2];
+            for (Future<long[]> result : results) {
+                long[] tally = result.get(60, TimeUnit.SECONDS);
+                totals[0] += tally[0];
+                totals[1] += tally[1];
+            }
+            return totals;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.walla.replay;
+
+import com.walla.TapProtocol;
+
+/**
+ * Reader side of {@link TapProtocol}: what a gate does for one tap, over any transport.
+ *
+ *   LEGACY   - SELECT, DEDUCT (v1 gates)
+ *   BOUND    - SELECT, then a DEDUCT carrying the card nonce when the card offers it, and
+ *              the tap nonce too when the card takes one
+ *   COMBINED - SELECT-and-DEDUCT in one exchange; if the phone answers 6A82 (no prefix AID
+ *              routing, or a v1 wallet), 6D00 or 6700, the tap carries on as BOUND
+ *
+ * The caller picks the tap nonce and passes the same one again when it redoes a tap whose
+ * answer it lost, so the card can tell a resend from a new tap. Only the tap DEDUCT
+ * carries it; the card charges every other form each time it arrives, so a tap that went
+ * out in another form is never resent ({@link Result#resendable}). Its lost answer is
+ * left for the gate to handle as a v1 gate does, not charged again.
+ *
+ * The gate firmware is not in this repo; this is the behaviour it is expected to follow.
+ */
+final class ReferenceReader {
+
+    static final int LEGACY = 0;
+    static final int BOUND = 1;
+    static final int COMBINED = 2;
+
+    interface Transceiver {
+        byte[] transceive(byte[] command);
+    }
+
+    static final class Result {
+        // Status word of the DEDUCT (or of the SELECT when the tap never got that far)
+        int sw;
+        int exchanges;
+        // Parsed SELECT response, null if the card did not answer LEAP_OK 9000
+        TapProtocol.SelectInfo card;
+        // COMBINED only: the card refused the combined SELECT and the tap fell back
+        boolean fellBack;
+        // The DEDUCT carried the tap nonce: resending it, or redoing the tap, is not a new fare
+        boolean resendable;
+    }
+
+    private final int mode;
+
+    ReferenceReader(int mode) {
+        this.mode = mode;
+    }
+
+    static int parseMode(String name) {
+        switch (name) {
+            case "legacy": return LEGACY;
+            case "bound": return BOUND;
+            case "combined": return COMBINED;
+            default: throw new IllegalArgumentException("Unknown protocol " + name);
+        }
+    }
+
+    Result tap(Transceiver card, int fare, long tapNonce) {
+        Result result = new Result();
+        if (mode == COMBINED) {
+            byte[] response = card.transceive(TapProtocol.selectDeductCommand(fare));
+            result.exchanges++;
+            int sw = TapProtocol.statusWord(response);
+            if (sw != 0x6A82 && sw != 0x6D00 && sw != 0x6700) {
+                result.sw = sw;
+                result.card = TapProtocol.parseSelectResponse(response);
+                return result;
+            }
+            result.fellBack = true;
+        }
+        selectAndDeduct(card, fare, tapNonce, result);
+        return result;
+    }
+
+    /**
+     * Redo a {@link Result#resendable} tap whose answer was lost with the field, in a new
+     * field session: SELECT for a fresh card nonce, then the tap DEDUCT with the same tap
+     * nonce, which the card answers as it did the first time.
+     */
+    Result redo(Transceiver card, Result lost, int fare, long tapNonce) {
+        if (!lost.resendable) throw new IllegalStateException("Tap carried no tap nonce");
+        Result result = new Result();
+        result.fellBack = lost.fellBack;
+        selectAndDeduct(card, fare, tapNonce, result);
+        return result;
+    }
+
+    private void selectAndDeduct(Transceiver card, int fare, long tapNonce, Result result) {
+        byte[] select = card.transceive(TapProtocol.selectCommand());
+        result.exchanges++;
+        result.card = TapProtocol.parseSelectResponse(select);
+        if (result.card == null) {
+            result.sw = TapProtocol.statusWord(select);
+            return;
+        }
+
+        result.resendable = takesTapNonce(result.card);
+        result.sw = TapProtocol.statusWord(card.transceive(deductCommand(result.card, fare, tapNonce)));
+        result.exchanges++;
+    }
+
+    /**
+     * A second fare in the same field session (a companion ticket, say) with its own tap
+     * nonce: the DEDUCT form the tap used, with no new SELECT, or SELECT-and-DEDUCT again
+     * when that is how the tap went. {@code tap} must have got as far as a SELECT answer.
+     * Returns the status word.
+     */
+    int chargeAgain(Transceiver card, Result tap, int fare, long tapNonce) {
+        byte[] command = mode == COMBINED && !tap.fellBack
+            ? TapProtocol.selectDeductCommand(fare)
+            : deductCommand(tap.card, fare, tapNonce);
+        return TapProtocol.statusWord(card.transceive(command));
+    }
+
+    private byte[] deductCommand(TapProtocol.SelectInfo card, int fare, long tapNonce) {
+        if (takesTapNonce(card)) {
+            return TapProtocol.tapDeductCommand(fare, card.cardNonce, tapNonce);
+        } else if (bound(card)) {
+            return TapProtocol.boundDeductCommand(fare, card.cardNonce);
+        }
+        return TapProtocol.deductCommand(fare);
+    }
+
+    private boolean bound(TapProtocol.SelectInfo card) {
+        return mode != LEGACY && card.hasNonce && card.supports(TapProtocol.CAP_BOUND_DEDUCT);
+    }
+
+    private boolean takesTapNonce(TapProtocol.SelectInfo card) {
+        return bound(card) && card.supports(TapProtocol.CAP_TAP_NONCE);
+    }
+}
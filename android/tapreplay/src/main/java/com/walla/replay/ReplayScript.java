@@ -0,0 +1,122 @@
+package com.walla.replay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tap-replay scenario: starting balance, fare, optional fare caps and offline risk
+ * limits, and phases of taps with a rate, burst size, retransmission probability, field
+ * drop probability and second-fare probability. See scripts/ for the text format.
+ */
+final class ReplayScript {
+
+    static final class Phase {
+        final String name;
+        final int taps;
+        final double rate;
+        final int burst;
+        final double retransmit;
+        final double drop;
+        final double extra;
+
+        Phase(String name, int taps, double rate, int burst, double retransmit, double drop, double extra) {
+            this.name = name;
+            this.taps = taps;
+            this.rate = rate;
+            this.burst = burst;
+            this.retransmit = retransmit;
+            this.drop = drop;
+            this.extra = extra;
+        }
+    }
+
+    long balance = 100;
+    int fare = 3;
+    // FarePolicy caps; 0 = none
+    int dailyCap;
+    int weeklyCap;
+    // RiskLimits; 0 = none
+    int maxUnsyncedValue;
+    int maxUnsyncedCount;
+    long maxSyncAgeMs;
+    final List<Phase> phases = new ArrayList<>();
+
+    int totalTaps() {
+        int total = 0;
+        for (Phase phase : phases) total += phase.taps;
+        return total;
+    }
+
+    static ReplayScript parse(Reader source) throws IOException {
+        ReplayScript script = new ReplayScript();
+        BufferedReader in = new BufferedReader(source);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            String[] parts = line.split("\\s+");
+            try {
+                switch (parts[0]) {
+                    case "balance":
+                        script.balance = Long.parseLong(parts[1]);
+                        break;
+                    case "fare":
+                        script.fare = Integer.parseInt(parts[1]);
+                        break;
+                    case "caps":
+                        script.dailyCap = Integer.parseInt(parts[1]);
+                        script.weeklyCap = Integer.parseInt(parts[2]);
+                        break;
+                    case "limits":
+                        script.maxUnsyncedValue = Integer.parseInt(parts[1]);
+                        script.maxUnsyncedCount = Integer.parseInt(parts[2]);
+                        script.maxSyncAgeMs = (long) (Double.parseDouble(parts[3]) * 1000);
+                        break;
+                    case "phase":
+                        script.phases.add(parsePhase(parts));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown directive '" + parts[0] + "'");
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Script line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        if (script.phases.isEmpty()) throw new IOException("Script has no phases");
+        return script;
+    }
+
+    private static Phase parsePhase(String[] parts) {
+        if (parts.length < 2) throw new IllegalArgumentException("phase needs a name");
+        int taps = 0;
+        double rate = 0;
+        int burst = 1;
+        double retransmit = 0;
+        double drop = 0;
+        double extra = 0;
+        for (int i = 2; i < parts.length; i++) {
+            String[] kv = parts[i].split("=", 2);
+            if (kv.length != 2) throw new IllegalArgumentException("expected key=value, got '" + parts[i] + "'");
+            switch (kv[0]) {
+                case "taps": taps = Integer.parseInt(kv[1]); break;
+                case "rate": rate = Double.parseDouble(kv[1]); break;
+                case "burst": burst = Integer.parseInt(kv[1]); break;
+                case "retransmit": retransmit = Double.parseDouble(kv[1]); break;
+                case "drop": drop = Double.parseDouble(kv[1]); break;
+                case "extra": extra = Double.parseDouble(kv[1]); break;
+                default: throw new IllegalArgumentException("unknown phase option '" + kv[0] + "'");
+            }
+        }
+        if (taps <= 0) throw new IllegalArgumentException("phase " + parts[1] + " needs taps > 0");
+        if (burst <= 0) throw new IllegalArgumentException("burst must be positive");
+        return new Phase(parts[1], taps, rate, burst, retransmit, drop, extra);
+    }
+}
@@ -0,0 +1,141 @@
+package com.walla.replay;
+
+import com.walla.BackendClient;
+import com.walla.BalanceStore;
+import com.walla.FarePolicy;
+import com.walla.OfflineTransaction;
+import com.walla.SessionSigner;
+import com.walla.TapPipeline;
+import com.walla.TxChain;
+import com.walla.TxChainVerifier;
+import com.walla.TxCodec;
+import com.walla.TxJournal;
+
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Post-tap stages as LeapHostApduService runs them, minus Android:
+ *   persist  - wait for the balance log group commit, write the fare cap spend
+ *   sign     - JSON or TxCodec payload, linked into the journal's TxChain, signed by a
+ *              SessionSigner over a software P-256 device key, then journaled (which
+ *              advances the chain), IN_FLIGHT when a backend is given
+ *   dispatch - POST to /api/wallet/redeem when a backend is given (e.g. the mock backend),
+ *              then ack, reject or release as the service does; without a backend the
+ *              transaction stays pending as offline taps do. Links the backend has seen
+ *              are kept in {@link #uploaded}, as a backend would.
+ */
+final class ReplayStages implements TapPipeline.Stages {
+
+    private static final long COMMIT_TIMEOUT_MS = 2000;
+
+    // Opened by the first DEDUCT on a cold start, so looked up on each persist
+    private final Supplier<BalanceStore> store;
+    private final TxJournal journal;
+    private final SessionSigner signer;
+    private final String backendUrl;
+
+    final AtomicLong synced = new AtomicLong();
+    final AtomicLong queued = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    volatile Exception lastError;
+    // Chain links of transactions the backend answered for (accepted or rejected)
+    final TxChainVerifier.Store uploaded = new TxChainVerifier.Store();
+    // Backend accepts TxCodec uploads (learned from responses)
+    volatile boolean tlv;
+    // Set when the script has caps
+    volatile FarePolicy farePolicy;
+
+    ReplayStages(Supplier<BalanceStore> store, TxJournal journal, SessionSigner signer, String backendUrl) {
+        this.store = store;
+        this.journal = journal;
+        this.signer = signer;
+        this.backendUrl = backendUrl;
+    }
+
+    @Override
+    public void persistBalance() throws Exception {
+        if (!store.get().awaitDurable(COMMIT_TIMEOUT_MS)) {
+            throw new IllegalStateException("Balance log commit timed out");
+        }
+        FarePolicy policy = farePolicy;
+        if (policy != null) policy.persist();
+    }
+
+    @Override
+    public OfflineTransaction sign(TapPipeline.Tap tap) throws Exception {
+        OfflineTransaction tx = new OfflineTransaction();
+        tx.txId = UUID.randomUUID().toString();
+        tx.amount = tap.fare;
+        tx.timestamp = System.currentTimeMillis();
+
+        TxChain.Link link = journal.chain().next();
+        tx.chainId = link.chainId;
+        tx.sequence = link.sequence;
+
+        // Same negotiation as the app: binary once the backend has advertised it
+        if (tlv) {
+            tx.payloadFormat = OfflineTransaction.PAYLOAD_TLV;
+            tx.payload = TxCodec.encodePayload(tx.txId, tap.fare, tx.timestamp, link, tap.requestedFare, tap.cap);
+        } else {
+            JSONObject payload = new JSONObject();
+            payload.put("txId", tx.txId);
+            payload.put("fare", tap.fare);
+            payload.put("timestamp", tx.timestamp);
+            TxChain.putLink(payload, link);
+            FarePolicy.putDecision(payload, tap.requestedFare, tap.cap);
+            tx.payload = payload.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        SessionSigner.SignedPayload signed = signer.sign(tap.alias, tx.payload);
+        tx.signature = signed.signature;
+        tx.sessionCert = signed.session.certificate;
+        tx.sessionCertSignature = signed.session.certificateSignature;
+        journal.append(tx, backendUrl != null);
+        return tx;
+    }
+
+    @Override
+    public void dispatch(OfflineTransaction tx) throws Exception {
+        boolean online = journal.state(tx.txId) == TxJournal.STATE_IN_FLIGHT;
+        int outcome = online ? post(tx) : BackendClient.RETRY;
+        if (outcome == BackendClient.OK) {
+            journal.ack(tx.txId);
+            uploaded.add(tx);
+            synced.incrementAndGet();
+        } else if (outcome == BackendClient.REJECTED) {
+            journal.reject(tx.txId);
+            uploaded.add(tx);
+            rejected.incrementAndGet();
+        } else {
+            journal.release(tx.txId);
+            queued.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onStageError(int stage, TapPipeline.Tap tap, Exception e) {
+        errors.incrementAndGet();
+        lastError = e;
+    }
+
+    private int post(OfflineTransaction tx) {
+        try {
+            // The app's own client, so the run exercises its pooling, compression and format negotiation
+            BackendClient.Result result = BackendClient.shared().redeem(
+                backendUrl + "/api/wallet/redeem", "tapreplay", Collections.singletonList(tx), false, tlv);
+            if (result.tlvSupport != BackendClient.TLV_UNKNOWN) {
+                tlv = result.tlvSupport == BackendClient.TLV_SUPPORTED;
+            }
+            return result.retryClass == BackendClient.UNSUPPORTED ? BackendClient.RETRY : result.retryClass;
+        } catch (Exception e) {
+            return BackendClient.RETRY;
+        }
+    }
+}
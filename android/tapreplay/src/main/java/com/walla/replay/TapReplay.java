@@ -0,0 +1,609 @@
+package com.walla.replay;
+
+import com.walla.BackendClient;
+import com.walla.BalanceStore;
+import com.walla.FarePolicy;
+import com.walla.LatencyHistogram;
+import com.walla.MetricsRegistry;
+import com.walla.OfflineTransaction;
+import com.walla.Prewarm;
+import com.walla.RecordCipher;
+import com.walla.RiskLimits;
+import com.walla.SessionSigner;
+import com.walla.TapPipeline;
+import com.walla.TapProtocol;
+import com.walla.TxChain;
+import com.walla.TxChainVerifier;
+import com.walla.TxJournal;
+import com.walla.WalletApplet;
+import com.walla.WalletLedger;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Headless tap-replay load generator.
+ *
+ * Plays a script of SELECT/DEDUCT taps against WalletApplet, which is exactly what
+ * LeapHostApduService.processCommandApdu forwards to, with the real balance log, post-tap
+ * pipeline, session signing and journal behind it (in a temp directory). Taps are
+ * scheduled open-loop at the script's rate, so "tap" latency is measured from the
+ * scheduled start and includes any time the harness fell behind.
+ *
+ * Before the script, one tap is played against a fresh balance log and signer twice:
+ * cold (the log is replayed by the DEDUCT and the session key certified by the sign
+ * stage, as on a service cold start) and after the Prewarm steps the service runs. The
+ * cold probe goes first, so it also pays for class loading as a new process would.
+ *
+ * Each tap is made by a {@link ReferenceReader} speaking the chosen TapProtocol flow:
+ * legacy (SELECT, DEDUCT), bound (SELECT, DEDUCT with the card and tap nonces) or combined
+ * (SELECT-and-DEDUCT, one exchange), and ends with the field going away (onDeactivated).
+ * A retransmission resends the last command in the same field session; a drop ends the
+ * session with the answer lost, and the reader taps again with the same tap nonce. The
+ * reader only does either for a tap that went out as a tap DEDUCT: nothing in the other
+ * forms tells a resend from a new fare, so their lost answers are counted as skipped
+ * resends. How many resends the applet charged a second time is read from its approval
+ * counter, and any is a double charge whatever the protocol. A second fare charges
+ * another fare (the same one half the time) in the session of an approved tap, with a
+ * new tap nonce, and must be charged like any new tap.
+ *
+ * After the run the journal's pending transactions are signed as one TxChain batch and
+ * checked with TxChainVerifier against the links the backend has already seen, as a
+ * /redeem/chain upload of everything queued would be.
+ *
+ *   TapReplay <script> [--backend http://host:port] [--speed N] [--seed N]
+ *             [--protocol legacy|bound|combined] [--out report.txt]
+ *
+ * With "caps" in the script the main run charges through a FarePolicy, and the expected
+ * balance is the approved fares capped at the smaller cap (a run stays within one day).
+ *
+ * Exits 1 if the final balance does not match the charged taps, if any protocol was
+ * charged again for a retransmission or a tap redone after a drop, if a second fare was approved without a charge or declined with the
+ * balance to cover it, if a post-tap stage failed, or if the chain batch does not anchor
+ * every pending transaction.
+ */
+public final class TapReplay {
+
+    private static final String[] PROTOCOLS = {"legacy", "bound", "combined"};
+    private static final String ALIAS = "tapreplay";
+
+    private final ReplayScript script;
+    private final String backendUrl;
+    private final double speed;
+    private final Random random;
+    private final int protocol;
+    private final ReferenceReader reader;
+
+    private final LatencyHistogram selectLatency = new LatencyHistogram();
+    private final LatencyHistogram deductLatency = new LatencyHistogram();
+    private final LatencyHistogram selectDeductLatency = new LatencyHistogram();
+    private final LatencyHistogram retransmitLatency = new LatencyHistogram();
+    private final LatencyHistogram tapLatency = new LatencyHistogram();
+
+    private long approved;
+    private long retransmits;
+    private long drops;
+    // Applet approvals beyond the first answer of each tap
+    private long retransmitsCharged;
+    private long dropsCharged;
+    // Lost answers of taps with no tap nonce, which the reader does not resend
+    private long resendsSkipped;
+    private long extras;
+    private long extraFares;
+    // Second fares approved without a charge, or declined with the balance to cover them
+    private long extrasWrong;
+    private BalanceStore store;
+    private LongAdder charged;
+    private long declinedInsufficient;
+    private long declinedBusy;
+    private long declinedLimit;
+    private long otherStatus;
+    private long exchanges;
+    private long fallbacks;
+
+    TapReplay(ReplayScript script, String backendUrl, double speed, long seed, int protocol) {
+        this.script = script;
+        this.backendUrl = backendUrl;
+        this.speed = speed;
+        this.random = new Random(seed);
+        this.protocol = protocol;
+        this.reader = new ReferenceReader(protocol);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: TapReplay <script> [--backend url] [--speed N] [--seed N]"
+                + " [--protocol legacy|bound|combined] [--out file]");
+            System.exit(2);
+        }
+        String backend = null;
+        String out = null;
+        double speed = 1;
+        long seed = 1;
+        int protocol = ReferenceReader.LEGACY;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--backend": backend = args[++i]; break;
+                case "--speed": speed = Double.parseDouble(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--out": out = args[++i]; break;
+                case "--protocol": protocol = ReferenceReader.parseMode(args[++i]); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        ReplayScript script;
+        try (FileReader reader = new FileReader(args[0])) {
+            script = ReplayScript.parse(reader);
+        }
+
+        boolean ok = new TapReplay(script, backend, speed, seed, protocol).run(args[0], System.out, out);
+        System.exit(ok ? 0 : 1);
+    }
+
+    boolean run(String name, PrintStream console, String reportFile) throws Exception {
+        File dir = Files.createTempDirectory("tapreplay").toFile();
+        byte[] key = RecordCipher.newKey();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair deviceKey = generator.generateKeyPair();
+
+        FirstTap cold = firstTap(new File(dir, "cold"), key, deviceKey, false);
+        FirstTap warm = firstTap(new File(dir, "warm"), key, deviceKey, true);
+
+        store = new BalanceStore(new File(dir, "balance"), new RecordCipher(key));
+        TxJournal journal = new TxJournal(new File(dir, "journal"), new RecordCipher(key));
+        store.reconcile(script.balance * WalletLedger.UNITS_PER_MAJOR);
+        SessionSigner signer = new SessionSigner(alias -> deviceKey.getPrivate());
+
+        // The main run starts warm, as the service does once Prewarm has finished
+        prewarm(() -> store, signer).await(30_000);
+
+        FarePolicy policy = null;
+        if (script.dailyCap > 0 || script.weeklyCap > 0) {
+            policy = new FarePolicy(new File(dir, "fare_caps"), new RecordCipher(key), script.dailyCap, script.weeklyCap);
+        }
+
+        RiskLimits limits = null;
+        if (script.maxUnsyncedValue > 0 || script.maxUnsyncedCount > 0 || script.maxSyncAgeMs > 0) {
+            limits = new RiskLimits(script.maxUnsyncedValue, script.maxUnsyncedCount, script.maxSyncAgeMs, 0);
+            journal.setQueueListener(limits);
+        }
+
+        ReplayStages stages = new ReplayStages(() -> store, journal, signer, backendUrl);
+        stages.farePolicy = policy;
+        TapPipeline pipeline = new TapPipeline(stages);
+        MetricsRegistry metrics = new MetricsRegistry();
+        charged = metrics.counter(MetricsRegistry.DEDUCT_APPROVED);
+        TimedCard card = new TimedCard(new WalletApplet(new ReplayHost(store, policy, limits), pipeline, metrics));
+
+        long runStart = System.nanoTime();
+        long next = runStart;
+        for (ReplayScript.Phase phase : script.phases) {
+            long interval = phase.rate > 0 ? (long) (1_000_000_000L / phase.rate / speed) : 0;
+            for (int done = 0; done < phase.taps; ) {
+                // Back-to-back taps are scheduled the moment the previous one finished
+                if (interval == 0) next = System.nanoTime();
+                for (int b = 0; b < phase.burst && done < phase.taps; b++, done++) {
+                    tap(card, phase, next);
+                }
+                next += interval;
+                sleepUntil(next);
+            }
+        }
+        long runNanos = System.nanoTime() - runStart;
+
+        pipeline.shutdown(30, TimeUnit.SECONDS);
+        store.awaitDurable(2000);
+        TapPipeline.Stats stats = pipeline.stats();
+
+        long chargedFares = (approved + retransmitsCharged + dropsCharged) * script.fare + extraFares;
+        int cap = smallestCap();
+        if (cap > 0) chargedFares = Math.min(chargedFares, cap);
+        long expected = (script.balance - chargedFares) * WalletLedger.UNITS_PER_MAJOR;
+        long actual = store.balance();
+        boolean balanceOk = expected == actual;
+        boolean stagesOk = stages.errors.get() == 0;
+        boolean idempotent = retransmitsCharged + dropsCharged == 0;
+        ChainCheck chain = chainCheck(journal, stages.uploaded, deviceKey);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "Tap replay: %s, %d taps, %d retransmits, %d drops, %.1fs, protocol %s%n",
+            name, script.totalTaps(), retransmits, drops, runNanos / 1e9, PROTOCOLS[protocol]));
+        report.append(String.format(Locale.ROOT, "%-26s %8s %10s %10s %10s %10s%n",
+            "latency (us)", "count", "p50", "p99", "p999", "max"));
+        row(report, "SELECT", selectLatency.snapshot());
+        row(report, "DEDUCT", deductLatency.snapshot());
+        row(report, "SELECT+DEDUCT", selectDeductLatency.snapshot());
+        row(report, "retransmit", retransmitLatency.snapshot());
+        row(report, "tap (from schedule)", tapLatency.snapshot());
+        for (int stage = TapPipeline.STAGE_PERSIST; stage <= TapPipeline.STAGE_DISPATCH; stage++) {
+            row(report, "stage " + TapPipeline.Stats.stageName(stage), stats.stageLatency[stage]);
+        }
+        row(report, "post-tap (submit->done)", stats.completionLatency);
+        report.append(String.format(Locale.ROOT, "%-26s %10s %10s%n", "first tap (us)", "DEDUCT", "post-tap"));
+        firstTapRow(report, "cold", cold);
+        firstTapRow(report, String.format(Locale.ROOT, "warm (prewarm %.1f ms)", warm.prewarmNanos / 1e6), warm);
+
+        report.append(String.format(Locale.ROOT,
+            "Outcomes: approved=%d, insufficient=%d, busy=%d, over limit=%d, other=%d%n",
+            approved, declinedInsufficient, declinedBusy, declinedLimit, otherStatus));
+        report.append(String.format(Locale.ROOT,
+            "Resends: charged again after a retransmit=%d, after a drop=%d, answered from RecentTaps=%d, "
+                + "not resent (no tap nonce)=%d %s%n",
+            retransmitsCharged, dropsCharged, metrics.counter(MetricsRegistry.DEDUCT_REPLAYED).sum(),
+            resendsSkipped, idempotent ? "OK" : "DOUBLE CHARGE"));
+        if (extras > 0) {
+            report.append(String.format(Locale.ROOT, "Second fares: %d, charged %.2f, wrong=%d %s%n",
+                extras, (double) extraFares, extrasWrong, extrasWrong == 0 ? "OK" : "WRONG"));
+        }
+        if (policy != null) {
+            long now = System.currentTimeMillis();
+            report.append(String.format(Locale.ROOT,
+                "Caps: daily=%d, weekly=%d, capped taps=%d, spent today=%d, this week=%d%n",
+                script.dailyCap, script.weeklyCap, policy.cappedCount(), policy.spentToday(now),
+                policy.spentThisWeek(now)));
+        }
+        if (limits != null) {
+            report.append(String.format(Locale.ROOT,
+                "Limits: value=%d, count=%d, sync age=%ds; unsynced value=%d, count=%d (journal %d/%d)%n",
+                script.maxUnsyncedValue, script.maxUnsyncedCount, script.maxSyncAgeMs / 1000,
+                limits.unsyncedValue(), limits.unsyncedCount(), journal.pendingAmount(), journal.pendingCount()));
+        }
+        report.append(String.format(Locale.ROOT, "Exchanges: %.2f per tap (retransmits excluded), fallbacks=%d%n",
+            (double) exchanges / script.totalTaps(), fallbacks));
+        report.append(String.format(Locale.ROOT,
+            "Pipeline: balance commits=%d, coalesced=%d, rejected=%d, stage errors=%d%n",
+            stats.balanceWrites, stats.balanceWritesCoalesced, stats.rejected, stages.errors.get()));
+        report.append(String.format(Locale.ROOT,
+            "Dispatch: synced=%d, rejected=%d, queued=%d, journal pending=%d, format=%s; balance log fsyncs=%d, snapshots=%d%n",
+            stages.synced.get(), stages.rejected.get(), stages.queued.get(), journal.pendingCount(), stages.tlv ? "tlv" : "json",
+            store.syncCount(), store.snapshotCount()));
+        if (chain.pending == 0) {
+            report.append("Chain: nothing pending\n");
+        } else {
+            report.append(String.format(Locale.ROOT,
+                "Chain: pending=%d, anchored=%d, missing=%d, 1 device signature (sign %.2f ms, verify %.2f ms) %s%n",
+                chain.pending, chain.anchored, chain.missing, chain.signNanos / 1e6, chain.verifyNanos / 1e6,
+                chain.ok() ? "OK" : "BROKEN" + (chain.error != null ? " (" + chain.error + ")" : "")));
+        }
+        report.append(String.format(Locale.ROOT, "Balance: start %.2f, end %.2f, expected %.2f %s%n",
+            (double) script.balance, WalletLedger.toMajor(actual), WalletLedger.toMajor(expected),
+            balanceOk ? "OK" : "MISMATCH"));
+        if (stages.lastError != null) {
+            report.append("Last stage error: ").append(stages.lastError).append('\n');
+        }
+
+        console.print(report);
+        if (reportFile != null) {
+            try (PrintStream file = new PrintStream(reportFile, "UTF-8")) {
+                file.print(report);
+            }
+        }
+
+        store.close();
+        journal.close();
+        if (policy != null) policy.close();
+        deleteRecursively(dir);
+        return balanceOk && stagesOk && idempotent && extrasWrong == 0 && chain.ok();
+    }
+
+    private int smallestCap() {
+        if (script.dailyCap == 0) return script.weeklyCap;
+        if (script.weeklyCap == 0) return script.dailyCap;
+        return Math.min(script.dailyCap, script.weeklyCap);
+    }
+
+    private static final class ChainCheck {
+        int pending;
+        int anchored;
+        int missing;
+        long signNanos;
+        long verifyNanos;
+        String error;
+
+        boolean ok() {
+            return error == null && anchored == pending && missing == 0;
+        }
+    }
+
+    /**
+     * Sign everything still pending as one chain batch and verify it the way the backend would
+     */
+    private static ChainCheck chainCheck(TxJournal journal, TxChainVerifier.KnownLinks uploaded,
+                                         KeyPair deviceKey) throws Exception {
+        List<OfflineTransaction> batch = new ArrayList<>();
+        try (TxJournal.Cursor cursor = journal.cursor()) {
+            for (OfflineTransaction tx; (tx = cursor.next()) != null; ) batch.add(tx);
+        }
+        ChainCheck check = new ChainCheck();
+        check.pending = batch.size();
+        if (batch.isEmpty()) return check;
+
+        long start = System.nanoTime();
+        TxChain.Batch signed = TxChain.signBatch(deviceKey.getPrivate(), ALIAS, batch);
+        check.signNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        TxChainVerifier.Result result = TxChainVerifier.verify(deviceKey.getPublic(), ALIAS, batch,
+            signed.statement, signed.signature, uploaded);
+        check.verifyNanos = System.nanoTime() - start;
+        check.anchored = result.count(TxChainVerifier.ANCHORED);
+        check.missing = result.missing.size();
+        check.error = result.error;
+        return check;
+    }
+
+    /**
+     * The same steps LeapHostApduService.prewarm runs that exist off-device: balance log
+     * replay, session key certificate (and its Signature), HTTP client
+     */
+    private Prewarm prewarm(Supplier<BalanceStore> store, SessionSigner signer) {
+        Prewarm prewarm = new Prewarm()
+            .step("balance", store::get)
+            .step("signer", () -> signer.ensureSession(ALIAS));
+        if (backendUrl != null) prewarm.step("http", BackendClient::shared);
+        prewarm.start();
+        return prewarm;
+    }
+
+    private static final class FirstTap {
+        long deductNanos;
+        long completionNanos;
+        long prewarmNanos;
+    }
+
+    /**
+     * One tap on a balance log written by an earlier "process" and a signer with no session
+     * yet, opened lazily on the tap path (cold) or by Prewarm before the tap (warm)
+     */
+    private FirstTap firstTap(File dir, byte[] key, KeyPair deviceKey, boolean warm) throws Exception {
+        File balanceDir = new File(dir, "balance");
+        try (BalanceStore previous = new BalanceStore(balanceDir, new RecordCipher(key))) {
+            previous.reconcile(script.balance * WalletLedger.UNITS_PER_MAJOR);
+            previous.sync();
+        }
+        ReplayHost host = new ReplayHost(balanceDir, new RecordCipher(key));
+        TxJournal journal = new TxJournal(new File(dir, "journal"), new RecordCipher(key));
+        SessionSigner signer = new SessionSigner(alias -> deviceKey.getPrivate());
+
+        FirstTap result = new FirstTap();
+        if (warm) {
+            Prewarm prewarm = prewarm(host::balanceStore, signer);
+            prewarm.await(30_000);
+            result.prewarmNanos = prewarm.totalNanos();
+        }
+
+        TapPipeline pipeline = new TapPipeline(new ReplayStages(host::balanceStore, journal, signer, backendUrl));
+        WalletApplet applet = new WalletApplet(host, pipeline, new MetricsRegistry());
+        long start = System.nanoTime();
+        reader.tap(applet::process, script.fare, random.nextLong());
+        result.deductNanos = System.nanoTime() - start;
+
+        pipeline.shutdown(30, TimeUnit.SECONDS);
+        result.completionNanos = pipeline.stats().completionLatency.maxNanos;
+        host.balanceStore().close();
+        journal.close();
+        return result;
+    }
+
+    private static void firstTapRow(StringBuilder out, String label, FirstTap tap) {
+        out.append(String.format(Locale.ROOT, "%-26s %10.1f %10.1f%n", label,
+            tap.deductNanos / 1000.0, tap.completionNanos / 1000.0));
+    }
+
+    /**
+     * One reader tap, possibly the last command resent after a "lost" response, the whole
+     * tap redone after the field dropped with the answer, and a second fare after it
+     */
+    private void tap(TimedCard card, ReplayScript.Phase phase, long scheduledNanos) {
+        long start = System.nanoTime();
+        long tapNonce = random.nextLong();
+        ReferenceReader.Result result = reader.tap(card, script.fare, tapNonce);
+        exchanges += result.exchanges;
+        if (result.fellBack) fallbacks++;
+        count(result.sw);
+        // A resend of a declined tap (busy, say) may be its first charge; only one after
+        // an approval is a double charge
+        boolean paid = result.sw == 0x9000;
+        long chargedSoFar = charged.sum();
+        boolean inField = true;
+
+        if (phase.retransmit > 0 && random.nextDouble() < phase.retransmit) {
+            retransmits++;
+            if (result.resendable) {
+                long resendStart = System.nanoTime();
+                card.applet.process(card.last);
+                retransmitLatency.recordSince(resendStart);
+                long delta = charged.sum() - chargedSoFar;
+                if (paid) retransmitsCharged += delta;
+                else approved += delta;
+                paid |= delta > 0;
+                chargedSoFar += delta;
+            } else {
+                resendsSkipped++;
+            }
+        }
+        if (phase.drop > 0 && random.nextDouble() < phase.drop) {
+            drops++;
+            card.applet.onDeactivated();
+            if (result.resendable) {
+                result = reader.redo(card, result, script.fare, tapNonce);
+                long delta = charged.sum() - chargedSoFar;
+                if (paid) dropsCharged += delta;
+                else approved += delta;
+                paid |= delta > 0;
+            } else {
+                // The gate gives up on the tap; the phone is out of the field
+                resendsSkipped++;
+                inField = false;
+            }
+        }
+        if (phase.extra > 0 && paid && inField && result.card != null && random.nextDouble() < phase.extra) {
+            extras++;
+            extraFare(card, result, random.nextBoolean() ? script.fare : script.fare + 1);
+        }
+        // The phone leaves the field
+        card.applet.onDeactivated();
+        tapLatency.recordSince(Math.min(start, scheduledNanos));
+    }
+
+    /**
+     * A new fare in the session of an approved tap. Without a tap nonce the applet cannot
+     * tell it from a resend, and must charge it rather than answer it from a cache.
+     */
+    private void extraFare(TimedCard card, ReferenceReader.Result tap, int fare) {
+        long before = charged.sum();
+        long balanceBefore = store.balance();
+        int sw = reader.chargeAgain(card, tap, fare, random.nextLong());
+        long delta = charged.sum() - before;
+        if (sw == 0x9000 && delta == 1) {
+            extraFares += fare;
+        } else if (sw == 0x9000 || delta != 0) {
+            extrasWrong++;
+        } else if (sw != 0x6A84 && !isLimit(sw) && balanceBefore >= fare * WalletLedger.UNITS_PER_MAJOR) {
+            extrasWrong++;
+        }
+    }
+
+    private static boolean isLimit(int sw) {
+        return sw == TapProtocol.SW_UNSYNCED_VALUE || sw == TapProtocol.SW_UNSYNCED_COUNT
+            || sw == TapProtocol.SW_SYNC_OVERDUE;
+    }
+
+    private void count(int sw) {
+        switch (sw) {
+            case 0x9000:
+                approved++;
+                break;
+            case 0x6985: declinedInsufficient++; break;
+            case 0x6A84: declinedBusy++; break;
+            case TapProtocol.SW_UNSYNCED_VALUE:
+            case TapProtocol.SW_UNSYNCED_COUNT:
+            case TapProtocol.SW_SYNC_OVERDUE:
+                declinedLimit++;
+                break;
+            default: otherStatus++;
+        }
+    }
+
+    private static void row(StringBuilder out, String label, LatencyHistogram.Snapshot s) {
+        out.append(String.format(Locale.ROOT, "%-26s %8d %10.1f %10.1f %10.1f %10.1f%n", label, s.count,
+            s.percentileMicros(50), s.percentileMicros(99), s.percentileMicros(99.9), s.maxMicros()));
+    }
+
+    private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining > 0) TimeUnit.NANOSECONDS.sleep(remaining);
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) deleteRecursively(child);
+        if (!file.delete() && file.exists()) throw new IOException("Cannot delete " + file);
+    }
+
+    /**
+     * The applet as the reader sees it, timing each exchange by command
+     */
+    private final class TimedCard implements ReferenceReader.Transceiver {
+        final WalletApplet applet;
+        byte[] last;
+
+        TimedCard(WalletApplet applet) {
+            this.applet = applet;
+        }
+
+        @Override
+        public byte[] transceive(byte[] command) {
+            last = command;
+            long start = System.nanoTime();
+            byte[] response = applet.process(command);
+            if ((command[1] & 0xFF) != WalletApplet.INS_SELECT) deductLatency.recordSince(start);
+            else if ((command[4] & 0xFF) > TapProtocol.AID.length) selectDeductLatency.recordSince(start);
+            else selectLatency.recordSince(start);
+            return response;
+        }
+    }
+
+    private static final class ReplayHost implements WalletApplet.Host {
+        private final File balanceDir;
+        private final RecordCipher cipher;
+        private volatile BalanceStore store;
+        private FarePolicy farePolicy;
+        private RiskLimits riskLimits;
+
+        ReplayHost(BalanceStore store, FarePolicy farePolicy, RiskLimits riskLimits) {
+            this((File) null, null);
+            this.store = store;
+            this.farePolicy = farePolicy;
+            this.riskLimits = riskLimits;
+        }
+
+        // Opens (replays) the balance log on first use, like LeapHostApduService.loadCache
+        ReplayHost(File balanceDir, RecordCipher cipher) {
+            this.balanceDir = balanceDir;
+            this.cipher = cipher;
+        }
+
+        @Override
+        public String alias() {
+            return ALIAS;
+        }
+
+        @Override
+        public BalanceStore balanceStore() {
+            BalanceStore s = store;
+            if (s != null) return s;
+            synchronized (this) {
+                if (store == null) {
+                    try {
+                        store = new BalanceStore(balanceDir, cipher);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return store;
+            }
+        }
+
+        @Override
+        public FarePolicy farePolicy() {
+            return farePolicy;
+        }
+
+        @Override
+        public RiskLimits riskLimits() {
+            return riskLimits;
+        }
+
+        @Override
+        public void onDeducted(int fare, double newBalance) {
+        }
+
+        @Override
+        public void onDeclined(int reason, long balanceMinor) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
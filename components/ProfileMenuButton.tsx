@@ -14,13 +14,12 @@ export default function ProfileMenuButton() {
   const handleLogout = async () => {
     try {
       // Check for pending transactions first
-      const queueJson = await NFCModule.getTransactionQueue();
-      const queue = JSON.parse(queueJson || '[]');
+      const pendingCount = await NFCModule.getPendingCount();
       
-      if (queue.length > 0) {
+      if (pendingCount > 0) {
         Alert.alert(
           'Cannot Logout',
-          `You have ${queue.length} unsynced transaction(s). Please connect to the internet to sync before logging out.`,
+          `You have ${pendingCount} unsynced transaction(s). Please connect to the internet to sync before logging out.`,
           [
             { text: 'Cancel', style: 'cancel' },
             { 
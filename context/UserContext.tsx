@@ -100,7 +100,7 @@ export const UserProvider = ({ children }: Props) => {
       switch (event.type) {
         case 'balanceUpdate':
            // Local balance deducted (before backend sync)
-          const newBalance = parseFloat(event.message);
+          const newBalance = typeof event.balance === 'number' ? event.balance : parseFloat(event.message);
           setUser(prev => prev ? { ...prev, balance: newBalance } : null);
           setTransactionStatus('processing');
            // Clear status after 8 seconds
@@ -109,9 +109,11 @@ export const UserProvider = ({ children }: Props) => {
           break;
 
         case 'transactionComplete':
-           // Backend sync successful - parse complete transaction data
+           // Backend sync successful - results arrive batched, the last one is the newest
           try {
-            const result = JSON.parse(event.message);
+            const result = Array.isArray(event.results)
+              ? event.results[event.results.length - 1]
+              : JSON.parse(event.message);
             
             setUser(prev => prev ? { ...prev, balance: result.newBalance } : null);
             
@@ -199,16 +201,17 @@ export const UserProvider = ({ children }: Props) => {
       }
 
       const userInfo = await response.json();
+
+      // Server balance minus the fares still waiting to sync
+      const localBalance = await NFCModule.saveLocalBalance(userInfo.balance);
     
       setUser({
         username: userInfo.username,
         email: userInfo.email,        
         cardId: userInfo.cardId,
-        balance: userInfo.balance,
+        balance: localBalance,
       });
       
-      await NFCModule.saveLocalBalance(userInfo.balance);
-      
       console.log('[UserContext] User info fetched successfully');
       
     } catch (error) {
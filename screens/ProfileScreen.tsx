@@ -23,14 +23,13 @@ export default function ProfileScreen() {
   const handleLogout = async () => {
     try {
       // Check for pending transactions when log out
-      const queueJson = await NFCModule.getTransactionQueue();
-      const queue = JSON.parse(queueJson || '[]');
+      const pendingCount = await NFCModule.getPendingCount();
       
       // If we have transactions in queue, call method on NFCModule
-      if (queue.length > 0) {
+      if (pendingCount > 0) {
         Alert.alert(
           'Cannot Logout',
-          `You have ${queue.length} unsynced transaction(s). Please connect to the internet to sync before logging out.`,
+          `You have ${pendingCount} unsynced transaction(s). Please connect to the internet to sync before logging out.`,
           [
             { text: 'Cancel', style: 'cancel' },
             { 
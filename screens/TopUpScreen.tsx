@@ -114,8 +114,9 @@ export default function TopUpScreen() {
 
       const result = await response.json();
       if (result.success) {
-        setUser(prev => prev ? { ...prev, balance: result.newBalance } : prev);
-        await NFCModule.saveLocalBalance(result.newBalance);
+        const localBalance = await NFCModule.saveLocalBalance(result.newBalance);
+        await NFCModule.recordTopUp(selectedAmount);
+        setUser(prev => prev ? { ...prev, balance: localBalance } : prev);
         
         displayToast(`Successfully added €${selectedAmount.toFixed(2)}`);
         
@@ -10,16 +10,17 @@ import {
   StatusBar
 } from 'react-native';
 import { NativeModules } from 'react-native';
-import Config from '../config';
 
 const { NFCModule } = NativeModules;
 
+// History entries served by NFCModule.getHistoryPage
+const PAGE_SIZE = 30;
+
 type Transaction = {
   id: string;
   type: 'DEDUCT' | 'TOPUP';
   amount: number;
-  balanceAfter: number;
-  timestamp: string;
+  timestamp: number;
   status: string;
 };
 
@@ -29,35 +30,30 @@ export default function TransactionsScreen() {
   const [loading, setLoading] = useState(true);
   const [refreshing, setRefreshing] = useState(false);
   const [error, setError] = useState<string | null>(null);
+  // Cursor of the next older page; null once the oldest entry is loaded
+  const [nextCursor, setNextCursor] = useState<number | null>(null);
+  const [loadingMore, setLoadingMore] = useState(false);
+  const [weekSpent, setWeekSpent] = useState<number | null>(null);
 
   useEffect(() => {
     fetchTransactions();
   }, []);
 
+  // Newest page from the on-device history, plus this week's spend
   const fetchTransactions = async () => {
     try {
       setError(null);
-      
-      // Get JWT token from native storage
-      const token = await NFCModule.getJwtToken();
-
-      const response = await fetch(`${Config.BASE_URL}${Config.API.TRANSACTIONS}`, {
-        headers: {
-          'Authorization': `Bearer ${token}`,
-        },
-      });
 
-      if (!response.ok) {
-        throw new Error('Failed to fetch transactions');
-      }
+      const page = await NFCModule.getHistoryPage(null, PAGE_SIZE);
+      setTransactions(page.items);
+      setNextCursor(page.nextCursor);
 
-      console.log('Response status:', response.status);
-     
-      console.log('Response body:', response);
-
-      const data = await response.json();
-
-      setTransactions(data);
+      const summary = await NFCModule.getSpendSummary(0, 1);
+      const thisWeek = summary.weeks[0];
+      const weekStart = new Date();
+      weekStart.setHours(0, 0, 0, 0);
+      weekStart.setDate(weekStart.getDate() - ((weekStart.getDay() + 6) % 7));
+      setWeekSpent(thisWeek && thisWeek.start >= weekStart.getTime() ? thisWeek.spent : 0);
     } catch (err) {
       console.error('[TransactionsScreen] Error:', err);
       setError('Unable to load transactions');
@@ -72,7 +68,21 @@ export default function TransactionsScreen() {
     fetchTransactions();
   };
 
-  const formatDate = (timestamp: string) => {
+  const loadMore = async () => {
+    if (nextCursor === null || loadingMore) return;
+    setLoadingMore(true);
+    try {
+      const page = await NFCModule.getHistoryPage(nextCursor, PAGE_SIZE);
+      setTransactions(prev => [...prev, ...page.items]);
+      setNextCursor(page.nextCursor);
+    } catch (err) {
+      console.error('[TransactionsScreen] Error loading more:', err);
+    } finally {
+      setLoadingMore(false);
+    }
+  };
+
+  const formatDate = (timestamp: number) => {
     const date = new Date(timestamp);
     const now = new Date();
     const diffInHours = (now.getTime() - date.getTime()) / (1000 * 60 * 60);
@@ -169,7 +179,7 @@ export default function TransactionsScreen() {
       <View style={styles.header}>
         <Text style={styles.headerTitle}>Transactions</Text>
         <Text style={styles.headerSubtitle}>
-          {transactions.length} total
+          {weekSpent !== null ? `€${weekSpent.toFixed(2)} spent this week` : ''}
         </Text>
       </View>
 
@@ -187,6 +197,9 @@ export default function TransactionsScreen() {
           />
         }
         ListEmptyComponent={renderEmpty}
+        onEndReached={loadMore}
+        onEndReachedThreshold={0.5}
+        ListFooterComponent={loadingMore ? <ActivityIndicator color="#1E88E5" /> : null}
         showsVerticalScrollIndicator={false}
       />
     </View>
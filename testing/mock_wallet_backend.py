@@ -0,0 +1,389 @@
+"""
+Local stand-in for the wallet backend's redeem endpoints.
+
+Lets the native sync path be exercised end to end without the Spring Boot
+backend: point the app at this server with NFCModule.setBaseUrl and queue a
+few offline taps.
+
+    python mock_wallet_backend.py --port 3000 --balance 50
+    python mock_wallet_backend.py --no-batch           # test the single-request fallback
+    python mock_wallet_backend.py --retry-rate 0.2     # randomly answer RETRY / 503
+    python mock_wallet_backend.py --no-gzip            # answer gzipped request bodies with 415
+    python mock_wallet_backend.py --no-tlv             # JSON only: no Accept-Post, 415 for TxCodec bodies
+    python mock_wallet_backend.py --no-chain           # no /redeem/chain: per-transaction signatures only
+
+Signatures are not verified; payloads are only decoded to read txId and fare, and
+the TxChain link. Links of every transaction answered are kept per device and chain,
+and /redeem/chain walks a batch back from its statement head the way
+TxChainVerifier does: anchored transactions are redeemed, the rest are answered
+UNANCHORED.
+Both the JSON bodies and the TxCodec binary format (application/vnd.walla.tx+tlv,
+see TxCodec.java) are accepted; the binary format is advertised with Accept-Post.
+"""
+import argparse
+import base64
+import gzip
+import hashlib
+import json
+import random
+import struct
+import threading
+import time
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+
+REDEEM_PATH = "/api/wallet/redeem"
+BATCH_PATH = "/api/wallet/redeem/batch"
+CHAIN_PATH = "/api/wallet/redeem/chain"
+TLV_MEDIA_TYPE = "application/vnd.walla.tx+tlv"
+
+# ============ STATE ============ #
+lock = threading.Lock()
+balance = 50.0
+redeemed = {}          # txId -> fare
+links = {}             # (deviceId, chainId) -> {sequence: (payload hash, prevHash)}
+stats = {"requests": 0, "batch_requests": 0, "chain_requests": 0, "chain_unanchored": 0,
+         "transactions": 0, "gzip_requests": 0, "tlv_requests": 0}
+config = None
+
+
+def log(msg):
+    print(time.strftime("%H:%M:%S"), msg, flush=True)
+
+
+# ============ TxCodec (version 1) ============ #
+TLV_VERSION = 1
+KIND_PAYLOAD, KIND_RECORD, KIND_REDEEM = 1, 2, 3
+T_TX_ID, T_TX_UUID, T_AMOUNT, T_TIMESTAMP = 1 << 1 | 1, 2 << 1 | 1, 3 << 1, 4 << 1
+T_PAYLOAD_FORMAT, T_PAYLOAD, T_SIGNATURE = 5 << 1, 6 << 1 | 1, 7 << 1 | 1
+T_DEVICE_ID, T_TRANSACTION = 10 << 1 | 1, 11 << 1 | 1
+T_CHAIN_ID, T_SEQUENCE, T_PREV_HASH = 12 << 1 | 1, 13 << 1, 14 << 1 | 1
+T_CHAIN_STATEMENT, T_CHAIN_SIGNATURE = 15 << 1 | 1, 16 << 1 | 1
+
+
+def tlv_fields(data, pos=0):
+    """Yield (tag, value) pairs; value is an int for even tags, bytes for odd ones."""
+    def varint():
+        nonlocal pos
+        value, shift = 0, 0
+        while True:
+            b = data[pos]
+            pos += 1
+            value |= (b & 0x7F) << shift
+            if not b & 0x80:
+                return value
+            shift += 7
+
+    while pos < len(data):
+        tag = data[pos]
+        pos += 1
+        if tag & 1:
+            length = varint()
+            yield tag, data[pos:pos + length]
+            pos += length
+        else:
+            yield tag, varint()
+
+
+def tlv_body(data, kind):
+    if len(data) < 2 or data[0] != TLV_VERSION or data[1] != kind:
+        raise ValueError("bad TxCodec header")
+    return tlv_fields(data, 2)
+
+
+def tlv_tx_id(tag, value):
+    if tag == T_TX_UUID:
+        h = value.hex()
+        return f"{h[0:8]}-{h[8:12]}-{h[12:16]}-{h[16:20]}-{h[20:32]}"
+    return value.decode("utf-8")
+
+
+def decode_tlv_payload(raw):
+    payload = {}
+    for tag, value in tlv_body(raw, KIND_PAYLOAD):
+        if tag in (T_TX_ID, T_TX_UUID):
+            payload["txId"] = tlv_tx_id(tag, value)
+        elif tag == T_AMOUNT:
+            payload["fare"] = value
+        elif tag == T_TIMESTAMP:
+            payload["timestamp"] = value
+        elif tag == T_CHAIN_ID:
+            payload["chain"] = int.from_bytes(value, "big")
+        elif tag == T_SEQUENCE:
+            payload["seq"] = value
+        elif tag == T_PREV_HASH:
+            payload["prev"] = bytes(value)
+    return payload
+
+
+def decode_tlv_redeem(data):
+    """KIND_REDEEM body -> (deviceId, [item], chain statement or None); items shaped like the JSON ones."""
+    device_id, items, statement = None, [], None
+    for tag, value in tlv_body(data, KIND_REDEEM):
+        if tag == T_DEVICE_ID:
+            device_id = value.decode("utf-8")
+        elif tag == T_CHAIN_STATEMENT:
+            statement = bytes(value)
+        elif tag == T_TRANSACTION:
+            item = {"payloadFormat": "json"}
+            for t, v in tlv_fields(value):
+                if t in (T_TX_ID, T_TX_UUID):
+                    item["txId"] = tlv_tx_id(t, v)
+                elif t == T_PAYLOAD_FORMAT:
+                    item["payloadFormat"] = "tlv" if v == 1 else "json"
+                elif t == T_PAYLOAD:
+                    item["rawPayload"] = v
+            items.append(item)
+    return device_id, items, statement
+
+
+def raw_payload(item):
+    return item["rawPayload"] if "rawPayload" in item else base64.b64decode(item["payload"])
+
+
+def decode_payload(item):
+    raw = raw_payload(item)
+    if item.get("payloadFormat") == "tlv":
+        return decode_tlv_payload(raw)
+    payload = json.loads(raw.decode("utf-8"))
+    if "seq" in payload:
+        payload["chain"] = int(payload["chain"], 16)
+        payload["prev"] = base64.b64decode(payload["prev"])
+    return payload
+
+
+# ============ TxChain ============ #
+def chain_link(item):
+    """(chainId, sequence, payload hash, prevHash) of a transaction, or None if it has no link."""
+    try:
+        payload = decode_payload(item)
+    except Exception:
+        return None
+    if "seq" not in payload:
+        return None
+    return payload["chain"], payload["seq"], hashlib.sha256(raw_payload(item)).digest(), payload["prev"]
+
+
+def remember_link(device_id, item):
+    link = chain_link(item)
+    if device_id and link:
+        chain_id, seq, digest, prev = link
+        with lock:
+            links.setdefault((device_id, chain_id), {})[seq] = (digest, prev)
+
+
+def parse_statement(data):
+    """[1 version][8 chainId][8 first][8 last][32 head][deviceId] -> dict, or None."""
+    if len(data) < 57 or data[0] != 1:
+        return None
+    chain_id, first, last = struct.unpack(">QQQ", data[1:25])
+    return {"chain": chain_id, "first": first, "last": last, "head": data[25:57],
+            "deviceId": data[57:].decode("utf-8")}
+
+
+def anchored_items(device_id, statement, items):
+    """Indexes of the items the statement's head reaches through unbroken links."""
+    by_seq = {}
+    for i, item in enumerate(items):
+        link = chain_link(item)
+        if link and link[0] == statement["chain"] and link[1] <= statement["last"]:
+            by_seq[link[1]] = (i, link)
+    with lock:
+        known = dict(links.get((device_id, statement["chain"]), {}))
+
+    anchored = set()
+    expected, seq = statement["head"], statement["last"]
+    lowest = min(by_seq) if by_seq else seq + 1
+    while seq >= lowest:
+        if seq in by_seq:
+            i, (_, _, digest, prev) = by_seq[seq]
+            if digest != expected:
+                break
+            anchored.add(i)
+            expected = prev
+        elif seq in known and known[seq][0] == expected:
+            expected = known[seq][1]
+        else:
+            # Deleted, altered or not uploaded yet: the signature does not reach past here
+            break
+        seq -= 1
+    return anchored
+
+
+def redeem_one(item, device_id=None):
+    """Apply one signed transaction. Returns a per-transaction result dict."""
+    global balance
+    try:
+        payload = decode_payload(item)
+    except Exception as e:
+        return {"txId": item.get("txId"), "status": "REJECTED", "message": f"Bad payload: {e}"}
+
+    tx_id = payload.get("txId") or item.get("txId")
+    fare = float(payload.get("fare", 0))
+
+    if config.retry_rate and random.random() < config.retry_rate:
+        return {"txId": tx_id, "status": "RETRY", "message": "Simulated transient failure"}
+
+    remember_link(device_id, item)
+    with lock:
+        stats["transactions"] += 1
+        if tx_id in redeemed:
+            return {"txId": tx_id, "status": "DUPLICATE", "newBalance": balance, "fareDeducted": 0}
+        if fare > balance:
+            return {"txId": tx_id, "status": "REJECTED", "message": "Insufficient balance"}
+        balance -= fare
+        redeemed[tx_id] = fare
+        return {"txId": tx_id, "status": "SUCCESS", "newBalance": balance, "fareDeducted": fare}
+
+
+def status_counts(results):
+    counts = {}
+    for r in results:
+        counts[r["status"]] = counts.get(r["status"], 0) + 1
+    return counts
+
+
+class Handler(BaseHTTPRequestHandler):
+    protocol_version = "HTTP/1.1"   # keep-alive, like the real backend
+
+    def log_message(self, fmt, *args):
+        pass
+
+    def read_json(self):
+        """Request body as a dict; TxCodec bodies come back as {deviceId, transactions, rawStatement}."""
+        length = int(self.headers.get("Content-Length", 0))
+        data = self.rfile.read(length)
+        if self.headers.get("Content-Encoding", "").lower() == "gzip":
+            with lock:
+                stats["gzip_requests"] += 1
+            data = gzip.decompress(data)
+        if self.headers.get("Content-Type", "").startswith(TLV_MEDIA_TYPE):
+            with lock:
+                stats["tlv_requests"] += 1
+            device_id, items, statement = decode_tlv_redeem(data)
+            return {"deviceId": device_id, "transactions": items, "rawStatement": statement}
+        return json.loads(data or b"{}")
+
+    def rejects_tlv(self):
+        if config.no_tlv and self.headers.get("Content-Type", "").startswith(TLV_MEDIA_TYPE):
+            self.rfile.read(int(self.headers.get("Content-Length", 0)))
+            self.send_json(415, {"message": "Unsupported Content-Type"})
+            return True
+        return False
+
+    def rejects_encoding(self):
+        """With --no-gzip, answer a compressed body the way a backend without request decompression would."""
+        if config.no_gzip and self.headers.get("Content-Encoding"):
+            self.rfile.read(int(self.headers.get("Content-Length", 0)))
+            self.send_json(415, {"message": "Unsupported Content-Encoding"})
+            return True
+        return False
+
+    def send_json(self, status, body):
+        data = json.dumps(body).encode("utf-8")
+        self.send_response(status)
+        self.send_header("Content-Type", "application/json")
+        self.send_header("Content-Length", str(len(data)))
+        if not config.no_tlv:
+            self.send_header("Accept-Post", f"{TLV_MEDIA_TYPE}, application/json")
+        self.end_headers()
+        self.wfile.write(data)
+
+    def do_POST(self):
+        with lock:
+            stats["requests"] += 1
+        if config.latency_ms:
+            time.sleep(config.latency_ms / 1000.0)
+        if self.rejects_encoding() or self.rejects_tlv():
+            return
+
+        if self.path == REDEEM_PATH:
+            body = self.read_json()
+            # A TxCodec body carries its single transaction the way a batch does
+            item = body["transactions"][0] if "transactions" in body else body
+            result = redeem_one(item, body.get("deviceId"))
+            log(f"[REDEEM] {result['txId']} -> {result['status']}")
+            if result["status"] == "RETRY":
+                self.send_json(503, {"message": result["message"]})
+            elif result["status"] == "REJECTED":
+                self.send_json(400, {"message": result["message"]})
+            else:
+                self.send_json(200, {
+                    "status": result["status"],
+                    "newBalance": result["newBalance"],
+                    "fareDeducted": result["fareDeducted"],
+                })
+            return
+
+        if self.path == BATCH_PATH:
+            if config.no_batch:
+                self.send_json(404, {"message": "Not found"})
+                return
+            body = self.read_json()
+            items = body.get("transactions", [])
+            with lock:
+                stats["batch_requests"] += 1
+            results = [redeem_one(item, body.get("deviceId")) for item in items]
+            log(f"[BATCH] {len(items)} tx -> {status_counts(results)}")
+            self.send_json(200, {"results": results, "newBalance": balance})
+            return
+
+        if self.path == CHAIN_PATH:
+            if config.no_chain:
+                self.rfile.read(int(self.headers.get("Content-Length", 0)))
+                self.send_json(404, {"message": "Not found"})
+                return
+            body = self.read_json()
+            device_id = body.get("deviceId")
+            items = body.get("transactions", [])
+            raw = body.get("rawStatement")
+            if raw is None and "chain" in body:
+                raw = base64.b64decode(body["chain"]["statement"])
+            statement = parse_statement(raw or b"")
+            if statement is None or statement["deviceId"] != device_id:
+                self.send_json(400, {"message": "Bad chain statement"})
+                return
+            anchored = anchored_items(device_id, statement, items)
+            results = [redeem_one(item, device_id) if i in anchored
+                       else {"txId": item.get("txId"), "status": "UNANCHORED"}
+                       for i, item in enumerate(items)]
+            with lock:
+                stats["chain_requests"] += 1
+                stats["chain_unanchored"] += len(items) - len(anchored)
+            log(f"[CHAIN] {len(items)} tx, seq {statement['first']}..{statement['last']} -> {status_counts(results)}")
+            self.send_json(200, {"results": results, "newBalance": balance})
+            return
+
+        # Consume the body so the kept-alive connection stays in sync
+        self.rfile.read(int(self.headers.get("Content-Length", 0)))
+        self.send_json(404, {"message": "Not found"})
+
+    def do_GET(self):
+        if self.path == "/stats":
+            with lock:
+                self.send_json(200, dict(stats, balance=balance, redeemed=len(redeemed)))
+            return
+        self.send_json(404, {"message": "Not found"})
+
+
+# === MAIN === #
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description="Local stand-in for the wallet redeem API")
+    parser.add_argument("--host", default="0.0.0.0")
+    parser.add_argument("--port", type=int, default=3000)
+    parser.add_argument("--balance", type=float, default=50.0)
+    parser.add_argument("--no-batch", action="store_true", help="answer the batch endpoint with 404")
+    parser.add_argument("--retry-rate", type=float, default=0.0, help="fraction of transactions answered RETRY")
+    parser.add_argument("--no-gzip", action="store_true", help="answer gzipped request bodies with 415")
+    parser.add_argument("--no-tlv", action="store_true", help="JSON only: do not advertise or accept TxCodec bodies")
+    parser.add_argument("--no-chain", action="store_true", help="answer the chain endpoint with 404")
+    parser.add_argument("--latency-ms", type=int, default=0, help="added delay per request")
+    config = parser.parse_args()
+
+    balance = config.balance
+    server = ThreadingHTTPServer((config.host, config.port), Handler)
+    log(f"[INFO] Mock wallet backend on {config.host}:{config.port} "
+        f"(batch {'off' if config.no_batch else 'on'}, balance {balance})")
+    try:
+        server.serve_forever()
+    except KeyboardInterrupt:
+        log("[INFO] Stopped by user.")
@@ -25,6 +25,26 @@ TRANSMIT_RETRY_DELAY = 0.08  # small retry for transient errors
 TRANSMIT_RETRIES = 4
 CARD_POLL_SLEEP = 0.15       # sleep inside wait loop to avoid busy spin
 
+# SELECT response TLVs and DEDUCT forms (see TapProtocol.java)
+LEAP_OK = b"LEAP_OK"
+TAG_CAPABILITIES = 0x02
+TAG_CARD_NONCE = 0x03
+NONCE_LENGTH = 8
+CAP_BOUND_DEDUCT = 0x02
+CAP_TAP_NONCE = 0x04
+P2_DEDUCT = 0x00
+P2_TAP_DEDUCT = 0x03
+
+# Why the wallet declined a DEDUCT (see TapProtocol.java)
+DECLINE_REASONS = {
+    (0x69, 0x85): "insufficient balance",
+    (0x6A, 0x84): "wallet busy, tap again",
+    (0x69, 0x82): "stale card nonce",
+    (0x69, 0xE1): "offline value limit, sync needed",
+    (0x69, 0xE2): "offline tap limit, sync needed",
+    (0x69, 0xE3): "sync overdue",
+}
+
 ui_queue = None  # define at top of file
 
 
@@ -42,7 +62,35 @@ def build_select_apdu(aid_hex_str):
  
 def build_deduct_apdu(fare_int):
     fare_bytes = fare_int.to_bytes(4, byteorder='big')
-    return [0x80, 0x10, 0x00, 0x00, 0x04] + list(fare_bytes)
+    return [0x80, 0x10, 0x00, P2_DEDUCT, 0x04] + list(fare_bytes)
+
+def build_tap_deduct_apdu(fare_int, card_nonce, tap_nonce):
+    # The card nonce binds it to this SELECT; the tap nonce stays the same when it is resent
+    data = fare_int.to_bytes(4, byteorder='big') + card_nonce + tap_nonce
+    return [0x80, 0x10, 0x00, P2_TAP_DEDUCT, len(data)] + list(data)
+
+def parse_select_response(data):
+    """Capabilities and card nonce after "LEAP_OK", or (0, None) for a v1 wallet."""
+    data = bytes(data)
+    if not data.startswith(LEAP_OK):
+        return 0, None
+    capabilities, card_nonce = 0, None
+    p = len(LEAP_OK)
+    while p + 2 <= len(data):
+        tag, length = data[p], data[p + 1]
+        p += 2
+        if p + length > len(data):
+            return 0, None
+        if tag == TAG_CAPABILITIES and length == 1:
+            capabilities = data[p]
+        elif tag == TAG_CARD_NONCE and length == NONCE_LENGTH:
+            card_nonce = data[p:p + length]
+        p += length
+    return capabilities, card_nonce
+
+def takes_tap_nonce(capabilities, card_nonce):
+    wanted = CAP_BOUND_DEDUCT | CAP_TAP_NONCE
+    return card_nonce is not None and capabilities & wanted == wanted
 
 def choose_reader(pref_name=None):
     r = readers()
@@ -88,6 +136,32 @@ def transmit_with_retries(conn, apdu, retries=TRANSMIT_RETRIES):
             else:
                 raise
 
+def deduct_with_resend(conn, select_apdu, fare, card_nonce):
+    """
+    Tap DEDUCT under one tap nonce. A lost answer is resent after a new SELECT (the card
+    nonce is per field session) with the same tap nonce, and the wallet answers the resend
+    as it did the first one instead of charging again.
+    """
+    tap_nonce = os.urandom(NONCE_LENGTH)
+    for attempt in range(1, TRANSMIT_RETRIES + 1):
+        try:
+            start = time.time()
+            data, sw1, sw2 = conn.transmit(build_tap_deduct_apdu(fare, card_nonce, tap_nonce))
+            return data, sw1, sw2, (time.time() - start) * 1000.0
+        except CardConnectionException as e:
+            log(f"[WARN] DEDUCT attempt {attempt} failed: {e}")
+            if attempt == TRANSMIT_RETRIES:
+                raise
+            time.sleep(TRANSMIT_RETRY_DELAY)
+            try:
+                conn.connect()
+                data, sw1, sw2, _ = transmit_with_retries(conn, select_apdu)
+                _, nonce = parse_select_response(data)
+                if (sw1, sw2) == (0x90, 0x00) and nonce is not None:
+                    card_nonce = nonce
+            except Exception:
+                pass
+
 def wait_for_card_removal(conn):
     print("[INFO] Waiting for card removal before next tap...")
     while True:
@@ -178,7 +252,6 @@ def real_reader_loop(ui_queue, aid_hex, fare, pref_reader=None):
 
         conn = reader.createConnection()
         select_apdu = build_select_apdu(aid_hex)
-        deduct_apdu = build_deduct_apdu(fare)
 
         ui_queue.put(("[INFO] Using reader: " + str(reader), "wait"))
 
@@ -203,9 +276,17 @@ def real_reader_loop(ui_queue, aid_hex, fare, pref_reader=None):
                 ui_queue.put(("[OK] AID selected", None))
                 
                 
-                # DEDUCT
-                deduct_apdu = build_deduct_apdu(fare)
-                data, sw1, sw2, t_deduct = transmit_with_retries(conn, deduct_apdu)
+                # DEDUCT. Only the tap DEDUCT is safe to resend: the wallet charges a
+                # plain one (v1 wallets) every time it arrives, so it goes out once.
+                capabilities, card_nonce = parse_select_response(data)
+                if takes_tap_nonce(capabilities, card_nonce):
+                    data, sw1, sw2, t_deduct = deduct_with_resend(conn, select_apdu, fare, card_nonce)
+                else:
+                    try:
+                        data, sw1, sw2, t_deduct = transmit_with_retries(conn, build_deduct_apdu(fare), retries=1)
+                    except CardConnectionException:
+                        ui_queue.put(("[FAIL] DEDUCT answer lost, not resent: check the wallet before tapping again", "fail"))
+                        raise
                 ui_queue.put((f"[RX] DEDUCT ({t_deduct:.1f}ms) SW={sw1:02X}{sw2:02X}", None))
                 
                 # === END TOTAL TIME ===
@@ -214,7 +295,8 @@ def real_reader_loop(ui_queue, aid_hex, fare, pref_reader=None):
                 if (sw1, sw2) == (0x90, 0x00):
                     ui_queue.put((f"[OK] Fare deducted ✓  Total: {total_ms:.0f}ms (SELECT: {t_select:.0f}ms + DEDUCT: {t_deduct:.0f}ms)", "ok"))
                 else:
-                    ui_queue.put((f"[FAIL] Deduct failed  Total: {total_ms:.0f}ms", "fail"))
+                    reason = DECLINE_REASONS.get((sw1, sw2), "declined")
+                    ui_queue.put((f"[FAIL] Deduct failed: {reason}  Total: {total_ms:.0f}ms", "fail"))
          
             except Exception as e:
                 total_ms = (time.perf_counter() - tap_start) * 1000.0